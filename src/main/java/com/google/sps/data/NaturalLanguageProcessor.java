@@ -14,8 +14,11 @@
 
 package com.google.sps.data;
 
+import com.google.api.gax.rpc.InvalidArgumentException;
 import com.google.cloud.language.v1.AnalyzeEntitiesRequest;
 import com.google.cloud.language.v1.AnalyzeEntitiesResponse;
+import com.google.cloud.language.v1.AnnotateTextRequest;
+import com.google.cloud.language.v1.AnnotateTextResponse;
 import com.google.cloud.language.v1.ClassifyTextRequest;
 import com.google.cloud.language.v1.ClassifyTextResponse;
 import com.google.cloud.language.v1.ClassificationCategory;
@@ -25,6 +28,8 @@ import com.google.cloud.language.v1.EncodingType;
 import com.google.cloud.language.v1.Entity;
 import com.google.cloud.language.v1.EntityMention;
 import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.sps.storage.EntityExtractionCache;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 import java.util.List;
 import java.util.HashSet;
@@ -47,6 +52,12 @@ public class NaturalLanguageProcessor {
     private static final String CATEGORY_DELIMITER = "/";
     private static final int MIN_TOKENS_FOR_CATEGORY_CLASSIFICATION = 20;
     private static final int CATEGORY_INDEX = 1;
+    // System property that turns off the combined annotateText call, which is used unless it is "false"
+    private static final String ANNOTATE_TEXT_PROPERTY = "cram.nlp.annotateText";
+    // System property that classifies every chunk on its own instead of the video once, if "true"
+    private static final String CHUNK_CLASSIFICATION_PROPERTY = "cram.nlp.chunkClassification";
+    // Size limit of a document sent to the NLP API
+    private static final int MAX_DOCUMENT_BYTES = 1000000;
     private static final String[] ACADEMIC_CATEGORIES = {
         "Arts & Entertainment", 
         "Books & Literature", 
@@ -63,14 +74,25 @@ public class NaturalLanguageProcessor {
     private double defaultThreshold;
     private double academicThreshold;
     private double categoryThreshold;
+    private SharedLanguageClient client;
+    private boolean annotateText;
+    private boolean chunkClassification;
+    private EntityExtractionCache cache;
 
     /**
      * Constructor for NaturalLanguageProcessor with default thresholds
      */
     public NaturalLanguageProcessor() {
-        this.defaultThreshold = DEFAULT_SALIENCE_THRESHOLD;
-        this.academicThreshold = ACADEMIC_SALIENCE_THRESHOLD;
-        this.categoryThreshold = CATEGORY_THRESHOLD;
+        this(DEFAULT_SALIENCE_THRESHOLD, ACADEMIC_SALIENCE_THRESHOLD, CATEGORY_THRESHOLD);
+    }
+
+    /**
+     * Constructor for NaturalLanguageProcessor with default thresholds that reuses previously extracted entities
+     * @param cache The cache of entities extracted from chunks seen before
+     */
+    public NaturalLanguageProcessor(EntityExtractionCache cache) {
+        this(SharedLanguageClient.getInstance(), DEFAULT_SALIENCE_THRESHOLD, ACADEMIC_SALIENCE_THRESHOLD, CATEGORY_THRESHOLD,
+            !"false".equals(System.getProperty(ANNOTATE_TEXT_PROPERTY)), Boolean.getBoolean(CHUNK_CLASSIFICATION_PROPERTY), cache);
     }
 
     /**
@@ -80,52 +102,240 @@ public class NaturalLanguageProcessor {
      * @param categoryThreshold The minimum category confidence for the category to apply
      */
     public NaturalLanguageProcessor(double defaultThreshold, double academicThreshold, double categoryThreshold) {
+        this(SharedLanguageClient.getInstance(), defaultThreshold, academicThreshold, categoryThreshold,
+            !"false".equals(System.getProperty(ANNOTATE_TEXT_PROPERTY)), Boolean.getBoolean(CHUNK_CLASSIFICATION_PROPERTY), null);
+    }
+
+    /**
+     * Constructor for NaturalLanguageProcessor with its client, threshold parameters and call mode
+     * @param client The client the NLP API is called with
+     * @param defaultThreshold The minimum salience threshold without academic context
+     * @param academicThreshold The minimum salience threshold for entities in an academic context
+     * @param categoryThreshold The minimum category confidence for the category to apply
+     * @param annotateText Whether text long enough to classify is classified and analyzed with one annotateText call
+     *     rather than separate classifyText and analyzeEntities calls
+     * @param chunkClassification Whether every chunk of a video is classified on its own (see classifiesChunks)
+     * @param cache The cache of entities extracted from chunks seen before, or null to call the NLP API for every chunk
+     */
+    public NaturalLanguageProcessor(SharedLanguageClient client, double defaultThreshold, double academicThreshold, double categoryThreshold,
+            boolean annotateText, boolean chunkClassification, EntityExtractionCache cache) {
+        this.client = client;
+        this.cache = cache;
+        this.annotateText = annotateText;
+        this.chunkClassification = chunkClassification;
         this.defaultThreshold = defaultThreshold;
         this.academicThreshold = academicThreshold;
         this.categoryThreshold = categoryThreshold;
     }
 
     /**
-     * Gets a list of entities using Google's NLP API
+     * Gets a list of entities using Google's NLP API, classifying the text itself if it is long enough
+     * The text is normalized as the cache key is, so chunks sharing a key are analyzed alike
      * @param text The string that contains the text to pull entities from
-     * @return The list of entities as an unmodifiable list
+     * @return The list of entities as an unmodifiable list, or null if an API call fails,
+     *     including the classification call, so a result never silently falls back to the default threshold
      */
     public List<String> getEntities(String text) {
-        Set<String> entities = new HashSet<String>();
-        int tokens = text.split(WORD_DELIMITER).length;
-        boolean hasAcademicCategory = false;
+        String normalized = EntityExtractionCache.normalize(text);
+        if (cache != null) {
+            String config = "classified:" + defaultThreshold + "," + academicThreshold + "," + categoryThreshold;
+            return cache.get(config, normalized, () -> extractEntities(normalized));
+        }
+        return extractEntities(normalized);
+    }
 
-        // Calls the NLP API, but returns null if the API call fails
-        try (LanguageServiceClient language = LanguageServiceClient.create()) {
-            
-            Document doc = Document.newBuilder().setContent(text).setType(Type.PLAIN_TEXT).build();
+    /**
+     * Gets a list of entities of text classified by itself with the NLP API, bypassing the cache
+     * @param text The string that contains the text to pull entities from
+     * @return The list of entities as an unmodifiable list, or null if the API call fails
+     */
+    private List<String> extractEntities(String text) {
+        // Calls the NLP API with the shared client, but returns null if the API call fails
+        try {
+            return client.call(language -> getEntities(language, text));
+        } catch (Exception e) {
+            System.out.println(ENTITIES_EXCEPTION);
+            return null;
+        }
+    }
 
-            // Attempts to classify the text if there are more than 20 words
-            if (tokens >= MIN_TOKENS_FOR_CATEGORY_CLASSIFICATION) {
-                hasAcademicCategory = checkAcademicCategory(language, doc);
-            }
-            
-            double salienceThreshold = hasAcademicCategory ? academicThreshold : defaultThreshold;
-            
-            // Builds request to find all entities in the text
-            AnalyzeEntitiesRequest entitiesRequest = 
-                AnalyzeEntitiesRequest.newBuilder()
-                .setDocument(doc)
-                .setEncodingType(EncodingType.UTF16)
-                .build();
-
-            // Adds all entities that have a salience above the threshold
-            AnalyzeEntitiesResponse entitiesResponse = language.analyzeEntities(entitiesRequest);
-            for (Entity entity : entitiesResponse.getEntitiesList()) {
-                if (entity.getSalience() >= salienceThreshold) {
-                    entities.add(entity.getName().toLowerCase());
-                }
-            }
+    /**
+     * Gets a list of entities using Google's NLP API, with the threshold of a category classified beforehand
+     * Only entities are requested, so this takes a single analyzeEntities call
+     * The text is normalized as the cache key is, so chunks sharing a key are analyzed alike
+     * @param text The string that contains the text to pull entities from
+     * @param academic Whether the text is in an academic category, e.g. as found by isAcademicVideo for its whole video
+     * @return The list of entities as an unmodifiable list
+     */
+    public List<String> getEntities(String text, boolean academic) {
+        double salienceThreshold = academic ? academicThreshold : defaultThreshold;
+        String normalized = EntityExtractionCache.normalize(text);
+        if (cache != null) {
+            return cache.get("salience:" + salienceThreshold, normalized, () -> extractEntities(normalized, salienceThreshold));
+        }
+        return extractEntities(normalized, salienceThreshold);
+    }
+
+    /**
+     * Gets a list of entities above a salience threshold with the NLP API, bypassing the cache
+     * @param text The string that contains the text to pull entities from
+     * @param salienceThreshold The minimum salience of a returned entity
+     * @return The list of entities as an unmodifiable list, or null if the API call fails
+     */
+    private List<String> extractEntities(String text, double salienceThreshold) {
+        Document doc = Document.newBuilder().setContent(text).setType(Type.PLAIN_TEXT).build();
 
+        // Calls the NLP API with the shared client, but returns null if the API call fails
+        try {
+            return client.call(language -> filterEntities(analyzeEntities(language, doc), salienceThreshold));
         } catch (Exception e) {
             System.out.println(ENTITIES_EXCEPTION);
             return null;
         }
+    }
+
+    /**
+     * Checks once for a whole video whether its captions are in an academic category
+     * A video's category rarely changes from one chunk to the next, so its chunks can share the result.
+     * Captions over the size limit of a document are sampled evenly across the video.
+     * @param chunks The preprocessed chunks of the video's captions
+     * @return Whether the captions are in an academic category, false if they are too short to classify,
+     *     or null if the classification call fails
+     */
+    public Boolean isAcademicVideo(List<TimeRangedText> chunks) {
+        String text = sampleText(chunks);
+        if (text.split(WORD_DELIMITER).length < MIN_TOKENS_FOR_CATEGORY_CLASSIFICATION) {
+            return false;
+        }
+
+        Document doc = Document.newBuilder().setContent(text).setType(Type.PLAIN_TEXT).build();
+        try {
+            return client.call(language -> classify(language, doc));
+        } catch (Exception e) {
+            System.out.println(CATEGORY_EXCEPTION);
+            return null;
+        }
+    }
+
+    /**
+     * Gets whether chunks are classified one by one through getEntities(String)
+     * rather than sharing the classification of their video from isAcademicVideo
+     * @return Whether every chunk is classified on its own
+     */
+    public boolean classifiesChunks() {
+        return chunkClassification;
+    }
+
+    /**
+     * Joins the text of the chunks of a video into one document under the size limit of the NLP API
+     * Every chunk is kept if they fit; otherwise chunks spread evenly across the video are kept
+     * @param chunks The preprocessed chunks of the video's captions
+     * @return The text to classify
+     */
+    private static String sampleText(List<TimeRangedText> chunks) {
+        long totalBytes = 0;
+        for (TimeRangedText chunk : chunks) {
+            totalBytes += chunk.getText().getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        long stride = (totalBytes + MAX_DOCUMENT_BYTES - 1) / MAX_DOCUMENT_BYTES;
+
+        StringBuilder text = new StringBuilder();
+        int bytes = 0;
+        for (int i = 0; i < chunks.size(); i += Math.max(1, stride)) {
+            String chunkText = chunks.get(i).getText();
+            int chunkBytes = chunkText.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (bytes + chunkBytes > MAX_DOCUMENT_BYTES) {
+                break;
+            }
+            text.append(chunkText).append(WORD_DELIMITER);
+            bytes += chunkBytes;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Gets a list of entities with the given client
+     * @param language The instance of the NLP API object
+     * @param text The string that contains the text to pull entities from
+     * @return The list of entities as an unmodifiable list
+     */
+    private List<String> getEntities(LanguageServiceClient language, String text) {
+        int tokens = text.split(WORD_DELIMITER).length;
+        boolean hasAcademicCategory = false;
+
+        Document doc = Document.newBuilder().setContent(text).setType(Type.PLAIN_TEXT).build();
+
+        // Classifies and analyzes text of more than 20 words in one round trip
+        if (annotateText && tokens >= MIN_TOKENS_FOR_CATEGORY_CLASSIFICATION) {
+            try {
+                return annotateEntities(language, doc);
+            } catch (InvalidArgumentException e) {
+                // the text cannot be classified (e.g. its language is not supported), so entities are requested alone
+                System.out.println(CATEGORY_EXCEPTION);
+                return filterEntities(analyzeEntities(language, doc), defaultThreshold);
+            }
+        }
+
+        // Attempts to classify the text if there are more than 20 words
+        if (tokens >= MIN_TOKENS_FOR_CATEGORY_CLASSIFICATION) {
+            hasAcademicCategory = classify(language, doc);
+        }
+        
+        double salienceThreshold = hasAcademicCategory ? academicThreshold : defaultThreshold;
+        return filterEntities(analyzeEntities(language, doc), salienceThreshold);
+    }
+
+    /**
+     * Classifies the text and finds its entities with a single annotateText call
+     * The salience threshold is chosen from the categories of the response, as getEntities does with separate calls
+     * @param language The instance of the NLP API object
+     * @param doc The document object that contains the the text to be analyzed
+     * @return The list of entities as an unmodifiable list
+     */
+    private List<String> annotateEntities(LanguageServiceClient language, Document doc) {
+        AnnotateTextRequest annotateRequest =
+            AnnotateTextRequest.newBuilder()
+            .setDocument(doc)
+            .setFeatures(AnnotateTextRequest.Features.newBuilder().setExtractEntities(true).setClassifyText(true))
+            .setEncodingType(EncodingType.UTF16)
+            .build();
+
+        AnnotateTextResponse annotateResponse = language.annotateText(annotateRequest);
+        boolean hasAcademicCategory = isAcademic(annotateResponse.getCategoriesList());
+        return filterEntities(annotateResponse.getEntitiesList(), hasAcademicCategory ? academicThreshold : defaultThreshold);
+    }
+
+    /**
+     * Finds all entities in the text with an analyzeEntities call
+     * @param language The instance of the NLP API object
+     * @param doc The document object that contains the the text to be analyzed
+     * @return The entities found in the text
+     */
+    private List<Entity> analyzeEntities(LanguageServiceClient language, Document doc) {
+        // Builds request to find all entities in the text
+        AnalyzeEntitiesRequest entitiesRequest = 
+            AnalyzeEntitiesRequest.newBuilder()
+            .setDocument(doc)
+            .setEncodingType(EncodingType.UTF16)
+            .build();
+
+        AnalyzeEntitiesResponse entitiesResponse = language.analyzeEntities(entitiesRequest);
+        return entitiesResponse.getEntitiesList();
+    }
+
+    /**
+     * Picks the names of the entities that have a salience above the threshold
+     * @param found The entities found by the NLP API
+     * @param salienceThreshold The minimum salience of a returned entity
+     * @return The lowercase entity names as an unmodifiable list
+     */
+    private static List<String> filterEntities(List<Entity> found, double salienceThreshold) {
+        Set<String> entities = new HashSet<String>();
+        for (Entity entity : found) {
+            if (entity.getSalience() >= salienceThreshold) {
+                entities.add(entity.getName().toLowerCase());
+            }
+        }
 
         // Converts set to an unmodifiable list as the return object
         return Collections.unmodifiableList(new ArrayList<String>(entities));
@@ -138,24 +348,49 @@ public class NaturalLanguageProcessor {
      * @return Whether the text is in an academic category
      */
     public boolean checkAcademicCategory(LanguageServiceClient language, Document doc) {
+        try {
+            return classify(language, doc);
+        } catch (Exception e) {
+            System.out.println(CATEGORY_EXCEPTION);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the text in the document is in an academic category, letting failures of the call through
+     * Text the API cannot classify, e.g. in an unsupported language, is not in an academic category
+     * @param language The instance of the NLP API object
+     * @param doc The document object that contains the the text to be analyzed
+     * @return Whether the text is in an academic category
+     */
+    private boolean classify(LanguageServiceClient language, Document doc) {
         // Calls the API and tries to match the found categories with the array of academic categories
         try {
             ClassifyTextRequest classifyRequest = ClassifyTextRequest.newBuilder().setDocument(doc).build();
             ClassifyTextResponse classifyResponse = language.classifyText(classifyRequest);
-            for (ClassificationCategory category : classifyResponse.getCategoriesList()) {
-                if (category.getConfidence() < this.categoryThreshold) {
-                    continue;
-                }
-                String target = category.getName().split(CATEGORY_DELIMITER)[CATEGORY_INDEX];
-
-                if (Arrays.stream(ACADEMIC_CATEGORIES).anyMatch(x -> target.equals(x))) {
-                    return true;
-                }
-            }
-        } catch (Exception e) {
+            return isAcademic(classifyResponse.getCategoriesList());
+        } catch (InvalidArgumentException e) {
             System.out.println(CATEGORY_EXCEPTION);
             return false;
         }
+    }
+
+    /**
+     * Checks if any confident category is one of the academic categories
+     * @param categories The categories the NLP API classified the text in
+     * @return Whether the text is in an academic category
+     */
+    private boolean isAcademic(List<ClassificationCategory> categories) {
+        for (ClassificationCategory category : categories) {
+            if (category.getConfidence() < this.categoryThreshold) {
+                continue;
+            }
+            String target = category.getName().split(CATEGORY_DELIMITER)[CATEGORY_INDEX];
+
+            if (Arrays.stream(ACADEMIC_CATEGORIES).anyMatch(x -> target.equals(x))) {
+                return true;
+            }
+        }
         return false;
     }
     
@@ -0,0 +1,272 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends preprocessed caption chunks to the NLP API in parallel on threads of the current request.
+ * The threads come from ThreadManager.currentRequestThreadFactory(), so they carry the request's API environment
+ * and the runtime does not let them outlive the request. Calls hold a permit shared by all requests,
+ * so at most the concurrency limit of NLP calls are in flight per instance.
+ * Outside a request there is no such factory, and the chunks are analyzed one at a time on the calling thread.
+ * Each call is given a timeout from when it starts running, and every call of a request must also finish by
+ * the request's deadline, counted from when the request hands over its chunks, so time spent queued behind
+ * other requests is bounded too. A call that fails, times out or misses the deadline yields null, as
+ * NaturalLanguageProcessor.getEntities does when the API call fails.
+ * Results are returned in chunk order, so merging them gives the same entities map as the sequential loop.
+ */
+public final class ParallelEntityExtractor {
+
+    // System properties (see appengine-web.xml) for the number of NLP calls in flight, the timeout of each call
+    // and the deadline of all the calls of one request
+    private static final String CONCURRENCY_PROPERTY = "cram.nlp.concurrency";
+    private static final String TIMEOUT_PROPERTY = "cram.nlp.timeoutMillis";
+    private static final String DEADLINE_PROPERTY = "cram.nlp.deadlineMillis";
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 15000;
+    // leaves room within App Engine's 60 second request limit to store the results
+    private static final long DEFAULT_DEADLINE_MILLIS = 45000;
+    private static final String TIMEOUT_EXCEPTION = "NLP call timed out for the chunk starting at ";
+    private static final String CALL_EXCEPTION = "Exception caught when analyzing the chunk starting at ";
+    private static final String DEADLINE_EXCEPTION = "Request deadline passed before analyzing the chunk starting at ";
+
+    private static ParallelEntityExtractor sharedExtractor;
+
+    private final Semaphore permits;
+    private final int concurrency;
+    private final long timeoutMillis;
+    private final long deadlineMillis;
+
+    /**
+     * Constructor for a ParallelEntityExtractor with its own concurrency limit and the default request deadline
+     * @param concurrency The maximum number of NLP calls in flight; 1 analyzes chunks one at a time
+     * @param timeoutMillis The time each call may run before its chunk is skipped
+     */
+    public ParallelEntityExtractor(int concurrency, long timeoutMillis) {
+        this(concurrency, timeoutMillis, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Constructor for a ParallelEntityExtractor with its own concurrency limit
+     * @param concurrency The maximum number of NLP calls in flight; 1 analyzes chunks one at a time
+     * @param timeoutMillis The time each call may run before its chunk is skipped
+     * @param deadlineMillis The time all the calls of one request may take, queued or running,
+     *     before the chunks left are skipped
+     */
+    public ParallelEntityExtractor(int concurrency, long timeoutMillis, long deadlineMillis) {
+        if (concurrency < 1 || timeoutMillis <= 0 || deadlineMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.concurrency = concurrency;
+        this.timeoutMillis = timeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+        this.permits = new Semaphore(concurrency, true);
+    }
+
+    /**
+     * Gets the extractor shared by the servlets of this application, creating it on first use
+     * Its limits are read from -Dcram.nlp.concurrency, -Dcram.nlp.timeoutMillis and -Dcram.nlp.deadlineMillis
+     * @return The shared ParallelEntityExtractor instance
+     */
+    public static synchronized ParallelEntityExtractor getInstance() {
+        if (sharedExtractor == null) {
+            sharedExtractor = new ParallelEntityExtractor(
+                Integer.getInteger(CONCURRENCY_PROPERTY, DEFAULT_CONCURRENCY),
+                Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS),
+                Long.getLong(DEADLINE_PROPERTY, DEFAULT_DEADLINE_MILLIS));
+        }
+        return sharedExtractor;
+    }
+
+    /**
+     * Gets the entities of each chunk, classifying each chunk on its own,
+     * with up to the concurrency limit of NLP calls in flight
+     * @param nlp The processor that calls the NLP API
+     * @param chunks The preprocessed chunks of the captions
+     * @return The entities of each chunk in chunk order, null for a chunk whose call failed, timed out
+     *     or missed the request deadline
+     */
+    public List<List<String>> getEntities(NaturalLanguageProcessor nlp, List<TimeRangedText> chunks) {
+        return getEntities(nlp, chunks, null);
+    }
+
+    /**
+     * Gets the entities of each chunk with the category of their video,
+     * with up to the concurrency limit of NLP calls in flight
+     * @param nlp The processor that calls the NLP API
+     * @param chunks The preprocessed chunks of the captions
+     * @param academic Whether the video is in an academic category (see NaturalLanguageProcessor.isAcademicVideo)
+     * @return The entities of each chunk in chunk order, null for a chunk whose call failed, timed out
+     *     or missed the request deadline
+     */
+    public List<List<String>> getEntities(NaturalLanguageProcessor nlp, List<TimeRangedText> chunks, boolean academic) {
+        return getEntities(nlp, chunks, Boolean.valueOf(academic));
+    }
+
+    /**
+     * Gets the entities of each chunk, with up to the concurrency limit of NLP calls in flight
+     * @param nlp The processor that calls the NLP API
+     * @param chunks The preprocessed chunks of the captions
+     * @param academic Whether the video is in an academic category, or null to classify each chunk
+     * @return The entities of each chunk in chunk order, null for a chunk whose call failed, timed out
+     *     or missed the request deadline
+     */
+    private List<List<String>> getEntities(NaturalLanguageProcessor nlp, List<TimeRangedText> chunks, Boolean academic) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        List<List<String>> results = new ArrayList<>(chunks.size());
+        ThreadFactory requestThreads = concurrency == 1 || chunks.size() <= 1 ? null : requestThreadFactory();
+        if (requestThreads == null) {
+            // a call on the request thread cannot be cut short, but no call starts after the deadline
+            for (TimeRangedText chunk : chunks) {
+                if (System.nanoTime() - deadline >= 0) {
+                    System.out.println(DEADLINE_EXCEPTION + chunk.getStartTime());
+                    results.add(null);
+                } else {
+                    results.add(analyze(nlp, chunk.getText(), academic));
+                }
+            }
+            return results;
+        }
+
+        // no request needs more threads than the calls it may have in flight
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(
+            Math.min(concurrency, chunks.size()), requestThreads);
+        List<ChunkCall> calls = new ArrayList<>(chunks.size());
+        try {
+            for (TimeRangedText chunk : chunks) {
+                ChunkCall call = new ChunkCall(nlp, chunk, academic, permits, deadline);
+                call.future = executor.submit(call::run);
+                calls.add(call);
+            }
+            for (int i = 0; i < calls.size(); i++) {
+                results.add(await(executor, calls.get(i), chunks.get(i), deadline));
+            }
+        } finally {
+            // interrupts the calls left over when the request thread is interrupted, and lets the threads end
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Gets the factory for threads bound to the current request
+     * @return The factory, or null if the calling thread is not serving a request
+     */
+    private static ThreadFactory requestThreadFactory() {
+        if (ApiProxy.getCurrentEnvironment() == null) {
+            return null;
+        }
+        return ThreadManager.currentRequestThreadFactory();
+    }
+
+    /**
+     * Waits for the call of one chunk, for at most the timeout after it started running and never past the deadline
+     * @param executor The executor of the request's calls
+     * @param call The call of the chunk
+     * @param chunk The chunk
+     * @param deadline The System.nanoTime by which every call of the request must finish
+     * @return The entities of the chunk, null if its call failed, timed out or missed the deadline
+     */
+    private List<String> await(ThreadPoolExecutor executor, ChunkCall call, TimeRangedText chunk, long deadline) {
+        try {
+            // a queued call does not use up its timeout, but does use up the request's deadline
+            if (!call.started.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && !call.future.isDone()) {
+                // still queued or waiting for a permit, so it is taken off the queue rather than left to run for nobody
+                call.future.cancel(true);
+                executor.remove((Runnable) call.future);
+                System.out.println(DEADLINE_EXCEPTION + chunk.getStartTime());
+                return null;
+            }
+            long until = Math.min(call.startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), deadline);
+            return call.future.get(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            call.future.cancel(true);
+            System.out.println(TIMEOUT_EXCEPTION + chunk.getStartTime());
+        } catch (ExecutionException | CancellationException e) {
+            System.out.println(CALL_EXCEPTION + chunk.getStartTime());
+        } catch (InterruptedException e) {
+            call.future.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Makes the NLP call of one chunk
+     * @param nlp The processor that calls the NLP API
+     * @param text The text of the chunk
+     * @param academic Whether the video is in an academic category, or null to classify the chunk
+     * @return The entities of the chunk, null if the call failed
+     */
+    private static List<String> analyze(NaturalLanguageProcessor nlp, String text, Boolean academic) {
+        return academic == null ? nlp.getEntities(text) : nlp.getEntities(text, academic);
+    }
+
+    /** The NLP call of one chunk, which records when it gets a permit and starts running */
+    private static final class ChunkCall {
+        private final NaturalLanguageProcessor nlp;
+        private final TimeRangedText chunk;
+        private final Boolean academic;
+        private final Semaphore permits;
+        private final long deadline;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile long startedAt;
+        private Future<List<String>> future;
+
+        private ChunkCall(NaturalLanguageProcessor nlp, TimeRangedText chunk, Boolean academic, Semaphore permits, long deadline) {
+            this.nlp = nlp;
+            this.chunk = chunk;
+            this.academic = academic;
+            this.permits = permits;
+            this.deadline = deadline;
+        }
+
+        // a call that gets no permit before the request's deadline is skipped, since the request no longer waits for it
+        private List<String> run() {
+            try {
+                if (System.nanoTime() - deadline >= 0
+                        || !permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    System.out.println(DEADLINE_EXCEPTION + chunk.getStartTime());
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                // cancelled by the request while waiting for a permit
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            try {
+                startedAt = System.nanoTime();
+                started.countDown();
+                return analyze(nlp, chunk.getText(), academic);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+}
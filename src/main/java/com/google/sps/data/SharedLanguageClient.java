@@ -0,0 +1,131 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.api.gax.rpc.UnavailableException;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived LanguageServiceClient shared by every NaturalLanguageProcessor of the application.
+ * The client is thread-safe and multiplexes calls over its gRPC channel, so the channel setup, TLS handshake
+ * and credential loading are paid once rather than per call. A client that has been shut down or whose
+ * channel reports the service unavailable is replaced on the next call. LanguageClientListener closes the
+ * shared instance when the web application stops.
+ */
+public final class SharedLanguageClient {
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final String CLOSED_ERROR = "The shared LanguageServiceClient has been closed";
+
+    private static final SharedLanguageClient INSTANCE = new SharedLanguageClient(LanguageServiceClient::create);
+
+    /** Creates the LanguageServiceClient the shared client wraps */
+    @FunctionalInterface
+    public interface ClientFactory {
+        LanguageServiceClient create() throws IOException;
+    }
+
+    /** A call to the NLP API made with the shared client */
+    @FunctionalInterface
+    public interface LanguageCall<T> {
+        T call(LanguageServiceClient language);
+    }
+
+    private final ClientFactory factory;
+    private LanguageServiceClient client;
+    private boolean closed = false;
+
+    /**
+     * Constructor for a SharedLanguageClient
+     * @param factory Creates the client on first use and after a failure
+     */
+    public SharedLanguageClient(ClientFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Gets the client shared by the application
+     * @return The shared SharedLanguageClient instance
+     */
+    public static SharedLanguageClient getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Makes a call with the shared client, reconnecting and retrying once if the channel is unavailable
+     * @param call The call to make
+     * @return The result of the call
+     */
+    public <T> T call(LanguageCall<T> call) throws IOException {
+        LanguageServiceClient language = get();
+        try {
+            return call.call(language);
+        } catch (UnavailableException e) {
+            invalidate(language);
+            return call.call(get());
+        }
+    }
+
+    /**
+     * Gets the current client, creating it on first use or if the previous one has been shut down
+     * @return The current client
+     */
+    public synchronized LanguageServiceClient get() throws IOException {
+        if (closed) {
+            throw new IllegalStateException(CLOSED_ERROR);
+        }
+        if (client == null || client.isShutdown()) {
+            client = factory.create();
+        }
+        return client;
+    }
+
+    /**
+     * Discards a client that failed, so the next call creates a new one
+     * Does nothing if the client has already been replaced by another caller
+     * @param failed The client a call failed with
+     */
+    public synchronized void invalidate(LanguageServiceClient failed) {
+        if (client == failed) {
+            client = null;
+            failed.shutdown();
+        }
+    }
+
+    /** Shuts the current client down, waiting briefly for calls in flight; later calls fail */
+    public void close() {
+        LanguageServiceClient current;
+        synchronized (this) {
+            closed = true;
+            current = client;
+            client = null;
+        }
+        if (current == null) {
+            return;
+        }
+
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -17,6 +17,10 @@ package com.google.sps.servlets;
 import com.google.sps.storage.*;
 import java.io.IOException;
 import java.lang.InterruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -38,35 +42,98 @@ public class CaptionRetrievalServlet extends HttpServlet {
     private static final String RESPONSE_VIDEO_ID_NOT_IN_DB = "{}";
     private static final String EXCEPTION_JSON_START = "{ \"ERROR\": ";
     private static final String EXCEPTION_JSON_END = "}";
+    private static final String INVALID_RANGE_ERROR = "INVALID_RANGE";
     private static final String METADATA_KEY = "METADATA";
     private static final String DB_NO_METADATA = "no_metadata";
     private static final String VIDEO_URL_ID_DELIMITER = "v=";
     private static final char URL_QUERY_DELIMITER = '&';
+    private static final String RESPONSE_CHARSET = "UTF-8";
+    private static final byte[] RESPONSE_LINE_END = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private CaptionStorageInterface db;
+    private TranscriptArchive archive;
 
     /**
      * Retrieves full captions from backend and serves them to frontend
+     * With a from, to or cursor parameter, serves one page of the lines starting in [from, to) instead
+     * Full captions are copied from the transcript archive when the video is archived, and read from the database otherwise
      * @param request The request object 
      * @param response The response object
      */
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        CaptionStorageManager dbi = new CaptionStorageManager();
+        if (this.db == null) {
+            this.db = CaptionStorageFactory.getCaptionStorage();
+            this.archive = CaptionStorageFactory.getTranscriptArchive();
+        }
         Gson gson = new Gson();
         String videoID = (String) request.getParameter(REQUEST_ID_PARAM);
         response.setContentType(RESPONSE_JSON_CONTENT);
         String captionText = "";
 
         try {
-            if (videoID == null || !(dbi.videoInDb(videoID))) {
+            if (videoID == null || !(db.videoInDb(videoID))) {
                 response.getWriter().println(RESPONSE_VIDEO_ID_NOT_IN_DB);
                 return;
             }
-            List<TimeRangedText> full_captions = dbi.getFullCaptions(videoID);
+            TimeWindowParams window = TimeWindowParams.fromRequest(request);
+            if (window != null) {
+                ResultPage<List<TimeRangedText>> page = db.getCaptionsInRange(videoID, window.getFrom(), window.getTo(), window.getCursor(), window.getLimit());
+                response.getWriter().println(gson.toJson(page));
+                return;
+            }
+            if (archive != null && writeArchived(videoID, response)) {
+                return;
+            }
+            List<TimeRangedText> full_captions = db.getFullCaptions(videoID);
             response.getWriter().println(gson.toJson(full_captions));
+        } catch (IllegalArgumentException e) {
+            response.getWriter().println(EXCEPTION_JSON_START + INVALID_RANGE_ERROR + EXCEPTION_JSON_END);
         } catch (CaptionStorageException e) {
             String exceptionString = EXCEPTION_JSON_START + e.getReason().toString() + EXCEPTION_JSON_END;
             response.getWriter().println(exceptionString);
         }
     }
 
+
+    /**
+     * Copies the archived JSON captions of a video to the response without decoding them
+     * Videos are only archived as they are written, so one that is not archived is left to the database
+     * @param videoID The Youtube ID of the video, already in the database
+     * @param response The response object
+     * @return true if the captions were written, false if they must be served from the database instead
+     */
+    private boolean writeArchived(String videoID, HttpServletResponse response) throws IOException {
+        if (!archive.contains(videoID)) {
+            return false;
+        }
+
+        response.setCharacterEncoding(RESPONSE_CHARSET);
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        if (!archive.transferTo(videoID, out)) {
+            // dropped from the archive since the check above, and the writer can no longer be used
+            out.write(ByteBuffer.wrap(new Gson().toJson(db.getFullCaptions(videoID)).getBytes(StandardCharsets.UTF_8)));
+        }
+        out.write(ByteBuffer.wrap(RESPONSE_LINE_END));
+        return true;
+    }
+
+    /**
+     * For mock testing only
+     * Sets the CaptionStorageInterface instance for the servlet to use
+     * @param db The CaptionStorageInterface instance to use
+     */
+    public void setDatabase(CaptionStorageInterface db) {
+        this.db = db;
+    }
+
+    /**
+     * For mock testing only
+     * Sets the TranscriptArchive for the servlet to serve full captions from
+     * @param archive The TranscriptArchive to use, or null for none
+     */
+    public void setArchive(TranscriptArchive archive) {
+        this.archive = archive;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageFactory;
+import com.google.sps.storage.CaptionStorageInterface;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Servlet to retrieve the keyword maps of all videos of a course in one response */
+@WebServlet("/course")
+public class CourseKeywordsServlet extends HttpServlet {
+
+    private static final String RESPONSE_JSON_CONTENT = "application/json;";
+    private static final String REQUEST_IDS_PARAM = "ids";
+    private static final String VIDEO_ID_DELIMITER = ",";
+    private static final String EXCEPTION_JSON_START = "{ \"ERROR\": ";
+    private static final String EXCEPTION_JSON_END = "}";
+    private static final String TOO_MANY_VIDEOS_ERROR = "TOO_MANY_VIDEOS";
+    private static final int MAX_VIDEOS = 100;
+
+    private CaptionStorageInterface db;
+
+    /**
+     * Serves the keyword maps of the requested videos, keyed by video ID
+     * Videos that are not in the database are left out of the response
+     * @param request The request object, with the comma separated video IDs of the course in "ids"
+     * @param response The response object
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (this.db == null) {
+            this.db = CaptionStorageFactory.getCaptionStorage();
+        }
+        response.setContentType(RESPONSE_JSON_CONTENT);
+
+        List<String> videoIDs = new ArrayList<>();
+        String ids = request.getParameter(REQUEST_IDS_PARAM);
+        if (ids != null) {
+            for (String videoID : ids.split(VIDEO_ID_DELIMITER)) {
+                if (!videoID.trim().isEmpty() && !videoIDs.contains(videoID.trim())) {
+                    videoIDs.add(videoID.trim());
+                }
+            }
+        }
+        if (videoIDs.size() > MAX_VIDEOS) {
+            response.getWriter().println(EXCEPTION_JSON_START + TOO_MANY_VIDEOS_ERROR + EXCEPTION_JSON_END);
+            return;
+        }
+
+        try {
+            Map<String, Map<String, List<Long>>> keywords = db.getAllKeywords(videoIDs);
+            response.getWriter().println(new Gson().toJson(keywords));
+        } catch (CaptionStorageException e) {
+            String exceptionString = EXCEPTION_JSON_START + e.getReason().toString() + EXCEPTION_JSON_END;
+            response.getWriter().println(exceptionString);
+        }
+    }
+
+    /**
+     * For mock testing only
+     * Sets the CaptionStorageInterface instance for the servlet to use
+     * @param db The CaptionStorageInterface instance to use
+     */
+    public void setDatabase(CaptionStorageInterface db) {
+        this.db = db;
+    }
+
+}
@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.sps.storage.CaptionStorageFactory;
+import com.google.sps.storage.EntityExtractionCache;
+import java.io.IOException;
+import javax.servlet.annotation.HttpConstraint;
+import javax.servlet.annotation.ServletSecurity;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Admin servlet that serves the hit rate of the entity extraction cache of this instance */
+@WebServlet("/admin/entity-cache")
+@ServletSecurity(@HttpConstraint(rolesAllowed = "admin"))
+public class EntityCacheServlet extends HttpServlet {
+
+    private static final String RESPONSE_JSON_CONTENT = "application/json;";
+
+    private EntityExtractionCache cache;
+
+    /**
+     * Serves the lookup counters and hit rate of the cache
+     * @param request The request object
+     * @param response The response object
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (this.cache == null) {
+            this.cache = CaptionStorageFactory.getEntityCache();
+        }
+        response.setContentType(RESPONSE_JSON_CONTENT);
+        response.getWriter().println(new Gson().toJson(cache.getStats()));
+    }
+
+    /**
+     * For mock testing only
+     * Sets the EntityExtractionCache instance for the servlet to read
+     * @param cache The EntityExtractionCache instance to use
+     */
+    public void setEntityCache(EntityExtractionCache cache) {
+        this.cache = cache;
+    }
+
+}
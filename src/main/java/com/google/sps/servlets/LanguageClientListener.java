@@ -0,0 +1,41 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.SharedLanguageClient;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/** Ties the shared LanguageServiceClient to the lifecycle of the web application */
+@WebListener
+public class LanguageClientListener implements ServletContextListener {
+
+    /**
+     * Nothing to do on startup; the client is created by the first NLP call
+     * @param event The context event
+     */
+    @Override
+    public void contextInitialized(ServletContextEvent event) {}
+
+    /**
+     * Shuts the shared client down so its threads do not outlive the application
+     * @param event The context event
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        SharedLanguageClient.getInstance().close();
+    }
+}
@@ -25,9 +25,12 @@ import com.google.gson.Gson;
 import com.google.sps.data.NaturalLanguagePreprocessor;
 import com.google.sps.data.NaturalLanguageProcessor;
 import com.google.sps.data.NaturalLanguagePostprocessor;
+import com.google.sps.data.ParallelEntityExtractor;
 import com.google.sps.data.YoutubeCaptions;
 import com.google.sps.data.TimeRangedText;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 /** Servlet that interacts with Google's NLP API */
@@ -41,35 +44,48 @@ public class NaturalLanguageServlet extends HttpServlet {
     private static final String RESPONSE_VIDEO_ID_NOT_IN_DB = "{}";
     private static final String EXCEPTION_JSON_START = "{ \"ERROR\": ";
     private static final String EXCEPTION_JSON_END = "}";
+    private static final String INVALID_RANGE_ERROR = "INVALID_RANGE";
     private static final String METADATA_KEY = "METADATA";
     private static final String DB_NO_METADATA = "no_metadata";
     private static final String VIDEO_URL_ID_DELIMITER = "v=";
     private static final char URL_QUERY_DELIMITER = '&';
 
     private NaturalLanguageProcessor nlp;
+    private ParallelEntityExtractor extractor;
     private CaptionStorageInterface db;
 
     /**
      * Gets database data for comments
+     * With a from, to or cursor parameter, serves one page of the keywords occurring in [from, to) instead
      * @param request The request object 
      * @param response The response object
      */
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
-        CaptionStorageManager dbi = new CaptionStorageManager();
+        if (this.db == null) {
+            this.db = CaptionStorageFactory.getCaptionStorage();
+        }
         Gson gson = new Gson();
         String videoID = (String) request.getParameter(REQUEST_ID_PARAM);
         response.setContentType(RESPONSE_JSON_CONTENT);
 
         // Returns the entities mapping if the video id is in the database
         try {
-            if (videoID != null && dbi.videoInDb(videoID)) {
-                Map<String, List<Long>> resultMap = dbi.getAllKeywords(videoID);
+            if (videoID != null && db.videoInDb(videoID)) {
+                TimeWindowParams window = TimeWindowParams.fromRequest(request);
+                if (window != null) {
+                    ResultPage<Map<String, List<Long>>> page = db.getKeywordsInRange(videoID, window.getFrom(), window.getTo(), window.getCursor(), window.getLimit());
+                    response.getWriter().println(gson.toJson(page));
+                    return;
+                }
+                Map<String, List<Long>> resultMap = db.getAllKeywords(videoID);
                 response.getWriter().println(gson.toJson(resultMap));
             } else {
                 response.getWriter().println(RESPONSE_VIDEO_ID_NOT_IN_DB);
             }
+        } catch (IllegalArgumentException e) {
+            response.getWriter().println(EXCEPTION_JSON_START + INVALID_RANGE_ERROR + EXCEPTION_JSON_END);
         } catch (CaptionStorageException e) {
             String exceptionString = EXCEPTION_JSON_START + e.getReason().toString() + EXCEPTION_JSON_END;
             response.getWriter().println(exceptionString);
@@ -98,10 +114,13 @@ public class NaturalLanguageServlet extends HttpServlet {
         }
 
         if (this.nlp == null) {
-            this.nlp = new NaturalLanguageProcessor();
+            this.nlp = new NaturalLanguageProcessor(CaptionStorageFactory.getEntityCache());
+        }
+        if (this.extractor == null) {
+            this.extractor = ParallelEntityExtractor.getInstance();
         }
         if (this.db == null) {
-            this.db = new CaptionStorageManager();
+            this.db = CaptionStorageFactory.getCaptionStorage();
         }
 
         // Builds the Java object from JSON and preprocesses the captions by redefining time ranges
@@ -109,7 +128,11 @@ public class NaturalLanguageServlet extends HttpServlet {
 
         // Parses the video ID from the url
         boolean addToDatabase = true;
+        CompletableFuture<Void> videoWrite = null;
+        CompletableFuture<ClauseWriteResult> clauseWrite = null;
         String videoID = "";
+        String contentHash = null;
+        int numCaptions = youtubeCaptions.getCaptions().size();
         String[] urlParts = youtubeCaptions.getVideoURL().split(VIDEO_URL_ID_DELIMITER);
         if (urlParts.length <= 1) {
             addToDatabase = false;
@@ -121,27 +144,83 @@ public class NaturalLanguageServlet extends HttpServlet {
                 videoID = videoID.substring(0, ampersandPosition);
             }
 
-            try {
-                db.addVideo(videoID, DB_NO_METADATA, youtubeCaptions.getCaptions());
-            } catch (CaptionStorageException e) {
-                // TODO: report problem in metadataList at the end of this function
+            // Answers a resubmission of the stored captions from the stored keywords, skipping the NLP API
+            contentHash = CaptionContentHash.of(youtubeCaptions.getCaptions());
+            Map<String, List<Long>> storedMap = getStoredEntitiesMap(videoID, contentHash);
+            if (storedMap != null) {
+                writeEntitiesMap(response, storedMap, numCaptions, startTime, includeMetadata);
+                return;
             }
+
+            // Stores the captions while the NLP API processes them
+            videoWrite = db.addVideoAsync(videoID, DB_NO_METADATA, youtubeCaptions.getCaptions());
         }
 
-        int numCaptions = youtubeCaptions.getCaptions().size();
-        Map<String, List<Long>> resultMap = getEntitiesMapFromCaptions(youtubeCaptions.getCaptions());
+        EntitiesExtraction extraction = extractEntities(youtubeCaptions.getCaptions());
+        Map<String, List<Long>> resultMap = extraction.entitiesMap;
+        boolean complete = extraction.complete;
 
-        // Adds clauses to database if a video id has been found
+        // Adds clauses to database if a video id has been found and the video was stored
+        // They replace the keyphrases stored for earlier captions of the video, so the stored map matches these captions;
+        // the stale keyphrases are deleted by the write itself, after the response is under way
+        // A copy is stored because the metadata entry is added to the result map below
         if (addToDatabase) {
             try {
-                db.addClauses(videoID, resultMap);
-            } catch (CaptionStorageException e) {
-                // TODO: what to do if we get an exception from addClauses()?
+                videoWrite.join();
+                clauseWrite = db.replaceClausesAsync(videoID, new HashMap<>(resultMap));
+            } catch (CompletionException e) {
+                // TODO: report problem in metadataList at the end of this function
+                complete = false;
             }
         }
         
+        writeEntitiesMap(response, resultMap, numCaptions, startTime, includeMetadata);
+
+        // Waits for the clauses to be stored before the request ends
+        // (a write-behind storage completes this as soon as they are queued)
+        // Once every clause is stored, the content hash marks the stored keywords as matching these captions;
+        // it is only stored if every chunk was analyzed, since resubmissions are answered from the stored keywords
+        if (clauseWrite != null && complete) {
+            try {
+                if (clauseWrite.join().isSuccessful()) {
+                    db.setContentHash(videoID, contentHash);
+                }
+            } catch (CompletionException | CaptionStorageException e) {
+                // TODO: what to do if we get an exception from addClauses()?
+            }
+        }
+    }
+
+
+    /**
+     * Gets the stored entities map of a video if it was extracted from the same captions
+     * @param videoID The Youtube ID of the video
+     * @param contentHash The content hash of the submitted captions
+     * @return A modifiable copy of the stored entities map, or null if the captions must be processed
+     */
+    private Map<String, List<Long>> getStoredEntitiesMap(String videoID, String contentHash) {
+        try {
+            if (contentHash.equals(db.getContentHash(videoID))) {
+                return new HashMap<>(db.getAllKeywords(videoID));
+            }
+        } catch (CaptionStorageException e) {
+            // the captions are processed again
+        }
+        return null;
+    }
+
+
+    /**
+     * Adds the metadata entry to an entities map if requested and sends the map to the front end as JSON
+     * @param response The response object
+     * @param resultMap The entities map, which receives the metadata entry
+     * @param numCaptions The number of captions passed in by the request
+     * @param startTime The System.nanoTime() at which the request started
+     * @param includeMetadata Whether the metadata entry is added
+     */
+    private void writeEntitiesMap(HttpServletResponse response, Map<String, List<Long>> resultMap, int numCaptions, long startTime, boolean includeMetadata) throws IOException {
         long endTime = System.nanoTime();
-        
+
         // Adds metadata to the result
         if (includeMetadata) {
             List<Long> metadataList = new ArrayList<>();
@@ -153,8 +232,7 @@ public class NaturalLanguageServlet extends HttpServlet {
 
         // Converts Java object to JSON and sends it back to the front end
         response.setContentType(RESPONSE_JSON_CONTENT);
-        String result = gson.toJson(resultMap);
-        response.getWriter().println(result);
+        response.getWriter().println(new Gson().toJson(resultMap));
     }
 
 
@@ -164,16 +242,42 @@ public class NaturalLanguageServlet extends HttpServlet {
      * @return The entities map that maps each found entity to its list of occurrences in time
      */
     public Map<String, List<Long>> getEntitiesMapFromCaptions(List<TimeRangedText> captions) {
+        return extractEntities(captions).entitiesMap;
+    }
+
+
+    /**
+     * Generates the entities map from the captions, noting whether every NLP call behind it succeeded
+     * @param captions The list of time ranged text that represent the timed captions
+     * @return The entities map and whether it is complete
+     */
+    private EntitiesExtraction extractEntities(List<TimeRangedText> captions) {
         NaturalLanguagePreprocessor preprocessor = new NaturalLanguagePreprocessor();
         List<TimeRangedText> preprocessedResults = preprocessor.setTimeRanges(captions);
+        boolean complete = true;
         
-        // Sends the text of newly defined time ranges to the NLP API and organizes the results in the postprocessor
+        // Classifies the whole video once, unless each chunk is configured to be classified on its own
+        // Sends the text of newly defined time ranges to the NLP API in parallel
+        // and organizes the results in the postprocessor in chunk order
+        List<List<String>> chunkEntities;
+        if (nlp.classifiesChunks()) {
+            chunkEntities = extractor.getEntities(nlp, preprocessedResults);
+        } else {
+            // a video whose classification failed is analyzed with the default threshold, but is not complete
+            Boolean academic = nlp.isAcademicVideo(preprocessedResults);
+            complete = academic != null;
+            chunkEntities = extractor.getEntities(nlp, preprocessedResults, Boolean.TRUE.equals(academic));
+        }
         NaturalLanguagePostprocessor postprocessor = new NaturalLanguagePostprocessor();
-        for (TimeRangedText text : preprocessedResults) {
-            postprocessor.addEntities(nlp.getEntities(text.getText()), text.getStartTime());
+        for (int i = 0; i < preprocessedResults.size(); i++) {
+            // a chunk whose call failed or timed out adds no entities
+            if (chunkEntities.get(i) == null) {
+                complete = false;
+            }
+            postprocessor.addEntities(chunkEntities.get(i), preprocessedResults.get(i).getStartTime());
         }
 
-        return postprocessor.getEntitiesMap();
+        return new EntitiesExtraction(postprocessor.getEntitiesMap(), complete);
     }
 
 
@@ -187,6 +291,16 @@ public class NaturalLanguageServlet extends HttpServlet {
     }
 
   
+    /**
+     * For mock testing only
+     * Sets the ParallelEntityExtractor instance for the servlet to use
+     * @param extractor The ParallelEntityExtractor instance to use
+     */
+    public void setEntityExtractor(ParallelEntityExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+  
     /**
      * For mock testing only
      * Sets the CaptionStorageInterface instance for the servlet to use
@@ -195,4 +309,16 @@ public class NaturalLanguageServlet extends HttpServlet {
     public void setDatabase(CaptionStorageInterface db) {
         this.db = db;
     }
+
+
+    /** The entities map of a video's captions, and whether every chunk and the classification succeeded */
+    private static final class EntitiesExtraction {
+        private final Map<String, List<Long>> entitiesMap;
+        private final boolean complete;
+
+        private EntitiesExtraction(Map<String, List<Long>> entitiesMap, boolean complete) {
+            this.entitiesMap = entitiesMap;
+            this.complete = complete;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CompactionReport;
+import com.google.sps.storage.OrphanCompactor;
+import java.io.IOException;
+import javax.servlet.annotation.HttpConstraint;
+import javax.servlet.annotation.ServletSecurity;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Admin servlet that runs the resumable orphan compaction job over caption storage and the entity cache */
+@WebServlet("/admin/compact")
+@ServletSecurity(@HttpConstraint(rolesAllowed = "admin"))
+public class StorageCompactionServlet extends HttpServlet {
+
+    private static final String RESPONSE_JSON_CONTENT = "application/json;";
+    private static final String REQUEST_PAGES_PARAM = "pages";
+    private static final String REQUEST_RESET_PARAM = "reset";
+    private static final String EXCEPTION_JSON_START = "{ \"ERROR\": ";
+    private static final String EXCEPTION_JSON_END = "}";
+    private static final String INVALID_PAGES_ERROR = "INVALID_PAGES";
+    private static final int DEFAULT_PAGES = 100;
+
+    private OrphanCompactor compactor;
+
+    /**
+     * Runs the compaction job from its last checkpoint and serves the report
+     * Cron requests are GETs, so the job can be scheduled until the report says it is complete
+     * @param request The request object
+     * @param response The response object
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (this.compactor == null) {
+            this.compactor = new OrphanCompactor();
+        }
+        response.setContentType(RESPONSE_JSON_CONTENT);
+
+        int pages;
+        try {
+            String pagesParam = request.getParameter(REQUEST_PAGES_PARAM);
+            pages = pagesParam == null ? DEFAULT_PAGES : Integer.parseInt(pagesParam);
+        } catch (NumberFormatException e) {
+            response.getWriter().println(EXCEPTION_JSON_START + INVALID_PAGES_ERROR + EXCEPTION_JSON_END);
+            return;
+        }
+
+        try {
+            if (request.getParameter(REQUEST_RESET_PARAM) != null) {
+                compactor.reset();
+            }
+            CompactionReport report = compactor.run(pages);
+            response.getWriter().println(new Gson().toJson(report));
+        } catch (CaptionStorageException e) {
+            String exceptionString = EXCEPTION_JSON_START + e.getReason().toString() + EXCEPTION_JSON_END;
+            response.getWriter().println(exceptionString);
+        }
+    }
+
+    /**
+     * Runs the compaction job from its last checkpoint and serves the report
+     * @param request The request object
+     * @param response The response object
+     */
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        doGet(request, response);
+    }
+
+    /**
+     * For mock testing only
+     * Sets the OrphanCompactor instance for the servlet to use
+     * @param compactor The OrphanCompactor instance to use
+     */
+    public void setCompactor(OrphanCompactor compactor) {
+        this.compactor = compactor;
+    }
+
+}
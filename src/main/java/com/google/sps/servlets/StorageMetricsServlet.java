@@ -0,0 +1,83 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.sps.storage.OperationStats;
+import com.google.sps.storage.StorageMetrics;
+import com.google.sps.storage.StorageMetricsRegistry;
+import com.google.sps.storage.StorageOperation;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.annotation.HttpConstraint;
+import javax.servlet.annotation.ServletSecurity;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Admin servlet that serves the per-operation metrics of each storage in this instance */
+@WebServlet("/admin/metrics")
+@ServletSecurity(@HttpConstraint(rolesAllowed = "admin"))
+public class StorageMetricsServlet extends HttpServlet {
+
+    private static final String RESPONSE_JSON_CONTENT = "application/json;";
+    private static final String REQUEST_STORAGE_PARAM = "storage";
+    private static final String EXCEPTION_JSON_START = "{ \"ERROR\": ";
+    private static final String EXCEPTION_JSON_END = "}";
+    private static final String NO_STORAGE_ERROR = "NO_STORAGE_EXISTS";
+
+    private StorageMetricsRegistry registry;
+
+    /**
+     * Serves the metrics of every storage, or of the storage named by the storage parameter,
+     * as a map of storage name to operation to its stats
+     * @param request The request object
+     * @param response The response object
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (this.registry == null) {
+            this.registry = StorageMetrics.getRegistry();
+        }
+        response.setContentType(RESPONSE_JSON_CONTENT);
+
+        Map<String, StorageMetrics> metrics = registry.getAll();
+        String storage = request.getParameter(REQUEST_STORAGE_PARAM);
+        if (storage != null && !metrics.containsKey(storage)) {
+            response.getWriter().println(EXCEPTION_JSON_START + NO_STORAGE_ERROR + EXCEPTION_JSON_END);
+            return;
+        }
+
+        Map<String, Map<StorageOperation, OperationStats>> snapshots = new LinkedHashMap<>();
+        for (Map.Entry<String, StorageMetrics> entry : metrics.entrySet()) {
+            if (storage == null || storage.equals(entry.getKey())) {
+                snapshots.put(entry.getKey(), entry.getValue().snapshot());
+            }
+        }
+        response.getWriter().println(new Gson().toJson(snapshots));
+    }
+
+    /**
+     * For mock testing only
+     * Sets the StorageMetricsRegistry instance for the servlet to read
+     * @param registry The StorageMetricsRegistry instance to use
+     */
+    public void setRegistry(StorageMetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+}
@@ -0,0 +1,85 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import javax.servlet.http.HttpServletRequest;
+
+/** Optional time window and paging parameters of a caption or keyword request */
+final class TimeWindowParams {
+
+    private static final String REQUEST_FROM_PARAM = "from";
+    private static final String REQUEST_TO_PARAM = "to";
+    private static final String REQUEST_CURSOR_PARAM = "cursor";
+    private static final String REQUEST_LIMIT_PARAM = "limit";
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+
+    private final long from;
+    private final long to;
+    private final String cursor;
+    private final int limit;
+
+    private TimeWindowParams(long from, long to, String cursor, int limit) {
+        this.from = from;
+        this.to = to;
+        this.cursor = cursor;
+        this.limit = limit;
+    }
+
+    /**
+     * Reads the window of a request; a missing bound leaves that side of the window open
+     * @param request The request object
+     * @return The window, or null if the request names neither bound nor a cursor
+     * @throws IllegalArgumentException If a parameter is not a number or the window is empty
+     */
+    static TimeWindowParams fromRequest(HttpServletRequest request) {
+        String from = request.getParameter(REQUEST_FROM_PARAM);
+        String to = request.getParameter(REQUEST_TO_PARAM);
+        String cursor = request.getParameter(REQUEST_CURSOR_PARAM);
+        if (from == null && to == null && cursor == null) {
+            return null;
+        }
+
+        String limitParam = request.getParameter(REQUEST_LIMIT_PARAM);
+        long fromTime = from == null ? 0 : Long.parseLong(from);
+        long toTime = to == null ? Long.MAX_VALUE : Long.parseLong(to);
+        int limit = limitParam == null ? DEFAULT_LIMIT : Integer.parseInt(limitParam);
+        if (fromTime >= toTime || limit <= 0) {
+            throw new IllegalArgumentException("Empty time window or page");
+        }
+        return new TimeWindowParams(fromTime, toTime, cursor, Math.min(limit, MAX_LIMIT));
+    }
+
+    /** @return The inclusive start of the window, in seconds */
+    long getFrom() {
+        return this.from;
+    }
+
+    /** @return The exclusive end of the window, in seconds */
+    long getTo() {
+        return this.to;
+    }
+
+    /** @return The cursor of the requested page, or null for the first page */
+    String getCursor() {
+        return this.cursor;
+    }
+
+    /** @return The maximum number of results in the page */
+    int getLimit() {
+        return this.limit;
+    }
+
+}
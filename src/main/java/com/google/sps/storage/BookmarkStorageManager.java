@@ -33,7 +33,11 @@ public class BookmarkStorageManager implements BookmarkStorageInterface {
     private static final String EXCEPTION_REMOVE_BOOKMARK = "RemoveBookmarkException";
     private static final String EXCEPTION_GET_BOOKMARKS = "GetBookmarksException";
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    static final String METRICS_NAME = "bookmark";
+
+    // shared by every manager, so counts survive the per-request instances BookmarkHandlerServlet creates
+    private final StorageMetrics metrics = StorageMetrics.getRegistry().get(METRICS_NAME);
+    DatastoreService datastore = new MeteredDatastoreService(DatastoreServiceFactory.getDatastoreService(), metrics);
 
     /**
      * Gets all bookmarks for the current email and videoId from the Datastore database
@@ -49,6 +53,7 @@ public class BookmarkStorageManager implements BookmarkStorageInterface {
         Filter bookmarkFilter = CompositeFilterOperator.and(userFilter, videoIdFilter);
         Query query = new Query(ENTITY_BOOKMARK).setFilter(bookmarkFilter);
         
+        long start = metrics.begin(StorageOperation.GET_ALL_BOOKMARKS);
         try {
             PreparedQuery results = datastore.prepare(query);
             List<Bookmark> bookmarks = new ArrayList<>();
@@ -63,9 +68,13 @@ public class BookmarkStorageManager implements BookmarkStorageInterface {
                 Bookmark bookmark = new Bookmark(id, timestamp, title, content);
                 bookmarks.add(bookmark);
             }
+            metrics.scanned(bookmarks.size(), bookmarks.size());
             return bookmarks;
         } catch (Exception e) {
+            metrics.fail();
             throw new BookmarkStorageException(EXCEPTION_GET_BOOKMARKS, e.getMessage(), e.getCause());
+        } finally {
+            metrics.end(start);
         }
 
     }
@@ -81,6 +90,7 @@ public class BookmarkStorageManager implements BookmarkStorageInterface {
     public void addBookmark(String userEmail, String videoId, long videoTimestamp, String title, String content) throws BookmarkStorageException {
         // Tries to create an Entity object and store it in Datastore
         Entity bookmark;
+        long start = metrics.begin(StorageOperation.ADD_BOOKMARK);
         try {
             bookmark = new Entity(ENTITY_BOOKMARK);
             bookmark.setProperty(BOOKMARK_EMAIL_PROPERTY, userEmail);
@@ -91,7 +101,10 @@ public class BookmarkStorageManager implements BookmarkStorageInterface {
 
             datastore.put(bookmark);
         } catch (Exception e) {
+            metrics.fail();
             throw new BookmarkStorageException(EXCEPTION_ADD_BOOKMARK, e.getMessage(), e.getCause());
+        } finally {
+            metrics.end(start);
         }
     }
 
@@ -102,10 +115,14 @@ public class BookmarkStorageManager implements BookmarkStorageInterface {
     public void removeBookmark(String id) throws BookmarkStorageException {
         // Tries to parse the Entity Key from the string to remove the Entity from Datastore
         Key key = KeyFactory.stringToKey(id);
+        long start = metrics.begin(StorageOperation.REMOVE_BOOKMARK);
         try {
             datastore.delete(key);
         } catch (Exception e) {
+            metrics.fail();
             throw new BookmarkStorageException(EXCEPTION_REMOVE_BOOKMARK, e.getMessage(), e.getCause()); 
+        } finally {
+            metrics.end(start);
         }
     }
 }
@@ -0,0 +1,506 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.sps.data.TimeRangedText;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read-through cache in front of another CaptionStorageInterface.
+ * Keywords, full captions and video existence are cached per video ID in weighted LRU caches.
+ * Every write or delete that goes through this object invalidates the affected video. Invalidating advances the
+ * video's read generation, and a read-through only caches its result if the generation it saw before reading
+ * is still current, so a read that overlaps a write never caches what it read before the write.
+ * When given a TranscriptArchive, videos added through this object are archived as they are written
+ * and deleted videos are dropped from it. Each write of a video advances its write generation, and a write
+ * that completes after a later one began drops the video from the archive instead of archiving its captions.
+ */
+public class CachingCaptionStorage implements CaptionStorageInterface {
+
+    // Default bound of roughly 32MB across the three caches, and entries refreshed hourly
+    private static final long DEFAULT_MAX_WEIGHT = 32L * 1024 * 1024;
+    private static final long DEFAULT_TTL_MILLIS = 60L * 60 * 1000;
+    // Approximate bytes held by a boxed Long and by the bookkeeping of a map entry or list element
+    private static final long BOXED_LONG_WEIGHT = 24;
+    private static final long ENTRY_OVERHEAD_WEIGHT = 48;
+    private static final long VIDEO_ID_WEIGHT = 64;
+    private static final int GENERATION_STRIPES = 1024;
+    private static final String NO_PHRASE_ERR = "Requested keyphrase does not exist in ";
+
+    private final CaptionStorageInterface delegate;
+    private final WeightedLruCache<String, Map<String, List<Long>>> keywordCache;
+    private final WeightedLruCache<String, List<TimeRangedText>> captionCache;
+    private final WeightedLruCache<String, Boolean> videoCache;
+    private final TranscriptArchive archive;
+    private final KeyGenerations readGenerations = new KeyGenerations(GENERATION_STRIPES);
+    private final KeyGenerations writeGenerations = new KeyGenerations(GENERATION_STRIPES);
+    private final Object archiveLock = new Object();
+
+    /**
+     * Constructor for a CachingCaptionStorage with the default size bound and time-to-live
+     * @param delegate The storage to read through to
+     */
+    public CachingCaptionStorage(CaptionStorageInterface delegate) {
+        this(delegate, DEFAULT_MAX_WEIGHT, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor for a CachingCaptionStorage with the default size bound and time-to-live that also keeps
+     * a transcript archive up to date
+     * @param delegate The storage to read through to
+     * @param archive The archive of full transcripts, or null for none
+     */
+    public CachingCaptionStorage(CaptionStorageInterface delegate, TranscriptArchive archive) {
+        this(delegate, DEFAULT_MAX_WEIGHT, DEFAULT_TTL_MILLIS, archive);
+    }
+
+    /**
+     * Constructor for a CachingCaptionStorage
+     * @param delegate The storage to read through to
+     * @param maxWeight The approximate number of bytes each cache may hold
+     * @param ttlMillis The time in milliseconds after which a cached value is read again
+     */
+    public CachingCaptionStorage(CaptionStorageInterface delegate, long maxWeight, long ttlMillis) {
+        this(delegate, maxWeight, ttlMillis, null);
+    }
+
+    /**
+     * Constructor for a CachingCaptionStorage that also keeps a transcript archive up to date
+     * @param delegate The storage to read through to
+     * @param maxWeight The approximate number of bytes each cache may hold
+     * @param ttlMillis The time in milliseconds after which a cached value is read again
+     * @param archive The archive of full transcripts, or null for none
+     */
+    public CachingCaptionStorage(CaptionStorageInterface delegate, long maxWeight, long ttlMillis, TranscriptArchive archive) {
+        this.delegate = delegate;
+        this.archive = archive;
+        this.keywordCache = new WeightedLruCache<>(maxWeight, ttlMillis, CachingCaptionStorage::weighKeywords);
+        this.captionCache = new WeightedLruCache<>(maxWeight, ttlMillis, CachingCaptionStorage::weighCaptions);
+        this.videoCache = new WeightedLruCache<>(maxWeight, ttlMillis, exists -> VIDEO_ID_WEIGHT);
+    }
+
+    // add a video, its metadata, and its full captions to the database
+    public void addVideo(String videoID, String metadata, List<TimeRangedText> fullCaptions) throws CaptionStorageException {
+        long generation = writeGenerations.next(videoID);
+        boolean written = false;
+        try {
+            delegate.addVideo(videoID, metadata, fullCaptions);
+            written = true;
+        } finally {
+            archive(videoID, generation, written ? fullCaptions : null);
+            invalidate(videoID);
+        }
+    }
+
+    // add a keyphrase + timestamp pair to a particular video in the db
+    public void addClause(String videoID, String keyword, List<Long> timestamps) throws CaptionStorageException {
+        try {
+            delegate.addClause(videoID, keyword, timestamps);
+        } finally {
+            invalidateKeywords(videoID);
+        }
+    }
+
+    // add multiple keyphrase + timestamp pairs to a particular video's entry
+    public ClauseWriteResult addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        try {
+            return delegate.addClauses(videoID, clauses);
+        } finally {
+            invalidateKeywords(videoID);
+        }
+    }
+
+    // replace the keyphrases of a video
+    public ClauseWriteResult replaceClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        try {
+            return delegate.replaceClauses(videoID, clauses);
+        } finally {
+            invalidateKeywords(videoID);
+        }
+    }
+
+    // add metadata information to a particular video in the db
+    public void addMetadata(String videoID, String metadata, boolean overwrite) throws CaptionStorageException {
+        try {
+            delegate.addMetadata(videoID, metadata, overwrite);
+        } finally {
+            invalidate(videoID);
+        }
+    }
+
+    // retrieve all keywords + their timestamps in a specified videoID, from the cache when possible
+    public Map<String, List<Long>> getAllKeywords(String videoID) throws CaptionStorageException {
+        Map<String, List<Long>> keywords = keywordCache.get(videoID);
+        if (keywords == null) {
+            long generation = readGenerations.get(videoID);
+            keywords = freezeKeywords(delegate.getAllKeywords(videoID));
+            cacheIfCurrent(keywordCache, videoID, generation, keywords);
+        }
+        return keywords;
+    }
+
+    // retrieve specific timestamps for a specified keyword belonging to videoID
+    // served from the cached keyword map when present, otherwise read through without caching
+    public List<Long> getTimesForKeyword(String videoID, String keyword) throws CaptionStorageException {
+        Map<String, List<Long>> keywords = keywordCache.get(videoID);
+        if (keywords == null) {
+            return delegate.getTimesForKeyword(videoID, keyword);
+        }
+        List<Long> times = keywords.get(keyword);
+        if (times == null) {
+            throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
+        }
+        return times;
+    }
+
+    // retrieve full captions of videoID, from the cache when possible
+    public List<TimeRangedText> getFullCaptions(String videoID) {
+        List<TimeRangedText> captions = captionCache.get(videoID);
+        if (captions == null) {
+            long generation = readGenerations.get(videoID);
+            captions = Collections.unmodifiableList(new ArrayList<>(delegate.getFullCaptions(videoID)));
+            // an empty result usually means the video is not ingested yet, so it is not cached
+            if (!captions.isEmpty()) {
+                cacheIfCurrent(captionCache, videoID, generation, captions);
+            }
+        }
+        return captions;
+    }
+
+    // retrieve one page of the caption lines of videoID within [from, to)
+    // pages are read through uncached, since each one is a bounded indexed query
+    public ResultPage<List<TimeRangedText>> getCaptionsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        return delegate.getCaptionsInRange(videoID, from, to, cursor, limit);
+    }
+
+    // retrieve one page of the keywords of videoID within [from, to), read through uncached
+    public ResultPage<Map<String, List<Long>>> getKeywordsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        return delegate.getKeywordsInRange(videoID, from, to, cursor, limit);
+    }
+
+    // return true if specified video is in the database
+    // only positive answers are cached, so a video ingested elsewhere is seen immediately
+    public boolean videoInDb(String videoID) throws CaptionStorageException {
+        if (videoCache.get(videoID) != null) {
+            return true;
+        }
+        long generation = readGenerations.get(videoID);
+        boolean exists = delegate.videoInDb(videoID);
+        if (exists) {
+            cacheIfCurrent(videoCache, videoID, generation, Boolean.TRUE);
+        }
+        return exists;
+    }
+
+    // return true if specified meta is the metadata for videoID (metadata is not cached)
+    public boolean metaInDb(String videoID, String meta) throws CaptionStorageException {
+        return delegate.metaInDb(videoID, meta);
+    }
+
+    // return the content hash of videoID (not cached, so a hash set elsewhere is seen immediately)
+    public String getContentHash(String videoID) throws CaptionStorageException {
+        return delegate.getContentHash(videoID);
+    }
+
+    // store the content hash of videoID
+    public void setContentHash(String videoID, String contentHash) throws CaptionStorageException {
+        delegate.setContentHash(videoID, contentHash);
+    }
+
+    // delete a video & all its children (metadata & captions) from the database
+    public int deleteVideo(String videoID) throws CaptionStorageException {
+        long generation = writeGenerations.next(videoID);
+        try {
+            return delegate.deleteVideo(videoID);
+        } finally {
+            invalidate(videoID);
+            archive(videoID, generation, null);
+        }
+    }
+
+    // delete a specific keyword from a video in the database
+    public void deleteClause(String videoID, String keyword) throws CaptionStorageException {
+        try {
+            delegate.deleteClause(videoID, keyword);
+        } finally {
+            invalidateKeywords(videoID);
+        }
+    }
+
+    // delete multiple keywords from a video in the database
+    public void deleteClauses(String videoID, Collection<String> keywords) throws CaptionStorageException {
+        try {
+            delegate.deleteClauses(videoID, keywords);
+        } finally {
+            invalidateKeywords(videoID);
+        }
+    }
+
+    // delete the metadata belonging to a specific video in the database
+    // the owning video is unknown here, but nothing cached depends on metadata
+    public void deleteMetadata(String metadata) throws CaptionStorageException {
+        delegate.deleteMetadata(metadata);
+    }
+
+    // return the videos among videoIDs that are in the database, asking the delegate only about uncached ones
+    public Set<String> videosInDb(Collection<String> videoIDs) throws CaptionStorageException {
+        List<String> uncached = new ArrayList<>();
+        Map<String, Long> generations = new HashMap<>();
+        for (String videoID : videoIDs) {
+            if (videoCache.get(videoID) == null) {
+                uncached.add(videoID);
+                generations.put(videoID, readGenerations.get(videoID));
+            }
+        }
+
+        Set<String> found = uncached.isEmpty() ? Collections.<String>emptySet() : delegate.videosInDb(uncached);
+        Set<String> stored = new LinkedHashSet<>();
+        for (String videoID : videoIDs) {
+            if (found.contains(videoID)) {
+                cacheIfCurrent(videoCache, videoID, generations.get(videoID), Boolean.TRUE);
+                stored.add(videoID);
+            } else if (!uncached.contains(videoID)) {
+                stored.add(videoID);
+            }
+        }
+        return stored;
+    }
+
+    // retrieve all keywords of several videos, reading only the uncached ones through in one batch
+    public Map<String, Map<String, List<Long>>> getAllKeywords(Collection<String> videoIDs) throws CaptionStorageException {
+        Map<String, Map<String, List<Long>>> keywords = new LinkedHashMap<>();
+        List<String> uncached = new ArrayList<>();
+        Map<String, Long> generations = new HashMap<>();
+        for (String videoID : videoIDs) {
+            Map<String, List<Long>> cached = keywordCache.get(videoID);
+            keywords.put(videoID, cached);
+            if (cached == null) {
+                uncached.add(videoID);
+                generations.put(videoID, readGenerations.get(videoID));
+            }
+        }
+
+        Map<String, Map<String, List<Long>>> fetched = uncached.isEmpty()
+            ? Collections.<String, Map<String, List<Long>>>emptyMap()
+            : delegate.getAllKeywords(uncached);
+        for (String videoID : uncached) {
+            Map<String, List<Long>> videoKeywords = fetched.get(videoID);
+            if (videoKeywords == null) {
+                keywords.remove(videoID);   // not in the db
+            } else {
+                videoKeywords = freezeKeywords(videoKeywords);
+                cacheIfCurrent(keywordCache, videoID, generations.get(videoID), videoKeywords);
+                keywords.put(videoID, videoKeywords);
+            }
+        }
+        return keywords;
+    }
+
+    // asynchronously add a video, invalidating it once the write completes
+    public CompletableFuture<Void> addVideoAsync(String videoID, String metadata, List<TimeRangedText> fullCaptions) {
+        long generation = writeGenerations.next(videoID);
+        return delegate.addVideoAsync(videoID, metadata, fullCaptions).whenComplete((result, failure) -> {
+            archive(videoID, generation, failure == null ? fullCaptions : null);
+            invalidate(videoID);
+        });
+    }
+
+    // asynchronously add keyphrases, invalidating the keyword map once the write completes
+    public CompletableFuture<ClauseWriteResult> addClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return delegate.addClausesAsync(videoID, clauses).whenComplete((result, failure) -> invalidateKeywords(videoID));
+    }
+
+    // asynchronously replace the keyphrases of a video, invalidating the keyword map once the write completes
+    public CompletableFuture<ClauseWriteResult> replaceClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return delegate.replaceClausesAsync(videoID, clauses).whenComplete((result, failure) -> invalidateKeywords(videoID));
+    }
+
+    // asynchronously retrieve all keywords of a video, from the cache when possible
+    public CompletableFuture<Map<String, List<Long>>> getAllKeywordsAsync(String videoID) {
+        Map<String, List<Long>> keywords = keywordCache.get(videoID);
+        if (keywords != null) {
+            return CompletableFuture.completedFuture(keywords);
+        }
+        long generation = readGenerations.get(videoID);
+        return delegate.getAllKeywordsAsync(videoID).thenApply(read -> {
+            Map<String, List<Long>> frozen = freezeKeywords(read);
+            cacheIfCurrent(keywordCache, videoID, generation, frozen);
+            return frozen;
+        });
+    }
+
+    // asynchronously retrieve the full captions of a video, from the cache when possible
+    public CompletableFuture<List<TimeRangedText>> getFullCaptionsAsync(String videoID) {
+        List<TimeRangedText> captions = captionCache.get(videoID);
+        if (captions != null) {
+            return CompletableFuture.completedFuture(captions);
+        }
+        long generation = readGenerations.get(videoID);
+        return delegate.getFullCaptionsAsync(videoID).thenApply(read -> {
+            List<TimeRangedText> frozen = Collections.unmodifiableList(new ArrayList<>(read));
+            if (!frozen.isEmpty()) {
+                cacheIfCurrent(captionCache, videoID, generation, frozen);
+            }
+            return frozen;
+        });
+    }
+
+    // asynchronously delete a video, invalidating it once the delete completes
+    public CompletableFuture<Integer> deleteVideoAsync(String videoID) {
+        long generation = writeGenerations.next(videoID);
+        return delegate.deleteVideoAsync(videoID).whenComplete((result, failure) -> {
+            invalidate(videoID);
+            archive(videoID, generation, null);
+        });
+    }
+
+    /**
+     * Gets the archive of full transcripts kept up to date by this object
+     * @return The archive, or null if there is none
+     */
+    public TranscriptArchive getTranscriptArchive() {
+        return archive;
+    }
+
+    /**
+     * Drops every cached value of a video, and keeps reads already in flight from caching what they read
+     * @param videoID The Youtube ID of the video
+     */
+    public void invalidate(String videoID) {
+        readGenerations.next(videoID);
+        keywordCache.invalidate(videoID);
+        captionCache.invalidate(videoID);
+        videoCache.invalidate(videoID);
+    }
+
+    /**
+     * Gets the number of reads served from the caches
+     * @return The total hit count of the caches
+     */
+    public long getHitCount() {
+        return keywordCache.getHitCount() + captionCache.getHitCount() + videoCache.getHitCount();
+    }
+
+    /**
+     * Gets the number of reads that went through to the underlying storage
+     * @return The total miss count of the caches
+     */
+    public long getMissCount() {
+        return keywordCache.getMissCount() + captionCache.getMissCount() + videoCache.getMissCount();
+    }
+
+    /**
+     * Drops the cached keyword map of a video, and keeps keyword reads already in flight from caching it
+     * @param videoID The Youtube ID of the video
+     */
+    private void invalidateKeywords(String videoID) {
+        readGenerations.next(videoID);
+        keywordCache.invalidate(videoID);
+    }
+
+    /**
+     * Caches a value read through for a video, unless the video was invalidated since the read began
+     * The generation is advanced before a cache is invalidated and checked under the cache's lock, so a value
+     * read before a write is either refused here or dropped by the write's invalidate
+     * @param cache The cache to put the value in
+     * @param videoID The Youtube ID of the video
+     * @param generation The read generation of the video taken before the read
+     * @param value The value read
+     */
+    private <V> void cacheIfCurrent(WeightedLruCache<String, V> cache, String videoID, long generation, V value) {
+        cache.putIf(videoID, value, () -> readGenerations.get(videoID) == generation);
+    }
+
+    /**
+     * Archives or drops the transcript of a video once a write of it completes, if this object keeps an archive
+     * The captions are only archived if no later write of the video has begun; otherwise the video is dropped
+     * and the later write archives its own captions. The check and the write are made under one lock, so an
+     * archive write never lands after that of a later write.
+     * The archive is only a copy of the storage, so a failed archive write is not reported to the caller;
+     * the video is then left out of the archive and served from the storage instead
+     * @param videoID The Youtube ID of the video
+     * @param generation The write generation taken when the write began
+     * @param captions The full captions to archive, or null to drop the video
+     */
+    private void archive(String videoID, long generation, List<TimeRangedText> captions) {
+        if (archive == null) {
+            return;
+        }
+        synchronized (archiveLock) {
+            try {
+                if (captions == null || writeGenerations.get(videoID) != generation) {
+                    archive.remove(videoID);
+                } else {
+                    archive.put(videoID, captions);
+                }
+            } catch (IOException e) {
+                // the video is no longer in the index, so no stale transcript is served
+            }
+        }
+    }
+
+    /**
+     * Copies a keyword map into an unmodifiable map of unmodifiable lists, so cached values cannot be changed by callers
+     * @param keywords The keyword map read from the underlying storage
+     * @return The unmodifiable copy
+     */
+    private static Map<String, List<Long>> freezeKeywords(Map<String, List<Long>> keywords) {
+        Map<String, List<Long>> frozen = new HashMap<>(keywords.size() * 2);
+        for (Map.Entry<String, List<Long>> entry : keywords.entrySet()) {
+            List<Long> timestamps = entry.getValue();
+            // a TimestampList is already immutable and unboxed, so it is kept as it is
+            frozen.put(entry.getKey(), timestamps instanceof TimestampList ? timestamps : Collections.unmodifiableList(new ArrayList<>(timestamps)));
+        }
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    /**
+     * Estimates the bytes held by a keyword map
+     * @param keywords The keyword map
+     * @return The approximate weight of the map
+     */
+    private static long weighKeywords(Map<String, List<Long>> keywords) {
+        long weight = VIDEO_ID_WEIGHT;
+        for (Map.Entry<String, List<Long>> entry : keywords.entrySet()) {
+            long perTimestamp = entry.getValue() instanceof TimestampList ? Long.BYTES : BOXED_LONG_WEIGHT;
+            weight += ENTRY_OVERHEAD_WEIGHT + 2L * entry.getKey().length() + perTimestamp * entry.getValue().size();
+        }
+        return weight;
+    }
+
+    /**
+     * Estimates the bytes held by a list of captions
+     * @param captions The captions
+     * @return The approximate weight of the list
+     */
+    private static long weighCaptions(List<TimeRangedText> captions) {
+        long weight = VIDEO_ID_WEIGHT;
+        for (TimeRangedText caption : captions) {
+            weight += ENTRY_OVERHEAD_WEIGHT + 2L * caption.getText().length();
+        }
+        return weight;
+    }
+
+}
@@ -0,0 +1,194 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.sps.data.TimeRangedText;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes a full transcript as one compressed binary blob.
+ * The uncompressed layout is the line count, then each line's start time (delta from the
+ * previous start) and duration as zigzag varints, then each line's UTF-8 length followed
+ * by all the text bytes packed together. The whole layout is deflated behind a version byte.
+ */
+public final class CaptionBlobCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String MALFORMED_BLOB = "Malformed caption blob";
+
+    private CaptionBlobCodec() {}
+
+    /**
+     * Encodes the captions of a video
+     * @param captions The captions of the video in display order
+     * @return The compressed blob representing the captions
+     */
+    public static byte[] encode(List<TimeRangedText> captions) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        VarInts.writeUnsigned(raw, captions.size());
+        long previousStart = 0;
+        for (TimeRangedText caption : captions) {
+            VarInts.writeSigned(raw, caption.getStartTime() - previousStart);
+            VarInts.writeSigned(raw, caption.getEndTime() - caption.getStartTime());
+            previousStart = caption.getStartTime();
+        }
+        for (TimeRangedText caption : captions) {
+            byte[] bytes = caption.getText().getBytes(StandardCharsets.UTF_8);
+            VarInts.writeUnsigned(raw, bytes.length);
+            text.write(bytes, 0, bytes.length);
+        }
+        byte[] textBytes = text.toByteArray();
+        raw.write(textBytes, 0, textBytes.length);
+
+        return compress(raw.toByteArray());
+    }
+
+    /**
+     * Decodes captions from a blob produced by encode
+     * @param blob The compressed blob
+     * @return The captions of the video in display order
+     */
+    public static List<TimeRangedText> decode(byte[] blob) {
+        ByteBuffer in = ByteBuffer.wrap(decompress(blob));
+        try {
+            int count = (int) VarInts.readUnsigned(in);
+            if (count < 0 || count > in.remaining() / 3) {
+                throw new IllegalArgumentException(MALFORMED_BLOB);   // every line takes at least three bytes
+            }
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            long previousStart = 0;
+            for (int i = 0; i < count; i++) {
+                starts[i] = previousStart + VarInts.readSigned(in);
+                ends[i] = starts[i] + VarInts.readSigned(in);
+                previousStart = starts[i];
+            }
+
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = (int) VarInts.readUnsigned(in);
+            }
+
+            List<TimeRangedText> captions = new ArrayList<>(count);
+            byte[] array = in.array();
+            int offset = in.position();
+            for (int i = 0; i < count; i++) {
+                if (offset + lengths[i] > array.length) {
+                    throw new IllegalArgumentException(MALFORMED_BLOB);
+                }
+                String line = new String(array, offset, lengths[i], StandardCharsets.UTF_8);
+                captions.add(new TimeRangedText(starts[i], ends[i], line));
+                offset += lengths[i];
+            }
+            return captions;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(MALFORMED_BLOB, e);
+        }
+    }
+
+    /**
+     * Splits a blob into chunks that each fit in a single stored value
+     * @param blob The blob to split
+     * @param maxChunkBytes The maximum size of a chunk in bytes
+     * @return The chunks in order; a blob that fits is returned as a single chunk
+     */
+    public static List<byte[]> split(byte[] blob, int maxChunkBytes) {
+        List<byte[]> chunks = new ArrayList<>();
+        for (int offset = 0; offset < blob.length; offset += maxChunkBytes) {
+            chunks.add(Arrays.copyOfRange(blob, offset, Math.min(blob.length, offset + maxChunkBytes)));
+        }
+        if (chunks.isEmpty()) {
+            chunks.add(blob);
+        }
+        return chunks;
+    }
+
+    /**
+     * Joins chunks produced by split back into one blob
+     * @param chunks The chunks in order
+     * @return The joined blob
+     */
+    public static byte[] join(List<byte[]> chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks) {
+            out.write(chunk, 0, chunk.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deflates the raw layout behind the format version byte
+     * @param raw The uncompressed layout
+     * @return The compressed blob
+     */
+    private static byte[] compress(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            out.write(FORMAT_VERSION);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates a compressed blob back into the raw layout
+     * @param blob The compressed blob
+     * @return The uncompressed layout
+     */
+    private static byte[] decompress(byte[] blob) {
+        if (blob.length == 0 || blob[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException(MALFORMED_BLOB);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, 1, blob.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(blob.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException(MALFORMED_BLOB);
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(MALFORMED_BLOB, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.sps.data.TimeRangedText;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Computes the content hash of a caption list, used to recognize a video submitted again with the same captions.
+ * The hash is the SHA-256 of each line's start time, end time, UTF-8 text length and text, in list order,
+ * encoded as unpadded base64url.
+ */
+public final class CaptionContentHash {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private CaptionContentHash() {}
+
+    /**
+     * Computes the content hash of captions
+     * @param captions The captions of a video, in the order they were submitted
+     * @return The hash of the captions
+     */
+    public static String of(List<TimeRangedText> captions) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);   // every Java platform provides SHA-256
+        }
+
+        ByteBuffer times = ByteBuffer.allocate(2 * Long.BYTES + Integer.BYTES);
+        for (TimeRangedText caption : captions) {
+            byte[] text = caption.getText().getBytes(StandardCharsets.UTF_8);
+            times.clear();
+            times.putLong(caption.getStartTime()).putLong(caption.getEndTime()).putInt(text.length);
+            digest.update(times.array());
+            digest.update(text);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+}
@@ -0,0 +1,128 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Provides the CaptionStorageInterface instance shared by the servlets of this application */
+public final class CaptionStorageFactory {
+
+    // System property (see appengine-web.xml) that enables the memcache tier shared by all instances
+    private static final String MEMCACHE_PROPERTY = "cram.storage.memcache";
+    // System property naming the KeywordFormat new keyphrases are written in, INDEXED_LIST if unset
+    private static final String KEYWORD_FORMAT_PROPERTY = "cram.storage.keywordFormat";
+
+    // System property selecting the storage backend: "datastore" (the default) or "file"
+    private static final String BACKEND_PROPERTY = "cram.storage.backend";
+    private static final String FILE_BACKEND = "file";
+    // System property naming the log of the file backend
+    private static final String FILE_PROPERTY = "cram.storage.file";
+    private static final String DEFAULT_FILE = "cram-captions.log";
+    // System property naming the file of the transcript archive /fullcaption serves from; no archive if unset
+    // or if the backend is not the file backend
+    private static final String ARCHIVE_PROPERTY = "cram.storage.archive";
+    // System property that queues caption ingest writes behind a WriteBehindCaptionStorage, and the file
+    // of the writes it could not persist
+    private static final String WRITE_BEHIND_PROPERTY = "cram.storage.writeBehind";
+    private static final String DEAD_LETTER_PROPERTY = "cram.storage.deadLetters";
+    private static final String DEFAULT_DEAD_LETTER_FILE = "cram-dead-letters.jsonl";
+    // System properties bounding the in-memory tier of the entity extraction cache, the one that keeps
+    // extracted entities in Datastore as well (ignored by the file backend), and the lifetime of those entries
+    private static final String ENTITY_CACHE_ENTRIES_PROPERTY = "cram.nlp.cache.entries";
+    private static final String ENTITY_CACHE_TTL_PROPERTY = "cram.nlp.cache.ttlMillis";
+    private static final String ENTITY_CACHE_PERSISTENT_PROPERTY = "cram.nlp.cache.persistent";
+    private static final String ENTITY_CACHE_PERSISTENT_TTL_PROPERTY = "cram.nlp.cache.persistentTtlMillis";
+    private static final int DEFAULT_ENTITY_CACHE_ENTRIES = 10000;
+    private static final long DEFAULT_ENTITY_CACHE_TTL_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long DEFAULT_ENTITY_CACHE_PERSISTENT_TTL_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static CaptionStorageInterface sharedStorage;
+    private static TranscriptArchive sharedArchive;
+    private static EntityExtractionCache sharedEntityCache;
+
+    private CaptionStorageFactory() {}
+
+    /**
+     * Gets the shared caption storage, creating it on first use
+     * The Datastore manager records its operations in StorageMetrics and is wrapped in an in-process cache so repeated reads of a video are served from memory,
+     * and optionally reads through memcache before Datastore.
+     * With -Dcram.storage.backend=file, a FileCaptionStorage log is used instead of Datastore.
+     * With -Dcram.storage.archive=<file> and the file backend, videos added through the storage are also kept in a
+     * TranscriptArchive. The archive is not used with Datastore, where writes by other instances would never reach it.
+     * With -Dcram.storage.writeBehind=true, asynchronous caption and keyphrase writes are queued and persisted
+     * in the background; this needs an environment where threads may outlive requests
+     * @return The shared CaptionStorageInterface instance
+     */
+    public static synchronized CaptionStorageInterface getCaptionStorage() {
+        if (sharedStorage != null) {
+            return sharedStorage;
+        }
+        try {
+            CaptionStorageInterface storage;
+            if (FILE_BACKEND.equals(System.getProperty(BACKEND_PROPERTY))) {
+                storage = new FileCaptionStorage(Paths.get(System.getProperty(FILE_PROPERTY, DEFAULT_FILE)));
+                String archiveFile = System.getProperty(ARCHIVE_PROPERTY);
+                if (archiveFile != null) {
+                    sharedArchive = new TranscriptArchive(Paths.get(archiveFile));
+                }
+            } else {
+                SharedCaptionCache sharedCache = Boolean.getBoolean(MEMCACHE_PROPERTY) ? new SharedCaptionCache() : null;
+                KeywordFormat keywordFormat = KeywordFormat.valueOf(System.getProperty(KEYWORD_FORMAT_PROPERTY, KeywordFormat.INDEXED_LIST.name()));
+                storage = new MeteredCaptionStorage(new CaptionStorageManager(false, CaptionFormat.LINE_ENTITIES, keywordFormat, sharedCache));
+            }
+            sharedStorage = new CachingCaptionStorage(storage, sharedArchive);
+            if (Boolean.getBoolean(WRITE_BEHIND_PROPERTY)) {
+                Path deadLetters = Paths.get(System.getProperty(DEAD_LETTER_PROPERTY, DEFAULT_DEAD_LETTER_FILE));
+                sharedStorage = new WriteBehindCaptionStorage(sharedStorage, deadLetters);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sharedStorage;
+    }
+
+    /**
+     * Gets the transcript archive kept up to date by the shared caption storage
+     * @return The shared TranscriptArchive, or null if -Dcram.storage.archive is not set or the backend is Datastore
+     */
+    public static synchronized TranscriptArchive getTranscriptArchive() {
+        getCaptionStorage();
+        return sharedArchive;
+    }
+
+    /**
+     * Gets the shared cache of entities extracted from caption chunks, creating it on first use
+     * With -Dcram.nlp.cache.persistent=true, entities are also kept in Datastore so other instances
+     * and later deployments skip the NLP calls for chunks seen before, until -Dcram.nlp.cache.persistentTtlMillis
+     * (30 days by default) after they were extracted
+     * @return The shared EntityExtractionCache instance
+     */
+    public static synchronized EntityExtractionCache getEntityCache() {
+        if (sharedEntityCache == null) {
+            int entries = Integer.getInteger(ENTITY_CACHE_ENTRIES_PROPERTY, DEFAULT_ENTITY_CACHE_ENTRIES);
+            long ttlMillis = Long.getLong(ENTITY_CACHE_TTL_PROPERTY, DEFAULT_ENTITY_CACHE_TTL_MILLIS);
+            boolean persistent = Boolean.getBoolean(ENTITY_CACHE_PERSISTENT_PROPERTY)
+                && !FILE_BACKEND.equals(System.getProperty(BACKEND_PROPERTY));
+            long persistentTtlMillis = Long.getLong(ENTITY_CACHE_PERSISTENT_TTL_PROPERTY, DEFAULT_ENTITY_CACHE_PERSISTENT_TTL_MILLIS);
+            sharedEntityCache = new EntityExtractionCache(entries, ttlMillis,
+                persistent ? new DatastoreEntityCacheStore(persistentTtlMillis) : null);
+        }
+        return sharedEntityCache;
+    }
+
+}
@@ -5,6 +5,7 @@
 package com.google.sps.storage;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import com.google.sps.data.TimeRangedText;
 
 public interface CaptionStorageInterface {
@@ -28,11 +29,13 @@ public interface CaptionStorageInterface {
 
     /*
      * add multiple keyphrase + timestamp pairs to a particular video's entry
+     * keyphrases that fail to be stored are reported in the result instead of aborting the call
      * @param videoID       Youtube ID of the video already in the db
      * @param clauses       map containing pairs of keys & corresponding timestamps
-     * @exception           throws NO_VIDEO_EXISTS or GET_VIDEO_ERR or ADD_KEYPHRASE_ERR
+     * @exception           throws NO_VIDEO_EXISTS or GET_VIDEO_ERR
+     * @return              ClauseWriteResult listing the keyphrases that could not be stored
      */
-    public void addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException;
+    public ClauseWriteResult addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException;
 
     /*
      * add metadata information to a particular video in the db
@@ -67,6 +70,30 @@ public interface CaptionStorageInterface {
      */
     public List<TimeRangedText> getFullCaptions(String videoID);
 
+    /*
+     * retrieve one page of the caption lines of videoID that start within [from, to)
+     * @param videoID       Youtube ID of video already in the db
+     * @param from          inclusive start of the window, in the same units as the caption times (seconds)
+     * @param to            exclusive end of the window
+     * @param cursor        cursor returned with the previous page, or null for the first page
+     * @param limit         maximum number of lines in the page
+     * @exception           throws GET_FULL_CAPTIONS_ERR or INVALID_CURSOR
+     * @return              lines in start time order and the cursor of the next page (null after the last page)
+     */
+    public ResultPage<List<TimeRangedText>> getCaptionsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException;
+
+    /*
+     * retrieve one page of the keywords of videoID that occur within [from, to)
+     * @param videoID       Youtube ID of video already in the db
+     * @param from          inclusive start of the window, in the same units as the keyword timestamps (seconds)
+     * @param to            exclusive end of the window
+     * @param cursor        cursor returned with the previous page, or null for the first page
+     * @param limit         maximum number of keywords in the page
+     * @exception           throws GET_KEYPHRASE_ERR or INVALID_CURSOR
+     * @return              keywords mapped to their timestamps within the window and the cursor of the next page
+     */
+    public ResultPage<Map<String, List<Long>>> getKeywordsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException;
+
     /*
      * return true if specified video is in the database
      * @param videoID       Youtube ID of video we are looking for
@@ -84,11 +111,30 @@ public interface CaptionStorageInterface {
      */
     public boolean metaInDb(String videoID, String meta) throws CaptionStorageException;
 
+    /*
+     * return the content hash stored for a video by setContentHash
+     * @param videoID       Youtube ID of the video
+     * @exception           throws GET_VIDEO_ERR
+     * @return              the stored hash, or null if the video is not in the db or has no hash
+     */
+    public String getContentHash(String videoID) throws CaptionStorageException;
+
+    /*
+     * store the hash of the captions a video's keywords were extracted from (see CaptionContentHash)
+     * the hash is cleared whenever addVideo stores the video again
+     * @param videoID       Youtube ID of the video already in the db
+     * @param contentHash   hash of the captions
+     * @exception           throws NO_VIDEO_EXISTS or ADD_VIDEO_ERR
+     */
+    public void setContentHash(String videoID, String contentHash) throws CaptionStorageException;
+
     /*
      * delete a video & all its children (metadata & captions) from the database
      * @param videoID       Youtube ID of video in database to be deleted
+     * @exception           throws NO_VIDEO_EXISTS or DELETE_VIDEO_ERR
+     * @return              number of entities removed, including the video itself
      */
-    public void deleteVideo(String videoID) throws CaptionStorageException;
+    public int deleteVideo(String videoID) throws CaptionStorageException;
 
     /*
      * delete a specific keyword from a video in the database
@@ -97,9 +143,132 @@ public interface CaptionStorageInterface {
      */
     public void deleteClause(String videoID, String keyword) throws CaptionStorageException;
 
+    /*
+     * delete multiple keywords from a video in the database
+     * @param videoID       Youtube ID of video in database
+     * @param keywords      clauses belonging to videoID in the db to be deleted
+     * @exception           throws DELETE_KEYPHRASE_ERR
+     */
+    public void deleteClauses(String videoID, Collection<String> keywords) throws CaptionStorageException;
+
     /*
      * delete the metadata belonging to a specific video in the database
      * @param metadata      Metadata in the database to be deleted
      */
     public void deleteMetadata(String metadata) throws CaptionStorageException;
+
+    //================================================================================
+    // Keyphrase replacement
+    //================================================================================
+
+    /*
+     * replace the keyphrases of a video: add clauses, then delete the stored keyphrases that are not among them
+     * the new keyphrases are written first, so readers never see the video with fewer keyphrases than either set
+     * @param videoID       Youtube ID of the video already in the db
+     * @param clauses       map containing the video's complete set of keys & corresponding timestamps
+     * @exception           throws NO_VIDEO_EXISTS or GET_VIDEO_ERR or GET_KEYPHRASE_ERR or DELETE_KEYPHRASE_ERR
+     * @return              ClauseWriteResult listing the keyphrases that could not be stored
+     */
+    public default ClauseWriteResult replaceClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        ClauseWriteResult result = addClauses(videoID, clauses);
+        Set<String> stale = new HashSet<String>(getAllKeywords(videoID).keySet());
+        stale.removeAll(clauses.keySet());
+        if (!stale.isEmpty()) {
+            deleteClauses(videoID, stale);
+        }
+        return result;
+    }
+
+    //================================================================================
+    // Batch reads over several videos
+    // the defaults below call the single-video method once per video
+    //================================================================================
+
+    /*
+     * return the videos among videoIDs that are in the database
+     * @param videoIDs      Youtube IDs of videos
+     * @exception           throws GET_VIDEO_ERR
+     * @return              the stored videoIDs, in the order given
+     */
+    public default Set<String> videosInDb(Collection<String> videoIDs) throws CaptionStorageException {
+        Set<String> stored = new LinkedHashSet<String>();
+        for (String videoID : videoIDs) {
+            if (videoInDb(videoID)) {
+                stored.add(videoID);
+            }
+        }
+        return stored;
+    }
+
+    /*
+     * retrieve all keywords + their timestamps of several videos
+     * @param videoIDs      Youtube IDs of videos
+     * @exception           throws GET_VIDEO_ERR or GET_KEYPHRASE_ERR
+     * @return              Map of videoID to its keyword + timestamp pairs, in the order given;
+     *                          videos that are not in the db are left out
+     */
+    public default Map<String, Map<String, List<Long>>> getAllKeywords(Collection<String> videoIDs) throws CaptionStorageException {
+        Map<String, Map<String, List<Long>>> keywords = new LinkedHashMap<String, Map<String, List<Long>>>();
+        for (String videoID : videosInDb(videoIDs)) {
+            keywords.put(videoID, getAllKeywords(videoID));
+        }
+        return keywords;
+    }
+
+    //================================================================================
+    // Asynchronous counterparts
+    // failures complete the future exceptionally with the CaptionStorageException the
+    // synchronous method would throw; the defaults below simply run the synchronous method
+    //================================================================================
+
+    /*
+     * asynchronously add a video, its metadata, and its full captions to the database
+     * @see addVideo
+     */
+    public default CompletableFuture<Void> addVideoAsync(String videoID, String metadata, List<TimeRangedText> fullCaptions) {
+        return DatastoreFutures.completed(() -> {
+            addVideo(videoID, metadata, fullCaptions);
+            return null;
+        });
+    }
+
+    /*
+     * asynchronously add multiple keyphrase + timestamp pairs to a particular video's entry
+     * @see addClauses
+     */
+    public default CompletableFuture<ClauseWriteResult> addClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return DatastoreFutures.completed(() -> addClauses(videoID, clauses));
+    }
+
+    /*
+     * asynchronously replace the keyphrases of a video
+     * @see replaceClauses
+     */
+    public default CompletableFuture<ClauseWriteResult> replaceClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return DatastoreFutures.completed(() -> replaceClauses(videoID, clauses));
+    }
+
+    /*
+     * asynchronously retrieve all keywords + their timestamps in a specified videoID
+     * @see getAllKeywords
+     */
+    public default CompletableFuture<Map<String, List<Long>>> getAllKeywordsAsync(String videoID) {
+        return DatastoreFutures.completed(() -> getAllKeywords(videoID));
+    }
+
+    /*
+     * asynchronously retrieve full captions of videoID
+     * @see getFullCaptions
+     */
+    public default CompletableFuture<List<TimeRangedText>> getFullCaptionsAsync(String videoID) {
+        return DatastoreFutures.completed(() -> getFullCaptions(videoID));
+    }
+
+    /*
+     * asynchronously delete a video & all its children from the database
+     * @see deleteVideo
+     */
+    public default CompletableFuture<Integer> deleteVideoAsync(String videoID) {
+        return DatastoreFutures.completed(() -> deleteVideo(videoID));
+    }
 }
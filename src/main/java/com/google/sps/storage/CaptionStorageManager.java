@@ -11,277 +11,468 @@
  *  metaInDb()
  *  deleteVideo()
  *  deleteClause()
+ *  deleteClauses()
  *  deleteMetadata()
+ *  Datastore RPCs and entities are recorded in StorageMetrics by the metered Datastore services;
+ *  wrap the manager in a MeteredCaptionStorage to also record each call's latency and failures
  */
 
 package com.google.sps.storage;
 
 import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import com.google.sps.data.TimeRangedText;
 
 public class CaptionStorageManager implements CaptionStorageInterface {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    private static final String COLUMN_VIDEO = "video";
-    private static final String COLUMN_METADATA = "metadata";
-    private static final String COLUMN_CAPTION = "caption";
-    private static final String COLUMN_FULL_CAPTIONS = "full_captions";
+    static final String METRICS_NAME = "caption";
+    // shared by every manager, so counts survive the per-request instances servlets create
+    private final StorageMetrics metrics = StorageMetrics.getRegistry().get(METRICS_NAME);
+    DatastoreService datastore = new MeteredDatastoreService(DatastoreServiceFactory.getDatastoreService(), metrics);
+    AsyncDatastoreService asyncDatastore = new MeteredAsyncDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService(), metrics);
+    private final boolean transactionalWrites;
+    private final CaptionFormat captionFormat;
+    private final KeywordFormat keywordFormat;
+    private final SharedCaptionCache sharedCache;
+    static final String COLUMN_VIDEO = "video";
+    static final String COLUMN_METADATA = "metadata";
+    static final String COLUMN_CAPTION = "caption";
+    static final String COLUMN_FULL_CAPTIONS = "full_captions";
     private static final String COLUMN_TIMES = "timestamps";
+    private static final String COLUMN_PACKED_TIMES = "packed_timestamps";
     private static final String COLUMN_START = "start_time";
     private static final String COLUMN_END = "end_time";
+    static final String COLUMN_CAPTION_BLOB = "caption_blob";
+    private static final String COLUMN_BLOB_DATA = "data";
+    private static final String COLUMN_BLOB_CHUNKS = "chunks";
+    private static final String COLUMN_META_VALUE = "value";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
+    private static final String METADATA_KEY_NAME = "current";     // every video has one metadata child
+    private static final int MAX_BLOB_CHUNK_BYTES = 1000 * 1000;   // kept under the 1MB entity limit
+    private static final int FULL_CAPTIONS_CHUNK_SIZE = 500;
+    private static final int MAX_ENTITIES_PER_PUT = 500;           // datastore limit on entities per put
+    private static final long MAX_BYTES_PER_PUT = 9L * 1024 * 1024; // kept under the 10MB limit per commit
+    private static final int ENTITY_OVERHEAD_BYTES = 64;            // rough per-entity key and framing cost
+    private static final int MAX_METADATA_ATTEMPTS = 3;             // attempts of a contended metadata transaction
     private static final String NO_VID_ERR = "Requested video does not exist";
     private static final String NO_META_ERR = "Requested metadata does not exist";
     private static final String NO_PHRASE_ERR = "Requested keyphrase does not exist in ";
+    private static final String MISSING_BLOB_CHUNK_ERR = "Caption blob chunk is missing: ";
+
+    // writes are issued as plain batched puts and captions are stored one entity per line
+    public CaptionStorageManager() {
+        this(false);
+    }
+
+    /*
+     * @param transactionalWrites   if true, each batched put runs inside its own transaction
+     *                                  (every batch belongs to a single video entity group)
+     */
+    public CaptionStorageManager(boolean transactionalWrites) {
+        this(transactionalWrites, CaptionFormat.LINE_ENTITIES);
+    }
+
+    /*
+     * @param transactionalWrites   if true, each batched put runs inside its own transaction
+     * @param captionFormat         format used to write full captions; both formats are readable
+     */
+    public CaptionStorageManager(boolean transactionalWrites, CaptionFormat captionFormat) {
+        this(transactionalWrites, captionFormat, null);
+    }
+
+    /*
+     * @param transactionalWrites   if true, each batched put runs inside its own transaction
+     * @param captionFormat         format used to write full captions; both formats are readable
+     * @param sharedCache           memcache tier consulted before Datastore for keywords and full captions,
+     *                                  or null to always read Datastore
+     */
+    public CaptionStorageManager(boolean transactionalWrites, CaptionFormat captionFormat, SharedCaptionCache sharedCache) {
+        this(transactionalWrites, captionFormat, KeywordFormat.INDEXED_LIST, sharedCache);
+    }
+
+    /*
+     * @param transactionalWrites   if true, each batched put runs inside its own transaction
+     * @param captionFormat         format used to write full captions; both formats are readable
+     * @param keywordFormat         format used to write keyphrase timestamps; both formats are readable
+     * @param sharedCache           memcache tier consulted before Datastore for keywords and full captions,
+     *                                  or null to always read Datastore
+     */
+    public CaptionStorageManager(boolean transactionalWrites, CaptionFormat captionFormat, KeywordFormat keywordFormat, SharedCaptionCache sharedCache) {
+        this.transactionalWrites = transactionalWrites;
+        this.captionFormat = captionFormat;
+        this.keywordFormat = keywordFormat;
+        this.sharedCache = sharedCache;
+    }
+
+    // the metrics the manager's Datastore RPCs are recorded in
+    StorageMetrics getMetrics() {
+        return metrics;
+    }
 
     //================================================================================
     // Public Interface Functions (see DatabaseInterface.java for official descriptions)
     //================================================================================    
 
     // add a video, its metadata, and its full captions to the database
+    // all entities are built up front and written with batched multi-entity puts
     public void addVideo(String videoID, String metadata, List<TimeRangedText> fullCaptions) throws CaptionStorageException {
-        // add video to the database
-        Entity vidEnt;
-        try {
-            vidEnt = new Entity(COLUMN_VIDEO, videoID);
-            datastore.put(vidEnt);
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.ADD_VIDEO_ERR, e.getMessage(), e.getCause());
-        }
-
-        // add metadata to the database
-        Entity metaEnt;
-        try {
-            metaEnt = new Entity(COLUMN_METADATA, metadata, vidEnt.getKey());
-            datastore.put(metaEnt);
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.ADD_META_ERR, e.getMessage(), e.getCause());
-        }
+        List<Entity> entities = buildVideoEntities(videoID, metadata, fullCaptions);
 
-        // add full captions to the database
-        int i = 0;
+        // the first batch always holds the video and metadata entities
+        boolean firstBatch = true;
         try {
-            for (TimeRangedText single_line : fullCaptions) {
-                String caption = single_line.getText();
-                Entity capEnt = new Entity(COLUMN_FULL_CAPTIONS, Integer.toString(i++), vidEnt.getKey());
-                capEnt.setProperty(COLUMN_CAPTION, caption);
-                capEnt.setProperty(COLUMN_START, single_line.getStartTime());
-                capEnt.setProperty(COLUMN_END, single_line.getEndTime());
-                datastore.put(capEnt);
+            for (List<Entity> batch : partition(entities)) {
+                try {
+                    putBatch(batch);
+                } catch (Exception e) {
+                    Reason reason = firstBatch ? Reason.ADD_VIDEO_ERR : Reason.ADD_FULL_CAPTIONS_ERR;
+                    throw new CaptionStorageException(reason, e.getMessage(), e.getCause());
+                }
+                firstBatch = false;
             }
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.ADD_FULL_CAPTIONS_ERR, e.getMessage(), e.getCause());
+        } finally {
+            invalidateSharedCache(videoID);
         }
     }
 
     // add a keyphrase + timestamp pair to a particular video in the db
     public void addClause(String videoID, String keyword, List<Long> timestamps) throws CaptionStorageException {
-        Entity vidEnt;
-        if ((vidEnt = getVideo(videoID)) == null) {
+        if (!videoInDb(videoID)) {
             throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
         }
 
         try {
-            Entity keyEnt = new Entity(COLUMN_CAPTION, keyword, vidEnt.getKey());
-            keyEnt.setProperty(COLUMN_TIMES, timestamps);
-            datastore.put(keyEnt);
+            datastore.put(buildClauseEntity(videoKey(videoID), keyword, timestamps));
         } catch (Exception e) {
             throw new CaptionStorageException(Reason.ADD_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        } finally {
+            invalidateSharedCache(videoID);
         }
     }
     
     // add multiple keyphrase + timestamp pairs to a particular video's entry
-    public void addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
-        try {
-            for (Map.Entry<String, List<Long>> me : clauses.entrySet()) {
-                addClause(videoID, me.getKey(), me.getValue());
-            }
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.ADD_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+    // the video is resolved once and all keyphrases are written with batched puts
+    public ClauseWriteResult addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        if (!videoInDb(videoID)) {
+            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
         }
+        return writeClauses(videoID, clauses);
     }
-    
+
     // add metadata information to a particular video in the db
     // overwite param will determine whether current metadata is replaced or just added on to
+    // the metadata is read and rewritten in one transaction, so concurrent appends are not lost
     public void addMetadata(String videoID, String metadata, boolean overwrite) throws CaptionStorageException {
-        Entity vidEnt;
-        if ((vidEnt = getVideo(videoID)) == null) {
-            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
-        }
-        
-        // need to find metadata already in the database
-        Entity currMeta;
-        if ((currMeta = getMetadata(videoID)) == null) {
-            throw new CaptionStorageException(Reason.NO_META_EXISTS, NO_META_ERR);
-        }
-
-        Key metaKey = currMeta.getKey();
+        Key vidKey = videoKey(videoID);
+        Key metaKey = metadataKey(vidKey);
+        Reason reason = overwrite ? Reason.OVERWRITE_META_ERR : Reason.APPEND_META_ERR;
 
-        Entity metaEnt;
-        if (overwrite) {
+        for (int attempt = 1; ; attempt++) {
+            Transaction txn;
             try {
-                datastore.delete(metaKey);
-                metaEnt = new Entity(COLUMN_METADATA, metadata, vidEnt.getKey());
+                txn = datastore.beginTransaction();
             } catch (Exception e) {
-                throw new CaptionStorageException(Reason.OVERWRITE_META_ERR, e.getMessage(), e.getCause());
+                throw new CaptionStorageException(Reason.ADD_META_ERR, e.getMessage(), e.getCause());
             }
-        } else {
+
             try {
-                String currData = metaKey.getName();
-                String newData = currData + metadata;
-                datastore.delete(metaKey);
-                metaEnt = new Entity(COLUMN_METADATA, newData, vidEnt.getKey());
+                Map<Key, Entity> found = datastore.get(txn, Arrays.asList(vidKey, metaKey));
+                if (!found.containsKey(vidKey)) {
+                    throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+                }
+
+                // metadata written before it became a property is kept as the key name of a metadata child
+                Entity legacy = null;
+                String currData = metadataValue(found.get(metaKey));
+                if (currData == null) {
+                    legacy = getLegacyMetadata(txn, vidKey);
+                    if (legacy == null) {
+                        throw new CaptionStorageException(Reason.NO_META_EXISTS, NO_META_ERR);
+                    }
+                    currData = legacy.getKey().getName();
+                }
+
+                if (legacy != null && !legacy.getKey().equals(metaKey)) {
+                    datastore.delete(txn, legacy.getKey());
+                }
+                datastore.put(txn, buildMetadataEntity(vidKey, overwrite ? metadata : currData + metadata));
+                txn.commit();
+                return;
+            } catch (ConcurrentModificationException e) {
+                if (attempt >= MAX_METADATA_ATTEMPTS) {
+                    throw new CaptionStorageException(reason, e.getMessage(), e.getCause());
+                }
+            } catch (CaptionStorageException e) {
+                throw e;
             } catch (Exception e) {
-                throw new CaptionStorageException(Reason.APPEND_META_ERR, e.getMessage(), e.getCause());
+                throw new CaptionStorageException(reason, e.getMessage(), e.getCause());
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
             }
         }
-        try {
-            datastore.put(metaEnt);
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.ADD_META_ERR, e.getMessage(), e.getCause());
-        }
     }
     
     // retrieve all keywords + their timestamps in a specified videoID
+    // served from the shared cache when it holds the current version of the video
     public Map<String, List<Long>> getAllKeywords(String videoID) throws CaptionStorageException {
-        Entity vidEnt;
-        try {
-            if ((vidEnt = getVideo(videoID)) == null) {
-                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+        Long version = sharedCache != null ? sharedCache.getVersion(videoID) : null;
+        if (sharedCache != null) {
+            Map<String, List<Long>> cached = sharedCache.getKeywords(videoID, version);
+            if (cached != null) {
+                return cached;
             }
-        } catch (CaptionStorageException cse) {
-            throw cse;
         }
 
-        Key vidKey = vidEnt.getKey();
-
-        Query query = new Query(COLUMN_CAPTION, vidKey);
-        PreparedQuery results = datastore.prepare(query);
-
-        Map<String, List<Long>> clauseMap = new HashMap<String, List<Long>>();
-
-        try {
-            for (Entity entity : results.asIterable()) {
-                clauseMap.put(entity.getKey().getName(), (List<Long>)entity.getProperty(COLUMN_TIMES));
-            } 
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.GET_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        if (!videoInDb(videoID)) {
+            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
         }
 
-        return clauseMap;
+        Query query = new Query(COLUMN_CAPTION, videoKey(videoID));
+        return toClauseMap(videoID, version, datastore.prepare(query).asIterator());
     }
     
     // retrieve specific timestamps for a specified keyword belonging to videoID
+    // the keyphrase is looked up directly by its (video, keyword) key
     public List<Long> getTimesForKeyword(String videoID, String keyword) throws CaptionStorageException {
-        Map<String, List<Long>> clauseMap;
-        List<Long> result;
-        
+        Entity keyEnt;
         try {
-            clauseMap = getAllKeywords(videoID);
+            keyEnt = datastore.get(clauseKey(videoID, keyword));
+        } catch (EntityNotFoundException e) {
+            throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
         } catch (Exception e) {
             throw new CaptionStorageException(Reason.GET_KEYPHRASE_ERR, e.getMessage(), e.getCause());
         }
 
-        try {
-            result = clauseMap.get(keyword);
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
-        }
+        List<Long> result = readTimestamps(keyEnt);
         if (result == null) {
             throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
         }
-
         return result;
     }
 
     // retrieve full captions of videoID and return them as a list of TimeRangedText objects
+    // served from the shared cache when it holds the current version of the video
     public List<TimeRangedText> getFullCaptions(String videoID) {
-        Query query = new Query(COLUMN_FULL_CAPTIONS).addSort(COLUMN_START, SortDirection.ASCENDING);
-        PreparedQuery results = datastore.prepare(query);
+        if (sharedCache == null) {
+            return readFullCaptions(videoID);
+        }
 
-        List<TimeRangedText> full_captions = new ArrayList<TimeRangedText>();
+        Long version = sharedCache.getVersion(videoID);
+        List<TimeRangedText> captions = sharedCache.getCaptions(videoID, version);
+        if (captions == null) {
+            captions = readFullCaptions(videoID);
+            if (!captions.isEmpty()) {
+                sharedCache.putCaptions(videoID, version, captions);
+            }
+        }
+        return captions;
+    }
+
+    // retrieve one page of the caption lines of videoID that start within [from, to)
+    // per-line captions are read with an indexed start time range query; caption blobs are decoded and sliced
+    public ResultPage<List<TimeRangedText>> getCaptionsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        Key vidKey = videoKey(videoID);
+
+        // blob pages resume from an offset into the decoded transcript rather than a Datastore cursor
+        if (RangePages.isOffsetCursor(cursor)) {
+            List<TimeRangedText> blobCaptions = getBlobCaptionsForRange(videoID, vidKey);
+            return sliceBlobCaptions(blobCaptions != null ? blobCaptions : Collections.<TimeRangedText>emptyList(), from, to, cursor, limit);
+        }
 
-        for (Entity entity : results.asIterable()) {
-            if (entity.getParent().getName().equals(videoID)) {
-                TimeRangedText single_line = new TimeRangedText((Long)entity.getProperty(COLUMN_START), (Long)entity.getProperty(COLUMN_END), (String)entity.getProperty(COLUMN_CAPTION));
-                full_captions.add(single_line);
+        if (cursor == null && captionFormat == CaptionFormat.COMPRESSED_BLOB) {
+            List<TimeRangedText> blobCaptions = getBlobCaptionsForRange(videoID, vidKey);
+            if (blobCaptions != null) {
+                return sliceBlobCaptions(blobCaptions, from, to, null, limit);
             }
         }
 
-        return full_captions;
+        Query query = lineCaptionsQuery(vidKey).setFilter(timeRange(COLUMN_START, from, to));
+        ResultPage<List<TimeRangedText>> page;
+        try {
+            QueryResultList<Entity> results = datastore.prepare(query).asQueryResultList(pageOptions(cursor, limit));
+            page = new ResultPage<List<TimeRangedText>>(toLineCaptions(results.iterator()), nextCursor(results, limit));
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_FULL_CAPTIONS_ERR, e.getMessage(), e.getCause());
+        }
+
+        // videos not yet stored per line keep their captions in blobs
+        if (cursor == null && page.getResults().isEmpty() && captionFormat == CaptionFormat.LINE_ENTITIES) {
+            List<TimeRangedText> blobCaptions = getBlobCaptionsForRange(videoID, vidKey);
+            if (blobCaptions != null) {
+                return sliceBlobCaptions(blobCaptions, from, to, null, limit);
+            }
+        }
+        return page;
+    }
+
+    // retrieve one page of the keywords of videoID that occur within [from, to)
+    // indexed timestamps are paged with a range query and a Datastore cursor, so only the page is read;
+    // packed timestamps are not indexed, so with KeywordFormat.PACKED_BLOB every keyphrase of the video is read
+    public ResultPage<Map<String, List<Long>>> getKeywordsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        Key vidKey = videoKey(videoID);
+        if (keywordFormat == KeywordFormat.PACKED_BLOB) {
+            return getPackedKeywordsInRange(vidKey, from, to, RangePages.parseKeywordCursor(cursor), limit);
+        }
+
+        FetchOptions options = pageOptions(cursor, limit);
+        try {
+            // the projection yields a keyphrase once per timestamp in the window, in time order, and the
+            // keyphrase is listed on the page holding its first one, so no page repeats an earlier keyphrase
+            Query query = new Query(COLUMN_CAPTION, vidKey)
+                .setFilter(timeRange(COLUMN_TIMES, from, to))
+                .addProjection(new PropertyProjection(COLUMN_TIMES, Long.class));
+            QueryResultList<Entity> results = datastore.prepare(query).asQueryResultList(options);
+
+            Set<Key> pageKeys = new LinkedHashSet<Key>();
+            for (Entity result : results) {
+                pageKeys.add(result.getKey());
+            }
+            Map<Key, Entity> entities = datastore.get(pageKeys);
+
+            Map<String, List<Long>> clauseMap = new LinkedHashMap<String, List<Long>>();
+            for (Entity result : results) {
+                Entity entity = entities.get(result.getKey());
+                if (entity == null) {
+                    continue;
+                }
+                List<Long> inRange = RangePages.timestampsInRange(readTimestamps(entity), from, to);
+                if (!inRange.isEmpty() && Collections.min(inRange).equals(result.getProperty(COLUMN_TIMES))) {
+                    clauseMap.put(entity.getKey().getName(), inRange);
+                }
+            }
+
+            metrics.scanned(results.size(), clauseMap.size());
+            return new ResultPage<Map<String, List<Long>>>(clauseMap, nextCursor(results, limit));
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        }
     }
 
     // return true if specified video is in the database
+    // uses a get of the constructed video key, which unlike a query sees a video as soon as it is written
     public boolean videoInDb(String videoID) throws CaptionStorageException {
-        if ((getVideo(videoID)) == null) {
+        try {
+            datastore.get(videoKey(videoID));
+            return true;
+        } catch (EntityNotFoundException e) {
             return false;
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_VIDEO_ERR, e.getMessage(), e.getCause());
         }
-        return true;
     }
 
     // return true if specified meta is the metadata for videoID
     public boolean metaInDb(String videoID, String meta) throws CaptionStorageException {
-        Entity data = getMetadata(videoID);
-        if (data.getKey().getName().equals(meta)) {
-            return true;
+        String data = getMetadata(videoID);
+        return data != null && data.equals(meta);
+    }
+
+    // return the content hash stored on the video entity, null if the video or the hash is missing
+    public String getContentHash(String videoID) throws CaptionStorageException {
+        try {
+            return (String) datastore.get(videoKey(videoID)).getProperty(COLUMN_CONTENT_HASH);
+        } catch (EntityNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_VIDEO_ERR, e.getMessage(), e.getCause());
         }
-        return false;
     }
 
-    // delete a video & all its children (metadata & captions) from the database
-    public void deleteVideo(String videoID) throws CaptionStorageException {
-        Entity vidEnt;
-        if ((vidEnt = getVideo(videoID)) == null) {
-            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+    // store the content hash as an unindexed property of the video entity
+    // set in a transaction so a concurrent addVideo, which writes a video entity without the hash, is not undone
+    public void setContentHash(String videoID, String contentHash) throws CaptionStorageException {
+        Transaction txn;
+        try {
+            txn = datastore.beginTransaction();
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.ADD_VIDEO_ERR, e.getMessage(), e.getCause());
         }
-        Key vidKey = vidEnt.getKey();
+
         try {
-            datastore.delete(vidKey);
+            Entity vidEnt = datastore.get(txn, videoKey(videoID));
+            vidEnt.setUnindexedProperty(COLUMN_CONTENT_HASH, contentHash);
+            datastore.put(txn, vidEnt);
+            txn.commit();
+        } catch (EntityNotFoundException e) {
+            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
         } catch (Exception e) {
-            throw new CaptionStorageException(Reason.DELETE_VIDEO_ERR, e.getMessage(), e.getCause());
+            throw new CaptionStorageException(Reason.ADD_VIDEO_ERR, e.getMessage(), e.getCause());
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
         }
     }
 
+    // delete a video & all its children (metadata & captions) from the database
+    // descendants are found with a keys-only ancestor query and removed with batched multi-key deletes
+    public int deleteVideo(String videoID) throws CaptionStorageException {
+        if (!videoInDb(videoID)) {
+            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+        }
+        return removeVideo(videoID);
+    }
+
     // delete a specific keyword from a video in the database
+    // the keyphrase is deleted directly by its (video, keyword) key; deleting a missing keyphrase does nothing
     public void deleteClause(String videoID, String keyword) throws CaptionStorageException {
-        Query query = new Query(COLUMN_CAPTION);
-        PreparedQuery results = datastore.prepare(query);
-
-        Entity keywordEnt = null;
         try {
-            for (Entity entity : results.asIterable()) {
-                if (entity.getKey().getName().equals(keyword)) {
-                    keywordEnt = entity;
-                }
-            }
+            datastore.delete(clauseKey(videoID, keyword));
         } catch (Exception e) {
-            throw new CaptionStorageException(Reason.GET_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+            throw new CaptionStorageException(Reason.DELETE_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        } finally {
+            invalidateSharedCache(videoID);
+        }
+    }
+
+    // delete multiple keywords from a video in the database with batched multi-key deletes
+    public void deleteClauses(String videoID, Collection<String> keywords) throws CaptionStorageException {
+        List<Key> keys = new ArrayList<Key>(keywords.size());
+        for (String keyword : keywords) {
+            keys.add(clauseKey(videoID, keyword));
         }
 
-        Key keywordKey = keywordEnt.getKey();
         try {
-            datastore.delete(keywordKey);
+            deleteBatched(keys);
         } catch (Exception e) {
             throw new CaptionStorageException(Reason.DELETE_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        } finally {
+            invalidateSharedCache(videoID);
         }
-        
     }
 
     // delete the metadata belonging to a specific video in the database
+    // the owning video is not given, so the metadata kind is still scanned for the value
     public void deleteMetadata(String metadata) throws CaptionStorageException {
         Query query = new Query(COLUMN_METADATA);
         PreparedQuery results = datastore.prepare(query);
 
         Entity metaEnt = null;
+        long scanned = 0;
         try {
             for (Entity entity : results.asIterable()) {
-                if (entity.getKey().getName().equals(metadata)) {
+                scanned++;
+                String value = metadataValue(entity);
+                if (metadata.equals(value != null ? value : entity.getKey().getName())) {
                     metaEnt = entity;
                 }
             }
         } catch (Exception e) {
             throw new CaptionStorageException(Reason.GET_META_ERR, e.getMessage(), e.getCause());
         }
+        metrics.scanned(scanned, metaEnt != null ? 1 : 0);
+        if (metaEnt == null) {
+            throw new CaptionStorageException(Reason.NO_META_EXISTS, NO_META_ERR);
+        }
 
         Key metaKey = metaEnt.getKey();
         try {
@@ -289,56 +480,1003 @@ public class CaptionStorageManager implements CaptionStorageInterface {
         } catch (Exception e) {
             throw new CaptionStorageException(Reason.DELETE_META_ERR, e.getMessage(), e.getCause());
         }
-        
+    
     }
 
     //================================================================================
-    // Private Helper Functions
+    // Batch Interface Functions
     //================================================================================
 
-    /*
-     * helper function to query database for specific video entity
-     * @param videoID       Youtube ID of the video already in the db
-     * @return              Entity representing the video in the db,
-     *                          null if not matching entity is found
-     */
-    private Entity getVideo(String videoID) throws CaptionStorageException {
-        Query query = new Query(COLUMN_VIDEO);
-        PreparedQuery results = datastore.prepare(query);
+    // return the videos among videoIDs that are in the database, with one batch get of the video keys
+    public Set<String> videosInDb(Collection<String> videoIDs) throws CaptionStorageException {
+        Map<String, Key> keys = new LinkedHashMap<String, Key>();
+        for (String videoID : videoIDs) {
+            keys.put(videoID, videoKey(videoID));
+        }
 
+        Map<Key, Entity> found;
         try {
-            for (Entity entity : results.asIterable()) {
-                if (entity.getKey().getName().equals(videoID)) {
-                    return entity;
-                }
-            }
+            found = datastore.get(keys.values());
         } catch (Exception e) {
             throw new CaptionStorageException(Reason.GET_VIDEO_ERR, e.getMessage(), e.getCause());
         }
-        
-        return null;    // no entity matched videoID in db video list
+
+        Set<String> stored = new LinkedHashSet<String>();
+        for (Map.Entry<String, Key> entry : keys.entrySet()) {
+            if (found.containsKey(entry.getValue())) {
+                stored.add(entry.getKey());
+            }
+        }
+        return stored;
+    }
+
+    // retrieve all keywords + their timestamps of several videos
+    // the shared cache is read with batched memcache calls, videos not in it are checked with one batch get,
+    // then their ancestor queries run in parallel
+    public Map<String, Map<String, List<Long>>> getAllKeywords(Collection<String> videoIDs) throws CaptionStorageException {
+        Map<String, Map<String, List<Long>>> keywords = new LinkedHashMap<String, Map<String, List<Long>>>();
+        List<String> uncached = new ArrayList<String>();
+        Map<String, Long> versions = sharedCache != null ? sharedCache.getVersions(videoIDs) : Collections.<String, Long>emptyMap();
+        Map<String, Map<String, List<Long>>> cachedKeywords = sharedCache != null ? sharedCache.getKeywords(versions) : Collections.<String, Map<String, List<Long>>>emptyMap();
+        for (String videoID : videoIDs) {
+            Map<String, List<Long>> cached = cachedKeywords.get(videoID);
+            keywords.put(videoID, cached);
+            if (cached == null) {
+                uncached.add(videoID);
+            }
+        }
+
+        // asIterator issues each query at once, so every query is in flight before any of them is read
+        Map<String, Iterator<Entity>> queries = new HashMap<String, Iterator<Entity>>();
+        for (String videoID : videosInDb(uncached)) {
+            queries.put(videoID, asyncDatastore.prepare(new Query(COLUMN_CAPTION, videoKey(videoID))).asIterator());
+        }
+
+        Iterator<Map.Entry<String, Map<String, List<Long>>>> entries = keywords.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Map<String, List<Long>>> entry = entries.next();
+            if (entry.getValue() != null) {
+                continue;
+            }
+            Iterator<Entity> query = queries.get(entry.getKey());
+            if (query == null) {
+                entries.remove();
+            } else {
+                entry.setValue(toClauseMap(entry.getKey(), versions.get(entry.getKey()), query));
+            }
+        }
+        return keywords;
+    }
+
+    //================================================================================
+    // Asynchronous Interface Functions
+    // RPCs are issued through AsyncDatastoreService on the calling thread; the remaining work
+    // runs when they complete. Writes to one video share an entity group, so their batches
+    // are committed one after another rather than concurrently.
+    //================================================================================
+
+    // asynchronously add a video, its metadata, and its full captions to the database
+    public CompletableFuture<Void> addVideoAsync(String videoID, String metadata, List<TimeRangedText> fullCaptions) {
+        List<List<Entity>> batches;
+        try {
+            batches = partition(buildVideoEntities(videoID, metadata, fullCaptions));
+        } catch (CaptionStorageException e) {
+            return failedFuture(e);
+        }
+
+        // the first batch holds the video and metadata entities and is sent immediately
+        Future<List<Key>> firstPut = transactionalWrites ? null : asyncDatastore.put(batches.get(0));
+
+        return supply(StorageOperation.ADD_VIDEO_ASYNC, () -> {
+            try {
+                for (int i = 0; i < batches.size(); i++) {
+                    Reason reason = i == 0 ? Reason.ADD_VIDEO_ERR : Reason.ADD_FULL_CAPTIONS_ERR;
+                    try {
+                        if (i == 0 && firstPut != null) {
+                            DatastoreFutures.await(firstPut);
+                        } else {
+                            putBatch(batches.get(i));
+                        }
+                    } catch (Exception e) {
+                        throw new CaptionStorageException(reason, e.getMessage(), e.getCause());
+                    }
+                }
+            } finally {
+                invalidateSharedCache(videoID);
+            }
+            return null;
+        });
+    }
+
+    // asynchronously add multiple keyphrase + timestamp pairs to a particular video's entry
+    public CompletableFuture<ClauseWriteResult> addClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        Future<Entity> video = asyncDatastore.get(videoKey(videoID));
+
+        return supply(StorageOperation.ADD_CLAUSES_ASYNC, () -> {
+            awaitVideo(video);
+            return writeClauses(videoID, clauses);
+        });
+    }
+
+    // asynchronously replace the keyphrases of a video, deleting stored keyphrases that are not among clauses
+    public CompletableFuture<ClauseWriteResult> replaceClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return supply(StorageOperation.REPLACE_CLAUSES_ASYNC, () -> replaceClauses(videoID, clauses));
+    }
+
+    // asynchronously retrieve all keywords + their timestamps in a specified videoID
+    // the video lookup and the keyphrase query are in flight at the same time; asIterator issues the query at once
+    public CompletableFuture<Map<String, List<Long>>> getAllKeywordsAsync(String videoID) {
+        Long version = sharedCache != null ? sharedCache.getVersion(videoID) : null;
+        if (sharedCache != null) {
+            Map<String, List<Long>> cached = sharedCache.getKeywords(videoID, version);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        Key vidKey = videoKey(videoID);
+        Future<Entity> video = asyncDatastore.get(vidKey);
+        Iterator<Entity> keywords = asyncDatastore.prepare(new Query(COLUMN_CAPTION, vidKey)).asIterator();
+
+        return supply(StorageOperation.GET_ALL_KEYWORDS_ASYNC, () -> {
+            awaitVideo(video);
+            return toClauseMap(videoID, version, keywords);
+        });
+    }
+
+    // asynchronously retrieve full captions of videoID
+    // the per-line query and the first blob lookup are in flight at the same time; the line query is only
+    // issued up front when lines are the written format, and its one iterator serves both the check and the read
+    public CompletableFuture<List<TimeRangedText>> getFullCaptionsAsync(String videoID) {
+        Long version = sharedCache != null ? sharedCache.getVersion(videoID) : null;
+        if (sharedCache != null) {
+            List<TimeRangedText> cached = sharedCache.getCaptions(videoID, version);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        Key vidKey = videoKey(videoID);
+        Future<Entity> firstBlob = asyncDatastore.get(blobKey(vidKey, 0));
+        Iterator<Entity> lines = captionFormat == CaptionFormat.COMPRESSED_BLOB ? null : lineCaptionsIterator(asyncDatastore.prepare(lineCaptionsQuery(vidKey)));
+
+        return supply(StorageOperation.GET_FULL_CAPTIONS_ASYNC, () -> {
+            Entity first = null;
+            try {
+                first = DatastoreFutures.await(firstBlob);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof EntityNotFoundException)) {
+                    throw new CaptionStorageException(Reason.GET_FULL_CAPTIONS_ERR, e.getMessage(), e.getCause());
+                }
+            }
+
+            List<TimeRangedText> captions;
+            if (first != null && (lines == null || !lines.hasNext())) {
+                captions = decodeBlobCaptions(vidKey, first);
+            } else {
+                captions = toLineCaptions(lines != null ? lines : lineCaptionsIterator(asyncDatastore.prepare(lineCaptionsQuery(vidKey))));
+            }
+
+            if (sharedCache != null && !captions.isEmpty()) {
+                sharedCache.putCaptions(videoID, version, captions);
+            }
+            return captions;
+        });
     }
 
+    // asynchronously delete a video & all its children (metadata & captions) from the database
+    public CompletableFuture<Integer> deleteVideoAsync(String videoID) {
+        Future<Entity> video = asyncDatastore.get(videoKey(videoID));
+
+        return supply(StorageOperation.DELETE_VIDEO_ASYNC, () -> {
+            awaitVideo(video);
+            return removeVideo(videoID);
+        });
+    }
+
+    //================================================================================
+    // Migration Functions (not part of CaptionStorageInterface)
+    //================================================================================
+
     /*
-     * helper function to query database for specific metadata entity whose parent is videoID
+     * convert the per-line caption entities of a video into compressed caption blobs
+     * the blobs are written before the line entities are deleted, so captions stay readable throughout
      * @param videoID       Youtube ID of the video already in the db
-     * @return              Entity representing the metadata of the video in the db,
-     *                          null if no matching entity is found
+     * @exception           throws NO_VIDEO_EXISTS or MIGRATE_CAPTIONS_ERR
+     * @return              number of caption lines that were converted (0 if none were stored per line)
      */
-    private Entity getMetadata(String videoID) throws CaptionStorageException {
-        Query query = new Query(COLUMN_METADATA);
-        PreparedQuery results = datastore.prepare(query);
+    public int migrateToCompressedBlobs(String videoID) throws CaptionStorageException {
+        long start = metrics.begin(StorageOperation.MIGRATE_CAPTIONS);
+        try {
+            if (!videoInDb(videoID)) {
+                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+            }
+
+            Key vidKey = videoKey(videoID);
+            try {
+                List<TimeRangedText> lines = getLineCaptions(vidKey);
+                if (lines.isEmpty()) {
+                    return 0;
+                }
+
+                for (List<Entity> batch : partition(buildBlobEntities(vidKey, lines))) {
+                    putBatch(batch);
+                }
+
+                Query query = new Query(COLUMN_FULL_CAPTIONS, vidKey).setKeysOnly();
+                List<Key> lineKeys = new ArrayList<Key>(lines.size());
+                for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(FULL_CAPTIONS_CHUNK_SIZE))) {
+                    lineKeys.add(entity.getKey());
+                }
+                deleteBatched(lineKeys);
+
+                return lines.size();
+            } catch (Exception e) {
+                throw new CaptionStorageException(Reason.MIGRATE_CAPTIONS_ERR, e.getMessage(), e.getCause());
+            }
+        } catch (CaptionStorageException | RuntimeException e) {
+            metrics.fail();
+            throw e;
+        } finally {
+            metrics.end(start);
+        }
+    }
 
+    /*
+     * convert the per-line caption entities of every video in the db into compressed caption blobs
+     * @exception           throws GET_VIDEO_ERR or MIGRATE_CAPTIONS_ERR
+     * @return              total number of caption lines that were converted
+     */
+    public int migrateAllToCompressedBlobs() throws CaptionStorageException {
+        long start = metrics.begin(StorageOperation.MIGRATE_CAPTIONS);
         try {
-            for (Entity entity : results.asIterable()) {
-                if (entity.getKey().getParent().getName().equals(videoID)) {
-                    return entity;
+            List<String> videoIDs = new ArrayList<String>();
+            try {
+                Query query = new Query(COLUMN_VIDEO).setKeysOnly();
+                for (Entity entity : datastore.prepare(query).asIterable()) {
+                    videoIDs.add(entity.getKey().getName());
                 }
+                metrics.scanned(videoIDs.size(), videoIDs.size());
+            } catch (Exception e) {
+                throw new CaptionStorageException(Reason.GET_VIDEO_ERR, e.getMessage(), e.getCause());
             }
-        } catch (Exception e) {
-            throw new CaptionStorageException(Reason.GET_META_ERR, e.getMessage(), e.getCause());
+
+            int converted = 0;
+            for (String videoID : videoIDs) {
+                converted += migrateToCompressedBlobs(videoID);
+            }
+            return converted;
+        } catch (CaptionStorageException | RuntimeException e) {
+            metrics.fail();
+            throw e;
+        } finally {
+            metrics.end(start);
         }
+    }
+
+    //================================================================================
+    // Private Helper Functions
+    //================================================================================
+
+    /*
+     * helper function to build the video, metadata and caption entities of a video
+     * @param videoID       Youtube ID of the video
+     * @param metadata      String containing any metadata to be stored about the video
+     * @param fullCaptions  captions of the video in display order
+     * @exception           throws ADD_VIDEO_ERR or ADD_META_ERR or ADD_FULL_CAPTIONS_ERR
+     * @return              the video entity followed by its metadata and caption entities
+     */
+    private List<Entity> buildVideoEntities(String videoID, String metadata, List<TimeRangedText> fullCaptions) throws CaptionStorageException {
+        List<Entity> entities = new ArrayList<Entity>(fullCaptions.size() + 2);
 
-        return null;    // no entity had videoID as its parent in db metadata list
+        Entity vidEnt;
+        try {
+            vidEnt = new Entity(COLUMN_VIDEO, videoID);
+            entities.add(vidEnt);
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.ADD_VIDEO_ERR, e.getMessage(), e.getCause());
+        }
+
+        try {
+            entities.add(buildMetadataEntity(vidEnt.getKey(), metadata));
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.ADD_META_ERR, e.getMessage(), e.getCause());
+        }
+
+        try {
+            if (captionFormat == CaptionFormat.COMPRESSED_BLOB) {
+                entities.addAll(buildBlobEntities(vidEnt.getKey(), fullCaptions));
+            } else {
+                entities.addAll(buildLineEntities(vidEnt.getKey(), fullCaptions));
+            }
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.ADD_FULL_CAPTIONS_ERR, e.getMessage(), e.getCause());
+        }
+
+        return entities;
+    }
+
+    /*
+     * helper function to build one full_captions entity per caption line
+     * @param vidKey        key of the video the captions belong to
+     * @param fullCaptions  captions of the video in display order
+     * @return              entities numbered by the position of their line
+     */
+    private static List<Entity> buildLineEntities(Key vidKey, List<TimeRangedText> fullCaptions) {
+        List<Entity> entities = new ArrayList<Entity>(fullCaptions.size());
+        int i = 0;
+        for (TimeRangedText single_line : fullCaptions) {
+            Entity capEnt = new Entity(COLUMN_FULL_CAPTIONS, Integer.toString(i++), vidKey);
+            capEnt.setProperty(COLUMN_CAPTION, single_line.getText());
+            capEnt.setProperty(COLUMN_START, single_line.getStartTime());
+            capEnt.setProperty(COLUMN_END, single_line.getEndTime());
+            entities.add(capEnt);
+        }
+        return entities;
+    }
+
+    /*
+     * helper function to build the caption_blob entities holding an encoded transcript
+     * the first chunk records how many chunks make up the transcript
+     * @param vidKey        key of the video the captions belong to
+     * @param fullCaptions  captions of the video in display order
+     * @return              entities named by chunk index, each under the entity size limit
+     */
+    private static List<Entity> buildBlobEntities(Key vidKey, List<TimeRangedText> fullCaptions) {
+        List<byte[]> chunks = CaptionBlobCodec.split(CaptionBlobCodec.encode(fullCaptions), MAX_BLOB_CHUNK_BYTES);
+        List<Entity> entities = new ArrayList<Entity>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            Entity blobEnt = new Entity(COLUMN_CAPTION_BLOB, Integer.toString(i), vidKey);
+            blobEnt.setUnindexedProperty(COLUMN_BLOB_DATA, new Blob(chunks.get(i)));
+            if (i == 0) {
+                blobEnt.setUnindexedProperty(COLUMN_BLOB_CHUNKS, (long) chunks.size());
+            }
+            entities.add(blobEnt);
+        }
+        return entities;
+    }
+
+    /*
+     * helper function to read the full captions of a video from Datastore
+     * the configured format is read first, falling back to the other one for videos not yet migrated
+     * @param videoID       Youtube ID of the video
+     * @return              captions in start time order, empty if the video has none
+     */
+    private List<TimeRangedText> readFullCaptions(String videoID) {
+        Key vidKey = videoKey(videoID);
+
+        if (captionFormat == CaptionFormat.COMPRESSED_BLOB) {
+            List<TimeRangedText> blobCaptions = getBlobCaptions(vidKey);
+            return blobCaptions != null ? blobCaptions : getLineCaptions(vidKey);
+        }
+
+        List<TimeRangedText> lineCaptions = getLineCaptions(vidKey);
+        if (lineCaptions.isEmpty()) {
+            List<TimeRangedText> blobCaptions = getBlobCaptions(vidKey);
+            if (blobCaptions != null) {
+                return blobCaptions;
+            }
+        }
+        return lineCaptions;
+    }
+
+    /*
+     * helper function to read the per-line captions of a video with an ancestor query
+     * @param vidKey        key of the video the captions belong to
+     * @return              captions in start time order (see datastore-indexes.xml for the sort index)
+     */
+    private List<TimeRangedText> getLineCaptions(Key vidKey) {
+        return toLineCaptions(lineCaptionsIterator(datastore.prepare(lineCaptionsQuery(vidKey))));
+    }
+
+    /*
+     * helper function to issue a prepared per-line captions query, fetching full chunks of lines
+     * @param query         the prepared query built by lineCaptionsQuery
+     * @return              iterator over the lines; the query is already in flight when it is returned
+     */
+    private static Iterator<Entity> lineCaptionsIterator(PreparedQuery query) {
+        return query.asIterator(FetchOptions.Builder.withChunkSize(FULL_CAPTIONS_CHUNK_SIZE));
+    }
+
+    /*
+     * helper function to build the ancestor query for the per-line captions of a video
+     * @param vidKey        key of the video the captions belong to
+     * @return              query sorted by start time (see datastore-indexes.xml for the sort index)
+     */
+    private static Query lineCaptionsQuery(Key vidKey) {
+        return new Query(COLUMN_FULL_CAPTIONS, vidKey).addSort(COLUMN_START, SortDirection.ASCENDING);
+    }
+
+    /*
+     * helper function to convert full_captions entities into captions
+     * @param entities      full_captions entities in start time order
+     * @return              captions in the same order
+     */
+    private List<TimeRangedText> toLineCaptions(Iterator<Entity> entities) {
+        List<TimeRangedText> full_captions = new ArrayList<TimeRangedText>();
+
+        while (entities.hasNext()) {
+            Entity entity = entities.next();
+            TimeRangedText single_line = new TimeRangedText((Long)entity.getProperty(COLUMN_START), (Long)entity.getProperty(COLUMN_END), (String)entity.getProperty(COLUMN_CAPTION));
+            full_captions.add(single_line);
+        }
+        metrics.scanned(full_captions.size(), full_captions.size());
+
+        return full_captions;
+    }
+
+    /*
+     * helper function to read and decode the caption blobs of a video with key lookups
+     * @param vidKey        key of the video the captions belong to
+     * @return              decoded captions, null if the video has no caption blobs
+     */
+    private List<TimeRangedText> getBlobCaptions(Key vidKey) {
+        try {
+            return decodeBlobCaptions(vidKey, datastore.get(blobKey(vidKey, 0)));
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    /*
+     * helper function to read the caption blobs of a video for a range read, preferring the shared cache
+     * @param videoID       Youtube ID of the video
+     * @param vidKey        key of the video the captions belong to
+     * @return              decoded captions, null if the video has no caption blobs
+     */
+    private List<TimeRangedText> getBlobCaptionsForRange(String videoID, Key vidKey) {
+        Long version = sharedCache != null ? sharedCache.getVersion(videoID) : null;
+        if (sharedCache != null) {
+            List<TimeRangedText> cached = sharedCache.getCaptions(videoID, version);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        List<TimeRangedText> captions = getBlobCaptions(vidKey);
+        if (sharedCache != null && captions != null && !captions.isEmpty()) {
+            sharedCache.putCaptions(videoID, version, captions);
+        }
+        return captions;
+    }
+
+    /*
+     * helper function to slice a page out of a decoded transcript, recording how much of it was scanned
+     * @param captions      decoded captions of the video in start time order
+     * @param from          inclusive start of the window
+     * @param to            exclusive end of the window
+     * @param cursor        offset cursor returned with the previous page, or null for the first page
+     * @param limit         maximum number of lines in the page
+     * @exception           throws INVALID_CURSOR
+     * @return              the page (see RangePages.sliceCaptions)
+     */
+    private ResultPage<List<TimeRangedText>> sliceBlobCaptions(List<TimeRangedText> captions, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        ResultPage<List<TimeRangedText>> page = RangePages.sliceCaptions(captions, from, to, cursor, limit);
+        metrics.scanned(captions.size(), page.getResults().size());
+        return page;
+    }
+
+    /*
+     * helper function to build the [from, to) filter of a range query
+     * a multi-valued property matches when a single one of its values satisfies both bounds
+     * (on a multi-valued property, results may repeat an entity and cursors are not reliable)
+     * @param property      indexed property holding times
+     * @param from          inclusive start of the window
+     * @param to            exclusive end of the window
+     * @return              filter on property (see datastore-indexes.xml for the range indexes)
+     */
+    private static Filter timeRange(String property, long from, long to) {
+        return CompositeFilterOperator.and(
+            new FilterPredicate(property, FilterOperator.GREATER_THAN_OR_EQUAL, from),
+            new FilterPredicate(property, FilterOperator.LESS_THAN, to));
+    }
+
+    /*
+     * helper function to page through keyphrases with packed timestamps, which no query can filter on
+     * every keyphrase of the video is read, and the ones in the window are paged in name order
+     * @param vidKey        key of the video the keyphrases belong to
+     * @param from          inclusive start of the window
+     * @param to            exclusive end of the window
+     * @param after         last keyphrase of the previous page, or null for the first page
+     * @param limit         maximum number of keyphrases in the page
+     * @return              the page of keyphrases and the cursor of the next page
+     */
+    private ResultPage<Map<String, List<Long>>> getPackedKeywordsInRange(Key vidKey, long from, long to, String after, int limit) throws CaptionStorageException {
+        try {
+            TreeMap<String, List<Long>> matching = new TreeMap<String, List<Long>>();
+            long scanned = 0;
+            for (Entity entity : datastore.prepare(new Query(COLUMN_CAPTION, vidKey)).asIterable()) {
+                scanned++;
+                String keyword = entity.getKey().getName();
+                if (after == null || keyword.compareTo(after) > 0) {
+                    List<Long> inRange = RangePages.timestampsInRange(readTimestamps(entity), from, to);
+                    if (!inRange.isEmpty()) {
+                        matching.put(keyword, inRange);
+                    }
+                }
+            }
+
+            Map<String, List<Long>> clauseMap = new LinkedHashMap<String, List<Long>>();
+            String lastKeyword = null;
+            for (Map.Entry<String, List<Long>> entry : matching.entrySet()) {
+                if (clauseMap.size() == limit) {
+                    break;
+                }
+                clauseMap.put(entry.getKey(), entry.getValue());
+                lastKeyword = entry.getKey();
+            }
+            metrics.scanned(scanned, clauseMap.size());
+
+            String next = matching.size() > limit ? RangePages.keywordCursor(lastKeyword) : null;
+            return new ResultPage<Map<String, List<Long>>>(clauseMap, next);
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        }
+    }
+
+    /*
+     * helper function to build the fetch options of one page of a range query
+     * @param cursor        web-safe cursor returned with the previous page, or null for the first page
+     * @param limit         maximum number of entities in the page
+     * @exception           throws INVALID_CURSOR
+     * @return              fetch options limited to one page
+     */
+    private static FetchOptions pageOptions(String cursor, int limit) throws CaptionStorageException {
+        FetchOptions options = FetchOptions.Builder.withLimit(limit);
+        if (cursor != null) {
+            try {
+                options.startCursor(Cursor.fromWebSafeString(cursor));
+            } catch (IllegalArgumentException e) {
+                throw RangePages.invalidCursor(cursor);
+            }
+        }
+        return options;
+    }
+
+    /*
+     * helper function to get the cursor of the page after a range query page
+     * @param results       results of one page of a range query
+     * @param limit         limit the page was fetched with
+     * @return              web-safe cursor, or null if the page was not full
+     */
+    private static String nextCursor(QueryResultList<Entity> results, int limit) {
+        if (results.size() < limit || results.getCursor() == null) {
+            return null;
+        }
+        return results.getCursor().toWebSafeString();
+    }
+
+    /*
+     * helper function to construct the key of a caption blob chunk
+     * @param vidKey        key of the video the captions belong to
+     * @param index         position of the chunk in the blob
+     * @return              key of the caption_blob entity
+     */
+    private static Key blobKey(Key vidKey, int index) {
+        return KeyFactory.createKey(vidKey, COLUMN_CAPTION_BLOB, Integer.toString(index));
+    }
+
+    /*
+     * helper function to decode caption blobs given their first chunk, batch getting any remaining chunks
+     * @param vidKey        key of the video the captions belong to
+     * @param first         the first caption_blob entity of the video
+     * @return              decoded captions
+     */
+    private List<TimeRangedText> decodeBlobCaptions(Key vidKey, Entity first) {
+        int chunkCount = ((Long) first.getProperty(COLUMN_BLOB_CHUNKS)).intValue();
+        List<byte[]> chunks = new ArrayList<byte[]>(chunkCount);
+        chunks.add(((Blob) first.getProperty(COLUMN_BLOB_DATA)).getBytes());
+
+        if (chunkCount > 1) {
+            List<Key> keys = new ArrayList<Key>(chunkCount - 1);
+            for (int i = 1; i < chunkCount; i++) {
+                keys.add(blobKey(vidKey, i));
+            }
+            Map<Key, Entity> rest = datastore.get(keys);
+            for (Key key : keys) {
+                Entity chunk = rest.get(key);
+                if (chunk == null) {
+                    throw new IllegalStateException(MISSING_BLOB_CHUNK_ERR + key);
+                }
+                chunks.add(((Blob) chunk.getProperty(COLUMN_BLOB_DATA)).getBytes());
+            }
+        }
+
+        return CaptionBlobCodec.decode(CaptionBlobCodec.join(chunks));
+    }
+
+    /*
+     * helper function to delete keys with multi-key deletes of at most MAX_ENTITIES_PER_PUT keys
+     * @param keys          keys to be deleted
+     */
+    private void deleteBatched(List<Key> keys) {
+        for (int start = 0; start < keys.size(); start += MAX_ENTITIES_PER_PUT) {
+            datastore.delete(keys.subList(start, Math.min(keys.size(), start + MAX_ENTITIES_PER_PUT)));
+        }
+    }
+
+    /*
+     * helper function to write keyphrase entities of a video known to be in the db with batched puts
+     * @param videoID       Youtube ID of the video already in the db
+     * @param clauses       map containing pairs of keys & corresponding timestamps
+     * @return              ClauseWriteResult listing the keyphrases that could not be stored
+     */
+    private ClauseWriteResult writeClauses(String videoID, Map<String, List<Long>> clauses) {
+        Key vidKey = videoKey(videoID);
+        ClauseWriteResult result = new ClauseWriteResult();
+        List<Entity> entities = new ArrayList<Entity>(clauses.size());
+
+        for (Map.Entry<String, List<Long>> me : clauses.entrySet()) {
+            try {
+                entities.add(buildClauseEntity(vidKey, me.getKey(), me.getValue()));
+            } catch (Exception e) {
+                result.addFailed(Collections.singletonList(me.getKey()));
+            }
+        }
+
+        for (List<Entity> batch : partition(entities)) {
+            try {
+                putBatch(batch);
+                result.addWritten(batch.size());
+            } catch (Exception e) {
+                result.addFailed(keyNames(batch));
+            }
+        }
+        invalidateSharedCache(videoID);
+
+        return result;
+    }
+    
+    /*
+     * helper function to build the entity of a keyphrase in the configured keyword format
+     * @param vidKey        key of the video the keyphrase belongs to
+     * @param keyword       the keyphrase
+     * @param timestamps    times the keyphrase occurs at
+     * @return              caption entity named by the keyphrase
+     */
+    private Entity buildClauseEntity(Key vidKey, String keyword, List<Long> timestamps) {
+        Entity keyEnt = new Entity(COLUMN_CAPTION, keyword, vidKey);
+        if (keywordFormat == KeywordFormat.PACKED_BLOB) {
+            keyEnt.setUnindexedProperty(COLUMN_PACKED_TIMES, new Blob(KeywordMapCodec.encodeTimestamps(timestamps)));
+        } else {
+            keyEnt.setProperty(COLUMN_TIMES, timestamps);
+        }
+        return keyEnt;
+    }
+
+    /*
+     * helper function to read the timestamps of a keyphrase entity in either keyword format
+     * @param keyEnt        caption entity of a keyphrase
+     * @return              times the keyphrase occurs at; packed timestamps are returned as a TimestampList
+     */
+    private static List<Long> readTimestamps(Entity keyEnt) {
+        Blob packed = (Blob) keyEnt.getProperty(COLUMN_PACKED_TIMES);
+        if (packed != null) {
+            return KeywordMapCodec.decodeTimestamps(packed.getBytes());
+        }
+        return (List<Long>) keyEnt.getProperty(COLUMN_TIMES);
+    }
+
+    /*
+     * helper function to convert keyphrase entities into a keyword map, caching it in the shared tier
+     * @param videoID       Youtube ID of the video the keyphrases belong to
+     * @param version       version of the video in the shared cache, taken before the keyphrases were queried
+     * @param entities      caption (keyphrase) entities of the video
+     * @exception           throws GET_KEYPHRASE_ERR
+     * @return              Map of keyword + timestamp pairs
+     */
+    private Map<String, List<Long>> toClauseMap(String videoID, Long version, Iterator<Entity> entities) throws CaptionStorageException {
+        Map<String, List<Long>> clauseMap = new HashMap<String, List<Long>>();
+
+        try {
+            while (entities.hasNext()) {
+                Entity entity = entities.next();
+                clauseMap.put(entity.getKey().getName(), readTimestamps(entity));
+            } 
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_KEYPHRASE_ERR, e.getMessage(), e.getCause());
+        }
+        metrics.scanned(clauseMap.size(), clauseMap.size());
+
+        if (sharedCache != null) {
+            sharedCache.putKeywords(videoID, version, clauseMap);
+        }
+        return clauseMap;
+    }
+
+    /*
+     * helper function to delete a video known to be in the db along with all of its descendants
+     * the video itself is deleted last, so a failed delete can be retried through deleteVideo
+     * @param videoID       Youtube ID of the video to be deleted
+     * @exception           throws DELETE_VIDEO_ERR
+     * @return              number of entities deleted, including the video
+     */
+    private int removeVideo(String videoID) throws CaptionStorageException {
+        Key vidKey = videoKey(videoID);
+        try {
+            // a kindless ancestor query also returns the ancestor itself
+            Query query = new Query(vidKey).setKeysOnly();
+            List<Key> keys = new ArrayList<Key>();
+            for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(MAX_ENTITIES_PER_PUT))) {
+                if (!entity.getKey().equals(vidKey)) {
+                    keys.add(entity.getKey());
+                }
+            }
+            keys.add(vidKey);
+            metrics.scanned(keys.size(), keys.size());
+
+            deleteBatched(keys);
+            return keys.size();
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.DELETE_VIDEO_ERR, e.getMessage(), e.getCause());
+        } finally {
+            invalidateSharedCache(videoID);
+        }
+    }
+
+    /*
+     * helper function to wait for an asynchronous lookup of a video entity
+     * @param video         future returned by AsyncDatastoreService.get for the video key
+     * @exception           throws NO_VIDEO_EXISTS or GET_VIDEO_ERR
+     */
+    private static void awaitVideo(Future<Entity> video) throws CaptionStorageException {
+        try {
+            DatastoreFutures.await(video);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EntityNotFoundException) {
+                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+            }
+            throw new CaptionStorageException(Reason.GET_VIDEO_ERR, e.getMessage(), e.getCause());
+        }
+    }
+
+    /*
+     * helper function to build a future that has already failed
+     * @param e             the exception the future fails with
+     * @return              future completed exceptionally with e
+     */
+    private static <T> CompletableFuture<T> failedFuture(CaptionStorageException e) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /*
+     * helper function to run the request thread part of an asynchronous operation, attributing its RPCs to the operation
+     * @param operation     the asynchronous operation
+     * @param call          the work to run on the request thread
+     * @return              future completed with the result of call
+     */
+    private <T> CompletableFuture<T> supply(StorageOperation operation, DatastoreFutures.StorageCall<T> call) {
+        return DatastoreFutures.supply(() -> {
+            metrics.begin(operation);
+            try {
+                return call.call();
+            } finally {
+                metrics.endAsync();
+            }
+        });
+    }
+
+    /*
+     * helper function to move a video to a new version in the shared cache after it changed
+     * @param videoID       Youtube ID of the video that changed
+     */
+    private void invalidateSharedCache(String videoID) {
+        if (sharedCache != null) {
+            sharedCache.invalidate(videoID);
+        }
+    }
+
+    /*
+     * helper function to split entities into batches that respect the datastore put limits
+     * @param entities      entities to be written
+     * @return              consecutive batches of at most MAX_ENTITIES_PER_PUT entities
+     *                          and roughly MAX_BYTES_PER_PUT bytes each
+     */
+    private List<List<Entity>> partition(List<Entity> entities) {
+        List<List<Entity>> batches = new ArrayList<List<Entity>>();
+        List<Entity> batch = new ArrayList<Entity>();
+        long batchBytes = 0;
+
+        for (Entity entity : entities) {
+            long size = estimateSize(entity);
+            if (!batch.isEmpty() && (batch.size() >= MAX_ENTITIES_PER_PUT || batchBytes + size > MAX_BYTES_PER_PUT)) {
+                batches.add(batch);
+                batch = new ArrayList<Entity>();
+                batchBytes = 0;
+            }
+            batch.add(entity);
+            batchBytes += size;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        return batches;
+    }
+
+    /*
+     * helper function to write a single batch, inside a transaction if configured
+     * @param batch         entities to be written with one put
+     */
+    private void putBatch(List<Entity> batch) {
+        if (!transactionalWrites) {
+            datastore.put(batch);
+            return;
+        }
+
+        Transaction txn = datastore.beginTransaction();
+        try {
+            datastore.put(txn, batch);
+            txn.commit();
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /*
+     * helper function to collect the key names of a list of entities
+     * @param entities      entities whose key names are needed
+     * @return              key names in the same order as entities
+     */
+    private static List<String> keyNames(List<Entity> entities) {
+        List<String> names = new ArrayList<String>(entities.size());
+        for (Entity entity : entities) {
+            names.add(entity.getKey().getName());
+        }
+        return names;
+    }
+
+    /*
+     * helper function to estimate the serialized size of an entity
+     * @param entity        entity to be measured
+     * @return              approximate number of bytes the entity will take in a put
+     */
+    private static long estimateSize(Entity entity) {
+        long size = ENTITY_OVERHEAD_BYTES;
+        if (entity.getKey().getName() != null) {
+            size += utf8Length(entity.getKey().getName());
+        }
+        for (Object value : entity.getProperties().values()) {
+            size += estimateSize(value);
+        }
+        return size;
+    }
+
+    /*
+     * helper function to estimate the serialized size of a single property value
+     * @param value         property value (String, Text, Blob, number or list of those)
+     * @return              approximate number of bytes of the value
+     */
+    private static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return utf8Length((String) value);
+        } else if (value instanceof Text) {
+            return utf8Length(((Text) value).getValue());
+        } else if (value instanceof Blob) {
+            return ((Blob) value).getBytes().length;
+        } else if (value instanceof Collection) {
+            long size = 0;
+            for (Object element : (Collection<?>) value) {
+                size += estimateSize(element);
+            }
+            return size;
+        }
+        return Long.BYTES;
+    }
+
+    /*
+     * helper function to count the UTF-8 bytes of a string without encoding it
+     * @param str           string to be measured
+     * @return              length of str in UTF-8 bytes
+     */
+    private static int utf8Length(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /*
+     * helper function to construct the datastore key of a video
+     * @param videoID       Youtube ID of the video
+     * @return              Key of the video entity, whether or not it is stored in the db
+     */
+    private Key videoKey(String videoID) {
+        return KeyFactory.createKey(COLUMN_VIDEO, videoID);
+    }
+
+    /*
+     * helper function to construct the datastore key of a keyphrase of a video
+     * @param videoID       Youtube ID of the video
+     * @param keyword       keyphrase belonging to the video
+     * @return              Key of the caption entity, whether or not it is stored in the db
+     */
+    private Key clauseKey(String videoID, String keyword) {
+        return KeyFactory.createKey(videoKey(videoID), COLUMN_CAPTION, keyword);
+    }
+
+    /*
+     * helper function to read the metadata of a video
+     * @param videoID       Youtube ID of the video
+     * @exception           throws GET_META_ERR
+     * @return              the metadata of the video, null if the video has none
+     */
+    private String getMetadata(String videoID) throws CaptionStorageException {
+        Key vidKey = videoKey(videoID);
+        try {
+            try {
+                String value = metadataValue(datastore.get(metadataKey(vidKey)));
+                if (value != null) {
+                    return value;
+                }
+            } catch (EntityNotFoundException e) {
+                // not written since metadata became a property, fall back to the legacy entity
+            }
+            Entity legacy = getLegacyMetadata(null, vidKey);
+            return legacy != null ? legacy.getKey().getName() : null;
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.GET_META_ERR, e.getMessage(), e.getCause());
+        }
+    }
+
+    /*
+     * helper function to find metadata stored as the key name of a metadata child of a video
+     * the key cannot be constructed, so an ancestor query limited to one result is used
+     * @param txn           transaction to read in, or null to read outside of a transaction
+     * @param vidKey        key of the video
+     * @return              the legacy metadata entity, null if the video has none
+     */
+    private Entity getLegacyMetadata(Transaction txn, Key vidKey) {
+        Query query = new Query(COLUMN_METADATA, vidKey);
+        List<Entity> results = datastore.prepare(txn, query).asList(FetchOptions.Builder.withLimit(1));
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    /*
+     * helper function to build the metadata entity of a video
+     * @param vidKey        key of the video
+     * @param metadata      String containing any metadata to be stored about the video
+     * @return              entity with the fixed metadata key holding metadata as an unindexed property
+     */
+    private static Entity buildMetadataEntity(Key vidKey, String metadata) {
+        Entity metaEnt = new Entity(metadataKey(vidKey));
+        metaEnt.setUnindexedProperty(COLUMN_META_VALUE, new Text(metadata));
+        return metaEnt;
+    }
+
+    /*
+     * helper function to read the metadata property of a metadata entity
+     * @param metaEnt       metadata entity, or null
+     * @return              the metadata, null if metaEnt is null or is a legacy entity without the property
+     */
+    private static String metadataValue(Entity metaEnt) {
+        if (metaEnt == null || !metaEnt.hasProperty(COLUMN_META_VALUE)) {
+            return null;
+        }
+        return ((Text) metaEnt.getProperty(COLUMN_META_VALUE)).getValue();
+    }
+
+    /*
+     * helper function to construct the fixed key of the metadata entity of a video
+     * @param vidKey        key of the video
+     * @return              Key of the metadata entity, whether or not it is stored in the db
+     */
+    private static Key metadataKey(Key vidKey) {
+        return KeyFactory.createKey(vidKey, COLUMN_METADATA, METADATA_KEY_NAME);
     }
 }
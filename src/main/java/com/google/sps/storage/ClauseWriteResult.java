@@ -0,0 +1,68 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** The outcome of storing multiple keyphrases of a video in one call */
+public final class ClauseWriteResult {
+
+    private int writtenCount = 0;
+    private final Set<String> failedKeywords = new HashSet<>();
+
+    /**
+     * Records keyphrases that were stored successfully
+     * @param count The number of keyphrases that were stored
+     */
+    void addWritten(int count) {
+        this.writtenCount += count;
+    }
+
+    /**
+     * Records keyphrases that could not be stored
+     * @param keywords The keyphrases that failed to be stored
+     */
+    void addFailed(Collection<String> keywords) {
+        this.failedKeywords.addAll(keywords);
+    }
+
+    /**
+     * Gets the number of keyphrases that were stored
+     * @return The number of stored keyphrases
+     */
+    public int getWrittenCount() {
+        return this.writtenCount;
+    }
+
+    /**
+     * Gets the keyphrases that could not be stored
+     * @return The failed keyphrases as an unmodifiable set
+     */
+    public Set<String> getFailedKeywords() {
+        return Collections.unmodifiableSet(this.failedKeywords);
+    }
+
+    /**
+     * Checks whether every keyphrase was stored
+     * @return Whether no keyphrase failed to be stored
+     */
+    public boolean isSuccessful() {
+        return this.failedKeywords.isEmpty();
+    }
+
+}
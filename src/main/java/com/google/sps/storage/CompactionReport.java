@@ -0,0 +1,124 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.gson.annotations.SerializedName;
+
+/** The outcome of one run of the orphan compaction job */
+public final class CompactionReport {
+
+    @SerializedName("pages")
+    private final int pages;
+    @SerializedName("scanned")
+    private final long scanned;
+    @SerializedName("deleted")
+    private final long deleted;
+    @SerializedName("totalScanned")
+    private final long totalScanned;
+    @SerializedName("totalDeleted")
+    private final long totalDeleted;
+    @SerializedName("elapsedMillis")
+    private final long elapsedMillis;
+    @SerializedName("entitiesPerSecond")
+    private final double entitiesPerSecond;
+    @SerializedName("complete")
+    private final boolean complete;
+
+    /**
+     * Constructor for a CompactionReport
+     * @param pages The number of key pages walked in this run
+     * @param scanned The number of keys scanned in this run
+     * @param deleted The number of orphaned entities deleted in this run
+     * @param totalScanned The number of keys scanned since the job was started, across runs
+     * @param totalDeleted The number of orphaned entities deleted since the job was started, across runs
+     * @param elapsedMillis The wall time of this run
+     * @param complete True if every kind has been walked to the end
+     */
+    CompactionReport(int pages, long scanned, long deleted, long totalScanned, long totalDeleted, long elapsedMillis, boolean complete) {
+        this.pages = pages;
+        this.scanned = scanned;
+        this.deleted = deleted;
+        this.totalScanned = totalScanned;
+        this.totalDeleted = totalDeleted;
+        this.elapsedMillis = elapsedMillis;
+        this.entitiesPerSecond = elapsedMillis == 0 ? scanned : scanned * 1000.0 / elapsedMillis;
+        this.complete = complete;
+    }
+
+    /**
+     * Gets the number of key pages walked in this run
+     * @return The number of pages
+     */
+    public int getPages() {
+        return this.pages;
+    }
+
+    /**
+     * Gets the number of keys scanned in this run
+     * @return The number of scanned keys
+     */
+    public long getScanned() {
+        return this.scanned;
+    }
+
+    /**
+     * Gets the number of orphaned entities deleted in this run
+     * @return The number of deleted entities
+     */
+    public long getDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * Gets the number of keys scanned since the job was started, across resumed runs
+     * @return The total number of scanned keys
+     */
+    public long getTotalScanned() {
+        return this.totalScanned;
+    }
+
+    /**
+     * Gets the number of orphaned entities deleted since the job was started, across resumed runs
+     * @return The total number of deleted entities
+     */
+    public long getTotalDeleted() {
+        return this.totalDeleted;
+    }
+
+    /**
+     * Gets the wall time of this run
+     * @return The elapsed time in milliseconds
+     */
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+
+    /**
+     * Gets the scan throughput of this run
+     * @return The number of keys scanned per second
+     */
+    public double getEntitiesPerSecond() {
+        return this.entitiesPerSecond;
+    }
+
+    /**
+     * Tells whether the job has walked every kind, so the next run starts over
+     * @return True if the job is complete
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+}
@@ -0,0 +1,123 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Text;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps extracted entities in Datastore, one entity per cache key.
+ * The entities are stored as an unindexed JSON array, so an empty result is told apart from a missing one.
+ * Each entry also records when it expires and the version of the extraction that wrote it; an expired entry,
+ * or one written by another version, is treated as missing and replaced by the next extraction.
+ * The expiry is indexed so OrphanCompactor can delete expired entries; an entry of another version expires
+ * within the time-to-live like any other, so the kind stays bounded by what was extracted within one time-to-live.
+ */
+public final class DatastoreEntityCacheStore implements EntityCacheStore {
+
+    private static final String ENTITY_CACHE_KIND = "entity_cache";
+    private static final String ENTITIES_PROPERTY = "entities";
+    private static final String EXPIRES_PROPERTY = "expiresAt";
+    private static final String VERSION_PROPERTY = "version";
+    // Bump when the way entities are extracted changes, so entries extracted the old way are no longer served
+    private static final long EXTRACTION_VERSION = 1;
+    private static final long DEFAULT_TTL_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    private static final Type ENTITIES_TYPE = new TypeToken<List<String>>() {}.getType();
+
+    private final DatastoreService datastore;
+    private final long ttlMillis;
+    private final Gson gson = new Gson();
+
+    /**
+     * Constructor for a DatastoreEntityCacheStore using the Datastore of this application and the default time-to-live
+     */
+    public DatastoreEntityCacheStore() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor for a DatastoreEntityCacheStore using the Datastore of this application
+     * @param ttlMillis The time in milliseconds after which a stored entry is extracted again
+     */
+    public DatastoreEntityCacheStore(long ttlMillis) {
+        this(DatastoreServiceFactory.getDatastoreService(), ttlMillis);
+    }
+
+    /**
+     * Constructor for a DatastoreEntityCacheStore
+     * @param datastore The Datastore the entities are kept in
+     * @param ttlMillis The time in milliseconds after which a stored entry is extracted again
+     */
+    public DatastoreEntityCacheStore(DatastoreService datastore, long ttlMillis) {
+        this.datastore = datastore;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public List<String> get(String key) {
+        try {
+            Entity cached = datastore.get(toKey(key));
+            Text entities = (Text) cached.getProperty(ENTITIES_PROPERTY);
+            Long version = (Long) cached.getProperty(VERSION_PROPERTY);
+            Long expiresAt = (Long) cached.getProperty(EXPIRES_PROPERTY);
+            if (entities == null || version == null || version != EXTRACTION_VERSION
+                    || expiresAt == null || expiresAt <= System.currentTimeMillis()) {
+                return null;
+            }
+            List<String> decoded = gson.fromJson(entities.getValue(), ENTITIES_TYPE);
+            return Collections.unmodifiableList(decoded);
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, List<String> entities) {
+        Entity cached = new Entity(toKey(key));
+        cached.setUnindexedProperty(ENTITIES_PROPERTY, new Text(gson.toJson(entities, ENTITIES_TYPE)));
+        cached.setUnindexedProperty(VERSION_PROPERTY, EXTRACTION_VERSION);
+        cached.setProperty(EXPIRES_PROPERTY, System.currentTimeMillis() + ttlMillis);
+        datastore.put(cached);
+    }
+
+    /**
+     * Builds the keys-only query for the entries that have expired, which get treats as missing
+     * @param now The current time in milliseconds
+     * @return The query
+     */
+    static Query expiredQuery(long now) {
+        return new Query(ENTITY_CACHE_KIND)
+            .setFilter(new FilterPredicate(EXPIRES_PROPERTY, FilterOperator.LESS_THAN_OR_EQUAL, now))
+            .setKeysOnly();
+    }
+
+    private static Key toKey(String key) {
+        return KeyFactory.createKey(ENTITY_CACHE_KIND, key);
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bridges App Engine's asynchronous Datastore futures to CompletableFuture.
+ * Work scheduled during a request runs on a thread created with ThreadManager.currentRequestThreadFactory(),
+ * which carries the request's API environment and which the runtime does not let outlive the request.
+ * Outside a request there is no such factory, and the work runs on the calling thread instead.
+ */
+final class DatastoreFutures {
+
+    /** Work that may throw a CaptionStorageException */
+    @FunctionalInterface
+    interface StorageCall<T> {
+        T call() throws CaptionStorageException;
+    }
+
+    private DatastoreFutures() {}
+
+    /**
+     * Runs storage work on the calling thread and wraps its outcome in a completed future
+     * @param call The work to run
+     * @return A future completed with the result, or exceptionally with the thrown CaptionStorageException
+     */
+    static <T> CompletableFuture<T> completed(StorageCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(call.call());
+        } catch (CaptionStorageException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs storage work on a thread of the current request, or on the calling thread outside a request
+     * @param call The work to run
+     * @return A future completed with the result, or exceptionally with the thrown CaptionStorageException
+     */
+    static <T> CompletableFuture<T> supply(StorageCall<T> call) {
+        ThreadFactory requestThreads = requestThreadFactory();
+        if (requestThreads == null) {
+            return completed(call);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        requestThreads.newThread(() -> {
+            try {
+                future.complete(call.call());
+            } catch (CaptionStorageException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }).start();
+        return future;
+    }
+
+    /**
+     * Gets the factory for threads bound to the current request
+     * @return The factory, or null if the calling thread is not serving a request
+     */
+    private static ThreadFactory requestThreadFactory() {
+        if (ApiProxy.getCurrentEnvironment() == null) {
+            return null;
+        }
+        return ThreadManager.currentRequestThreadFactory();
+    }
+
+    /**
+     * Waits for an App Engine future and unwraps its failure
+     * @param future The future returned by an AsyncDatastoreService call
+     * @return The result of the future
+     */
+    static <T> T await(Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Gets the CaptionStorageException a failed future completed with
+     * @param failure The throwable passed to a completion stage
+     * @param reason The reason to use if the failure is not already a CaptionStorageException
+     * @return The storage exception describing the failure
+     */
+    static CaptionStorageException unwrap(Throwable failure, Reason reason) {
+        Throwable cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof CaptionStorageException) {
+            return (CaptionStorageException) cause;
+        }
+        return new CaptionStorageException(reason, cause.getMessage(), cause);
+    }
+
+}
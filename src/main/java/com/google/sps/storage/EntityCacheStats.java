@@ -0,0 +1,123 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import com.google.gson.annotations.SerializedName;
+
+/** A snapshot of the lookup counters of an EntityExtractionCache */
+public final class EntityCacheStats {
+
+    @SerializedName("lookups")
+    private final long lookups;
+    @SerializedName("memoryHits")
+    private final long memoryHits;
+    @SerializedName("persistentHits")
+    private final long persistentHits;
+    @SerializedName("misses")
+    private final long misses;
+    @SerializedName("persistentErrors")
+    private final long persistentErrors;
+    @SerializedName("hitRate")
+    private final double hitRate;
+    @SerializedName("memoryEntries")
+    private final int memoryEntries;
+    @SerializedName("memoryEvictions")
+    private final long memoryEvictions;
+
+    /**
+     * Constructor for an EntityCacheStats
+     * @param memoryHits The number of lookups served by the in-memory tier
+     * @param persistentHits The number of lookups served by the persistent tier
+     * @param misses The number of lookups that had to call the NLP API
+     * @param persistentErrors The number of failed reads and writes of the persistent tier
+     * @param memoryEntries The number of entries in the in-memory tier
+     * @param memoryEvictions The number of entries evicted from the in-memory tier
+     */
+    EntityCacheStats(long memoryHits, long persistentHits, long misses, long persistentErrors, int memoryEntries, long memoryEvictions) {
+        this.lookups = memoryHits + persistentHits + misses;
+        this.memoryHits = memoryHits;
+        this.persistentHits = persistentHits;
+        this.misses = misses;
+        this.persistentErrors = persistentErrors;
+        this.hitRate = lookups == 0 ? 0 : (double) (memoryHits + persistentHits) / lookups;
+        this.memoryEntries = memoryEntries;
+        this.memoryEvictions = memoryEvictions;
+    }
+
+    /**
+     * Gets the number of lookups
+     * @return The lookup count
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Gets the number of lookups served by the in-memory tier
+     * @return The in-memory hit count
+     */
+    public long getMemoryHits() {
+        return memoryHits;
+    }
+
+    /**
+     * Gets the number of lookups served by the persistent tier
+     * @return The persistent hit count
+     */
+    public long getPersistentHits() {
+        return persistentHits;
+    }
+
+    /**
+     * Gets the number of lookups that had to call the NLP API
+     * @return The miss count
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of failed reads and writes of the persistent tier
+     * @return The persistent error count
+     */
+    public long getPersistentErrors() {
+        return persistentErrors;
+    }
+
+    /**
+     * Gets the fraction of lookups served by either tier
+     * @return The hit rate, 0 before the first lookup
+     */
+    public double getHitRate() {
+        return hitRate;
+    }
+
+    /**
+     * Gets the number of entries in the in-memory tier
+     * @return The entry count
+     */
+    public int getMemoryEntries() {
+        return memoryEntries;
+    }
+
+    /**
+     * Gets the number of entries evicted from the in-memory tier
+     * @return The eviction count
+     */
+    public long getMemoryEvictions() {
+        return memoryEvictions;
+    }
+}
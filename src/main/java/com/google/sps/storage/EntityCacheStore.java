@@ -0,0 +1,36 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import java.util.List;
+
+/** The persistent tier of an EntityExtractionCache, shared by all instances and kept across restarts */
+public interface EntityCacheStore {
+
+    /*
+     * retrieve the entities stored under a cache key
+     * @param key           cache key computed by EntityExtractionCache.key
+     * @return              the stored entities, or null if none are stored under key
+     */
+    public List<String> get(String key);
+
+    /*
+     * store the entities extracted from a chunk under its cache key, replacing any stored before
+     * @param key           cache key computed by EntityExtractionCache.key
+     * @param entities      entities extracted from the chunk
+     */
+    public void put(String key, List<String> entities);
+}
@@ -0,0 +1,144 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the entities extracted from chunks of caption text, so a chunk seen before is resolved without an NLP call.
+ * Lookups go through an in-memory LRU tier, then an optional persistent tier shared by all instances.
+ * A chunk is keyed by the SHA-256 of the configuration it was analyzed with and its normalized text,
+ * encoded as unpadded base64url; failed extractions are never cached.
+ */
+public final class EntityExtractionCache {
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final String WORD_DELIMITER = " ";
+    private static final byte CONFIG_DELIMITER = 0;
+
+    private final WeightedLruCache<String, List<String>> memory;
+    private final EntityCacheStore store;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong persistentHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong persistentErrors = new AtomicLong();
+
+    /**
+     * Constructor for an EntityExtractionCache
+     * @param maxEntries The maximum number of chunks kept in memory
+     * @param ttlMillis The time in milliseconds after which a chunk is dropped from memory
+     * @param store The persistent tier, or null to cache in memory only
+     */
+    public EntityExtractionCache(int maxEntries, long ttlMillis, EntityCacheStore store) {
+        this.memory = new WeightedLruCache<String, List<String>>(maxEntries, ttlMillis, entities -> 1);
+        this.store = store;
+    }
+
+    /**
+     * Gets the entities of a chunk from the cache, extracting and caching them on a miss
+     * @param config The configuration the entities depend on, e.g. the salience thresholds of the processor
+     * @param text The text of the chunk
+     * @param extract Extracts the entities of the chunk; a null result is returned but not cached
+     * @return The cached or extracted entities
+     */
+    public List<String> get(String config, String text, Supplier<List<String>> extract) {
+        String key = key(config, text);
+        List<String> entities = memory.get(key);
+        if (entities != null) {
+            memoryHits.incrementAndGet();
+            return entities;
+        }
+
+        if (store != null) {
+            try {
+                entities = store.get(key);
+            } catch (RuntimeException e) {
+                // a failing persistent tier only costs the NLP call it would have saved
+                persistentErrors.incrementAndGet();
+            }
+            if (entities != null) {
+                persistentHits.incrementAndGet();
+                memory.put(key, entities);
+                return entities;
+            }
+        }
+
+        misses.incrementAndGet();
+        entities = extract.get();
+        if (entities != null) {
+            memory.put(key, entities);
+            if (store != null) {
+                try {
+                    store.put(key, entities);
+                } catch (RuntimeException e) {
+                    persistentErrors.incrementAndGet();
+                }
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Takes a snapshot of the lookup counters of the cache
+     * @return The counters and hit rate of the cache
+     */
+    public EntityCacheStats getStats() {
+        return new EntityCacheStats(memoryHits.get(), persistentHits.get(), misses.get(), persistentErrors.get(),
+            memory.size(), memory.getEvictionCount());
+    }
+
+    /**
+     * Normalizes the text of a chunk as its cache key does
+     * The text is NFC normalized, its whitespace runs collapsed to one space and its ends trimmed
+     * @param text The text of the chunk
+     * @return The normalized text
+     */
+    public static String normalize(String text) {
+        return WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFC)).replaceAll(WORD_DELIMITER).trim();
+    }
+
+    /**
+     * Computes the cache key of a chunk from its normalized text (see normalize),
+     * so chunks differing only in spacing share a key
+     * @param config The configuration the entities depend on
+     * @param text The text of the chunk
+     * @return The key of the chunk
+     */
+    public static String key(String config, String text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);   // every Java platform provides SHA-256
+        }
+
+        String normalized = normalize(text);
+        digest.update(config.getBytes(StandardCharsets.UTF_8));
+        digest.update(CONFIG_DELIMITER);
+        digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+}
@@ -0,0 +1,723 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.sps.data.TimeRangedText;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CaptionStorageInterface kept in a single append-only log file on local disk, for running without Datastore.
+ * Every write appends a checksummed record to a RecordLog. An in-memory index maps each video to its metadata
+ * and to the file positions of its current captions and keyphrases, so each read is a single positional read.
+ * Records that have been superseded or deleted are reclaimed by rewriting the live records into a new
+ * file once they make up most of the log. A record torn by a crash is dropped when the log is reopened.
+ */
+public class FileCaptionStorage implements CaptionStorageInterface, Closeable {
+
+    // Record types, each followed by the video ID
+    private static final byte RECORD_VIDEO = 1;             // metadata (optional), caption count, encoded captions
+    private static final byte RECORD_METADATA = 2;          // metadata
+    private static final byte RECORD_CLAUSE = 3;            // keyphrase, packed timestamps
+    private static final byte RECORD_DELETE_CLAUSE = 4;     // keyphrase
+    private static final byte RECORD_DELETE_VIDEO = 5;
+    private static final byte RECORD_DELETE_METADATA = 6;
+    private static final byte RECORD_CONTENT_HASH = 7;      // content hash
+    private static final String NO_VID_ERR = "Requested video does not exist";
+    private static final String NO_META_ERR = "Requested metadata does not exist";
+    private static final String NO_PHRASE_ERR = "Requested keyphrase does not exist in ";
+    private static final String CORRUPT_RECORD_ERR = "Corrupt caption log record at ";
+
+    private final RecordLog log;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<String, VideoIndex> index = new HashMap<>();
+    private long liveBytes;
+
+    /**
+     * Opens the log at path, creating it if needed, and rebuilds the index from its records
+     * Writes reach the operating system before a call returns, but are not forced to the disk
+     * @param path The file holding the log
+     * @throws IOException If the log cannot be opened or read
+     */
+    public FileCaptionStorage(Path path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * Opens the log at path, creating it if needed, and rebuilds the index from its records
+     * @param path The file holding the log
+     * @param syncWrites If true, every write is forced to the disk before the call returns
+     * @throws IOException If the log cannot be opened or read
+     */
+    public FileCaptionStorage(Path path, boolean syncWrites) throws IOException {
+        this.log = new RecordLog(path, syncWrites);
+        log.replay((position, framed) -> apply(index, position, framed));
+    }
+
+    //================================================================================
+    // Public Interface Functions (see CaptionStorageInterface.java for descriptions)
+    //================================================================================
+
+    // add a video, its metadata, and its full captions, replacing the captions and metadata of a stored video
+    public void addVideo(String videoID, String metadata, List<TimeRangedText> fullCaptions) throws CaptionStorageException {
+        List<TimeRangedText> sorted = new ArrayList<>(fullCaptions);
+        sorted.sort(Comparator.comparingLong(TimeRangedText::getStartTime));
+
+        Record record = new Record(RECORD_VIDEO, videoID);
+        record.writeOptionalString(metadata);
+        record.writeCount(sorted.size());
+        record.writeBytes(CaptionBlobCodec.encode(sorted));
+        write(record, Reason.ADD_VIDEO_ERR);
+    }
+
+    // add a keyphrase + timestamp pair to a particular video
+    public void addClause(String videoID, String keyword, List<Long> timestamps) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            requireVideo(videoID);
+            write(clauseRecord(videoID, keyword, timestamps), Reason.ADD_KEYPHRASE_ERR);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // add multiple keyphrase + timestamp pairs to a particular video
+    public ClauseWriteResult addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            requireVideo(videoID);
+            ClauseWriteResult result = new ClauseWriteResult();
+            for (Map.Entry<String, List<Long>> clause : clauses.entrySet()) {
+                try {
+                    write(clauseRecord(videoID, clause.getKey(), clause.getValue()), Reason.ADD_KEYPHRASE_ERR);
+                    result.addWritten(1);
+                } catch (CaptionStorageException e) {
+                    result.addFailed(Collections.singletonList(clause.getKey()));
+                }
+            }
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // replace or append to the metadata of a particular video
+    // the read and the write happen under the write lock, so concurrent appends are not lost
+    public void addMetadata(String videoID, String metadata, boolean overwrite) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            if (video == null) {
+                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+            }
+            if (video.metadata == null) {
+                throw new CaptionStorageException(Reason.NO_META_EXISTS, NO_META_ERR);
+            }
+
+            Record record = new Record(RECORD_METADATA, videoID);
+            record.writeString(overwrite ? metadata : video.metadata + metadata);
+            write(record, overwrite ? Reason.OVERWRITE_META_ERR : Reason.APPEND_META_ERR);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // retrieve all keywords + their timestamps of a video
+    public Map<String, List<Long>> getAllKeywords(String videoID) throws CaptionStorageException {
+        lock.readLock().lock();
+        try {
+            VideoIndex video = requireVideo(videoID);
+            Map<String, List<Long>> clauseMap = new HashMap<>(video.keywords.size() * 2);
+            for (Map.Entry<String, Location> keyword : video.keywords.entrySet()) {
+                clauseMap.put(keyword.getKey(), readTimestamps(keyword.getValue(), Reason.GET_KEYPHRASE_ERR));
+            }
+            return clauseMap;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // retrieve specific timestamps for a keyword of a video
+    public List<Long> getTimesForKeyword(String videoID, String keyword) throws CaptionStorageException {
+        lock.readLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            Location location = video == null ? null : video.keywords.get(keyword);
+            if (location == null) {
+                throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
+            }
+            return readTimestamps(location, Reason.GET_KEYPHRASE_ERR);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // retrieve full captions of a video in start time order, empty if the video is not stored
+    public List<TimeRangedText> getFullCaptions(String videoID) {
+        try {
+            return readCaptions(videoID);
+        } catch (CaptionStorageException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    // retrieve one page of the caption lines of a video that start within [from, to)
+    public ResultPage<List<TimeRangedText>> getCaptionsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        return RangePages.sliceCaptions(readCaptions(videoID), from, to, cursor, limit);
+    }
+
+    // retrieve one page of the keywords of a video that occur within [from, to), in keyphrase order
+    public ResultPage<Map<String, List<Long>>> getKeywordsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        String after = RangePages.parseKeywordCursor(cursor);
+        TreeMap<String, List<Long>> matching = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            if (video != null) {
+                for (Map.Entry<String, Location> keyword : video.keywords.entrySet()) {
+                    if (after != null && keyword.getKey().compareTo(after) <= 0) {
+                        continue;
+                    }
+                    List<Long> inRange = RangePages.timestampsInRange(readTimestamps(keyword.getValue(), Reason.GET_KEYPHRASE_ERR), from, to);
+                    if (!inRange.isEmpty()) {
+                        matching.put(keyword.getKey(), inRange);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, List<Long>> page = new LinkedHashMap<>();
+        String lastKeyword = null;
+        for (Map.Entry<String, List<Long>> keyword : matching.entrySet()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.put(keyword.getKey(), keyword.getValue());
+            lastKeyword = keyword.getKey();
+        }
+        String next = matching.size() > limit ? RangePages.keywordCursor(lastKeyword) : null;
+        return new ResultPage<>(page, next);
+    }
+
+    // return true if the video is stored
+    public boolean videoInDb(String videoID) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(videoID);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // return true if meta is the metadata of the video
+    public boolean metaInDb(String videoID, String meta) {
+        lock.readLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            return video != null && meta.equals(video.metadata);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // return the content hash of a video, cleared whenever the video is stored again
+    public String getContentHash(String videoID) {
+        lock.readLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            return video == null ? null : video.contentHash;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // store the content hash of a stored video
+    public void setContentHash(String videoID, String contentHash) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            requireVideo(videoID);
+            Record record = new Record(RECORD_CONTENT_HASH, videoID);
+            record.writeString(contentHash);
+            write(record, Reason.ADD_VIDEO_ERR);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // delete a video with its metadata, captions and keyphrases
+    // the count matches CaptionStorageManager: the video, its metadata, one per caption line and one per keyphrase
+    public int deleteVideo(String videoID) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            VideoIndex video = requireVideo(videoID);
+            int removed = 1 + (video.metadata != null ? 1 : 0) + video.captionCount + video.keywords.size();
+            write(new Record(RECORD_DELETE_VIDEO, videoID), Reason.DELETE_VIDEO_ERR);
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // delete a keyphrase of a video; deleting a missing keyphrase does nothing
+    public void deleteClause(String videoID, String keyword) throws CaptionStorageException {
+        deleteClauses(videoID, Collections.singletonList(keyword));
+    }
+
+    // delete multiple keyphrases of a video
+    public void deleteClauses(String videoID, Collection<String> keywords) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            for (String keyword : keywords) {
+                if (video != null && video.keywords.containsKey(keyword)) {
+                    Record record = new Record(RECORD_DELETE_CLAUSE, videoID);
+                    record.writeString(keyword);
+                    write(record, Reason.DELETE_KEYPHRASE_ERR);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // delete the metadata equal to the given value, from whichever video holds it
+    public void deleteMetadata(String metadata) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, VideoIndex> video : index.entrySet()) {
+                if (metadata.equals(video.getValue().metadata)) {
+                    write(new Record(RECORD_DELETE_METADATA, video.getKey()), Reason.DELETE_META_ERR);
+                    return;
+                }
+            }
+            throw new CaptionStorageException(Reason.NO_META_EXISTS, NO_META_ERR);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //================================================================================
+    // Maintenance Functions (not part of CaptionStorageInterface)
+    //================================================================================
+
+    /**
+     * Rewrites the live records into a new log, dropping superseded and deleted ones
+     * The new log replaces the old one with an atomic rename, so a crash leaves one of the two intact
+     * @throws IOException If the new log cannot be written or renamed; the old log stays in use
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Map<String, VideoIndex> compactedIndex = new HashMap<>(index.size() * 2);
+            RecordLog.RecordHandler applyCompacted = (position, framed) -> apply(compactedIndex, position, framed);
+            log.compact(out -> {
+                for (Map.Entry<String, VideoIndex> entry : index.entrySet()) {
+                    VideoIndex video = entry.getValue();
+                    Record record = new Record(RECORD_VIDEO, entry.getKey());
+                    record.writeOptionalString(video.metadata);
+                    record.writeCount(video.captionCount);
+                    record.writeBytes(read(video.captions));
+                    out.append(record.toByteArray(), applyCompacted);
+
+                    for (Map.Entry<String, Location> keyword : video.keywords.entrySet()) {
+                        Record clause = new Record(RECORD_CLAUSE, entry.getKey());
+                        clause.writeString(keyword.getKey());
+                        clause.writeBytes(read(keyword.getValue()));
+                        out.append(clause.toByteArray(), applyCompacted);
+                    }
+
+                    if (video.contentHash != null) {
+                        Record hash = new Record(RECORD_CONTENT_HASH, entry.getKey());
+                        hash.writeString(video.contentHash);
+                        out.append(hash.toByteArray(), applyCompacted);
+                    }
+                }
+            });
+            index = compactedIndex;
+            liveBytes = log.getFileSize();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the size of the log file
+     * @return The size of the log in bytes
+     */
+    public long getFileSize() {
+        lock.readLock().lock();
+        try {
+            return log.getFileSize();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the bytes of the records still in use
+     * @return The size of the live records in bytes
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the log file; the storage cannot be used afterwards
+     * @throws IOException If the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //================================================================================
+    // Private Helper Functions
+    //================================================================================
+
+    /**
+     * Appends a record to the log and applies it to the index, compacting the log if it is mostly dead records
+     * @param record The record to append
+     * @param reason The reason reported if the record cannot be written
+     * @throws CaptionStorageException With reason if the log cannot be written
+     */
+    private void write(Record record, Reason reason) throws CaptionStorageException {
+        lock.writeLock().lock();
+        try {
+            log.append(record.toByteArray(), (position, framed) -> apply(index, position, framed));
+            if (log.needsCompaction(liveBytes)) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // the log is intact; compaction is attempted again after the next write
+                }
+            }
+        } catch (IOException e) {
+            throw new CaptionStorageException(reason, e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a framed record to an index
+     * @param target The index to update
+     * @param position The position of the record in its log file
+     * @param framed The framed record, positioned at its start
+     * @return The size of the framed record
+     */
+    private long apply(Map<String, VideoIndex> target, long position, ByteBuffer framed) {
+        int recordBytes = framed.remaining();
+        framed.position(RecordLog.HEADER_BYTES);
+        try {
+            byte type = framed.get();
+            String videoID = readString(framed);
+            VideoIndex video = target.get(videoID);
+
+            switch (type) {
+                case RECORD_VIDEO:
+                    if (video != null) {
+                        subtractLive(target, video.recordBytes + video.metadataBytes + video.hashBytes);
+                    } else {
+                        video = new VideoIndex();
+                        target.put(videoID, video);
+                    }
+                    video.metadata = framed.get() == 0 ? null : readString(framed);
+                    video.captionCount = (int) VarInts.readUnsigned(framed);
+                    video.captions = readLocation(framed, position, recordBytes);
+                    video.recordBytes = recordBytes;
+                    video.metadataBytes = 0;
+                    video.contentHash = null;
+                    video.hashBytes = 0;
+                    addLive(target, recordBytes);
+                    break;
+                case RECORD_METADATA:
+                    if (video != null) {
+                        subtractLive(target, video.metadataBytes);
+                        video.metadata = readString(framed);
+                        video.metadataBytes = recordBytes;
+                        addLive(target, recordBytes);
+                    }
+                    break;
+                case RECORD_CLAUSE:
+                    if (video != null) {
+                        String keyword = readString(framed);
+                        Location previous = video.keywords.put(keyword, readLocation(framed, position, recordBytes));
+                        subtractLive(target, previous == null ? 0 : previous.recordBytes);
+                        addLive(target, recordBytes);
+                    }
+                    break;
+                case RECORD_DELETE_CLAUSE:
+                    if (video != null) {
+                        Location previous = video.keywords.remove(readString(framed));
+                        subtractLive(target, previous == null ? 0 : previous.recordBytes);
+                    }
+                    break;
+                case RECORD_DELETE_VIDEO:
+                    if (video != null) {
+                        long removed = video.recordBytes + video.metadataBytes + video.hashBytes;
+                        for (Location keyword : video.keywords.values()) {
+                            removed += keyword.recordBytes;
+                        }
+                        target.remove(videoID);
+                        subtractLive(target, removed);
+                    }
+                    break;
+                case RECORD_DELETE_METADATA:
+                    if (video != null) {
+                        subtractLive(target, video.metadataBytes);
+                        video.metadata = null;
+                        video.metadataBytes = 0;
+                    }
+                    break;
+                case RECORD_CONTENT_HASH:
+                    if (video != null) {
+                        subtractLive(target, video.hashBytes);
+                        video.contentHash = readString(framed);
+                        video.hashBytes = recordBytes;
+                        addLive(target, recordBytes);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(CORRUPT_RECORD_ERR + position);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(CORRUPT_RECORD_ERR + position, e);
+        }
+        return recordBytes;
+    }
+
+    /**
+     * Adds to the live byte count when the main index is the one being updated
+     * @param target The index being updated
+     * @param bytes The bytes that became live
+     */
+    private void addLive(Map<String, VideoIndex> target, long bytes) {
+        if (target == index) {
+            liveBytes += bytes;
+        }
+    }
+
+    /**
+     * Subtracts from the live byte count when the main index is the one being updated
+     * @param target The index being updated
+     * @param bytes The bytes that became dead
+     */
+    private void subtractLive(Map<String, VideoIndex> target, long bytes) {
+        if (target == index) {
+            liveBytes -= bytes;
+        }
+    }
+
+    /**
+     * Reads the decoded captions of a video
+     * @param videoID The ID of the video
+     * @return The captions in start time order, empty if the video is not stored
+     * @throws CaptionStorageException GET_FULL_CAPTIONS_ERR if the log cannot be read
+     */
+    private List<TimeRangedText> readCaptions(String videoID) throws CaptionStorageException {
+        lock.readLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            if (video == null) {
+                return new ArrayList<>();
+            }
+            return CaptionBlobCodec.decode(read(video.captions));
+        } catch (IOException e) {
+            throw new CaptionStorageException(Reason.GET_FULL_CAPTIONS_ERR, e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the timestamps of a keyphrase
+     * @param location The location of the packed timestamps
+     * @param reason The reason reported if the log cannot be read
+     * @return The timestamps as a TimestampList
+     * @throws CaptionStorageException With reason if the log cannot be read
+     */
+    private List<Long> readTimestamps(Location location, Reason reason) throws CaptionStorageException {
+        try {
+            return KeywordMapCodec.decodeTimestamps(read(location));
+        } catch (IOException e) {
+            throw new CaptionStorageException(reason, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a byte field of a record with one positional read
+     * @param location The location of the field
+     * @return The bytes of the field
+     * @throws IOException If the log cannot be read
+     */
+    private byte[] read(Location location) throws IOException {
+        return log.read(location.position, location.length);
+    }
+
+    /**
+     * Finds a stored video
+     * @param videoID The ID of the video
+     * @return The index entry of the video
+     * @throws CaptionStorageException NO_VIDEO_EXISTS if the video is not stored
+     */
+    private VideoIndex requireVideo(String videoID) throws CaptionStorageException {
+        lock.readLock().lock();
+        try {
+            VideoIndex video = index.get(videoID);
+            if (video == null) {
+                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+            }
+            return video;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the record of a keyphrase of a video
+     * @param videoID The ID of the video
+     * @param keyword The keyphrase
+     * @param timestamps The times the keyphrase occurs at
+     * @return The record
+     */
+    private static Record clauseRecord(String videoID, String keyword, List<Long> timestamps) {
+        Record record = new Record(RECORD_CLAUSE, videoID);
+        record.writeString(keyword);
+        record.writeBytes(KeywordMapCodec.encodeTimestamps(timestamps));
+        return record;
+    }
+
+    /**
+     * Reads a length-prefixed byte field and returns where it lies in the log
+     * @param in The record payload, positioned at the field
+     * @param position The position of the record in its log file
+     * @param recordBytes The size of the framed record
+     * @return The location of the field
+     */
+    private static Location readLocation(ByteBuffer in, long position, int recordBytes) {
+        int length = (int) VarInts.readUnsigned(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        Location location = new Location(position + in.position(), length, recordBytes);
+        in.position(in.position() + length);
+        return location;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string
+     * @param in The record payload, positioned at the string
+     * @return The string
+     */
+    private static String readString(ByteBuffer in) {
+        int length = (int) VarInts.readUnsigned(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /** The payload of a log record: its type, the video ID and type-specific fields */
+    private static final class Record {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Record(byte type, String videoID) {
+            out.write(type);
+            writeString(videoID);
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeOptionalString(String value) {
+            out.write(value == null ? 0 : 1);
+            if (value != null) {
+                writeString(value);
+            }
+        }
+
+        void writeCount(int count) {
+            VarInts.writeUnsigned(out, count);
+        }
+
+        void writeBytes(byte[] bytes) {
+            VarInts.writeUnsigned(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /** Where a byte field of a record lies in the log, and the size of the record holding it */
+    private static final class Location {
+
+        final long position;
+        final int length;
+        final int recordBytes;
+
+        Location(long position, int length, int recordBytes) {
+            this.position = position;
+            this.length = length;
+            this.recordBytes = recordBytes;
+        }
+    }
+
+    /** The index entry of a stored video */
+    private static final class VideoIndex {
+
+        String metadata;
+        int captionCount;
+        Location captions;
+        int recordBytes;
+        int metadataBytes;
+        String contentHash;
+        int hashBytes;
+        final Map<String, Location> keywords = new HashMap<>();
+    }
+
+}
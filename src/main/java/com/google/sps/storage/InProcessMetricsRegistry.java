@@ -0,0 +1,46 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** StorageMetricsRegistry that keeps the metrics of each storage in this process, read by /admin/metrics */
+public class InProcessMetricsRegistry implements StorageMetricsRegistry {
+
+    private final ConcurrentMap<String, StorageMetrics> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the metrics of a storage, creating them on first use
+     * @param storageName The name of the storage
+     * @return The metrics the storage records into
+     */
+    @Override
+    public StorageMetrics get(String storageName) {
+        return metrics.computeIfAbsent(storageName, name -> new StorageMetrics());
+    }
+
+    /**
+     * Gets the metrics of every storage created so far
+     * @return An unmodifiable snapshot of the metrics, sorted by storage name
+     */
+    @Override
+    public Map<String, StorageMetrics> getAll() {
+        return Collections.unmodifiableMap(new TreeMap<>(metrics));
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Generation counters per key, striped over a fixed array so memory stays bounded however many keys are seen.
+ * A caller reads or advances the generation of a key before a slow operation and compares it afterwards to
+ * learn whether the key changed meanwhile. Keys sharing a stripe share a counter, which can only report a
+ * change that did not happen, never miss one.
+ */
+final class KeyGenerations {
+
+    private final AtomicLongArray stripes;
+
+    /**
+     * Constructor for a KeyGenerations
+     * @param stripeCount The number of counters the keys are spread over
+     */
+    KeyGenerations(int stripeCount) {
+        this.stripes = new AtomicLongArray(stripeCount);
+    }
+
+    /**
+     * Gets the current generation of a key
+     * @param key The key
+     * @return The generation
+     */
+    long get(String key) {
+        return stripes.get(stripe(key));
+    }
+
+    /**
+     * Advances the generation of a key
+     * @param key The key
+     * @return The new generation
+     */
+    long next(String key) {
+        return stripes.incrementAndGet(stripe(key));
+    }
+
+    /**
+     * Gets the counter a key is spread to
+     * @param key The key
+     * @return The index of the stripe
+     */
+    private int stripe(String key) {
+        return Math.floorMod(key.hashCode(), stripes.length());
+    }
+}
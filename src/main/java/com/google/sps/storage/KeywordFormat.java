@@ -0,0 +1,23 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+/** The formats in which the timestamps of a video's keyphrases can be stored */
+public enum KeywordFormat {
+    // An indexed list property, which time window queries can filter on
+    INDEXED_LIST,
+    // An unindexed blob of delta-encoded varints, read back as a TimestampList
+    PACKED_BLOB
+}
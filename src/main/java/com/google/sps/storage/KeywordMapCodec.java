@@ -0,0 +1,146 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a keyword map as a compact byte array.
+ * The layout is the keyword count, then for each keyword its UTF-8 length and bytes,
+ * its timestamp count and the timestamps as zigzag varint deltas from the previous timestamp.
+ */
+public final class KeywordMapCodec {
+
+    private static final String MALFORMED_KEYWORDS = "Malformed keyword map";
+
+    private KeywordMapCodec() {}
+
+    /**
+     * Encodes a keyword map
+     * @param keywords The map of keywords to their timestamps
+     * @return The encoded bytes
+     */
+    public static byte[] encode(Map<String, List<Long>> keywords) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VarInts.writeUnsigned(out, keywords.size());
+        for (Map.Entry<String, List<Long>> entry : keywords.entrySet()) {
+            byte[] keyword = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            VarInts.writeUnsigned(out, keyword.length);
+            out.write(keyword, 0, keyword.length);
+            writeTimestamps(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a keyword map produced by encode
+     * @param bytes The encoded bytes
+     * @return The map of keywords to their timestamps
+     */
+    public static Map<String, List<Long>> decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        try {
+            int count = (int) VarInts.readUnsigned(in);
+            if (count < 0 || count > in.remaining() / 2) {
+                throw new IllegalArgumentException(MALFORMED_KEYWORDS);   // every keyword takes at least two bytes
+            }
+            Map<String, List<Long>> keywords = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                int length = (int) VarInts.readUnsigned(in);
+                if (length < 0 || length > in.remaining()) {
+                    throw new IllegalArgumentException(MALFORMED_KEYWORDS);
+                }
+                String keyword = new String(bytes, in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                keywords.put(keyword, readTimestamps(in));
+            }
+            return keywords;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(MALFORMED_KEYWORDS, e);
+        }
+    }
+
+    /**
+     * Encodes the timestamps of a single keyword
+     * @param timestamps The timestamps in stored order
+     * @return The encoded bytes
+     */
+    static byte[] encodeTimestamps(List<Long> timestamps) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(timestamps.size() * 2 + 1);
+        writeTimestamps(out, timestamps);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes timestamps produced by encodeTimestamps
+     * @param bytes The encoded bytes
+     * @return The timestamps in stored order
+     */
+    static TimestampList decodeTimestamps(byte[] bytes) {
+        try {
+            return readTimestamps(ByteBuffer.wrap(bytes));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(MALFORMED_KEYWORDS, e);
+        }
+    }
+
+    /**
+     * Writes a timestamp count followed by the timestamps as deltas
+     * @param out The stream to write to
+     * @param timestamps The timestamps in stored order
+     */
+    static void writeTimestamps(ByteArrayOutputStream out, List<Long> timestamps) {
+        VarInts.writeUnsigned(out, timestamps.size());
+        long previous = 0;
+        if (timestamps instanceof TimestampList) {
+            TimestampList packed = (TimestampList) timestamps;
+            for (int i = 0; i < packed.size(); i++) {
+                VarInts.writeSigned(out, packed.getLong(i) - previous);
+                previous = packed.getLong(i);
+            }
+            return;
+        }
+        for (long timestamp : timestamps) {
+            VarInts.writeSigned(out, timestamp - previous);
+            previous = timestamp;
+        }
+    }
+
+    /**
+     * Reads timestamps written by writeTimestamps
+     * @param in The buffer positioned at the timestamp count
+     * @return The timestamps in stored order
+     */
+    static TimestampList readTimestamps(ByteBuffer in) {
+        int count = (int) VarInts.readUnsigned(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException(MALFORMED_KEYWORDS);   // every timestamp takes at least one byte
+        }
+        long[] timestamps = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += VarInts.readSigned(in);
+            timestamps[i] = previous;
+        }
+        return TimestampList.wrap(timestamps);
+    }
+
+}
@@ -0,0 +1,197 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * AsyncDatastoreService that records the RPCs it issues and the entities it reads and writes in StorageMetrics.
+ * Counts are recorded when a call is issued, so reads count the keys looked up rather than the entities found;
+ * otherwise it counts as MeteredDatastoreService does.
+ */
+class MeteredAsyncDatastoreService implements AsyncDatastoreService {
+
+    private final AsyncDatastoreService delegate;
+    private final StorageMetrics metrics;
+
+    /**
+     * Constructor for a MeteredAsyncDatastoreService
+     * @param delegate The AsyncDatastoreService that issues the RPCs
+     * @param metrics The metrics to record into
+     */
+    MeteredAsyncDatastoreService(AsyncDatastoreService delegate, StorageMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Future<Entity> get(Key key) {
+        metrics.rpc();
+        metrics.read(1);
+        return delegate.get(key);
+    }
+
+    @Override
+    public Future<Entity> get(Transaction txn, Key key) {
+        metrics.rpc();
+        metrics.read(1);
+        return delegate.get(txn, key);
+    }
+
+    @Override
+    public Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+        metrics.rpc();
+        metrics.read(MeteredDatastoreService.count(keys));
+        return delegate.get(keys);
+    }
+
+    @Override
+    public Future<Map<Key, Entity>> get(Transaction txn, Iterable<Key> keys) {
+        metrics.rpc();
+        metrics.read(MeteredDatastoreService.count(keys));
+        return delegate.get(txn, keys);
+    }
+
+    @Override
+    public Future<Key> put(Entity entity) {
+        metrics.rpc();
+        metrics.written(1);
+        return delegate.put(entity);
+    }
+
+    @Override
+    public Future<Key> put(Transaction txn, Entity entity) {
+        metrics.rpc();
+        metrics.written(1);
+        return delegate.put(txn, entity);
+    }
+
+    @Override
+    public Future<List<Key>> put(Iterable<Entity> entities) {
+        metrics.rpc();
+        metrics.written(MeteredDatastoreService.count(entities));
+        return delegate.put(entities);
+    }
+
+    @Override
+    public Future<List<Key>> put(Transaction txn, Iterable<Entity> entities) {
+        metrics.rpc();
+        metrics.written(MeteredDatastoreService.count(entities));
+        return delegate.put(txn, entities);
+    }
+
+    @Override
+    public Future<Void> delete(Key... keys) {
+        metrics.rpc();
+        metrics.written(keys.length);
+        return delegate.delete(keys);
+    }
+
+    @Override
+    public Future<Void> delete(Transaction txn, Key... keys) {
+        metrics.rpc();
+        metrics.written(keys.length);
+        return delegate.delete(txn, keys);
+    }
+
+    @Override
+    public Future<Void> delete(Iterable<Key> keys) {
+        metrics.rpc();
+        metrics.written(MeteredDatastoreService.count(keys));
+        return delegate.delete(keys);
+    }
+
+    @Override
+    public Future<Void> delete(Transaction txn, Iterable<Key> keys) {
+        metrics.rpc();
+        metrics.written(MeteredDatastoreService.count(keys));
+        return delegate.delete(txn, keys);
+    }
+
+    @Override
+    public PreparedQuery prepare(Query query) {
+        return new MeteredPreparedQuery(delegate.prepare(query), metrics);
+    }
+
+    @Override
+    public PreparedQuery prepare(Transaction txn, Query query) {
+        return new MeteredPreparedQuery(delegate.prepare(txn, query), metrics);
+    }
+
+    @Override
+    public Future<Transaction> beginTransaction() {
+        metrics.rpc();
+        metrics.rpc();
+        return delegate.beginTransaction();
+    }
+
+    @Override
+    public Future<Transaction> beginTransaction(TransactionOptions options) {
+        metrics.rpc();
+        metrics.rpc();
+        return delegate.beginTransaction(options);
+    }
+
+    @Override
+    public Future<KeyRange> allocateIds(String kind, long num) {
+        metrics.rpc();
+        return delegate.allocateIds(kind, num);
+    }
+
+    @Override
+    public Future<KeyRange> allocateIds(Key parent, String kind, long num) {
+        metrics.rpc();
+        return delegate.allocateIds(parent, kind, num);
+    }
+
+    @Override
+    public Future<DatastoreAttributes> getDatastoreAttributes() {
+        return delegate.getDatastoreAttributes();
+    }
+
+    @Override
+    public Future<Map<Index, Index.IndexState>> getIndexes() {
+        metrics.rpc();
+        return delegate.getIndexes();
+    }
+
+    @Override
+    public Transaction getCurrentTransaction() {
+        return delegate.getCurrentTransaction();
+    }
+
+    @Override
+    public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+        return delegate.getCurrentTransaction(returnedIfNoTxn);
+    }
+
+    @Override
+    public Collection<Transaction> getActiveTransactions() {
+        return delegate.getActiveTransactions();
+    }
+}
@@ -0,0 +1,255 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import com.google.sps.data.TimeRangedText;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Decorator recording every call of a CaptionStorageInterface in StorageMetrics.
+ * Each operation records its call, latency and whether it failed; the Datastore RPCs and entities the
+ * delegate reads and writes while it runs are attributed to it by the delegate's MeteredDatastoreService.
+ * Asynchronous operations are recorded when their future completes.
+ */
+public class MeteredCaptionStorage implements CaptionStorageInterface {
+
+    private final CaptionStorageInterface delegate;
+    private final StorageMetrics metrics;
+
+    /**
+     * Constructor for a MeteredCaptionStorage recording into the metrics of a CaptionStorageManager
+     * @param manager The manager to record the operations of
+     */
+    public MeteredCaptionStorage(CaptionStorageManager manager) {
+        this(manager, manager.getMetrics());
+    }
+
+    /**
+     * Constructor for a MeteredCaptionStorage
+     * @param delegate The storage to record the operations of
+     * @param metrics The metrics to record into
+     */
+    public MeteredCaptionStorage(CaptionStorageInterface delegate, StorageMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    // add a video, its metadata, and its full captions to the database
+    public void addVideo(String videoID, String metadata, List<TimeRangedText> fullCaptions) throws CaptionStorageException {
+        record(StorageOperation.ADD_VIDEO, () -> {
+            delegate.addVideo(videoID, metadata, fullCaptions);
+            return null;
+        });
+    }
+
+    // add a keyphrase + timestamp pair to a particular video in the db
+    public void addClause(String videoID, String keyword, List<Long> timestamps) throws CaptionStorageException {
+        record(StorageOperation.ADD_CLAUSE, () -> {
+            delegate.addClause(videoID, keyword, timestamps);
+            return null;
+        });
+    }
+
+    // add multiple keyphrase + timestamp pairs to a particular video's entry
+    public ClauseWriteResult addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        return record(StorageOperation.ADD_CLAUSES, () -> delegate.addClauses(videoID, clauses));
+    }
+
+    // replace the keyphrases of a video
+    public ClauseWriteResult replaceClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        return record(StorageOperation.REPLACE_CLAUSES, () -> delegate.replaceClauses(videoID, clauses));
+    }
+
+    // add metadata information to a particular video in the db
+    public void addMetadata(String videoID, String metadata, boolean overwrite) throws CaptionStorageException {
+        record(StorageOperation.ADD_METADATA, () -> {
+            delegate.addMetadata(videoID, metadata, overwrite);
+            return null;
+        });
+    }
+
+    // retrieve all keywords + their timestamps in a specified videoID
+    public Map<String, List<Long>> getAllKeywords(String videoID) throws CaptionStorageException {
+        return record(StorageOperation.GET_ALL_KEYWORDS, () -> delegate.getAllKeywords(videoID));
+    }
+
+    // retrieve specific timestamps for a specified keyword belonging to videoID
+    public List<Long> getTimesForKeyword(String videoID, String keyword) throws CaptionStorageException {
+        return record(StorageOperation.GET_TIMES_FOR_KEYWORD, () -> delegate.getTimesForKeyword(videoID, keyword));
+    }
+
+    // retrieve full captions of videoID
+    public List<TimeRangedText> getFullCaptions(String videoID) {
+        long start = metrics.begin(StorageOperation.GET_FULL_CAPTIONS);
+        try {
+            return delegate.getFullCaptions(videoID);
+        } catch (RuntimeException e) {
+            metrics.fail();
+            throw e;
+        } finally {
+            metrics.end(start);
+        }
+    }
+
+    // retrieve one page of the caption lines of videoID within [from, to)
+    public ResultPage<List<TimeRangedText>> getCaptionsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        return record(StorageOperation.GET_CAPTIONS_IN_RANGE, () -> delegate.getCaptionsInRange(videoID, from, to, cursor, limit));
+    }
+
+    // retrieve one page of the keywords of videoID within [from, to)
+    public ResultPage<Map<String, List<Long>>> getKeywordsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        return record(StorageOperation.GET_KEYWORDS_IN_RANGE, () -> delegate.getKeywordsInRange(videoID, from, to, cursor, limit));
+    }
+
+    // return true if specified video is in the database
+    public boolean videoInDb(String videoID) throws CaptionStorageException {
+        return record(StorageOperation.VIDEO_IN_DB, () -> delegate.videoInDb(videoID));
+    }
+
+    // return true if specified meta is the metadata for videoID
+    public boolean metaInDb(String videoID, String meta) throws CaptionStorageException {
+        return record(StorageOperation.META_IN_DB, () -> delegate.metaInDb(videoID, meta));
+    }
+
+    // return the content hash of videoID
+    public String getContentHash(String videoID) throws CaptionStorageException {
+        return record(StorageOperation.GET_CONTENT_HASH, () -> delegate.getContentHash(videoID));
+    }
+
+    // store the content hash of videoID
+    public void setContentHash(String videoID, String contentHash) throws CaptionStorageException {
+        record(StorageOperation.SET_CONTENT_HASH, () -> {
+            delegate.setContentHash(videoID, contentHash);
+            return null;
+        });
+    }
+
+    // delete a video & all its children (metadata & captions) from the database
+    public int deleteVideo(String videoID) throws CaptionStorageException {
+        return record(StorageOperation.DELETE_VIDEO, () -> delegate.deleteVideo(videoID));
+    }
+
+    // delete a specific keyword from a video in the database
+    public void deleteClause(String videoID, String keyword) throws CaptionStorageException {
+        record(StorageOperation.DELETE_CLAUSE, () -> {
+            delegate.deleteClause(videoID, keyword);
+            return null;
+        });
+    }
+
+    // delete multiple keywords from a video in the database
+    public void deleteClauses(String videoID, Collection<String> keywords) throws CaptionStorageException {
+        record(StorageOperation.DELETE_CLAUSES, () -> {
+            delegate.deleteClauses(videoID, keywords);
+            return null;
+        });
+    }
+
+    // delete the metadata belonging to a specific video in the database
+    public void deleteMetadata(String metadata) throws CaptionStorageException {
+        record(StorageOperation.DELETE_METADATA, () -> {
+            delegate.deleteMetadata(metadata);
+            return null;
+        });
+    }
+
+    // return the videos among videoIDs that are in the database
+    public Set<String> videosInDb(Collection<String> videoIDs) throws CaptionStorageException {
+        return record(StorageOperation.VIDEOS_IN_DB, () -> delegate.videosInDb(videoIDs));
+    }
+
+    // retrieve all keywords of several videos
+    public Map<String, Map<String, List<Long>>> getAllKeywords(Collection<String> videoIDs) throws CaptionStorageException {
+        return record(StorageOperation.GET_ALL_KEYWORDS_BATCH, () -> delegate.getAllKeywords(videoIDs));
+    }
+
+    // asynchronously add a video, its metadata, and its full captions to the database
+    public CompletableFuture<Void> addVideoAsync(String videoID, String metadata, List<TimeRangedText> fullCaptions) {
+        return recordAsync(StorageOperation.ADD_VIDEO_ASYNC, () -> delegate.addVideoAsync(videoID, metadata, fullCaptions));
+    }
+
+    // asynchronously add multiple keyphrase + timestamp pairs to a particular video's entry
+    public CompletableFuture<ClauseWriteResult> addClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return recordAsync(StorageOperation.ADD_CLAUSES_ASYNC, () -> delegate.addClausesAsync(videoID, clauses));
+    }
+
+    // asynchronously replace the keyphrases of a video
+    public CompletableFuture<ClauseWriteResult> replaceClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return recordAsync(StorageOperation.REPLACE_CLAUSES_ASYNC, () -> delegate.replaceClausesAsync(videoID, clauses));
+    }
+
+    // asynchronously retrieve all keywords + their timestamps in a specified videoID
+    public CompletableFuture<Map<String, List<Long>>> getAllKeywordsAsync(String videoID) {
+        return recordAsync(StorageOperation.GET_ALL_KEYWORDS_ASYNC, () -> delegate.getAllKeywordsAsync(videoID));
+    }
+
+    // asynchronously retrieve full captions of videoID
+    public CompletableFuture<List<TimeRangedText>> getFullCaptionsAsync(String videoID) {
+        return recordAsync(StorageOperation.GET_FULL_CAPTIONS_ASYNC, () -> delegate.getFullCaptionsAsync(videoID));
+    }
+
+    // asynchronously delete a video & all its children (metadata & captions) from the database
+    public CompletableFuture<Integer> deleteVideoAsync(String videoID) {
+        return recordAsync(StorageOperation.DELETE_VIDEO_ASYNC, () -> delegate.deleteVideoAsync(videoID));
+    }
+
+    //================================================================================
+    // Private Helper Functions
+    //================================================================================
+
+    /**
+     * Runs an operation on the delegate and records its call, latency and outcome
+     * @param operation The operation
+     * @param call The call to the delegate
+     * @return The result of the call
+     * @throws CaptionStorageException If the call fails
+     */
+    private <T> T record(StorageOperation operation, DatastoreFutures.StorageCall<T> call) throws CaptionStorageException {
+        long start = metrics.begin(operation);
+        try {
+            return call.call();
+        } catch (CaptionStorageException | RuntimeException e) {
+            metrics.fail();
+            throw e;
+        } finally {
+            metrics.end(start);
+        }
+    }
+
+    /**
+     * Starts an asynchronous operation on the delegate and records it once its future completes
+     * The delegate's work on the calling thread is attributed to the operation until the call returns
+     * @param operation The operation
+     * @param call Starts the operation on the delegate
+     * @return The future of the delegate, completed after the operation was recorded
+     */
+    private <T> CompletableFuture<T> recordAsync(StorageOperation operation, Supplier<CompletableFuture<T>> call) {
+        long start = metrics.begin(operation);
+        try {
+            return call.get().whenComplete((result, failure) -> metrics.complete(operation, start, failure != null));
+        } catch (RuntimeException e) {
+            metrics.complete(operation, start, true);
+            throw e;
+        } finally {
+            metrics.endAsync();
+        }
+    }
+}
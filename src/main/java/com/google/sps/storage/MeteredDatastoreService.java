@@ -0,0 +1,225 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DatastoreService that records the RPCs it issues and the entities it reads and writes in StorageMetrics.
+ * Counts are attributed to the storage operation running on the calling thread.
+ * A query counts as one RPC when its results are fetched (see MeteredPreparedQuery);
+ * storages report the entities a query scanned themselves with StorageMetrics.scanned.
+ * A transaction counts as two RPCs when it begins, one for the begin and one for its commit or rollback.
+ */
+class MeteredDatastoreService implements DatastoreService {
+
+    private final DatastoreService delegate;
+    private final StorageMetrics metrics;
+
+    /**
+     * Constructor for a MeteredDatastoreService
+     * @param delegate The DatastoreService that issues the RPCs
+     * @param metrics The metrics to record into
+     */
+    MeteredDatastoreService(DatastoreService delegate, StorageMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Entity get(Key key) throws EntityNotFoundException {
+        metrics.rpc();
+        Entity entity = delegate.get(key);
+        metrics.read(1);
+        return entity;
+    }
+
+    @Override
+    public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+        metrics.rpc();
+        Entity entity = delegate.get(txn, key);
+        metrics.read(1);
+        return entity;
+    }
+
+    @Override
+    public Map<Key, Entity> get(Iterable<Key> keys) {
+        metrics.rpc();
+        Map<Key, Entity> entities = delegate.get(keys);
+        metrics.read(entities.size());
+        return entities;
+    }
+
+    @Override
+    public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+        metrics.rpc();
+        Map<Key, Entity> entities = delegate.get(txn, keys);
+        metrics.read(entities.size());
+        return entities;
+    }
+
+    @Override
+    public Key put(Entity entity) {
+        metrics.rpc();
+        metrics.written(1);
+        return delegate.put(entity);
+    }
+
+    @Override
+    public Key put(Transaction txn, Entity entity) {
+        metrics.rpc();
+        metrics.written(1);
+        return delegate.put(txn, entity);
+    }
+
+    @Override
+    public List<Key> put(Iterable<Entity> entities) {
+        metrics.rpc();
+        metrics.written(count(entities));
+        return delegate.put(entities);
+    }
+
+    @Override
+    public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+        metrics.rpc();
+        metrics.written(count(entities));
+        return delegate.put(txn, entities);
+    }
+
+    @Override
+    public void delete(Key... keys) {
+        metrics.rpc();
+        metrics.written(keys.length);
+        delegate.delete(keys);
+    }
+
+    @Override
+    public void delete(Transaction txn, Key... keys) {
+        metrics.rpc();
+        metrics.written(keys.length);
+        delegate.delete(txn, keys);
+    }
+
+    @Override
+    public void delete(Iterable<Key> keys) {
+        metrics.rpc();
+        metrics.written(count(keys));
+        delegate.delete(keys);
+    }
+
+    @Override
+    public void delete(Transaction txn, Iterable<Key> keys) {
+        metrics.rpc();
+        metrics.written(count(keys));
+        delegate.delete(txn, keys);
+    }
+
+    @Override
+    public PreparedQuery prepare(Query query) {
+        return new MeteredPreparedQuery(delegate.prepare(query), metrics);
+    }
+
+    @Override
+    public PreparedQuery prepare(Transaction txn, Query query) {
+        return new MeteredPreparedQuery(delegate.prepare(txn, query), metrics);
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        metrics.rpc();
+        metrics.rpc();
+        return delegate.beginTransaction();
+    }
+
+    @Override
+    public Transaction beginTransaction(TransactionOptions options) {
+        metrics.rpc();
+        metrics.rpc();
+        return delegate.beginTransaction(options);
+    }
+
+    @Override
+    public KeyRange allocateIds(String kind, long num) {
+        metrics.rpc();
+        return delegate.allocateIds(kind, num);
+    }
+
+    @Override
+    public KeyRange allocateIds(Key parent, String kind, long num) {
+        metrics.rpc();
+        return delegate.allocateIds(parent, kind, num);
+    }
+
+    @Override
+    public KeyRangeState allocateIdRange(KeyRange range) {
+        metrics.rpc();
+        return delegate.allocateIdRange(range);
+    }
+
+    @Override
+    public DatastoreAttributes getDatastoreAttributes() {
+        return delegate.getDatastoreAttributes();
+    }
+
+    @Override
+    public Map<Index, Index.IndexState> getIndexes() {
+        metrics.rpc();
+        return delegate.getIndexes();
+    }
+
+    @Override
+    public Transaction getCurrentTransaction() {
+        return delegate.getCurrentTransaction();
+    }
+
+    @Override
+    public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+        return delegate.getCurrentTransaction(returnedIfNoTxn);
+    }
+
+    @Override
+    public Collection<Transaction> getActiveTransactions() {
+        return delegate.getActiveTransactions();
+    }
+
+    /**
+     * Counts the elements of a batch
+     * @param elements The entities or keys of a batch call
+     * @return The number of elements
+     */
+    static long count(Iterable<?> elements) {
+        if (elements instanceof Collection) {
+            return ((Collection<?>) elements).size();
+        }
+        long count = 0;
+        for (Object element : elements) {
+            count++;
+        }
+        return count;
+    }
+}
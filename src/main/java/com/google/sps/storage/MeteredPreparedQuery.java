@@ -0,0 +1,126 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * PreparedQuery that records the RPC of a query in StorageMetrics when it is issued.
+ * Preparing a query issues no RPC; each list, count or single-entity fetch counts as one, and so does each
+ * iterator, which issues its query as soon as it is created. Further batches of long results are not counted.
+ */
+class MeteredPreparedQuery implements PreparedQuery {
+
+    private final PreparedQuery delegate;
+    private final StorageMetrics metrics;
+
+    /**
+     * Constructor for a MeteredPreparedQuery
+     * @param delegate The PreparedQuery that fetches the results
+     * @param metrics The metrics to record into
+     */
+    MeteredPreparedQuery(PreparedQuery delegate, StorageMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public List<Entity> asList(FetchOptions fetchOptions) {
+        metrics.rpc();
+        return delegate.asList(fetchOptions);
+    }
+
+    @Override
+    public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+        metrics.rpc();
+        return delegate.asQueryResultList(fetchOptions);
+    }
+
+    @Override
+    public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
+        return () -> asIterator(fetchOptions);
+    }
+
+    @Override
+    public QueryResultIterable<Entity> asQueryResultIterable(FetchOptions fetchOptions) {
+        return () -> asQueryResultIterator(fetchOptions);
+    }
+
+    @Override
+    public Iterable<Entity> asIterable() {
+        return this::asIterator;
+    }
+
+    @Override
+    public QueryResultIterable<Entity> asQueryResultIterable() {
+        return this::asQueryResultIterator;
+    }
+
+    @Override
+    public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+        metrics.rpc();
+        return delegate.asIterator(fetchOptions);
+    }
+
+    @Override
+    public Iterator<Entity> asIterator() {
+        metrics.rpc();
+        return delegate.asIterator();
+    }
+
+    @Override
+    public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+        metrics.rpc();
+        return delegate.asQueryResultIterator(fetchOptions);
+    }
+
+    @Override
+    public QueryResultIterator<Entity> asQueryResultIterator() {
+        metrics.rpc();
+        return delegate.asQueryResultIterator();
+    }
+
+    @Override
+    public Entity asSingleEntity() throws TooManyResultsException {
+        metrics.rpc();
+        return delegate.asSingleEntity();
+    }
+
+    @Override
+    public int countEntities(FetchOptions fetchOptions) {
+        metrics.rpc();
+        return delegate.countEntities(fetchOptions);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public int countEntities() {
+        metrics.rpc();
+        return delegate.countEntities();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
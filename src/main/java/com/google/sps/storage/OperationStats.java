@@ -0,0 +1,192 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.Arrays;
+
+/** A snapshot of the counters and latency histogram of one storage operation */
+public final class OperationStats {
+
+    @SerializedName("calls")
+    private final long calls;
+    @SerializedName("errors")
+    private final long errors;
+    @SerializedName("meanMillis")
+    private final double meanMillis;
+    @SerializedName("p50Millis")
+    private final double p50Millis;
+    @SerializedName("p99Millis")
+    private final double p99Millis;
+    @SerializedName("latencyHistogram")
+    private final long[] latencyHistogram;
+    @SerializedName("rpcs")
+    private final long rpcs;
+    @SerializedName("entitiesRead")
+    private final long entitiesRead;
+    @SerializedName("entitiesWritten")
+    private final long entitiesWritten;
+    @SerializedName("entitiesScanned")
+    private final long entitiesScanned;
+    @SerializedName("entitiesReturned")
+    private final long entitiesReturned;
+
+    /**
+     * Constructor for an OperationStats
+     * @param calls The number of finished calls
+     * @param errors The number of calls that failed
+     * @param latencyNanos The total latency of the calls
+     * @param histogram The call counts per latency bucket; bucket i holds calls under 2^i microseconds
+     * @param rpcs The number of Datastore RPCs issued
+     * @param entitiesRead The number of entities read by key
+     * @param entitiesWritten The number of entities written or deleted
+     * @param entitiesScanned The number of entities scanned to produce results
+     * @param entitiesReturned The number of entities returned in results
+     */
+    OperationStats(long calls, long errors, long latencyNanos, long[] histogram, long rpcs, long entitiesRead,
+            long entitiesWritten, long entitiesScanned, long entitiesReturned) {
+        this.calls = calls;
+        this.errors = errors;
+        this.meanMillis = calls == 0 ? 0 : latencyNanos / 1e6 / calls;
+        this.p50Millis = percentileMillis(histogram, calls, 0.50);
+        this.p99Millis = percentileMillis(histogram, calls, 0.99);
+        this.latencyHistogram = trim(histogram);
+        this.rpcs = rpcs;
+        this.entitiesRead = entitiesRead;
+        this.entitiesWritten = entitiesWritten;
+        this.entitiesScanned = entitiesScanned;
+        this.entitiesReturned = entitiesReturned;
+    }
+
+    /**
+     * Gets the number of finished calls
+     * @return The call count
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * Gets the number of calls that failed
+     * @return The error count
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Gets the mean latency of the calls
+     * @return The mean latency in milliseconds
+     */
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    /**
+     * Gets the median latency, as the upper bound of the histogram bucket it falls in
+     * @return The median latency in milliseconds
+     */
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    /**
+     * Gets the 99th percentile latency, as the upper bound of the histogram bucket it falls in
+     * @return The 99th percentile latency in milliseconds
+     */
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    /**
+     * Gets the call counts per latency bucket, up to the last non-empty bucket
+     * @return The histogram; bucket i holds calls under 2^i microseconds
+     */
+    public long[] getLatencyHistogram() {
+        return latencyHistogram.clone();
+    }
+
+    /**
+     * Gets the number of Datastore RPCs issued
+     * @return The RPC count
+     */
+    public long getRpcs() {
+        return rpcs;
+    }
+
+    /**
+     * Gets the number of entities read by key
+     * @return The read count
+     */
+    public long getEntitiesRead() {
+        return entitiesRead;
+    }
+
+    /**
+     * Gets the number of entities written or deleted
+     * @return The write count
+     */
+    public long getEntitiesWritten() {
+        return entitiesWritten;
+    }
+
+    /**
+     * Gets the number of entities scanned to produce results
+     * @return The scanned count
+     */
+    public long getEntitiesScanned() {
+        return entitiesScanned;
+    }
+
+    /**
+     * Gets the number of entities returned in results; far fewer than scanned indicates a full scan
+     * @return The returned count
+     */
+    public long getEntitiesReturned() {
+        return entitiesReturned;
+    }
+
+    /**
+     * Estimates a latency percentile from a histogram
+     * @param histogram The call counts per latency bucket
+     * @param calls The total number of calls
+     * @param fraction The percentile as a fraction between 0 and 1
+     * @return The upper bound in milliseconds of the bucket holding the percentile, 0 without calls
+     */
+    private static double percentileMillis(long[] histogram, long calls, double fraction) {
+        long rank = (long) Math.ceil(calls * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Drops the empty buckets at the end of a histogram
+     * @param histogram The call counts per latency bucket
+     * @return The histogram up to its last non-empty bucket
+     */
+    private static long[] trim(long[] histogram) {
+        int length = histogram.length;
+        while (length > 0 && histogram[length - 1] == 0) {
+            length--;
+        }
+        return Arrays.copyOf(histogram, length);
+    }
+}
@@ -0,0 +1,212 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resumable job that deletes caption entities whose parent video no longer exists,
+ * then the expired entries of the persistent entity cache (see DatastoreEntityCacheStore)
+ * Each child kind is walked keys-only in cursor pages; progress is checkpointed after every page,
+ * so a run that stops early (or fails) is continued by the next one
+ */
+public class OrphanCompactor {
+
+    // kinds whose entities are children of a video, walked in this order
+    private static final List<String> CHILD_KINDS = Collections.unmodifiableList(Arrays.asList(
+        CaptionStorageManager.COLUMN_METADATA,
+        CaptionStorageManager.COLUMN_FULL_CAPTIONS,
+        CaptionStorageManager.COLUMN_CAPTION,
+        CaptionStorageManager.COLUMN_CAPTION_BLOB));
+    // index of the step after the child kinds, which purges expired entity cache entries
+    private static final int ENTITY_CACHE_STEP = CHILD_KINDS.size();
+    private static final String CHECKPOINT_KIND = "compaction_checkpoint";
+    private static final String CHECKPOINT_NAME = "orphans";
+    private static final String COLUMN_KIND_INDEX = "kind_index";
+    private static final String COLUMN_CURSOR = "cursor";
+    private static final String COLUMN_SCANNED = "scanned";
+    private static final String COLUMN_DELETED = "deleted";
+    private static final int DEFAULT_PAGE_SIZE = 500;   // datastore limit on keys per delete
+
+    private final DatastoreService datastore;
+    private final int pageSize;
+
+    public OrphanCompactor() {
+        this(DatastoreServiceFactory.getDatastoreService(), DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Constructor for an OrphanCompactor
+     * @param datastore The Datastore to compact
+     * @param pageSize The number of keys scanned per page, at most 500
+     */
+    public OrphanCompactor(DatastoreService datastore, int pageSize) {
+        this.datastore = datastore;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Walks up to maxPages pages of keys from the last checkpoint, deleting orphaned entities
+     * and then expired entity cache entries
+     * @param maxPages The maximum number of pages walked in this run
+     * @return The counts and throughput of this run
+     * @throws CaptionStorageException COMPACTION_ERR if a query, lookup or delete fails; the pages
+     *     completed before the failure stay checkpointed
+     */
+    public CompactionReport run(int maxPages) throws CaptionStorageException {
+        long startTime = System.currentTimeMillis();
+        Key checkpointKey = KeyFactory.createKey(CHECKPOINT_KIND, CHECKPOINT_NAME);
+        Entity checkpoint = loadCheckpoint(checkpointKey);
+
+        int kindIndex = ((Long) checkpoint.getProperty(COLUMN_KIND_INDEX)).intValue();
+        String cursor = (String) checkpoint.getProperty(COLUMN_CURSOR);
+        long totalScanned = (Long) checkpoint.getProperty(COLUMN_SCANNED);
+        long totalDeleted = (Long) checkpoint.getProperty(COLUMN_DELETED);
+        int pages = 0;
+        long scanned = 0;
+        long deleted = 0;
+
+        try {
+            while (kindIndex <= ENTITY_CACHE_STEP && pages < maxPages) {
+                FetchOptions options = FetchOptions.Builder.withLimit(pageSize);
+                if (cursor != null) {
+                    options.startCursor(Cursor.fromWebSafeString(cursor));
+                }
+                // deleted cache entries drop out of the expiry query, so that step needs no cursor
+                Query query = kindIndex == ENTITY_CACHE_STEP
+                    ? DatastoreEntityCacheStore.expiredQuery(startTime)
+                    : new Query(CHILD_KINDS.get(kindIndex)).setKeysOnly();
+                QueryResultList<Entity> page = datastore.prepare(query).asQueryResultList(options);
+
+                List<Key> stale = kindIndex == ENTITY_CACHE_STEP ? keysOf(page) : findOrphans(page);
+                if (!stale.isEmpty()) {
+                    datastore.delete(stale);
+                }
+
+                pages++;
+                scanned += page.size();
+                deleted += stale.size();
+                if (page.size() < pageSize) {
+                    kindIndex++;
+                    cursor = null;
+                } else if (kindIndex < ENTITY_CACHE_STEP) {
+                    cursor = page.getCursor().toWebSafeString();
+                }
+
+                checkpoint.setUnindexedProperty(COLUMN_KIND_INDEX, (long) kindIndex);
+                checkpoint.setUnindexedProperty(COLUMN_CURSOR, cursor);
+                checkpoint.setUnindexedProperty(COLUMN_SCANNED, totalScanned + scanned);
+                checkpoint.setUnindexedProperty(COLUMN_DELETED, totalDeleted + deleted);
+                datastore.put(checkpoint);
+            }
+
+            boolean complete = kindIndex > ENTITY_CACHE_STEP;
+            if (complete) {
+                datastore.delete(checkpointKey);
+            }
+            return new CompactionReport(pages, scanned, deleted, totalScanned + scanned, totalDeleted + deleted,
+                System.currentTimeMillis() - startTime, complete);
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.COMPACTION_ERR, e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Discards the checkpoint, so the next run starts again from the first kind
+     * @throws CaptionStorageException COMPACTION_ERR if the checkpoint cannot be deleted
+     */
+    public void reset() throws CaptionStorageException {
+        try {
+            datastore.delete(KeyFactory.createKey(CHECKPOINT_KIND, CHECKPOINT_NAME));
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.COMPACTION_ERR, e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Reads the checkpoint of the job, or a fresh one if no run is in progress
+     * @param checkpointKey The key of the checkpoint entity
+     * @return The checkpoint entity
+     * @throws CaptionStorageException COMPACTION_ERR if the checkpoint cannot be read
+     */
+    private Entity loadCheckpoint(Key checkpointKey) throws CaptionStorageException {
+        try {
+            return datastore.get(checkpointKey);
+        } catch (EntityNotFoundException e) {
+            Entity checkpoint = new Entity(checkpointKey);
+            checkpoint.setUnindexedProperty(COLUMN_KIND_INDEX, 0L);
+            checkpoint.setUnindexedProperty(COLUMN_CURSOR, null);
+            checkpoint.setUnindexedProperty(COLUMN_SCANNED, 0L);
+            checkpoint.setUnindexedProperty(COLUMN_DELETED, 0L);
+            return checkpoint;
+        } catch (Exception e) {
+            throw new CaptionStorageException(Reason.COMPACTION_ERR, e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Gets the keys of a page of keys-only entities
+     * @param page Keys-only entities of one page
+     * @return The keys of the entities
+     */
+    private static List<Key> keysOf(List<Entity> page) {
+        List<Key> keys = new ArrayList<>(page.size());
+        for (Entity entity : page) {
+            keys.add(entity.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Finds the entities of a page whose parent video is gone, with one batch get of the parents
+     * @param page Keys-only entities of one page
+     * @return The keys of the orphaned entities
+     */
+    private List<Key> findOrphans(List<Entity> page) {
+        Set<Key> parents = new HashSet<>();
+        for (Entity entity : page) {
+            if (entity.getKey().getParent() != null) {
+                parents.add(entity.getKey().getParent());
+            }
+        }
+
+        Map<Key, Entity> found = datastore.get(parents);
+        List<Key> orphans = new ArrayList<>();
+        for (Entity entity : page) {
+            Key parent = entity.getKey().getParent();
+            if (parent != null && !found.containsKey(parent)) {
+                orphans.add(entity.getKey());
+            }
+        }
+        return orphans;
+    }
+
+}
@@ -0,0 +1,143 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.sps.data.TimeRangedText;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/** Paging helpers shared by the storage implementations for time-window reads */
+final class RangePages {
+
+    // Prefix of cursors that resume from a position in an in-memory transcript
+    // (web-safe Datastore cursors never contain ':', so the two kinds cannot be confused)
+    static final String OFFSET_CURSOR_PREFIX = "blob:";
+    private static final String INVALID_CURSOR_ERR = "Cursor is not valid: ";
+
+    private RangePages() {}
+
+    /**
+     * Pages through the lines of a transcript that start within [from, to)
+     * @param captions The captions of a video in start time order
+     * @param from The inclusive start of the window
+     * @param to The exclusive end of the window
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param limit The maximum number of lines in the page
+     * @return The page of lines, with an offset cursor if the page is full
+     * @throws CaptionStorageException INVALID_CURSOR if the cursor was not returned by this method
+     */
+    static ResultPage<List<TimeRangedText>> sliceCaptions(List<TimeRangedText> captions, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        List<TimeRangedText> page = new ArrayList<>();
+        int i = parseOffsetCursor(cursor);
+        for (; i < captions.size() && page.size() < limit; i++) {
+            long start = captions.get(i).getStartTime();
+            if (start >= from && start < to) {
+                page.add(captions.get(i));
+            }
+        }
+
+        String next = (page.size() == limit && i < captions.size()) ? OFFSET_CURSOR_PREFIX + i : null;
+        return new ResultPage<>(page, next);
+    }
+
+    /**
+     * Tells whether a cursor was returned by sliceCaptions
+     * @param cursor The cursor, or null
+     * @return True if the cursor is an offset cursor
+     */
+    static boolean isOffsetCursor(String cursor) {
+        return cursor != null && cursor.startsWith(OFFSET_CURSOR_PREFIX);
+    }
+
+    /**
+     * Keeps the timestamps within [from, to)
+     * @param timestamps The times a keyphrase occurs at
+     * @param from The inclusive start of the window
+     * @param to The exclusive end of the window
+     * @return The timestamps within the window, in the same order
+     */
+    static List<Long> timestampsInRange(List<Long> timestamps, long from, long to) {
+        List<Long> inRange = new ArrayList<>();
+        for (Long timestamp : timestamps) {
+            if (timestamp >= from && timestamp < to) {
+                inRange.add(timestamp);
+            }
+        }
+        return inRange;
+    }
+
+    /**
+     * Builds the cursor of the keyword page following a given keyphrase
+     * Keyphrase names are encoded so the cursor is opaque and safe to pass in a URL
+     * @param keyword The last keyphrase of the current page
+     * @return The cursor of the next page
+     */
+    static String keywordCursor(String keyword) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(keyword.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a cursor returned by keywordCursor
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @return The last keyphrase of the previous page, or null for the first page
+     * @throws CaptionStorageException INVALID_CURSOR if the cursor is malformed
+     */
+    static String parseKeywordCursor(String cursor) throws CaptionStorageException {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw invalidCursor(cursor);
+        }
+    }
+
+    /**
+     * Builds the exception reported for a cursor that cannot be resumed from
+     * @param cursor The rejected cursor
+     * @return The INVALID_CURSOR exception
+     */
+    static CaptionStorageException invalidCursor(String cursor) {
+        return new CaptionStorageException(Reason.INVALID_CURSOR, INVALID_CURSOR_ERR + cursor);
+    }
+
+    /**
+     * Parses the offset of a cursor returned by sliceCaptions
+     * @param cursor The cursor, or null for the first page
+     * @return The position in the transcript to resume scanning from
+     * @throws CaptionStorageException INVALID_CURSOR if the cursor is malformed
+     */
+    private static int parseOffsetCursor(String cursor) throws CaptionStorageException {
+        if (cursor == null) {
+            return 0;
+        }
+        if (!isOffsetCursor(cursor)) {
+            throw invalidCursor(cursor);
+        }
+        try {
+            int offset = Integer.parseInt(cursor.substring(OFFSET_CURSOR_PREFIX.length()));
+            if (offset < 0) {
+                throw invalidCursor(cursor);
+            }
+            return offset;
+        } catch (NumberFormatException e) {
+            throw invalidCursor(cursor);
+        }
+    }
+
+}
@@ -12,6 +12,7 @@ public enum Reason {
     GET_VIDEO_ERR,
     GET_META_ERR,
     GET_KEYPHRASE_ERR,
+    GET_FULL_CAPTIONS_ERR,
     OVERWRITE_META_ERR,
     APPEND_META_ERR,
     NO_VIDEO_EXISTS,
@@ -19,5 +20,8 @@ public enum Reason {
     NO_KEYPHRASE_EXISTS,
     DELETE_VIDEO_ERR,
     DELETE_KEYPHRASE_ERR,
-    DELETE_META_ERR
+    DELETE_META_ERR,
+    MIGRATE_CAPTIONS_ERR,
+    INVALID_CURSOR,
+    COMPACTION_ERR
 }
\ No newline at end of file
@@ -0,0 +1,361 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of checksummed records on local disk, shared by the file-backed stores.
+ * Each record is framed by the length and CRC32 of its payload, and a record torn by a crash is dropped
+ * when the file is reopened. The owner keeps its own index of where its records lie and rewrites the
+ * live ones into a new file with compact once dead records make up most of the file.
+ * The owner serializes appends and compaction; reads may run alongside appends. A reader that copies
+ * records outside the owner's lock pins the current file first, so a compaction cannot close it mid-copy.
+ */
+final class RecordLog implements Closeable {
+
+    // Each record starts with the length and CRC32 of its payload
+    static final int HEADER_BYTES = 2 * Integer.BYTES;
+    // Compaction is due once dead records exceed both this size and the size of the live records
+    private static final long MIN_DEAD_BYTES = 4L * 1024 * 1024;
+    private static final String COMPACTION_SUFFIX = ".compacting";
+    private static final String TRUNCATED_ERR = "Record log ends at ";
+
+    /** Receives a framed record as it is replayed or appended */
+    interface RecordHandler {
+        /**
+         * Applies a record to the owner's index
+         * @param position The position of the record in its file
+         * @param framed The framed record, positioned at its start
+         */
+        void apply(long position, ByteBuffer framed);
+    }
+
+    /** Appends records to a file */
+    interface Appender {
+        /**
+         * Frames and appends a record, then hands it to a handler
+         * @param payload The payload of the record
+         * @param handler The handler applying the record at its position
+         * @throws IOException If the record cannot be written
+         */
+        void append(byte[] payload, RecordHandler handler) throws IOException;
+    }
+
+    /** Writes the live records of a log into the file that replaces it */
+    interface Rewriter {
+        /**
+         * Appends every live record to the compacted file
+         * @param out The appender of the compacted file
+         * @throws IOException If a record cannot be read or written
+         */
+        void rewrite(Appender out) throws IOException;
+    }
+
+    /** A pin on one file of the log, keeping it open and its records in place until the pin is closed */
+    static final class Pin implements Closeable {
+        private final OpenFile file;
+        private boolean closed;
+
+        private Pin(OpenFile file) {
+            this.file = file;
+        }
+
+        /**
+         * Copies bytes of the pinned file to a channel without reading them into memory
+         * @param position The position of the bytes
+         * @param length The number of bytes
+         * @param target The channel to write to
+         * @throws IOException If the file cannot be read or target cannot be written
+         */
+        void transferTo(long position, long length, WritableByteChannel target) throws IOException {
+            long end = position + length;
+            while (position < end) {
+                position += file.channel.transferTo(position, end - position, target);
+            }
+        }
+
+        /**
+         * Releases the pin, closing the file if the log has moved on from it
+         * @throws IOException If the file cannot be closed
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                file.release();
+            }
+        }
+    }
+
+    private final Path path;
+    private final boolean syncWrites;
+    private OpenFile file;
+    private FileChannel channel;
+    private long fileSize;
+
+    /**
+     * Opens the log at path, creating it if needed; replay must be called before the first append
+     * A compaction left over from a crash is discarded, since the log it would replace is intact
+     * @param path The file holding the log
+     * @param syncWrites If true, every append is forced to the disk before it returns
+     * @throws IOException If the log cannot be opened
+     */
+    RecordLog(Path path, boolean syncWrites) throws IOException {
+        this.path = path;
+        this.syncWrites = syncWrites;
+        Files.deleteIfExists(compactionPath());
+        this.file = new OpenFile(open(path, false));
+        this.channel = file.channel;
+    }
+
+    /**
+     * Hands every intact record of the log to a handler, truncating a torn record at the end of the log
+     * @param handler The handler applying each record
+     * @throws IOException If the log cannot be read
+     */
+    void replay(RecordHandler handler) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+
+            ByteBuffer framed = ByteBuffer.allocate(HEADER_BYTES + length);
+            readFully(channel, framed, position);
+            CRC32 crc = new CRC32();
+            crc.update(framed.array(), HEADER_BYTES, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            framed.rewind();
+            handler.apply(position, framed);
+            position += HEADER_BYTES + length;
+        }
+
+        if (position < size) {
+            channel.truncate(position);
+        }
+        fileSize = position;
+    }
+
+    /**
+     * Appends a record to the end of the log and hands it to a handler
+     * @param payload The payload of the record
+     * @param handler The handler applying the record at its position
+     * @throws IOException If the record cannot be written; the handler is then not called
+     */
+    void append(byte[] payload, RecordHandler handler) throws IOException {
+        ByteBuffer framed = write(channel, fileSize, payload);
+        if (syncWrites) {
+            channel.force(false);
+        }
+        long position = fileSize;
+        fileSize += framed.remaining();
+        handler.apply(position, framed);
+    }
+
+    /**
+     * Reads bytes of the log with one positional read
+     * @param position The position of the bytes
+     * @param length The number of bytes
+     * @return The bytes
+     * @throws IOException If the log cannot be read or ends before the bytes do
+     */
+    byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, position);
+        return buffer.array();
+    }
+
+    /**
+     * Pins the current file of the log, so records located now can be copied after the owner's lock is released
+     * Must be called under the same lock as compact; the pin must be closed once the copy is done
+     * @return The pin on the current file
+     */
+    Pin pin() {
+        file.retain();
+        return new Pin(file);
+    }
+
+    /**
+     * Checks whether the dead records of the log are worth a compaction
+     * @param liveBytes The size of the records the owner still uses
+     * @return true if dead records exceed both the minimum size and the live records
+     */
+    boolean needsCompaction(long liveBytes) {
+        long deadBytes = fileSize - liveBytes;
+        return deadBytes > MIN_DEAD_BYTES && deadBytes > liveBytes;
+    }
+
+    /**
+     * Replaces the log with a file holding only the records a rewriter appends
+     * The new file is written and forced beside the log, then renamed over it atomically, so a crash
+     * leaves one of the two intact. The log stays open until the rename succeeds, so on any failure
+     * it is still in use and the owner should keep its index.
+     * @param rewriter Appends the live records, applying them to the owner's new index
+     * @throws IOException If the new file cannot be written or renamed; the log is unchanged
+     */
+    void compact(Rewriter rewriter) throws IOException {
+        Path compacted = compactionPath();
+        FileChannel out = open(compacted, true);
+        long[] size = {0};
+        try {
+            rewriter.rewrite((payload, handler) -> {
+                ByteBuffer framed = write(out, size[0], payload);
+                long position = size[0];
+                size[0] += framed.remaining();
+                handler.apply(position, framed);
+            });
+            out.force(true);
+            // the open channel follows the file through the rename, so no reopen can fail afterwards
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.close();
+                Files.deleteIfExists(compacted);
+            } catch (IOException cleanup) {
+                e.addSuppressed(cleanup);
+            }
+            throw e;
+        }
+
+        // a pinned copy still reads the replaced file, which is closed once the last pin is released
+        OpenFile previous = file;
+        file = new OpenFile(out);
+        channel = out;
+        fileSize = size[0];
+        previous.release();
+    }
+
+    /**
+     * Gets the size of the log file
+     * @return The size of the log in bytes
+     */
+    long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Closes the log file once no pin holds it; the log cannot be used afterwards
+     * @throws IOException If the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        file.release();
+    }
+
+    //================================================================================
+    // Private Helper Functions
+    //================================================================================
+
+    /**
+     * Writes a framed record at a position of a file
+     * @param out The file
+     * @param position The position to write the record at
+     * @param payload The payload of the record
+     * @return The framed record, positioned at its start
+     * @throws IOException If the record cannot be written
+     */
+    private static ByteBuffer write(FileChannel out, long position, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer framed = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        framed.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (framed.hasRemaining()) {
+            position += out.write(framed, position);
+        }
+        framed.rewind();
+        return framed;
+    }
+
+    /**
+     * Fills a buffer from a position of a file
+     * @param in The file
+     * @param buffer The buffer to fill
+     * @param position The position to read from
+     * @throws IOException If the file cannot be read or ends before the buffer is full
+     */
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new IOException(TRUNCATED_ERR + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Opens a log file for reading and writing
+     * @param file The file
+     * @param truncate Whether an existing file is emptied first
+     * @return The open channel
+     * @throws IOException If the file cannot be opened
+     */
+    private static FileChannel open(Path file, boolean truncate) throws IOException {
+        if (truncate) {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Gets the file a compaction is written to before it replaces the log
+     * @return The path of the compaction file
+     */
+    private Path compactionPath() {
+        return path.resolveSibling(path.getFileName() + COMPACTION_SUFFIX);
+    }
+
+    /** An open file of the log, closed when the log and every pin on it have released it */
+    private static final class OpenFile {
+        private final FileChannel channel;
+        private int references = 1;
+
+        private OpenFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private synchronized void retain() {
+            references++;
+        }
+
+        private synchronized void release() throws IOException {
+            if (--references == 0) {
+                channel.close();
+            }
+        }
+    }
+}
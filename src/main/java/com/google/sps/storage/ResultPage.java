@@ -0,0 +1,53 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.gson.annotations.SerializedName;
+
+/** One page of a paginated storage read, with the cursor to resume from */
+public final class ResultPage<T> {
+
+    @SerializedName("results")
+    private final T results;
+    @SerializedName("nextCursor")
+    private final String nextCursor;
+
+    /**
+     * Constructor for a ResultPage
+     * @param results The results of this page
+     * @param nextCursor The cursor of the next page, or null if this is the last page
+     */
+    public ResultPage(T results, String nextCursor) {
+        this.results = results;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Gets the results of this page
+     * @return The results of this page
+     */
+    public T getResults() {
+        return this.results;
+    }
+
+    /**
+     * Gets the cursor to pass to the next read to get the following page
+     * @return The cursor of the next page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return this.nextCursor;
+    }
+
+}
@@ -0,0 +1,237 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.sps.data.TimeRangedText;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memcache tier shared by every instance of the application for keyword maps and transcripts.
+ * Each video has a version counter in memcache and payloads are keyed by video ID and version,
+ * so bumping the version makes every instance miss without deleting the old payloads.
+ * Readers take the version before reading the database and cache what they read under that version,
+ * so a read that races with a write can only cache its result under the version the write replaced.
+ * Payloads also expire after an hour. Memcache failures are treated as misses.
+ */
+public class SharedCaptionCache {
+
+    private static final String DEFAULT_NAMESPACE = "captions";
+    private static final String VERSION_PREFIX = "version:";
+    private static final String KEYWORDS_PREFIX = "keywords:";
+    private static final String CAPTIONS_PREFIX = "captions:";
+    private static final String KEY_DELIMITER = ":";
+    // memcache rejects values above 1MB, so larger payloads are not cached
+    private static final int MAX_VALUE_BYTES = 1000 * 1000;
+    private static final int PAYLOAD_TTL_SECONDS = 60 * 60;
+
+    private final MemcacheService memcache;
+
+    /**
+     * Constructor for a SharedCaptionCache using the application's memcache in its own namespace
+     */
+    public SharedCaptionCache() {
+        this(MemcacheServiceFactory.getMemcacheService(DEFAULT_NAMESPACE));
+    }
+
+    /**
+     * Constructor for a SharedCaptionCache
+     * @param memcache The memcache service to store payloads in
+     */
+    public SharedCaptionCache(MemcacheService memcache) {
+        this.memcache = memcache;
+    }
+
+    /**
+     * Gets the cached keyword map of a version of a video
+     * @param videoID The Youtube ID of the video
+     * @param version The version of the video from getVersion
+     * @return The keyword map, or null on a miss
+     */
+    public Map<String, List<Long>> getKeywords(String videoID, Long version) {
+        byte[] bytes = get(KEYWORDS_PREFIX, videoID, version);
+        return bytes == null ? null : KeywordMapCodec.decode(bytes);
+    }
+
+    /**
+     * Gets the cached keyword maps of several videos with one memcache call
+     * @param versions The version of each video from getVersions
+     * @return The keyword map of each video that was cached; videos that missed are absent
+     */
+    public Map<String, Map<String, List<Long>>> getKeywords(Map<String, Long> versions) {
+        Map<String, String> payloadKeys = new HashMap<>();
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            if (entry.getValue() != null) {
+                payloadKeys.put(KEYWORDS_PREFIX + entry.getKey() + KEY_DELIMITER + entry.getValue(), entry.getKey());
+            }
+        }
+        Map<String, Map<String, List<Long>>> keywords = new HashMap<>();
+        if (payloadKeys.isEmpty()) {
+            return keywords;
+        }
+        try {
+            for (Map.Entry<String, Object> entry : memcache.getAll(payloadKeys.keySet()).entrySet()) {
+                keywords.put(payloadKeys.get(entry.getKey()), KeywordMapCodec.decode((byte[]) entry.getValue()));
+            }
+        } catch (RuntimeException e) {
+            // the videos that were not read are treated as misses
+        }
+        return keywords;
+    }
+
+    /**
+     * Caches the keyword map of a version of a video
+     * @param videoID The Youtube ID of the video
+     * @param version The version of the video from getVersion, taken before the database read
+     * @param keywords The keyword map read from the database
+     */
+    public void putKeywords(String videoID, Long version, Map<String, List<Long>> keywords) {
+        put(KEYWORDS_PREFIX, videoID, version, KeywordMapCodec.encode(keywords));
+    }
+
+    /**
+     * Gets the cached full captions of a version of a video
+     * @param videoID The Youtube ID of the video
+     * @param version The version of the video from getVersion
+     * @return The captions in start time order, or null on a miss
+     */
+    public List<TimeRangedText> getCaptions(String videoID, Long version) {
+        byte[] bytes = get(CAPTIONS_PREFIX, videoID, version);
+        return bytes == null ? null : CaptionBlobCodec.decode(bytes);
+    }
+
+    /**
+     * Caches the full captions of a version of a video
+     * @param videoID The Youtube ID of the video
+     * @param version The version of the video from getVersion, taken before the database read
+     * @param captions The captions read from the database
+     */
+    public void putCaptions(String videoID, Long version, List<TimeRangedText> captions) {
+        put(CAPTIONS_PREFIX, videoID, version, CaptionBlobCodec.encode(captions));
+    }
+
+    /**
+     * Moves a video to a new version, so every instance stops reading its cached payloads
+     * @param videoID The Youtube ID of the video that changed
+     */
+    public void invalidate(String videoID) {
+        try {
+            memcache.increment(VERSION_PREFIX + videoID, 1L, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            // the version could not be bumped; payloads expire with memcache eviction
+        }
+    }
+
+    /**
+     * Gets the current version of a video, starting a new one if memcache has none
+     * A restarted version is seeded with the current time so it never matches an older payload key
+     * @param videoID The Youtube ID of the video
+     * @return The current version, or null if memcache is unavailable
+     */
+    public Long getVersion(String videoID) {
+        String versionKey = VERSION_PREFIX + videoID;
+        try {
+            Object version = memcache.get(versionKey);
+            if (version == null) {
+                memcache.put(versionKey, System.currentTimeMillis(), null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                version = memcache.get(versionKey);
+            }
+            return (Long) version;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the current versions of several videos with batched memcache calls, starting new ones where memcache has none
+     * @param videoIDs The Youtube IDs of the videos
+     * @return The current version of each video, or an empty map if memcache is unavailable
+     */
+    public Map<String, Long> getVersions(Collection<String> videoIDs) {
+        Map<String, String> versionKeys = new HashMap<>();
+        for (String videoID : videoIDs) {
+            versionKeys.put(VERSION_PREFIX + videoID, videoID);
+        }
+        Map<String, Long> versions = new HashMap<>();
+        try {
+            Map<String, Object> found = memcache.getAll(versionKeys.keySet());
+            List<String> missing = new ArrayList<>();
+            for (String versionKey : versionKeys.keySet()) {
+                if (!found.containsKey(versionKey)) {
+                    missing.add(versionKey);
+                }
+            }
+            if (!missing.isEmpty()) {
+                Map<String, Long> seeds = new HashMap<>();
+                long seed = System.currentTimeMillis();
+                for (String versionKey : missing) {
+                    seeds.put(versionKey, seed);
+                }
+                memcache.putAll(seeds, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                found.putAll(memcache.getAll(missing));
+            }
+            for (Map.Entry<String, Object> entry : found.entrySet()) {
+                versions.put(versionKeys.get(entry.getKey()), (Long) entry.getValue());
+            }
+        } catch (RuntimeException e) {
+            versions.clear();
+        }
+        return versions;
+    }
+
+    /**
+     * Gets a payload of a version of a video
+     * @param prefix The payload type prefix
+     * @param videoID The Youtube ID of the video
+     * @param version The version of the video, or null if memcache is unavailable
+     * @return The payload bytes, or null on a miss
+     */
+    private byte[] get(String prefix, String videoID, Long version) {
+        if (version == null) {
+            return null;
+        }
+        try {
+            return (byte[]) memcache.get(prefix + videoID + KEY_DELIMITER + version);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a payload under a version of a video until it expires
+     * @param prefix The payload type prefix
+     * @param videoID The Youtube ID of the video
+     * @param version The version of the video, or null if memcache is unavailable
+     * @param bytes The payload bytes
+     */
+    private void put(String prefix, String videoID, Long version, byte[] bytes) {
+        if (version == null || bytes.length > MAX_VALUE_BYTES) {
+            return;
+        }
+        try {
+            memcache.put(prefix + videoID + KEY_DELIMITER + version, bytes, Expiration.byDeltaSeconds(PAYLOAD_TTL_SECONDS));
+        } catch (RuntimeException e) {
+            // caching is best effort
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the operations of one storage, kept per StorageOperation.
+ * Each operation records its calls, failures and latency, the Datastore RPCs it issued, the entities it read
+ * and wrote, and the entities it scanned compared to those it returned, which exposes full scans.
+ * Recording only updates preallocated atomic arrays, so it allocates nothing on the request path.
+ * Datastore work is attributed to the operation running on the current thread, which begin() sets;
+ * an operation started while another runs, e.g. videoInDb inside getAllKeywords, counts as part of the outer one.
+ * Instances are shared per storage through the StorageMetricsRegistry set with setRegistry.
+ */
+public final class StorageMetrics {
+
+    // Latency buckets: bucket 0 holds calls under 1 microsecond, bucket i calls under 2^i microseconds
+    static final int LATENCY_BUCKETS = 32;
+    // Fields of the counter array, per operation
+    private static final int CALLS = 0;
+    private static final int ERRORS = 1;
+    private static final int LATENCY_NANOS = 2;
+    private static final int RPCS = 3;
+    private static final int READ = 4;
+    private static final int WRITTEN = 5;
+    private static final int SCANNED = 6;
+    private static final int RETURNED = 7;
+    private static final int FIELDS = 8;
+    private static final StorageOperation[] OPERATIONS = StorageOperation.values();
+
+    private static volatile StorageMetricsRegistry registry = new InProcessMetricsRegistry();
+
+    private final AtomicLongArray counters = new AtomicLongArray(OPERATIONS.length * FIELDS);
+    private final AtomicLongArray latencies = new AtomicLongArray(OPERATIONS.length * LATENCY_BUCKETS);
+    private final ThreadLocal<Scope> scopes = ThreadLocal.withInitial(Scope::new);
+
+    /**
+     * Gets the registry storages get their metrics from
+     * @return The current registry, an InProcessMetricsRegistry unless replaced
+     */
+    public static StorageMetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Replaces the registry storages get their metrics from, e.g. with one that also exports to a monitoring system
+     * Storages created afterwards record into the new registry
+     * @param replacement The registry to use
+     */
+    public static void setRegistry(StorageMetricsRegistry replacement) {
+        registry = replacement;
+    }
+
+    /**
+     * Starts an operation on the current thread; Datastore work on this thread is attributed to it until end
+     * @param operation The operation being started
+     * @return The start time to pass to end
+     */
+    public long begin(StorageOperation operation) {
+        scopes.get().push(operation);
+        return System.nanoTime();
+    }
+
+    /** Marks the operation running on the current thread as failed, unless it is nested in another one */
+    public void fail() {
+        scopes.get().fail();
+    }
+
+    /**
+     * Ends the operation started last on the current thread and, if it is not nested, records its call, latency and outcome
+     * @param start The start time returned by begin
+     */
+    public void end(long start) {
+        Scope scope = scopes.get();
+        boolean failed = scope.isFailed();
+        StorageOperation operation = scope.pop();
+        if (operation != null) {
+            record(operation, start, failed);
+        }
+    }
+
+    /**
+     * Ends the operation started last on the current thread without recording it, for asynchronous operations
+     * that are recorded with complete once their future completes, and for their work on request threads
+     */
+    public void endAsync() {
+        scopes.get().pop();
+    }
+
+    /**
+     * Records an asynchronous operation once it completes
+     * @param operation The operation
+     * @param start The start time returned by begin
+     * @param failed Whether the operation failed
+     */
+    public void complete(StorageOperation operation, long start, boolean failed) {
+        record(operation, start, failed);
+    }
+
+    /** Records a Datastore RPC issued by the operation running on the current thread */
+    public void rpc() {
+        add(current(), RPCS, 1);
+    }
+
+    /**
+     * Records entities read by the operation running on the current thread
+     * @param count The number of entities
+     */
+    public void read(long count) {
+        add(current(), READ, count);
+    }
+
+    /**
+     * Records entities written or deleted by the operation running on the current thread
+     * @param count The number of entities
+     */
+    public void written(long count) {
+        add(current(), WRITTEN, count);
+    }
+
+    /**
+     * Records how many entities the operation running on the current thread scanned to produce its result
+     * @param scanned The entities read from Datastore or decoded
+     * @param returned The entities, or lines, in the result
+     */
+    public void scanned(long scanned, long returned) {
+        StorageOperation operation = current();
+        add(operation, SCANNED, scanned);
+        add(operation, RETURNED, returned);
+    }
+
+    /**
+     * Gets the current values of every operation that has been recorded
+     * @return The stats of each recorded operation, in enum order
+     */
+    public Map<StorageOperation, OperationStats> snapshot() {
+        Map<StorageOperation, OperationStats> stats = new EnumMap<>(StorageOperation.class);
+        for (StorageOperation operation : OPERATIONS) {
+            OperationStats operationStats = snapshot(operation);
+            if (operationStats.getCalls() > 0 || operationStats.getRpcs() > 0) {
+                stats.put(operation, operationStats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Gets the current values of one operation
+     * @param operation The operation
+     * @return The stats of the operation
+     */
+    public OperationStats snapshot(StorageOperation operation) {
+        int base = operation.ordinal() * FIELDS;
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = latencies.get(operation.ordinal() * LATENCY_BUCKETS + i);
+        }
+        return new OperationStats(counters.get(base + CALLS), counters.get(base + ERRORS), counters.get(base + LATENCY_NANOS),
+            histogram, counters.get(base + RPCS), counters.get(base + READ), counters.get(base + WRITTEN),
+            counters.get(base + SCANNED), counters.get(base + RETURNED));
+    }
+
+    /**
+     * Gets the latency bucket of a duration
+     * @param nanos The duration in nanoseconds
+     * @return The index of the bucket whose upper bound, 2^index microseconds, first exceeds the duration
+     */
+    static int latencyBucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Records one finished call of an operation
+     * @param operation The operation
+     * @param start The start time returned by begin
+     * @param failed Whether the call failed
+     */
+    private void record(StorageOperation operation, long start, boolean failed) {
+        long nanos = Math.max(0, System.nanoTime() - start);
+        int base = operation.ordinal() * FIELDS;
+        counters.incrementAndGet(base + CALLS);
+        if (failed) {
+            counters.incrementAndGet(base + ERRORS);
+        }
+        counters.addAndGet(base + LATENCY_NANOS, nanos);
+        latencies.incrementAndGet(operation.ordinal() * LATENCY_BUCKETS + latencyBucket(nanos));
+    }
+
+    private StorageOperation current() {
+        return scopes.get().current();
+    }
+
+    private void add(StorageOperation operation, int field, long value) {
+        counters.addAndGet(operation.ordinal() * FIELDS + field, value);
+    }
+
+    /** The operation running on one thread; operations it calls run in its scope and are not recorded on their own */
+    private static final class Scope {
+        private StorageOperation operation = StorageOperation.OTHER;
+        private boolean failed = false;
+        private int depth = 0;
+
+        private void push(StorageOperation started) {
+            if (depth++ == 0) {
+                operation = started;
+                failed = false;
+            }
+        }
+
+        // returns the operation to record once the outermost operation ends, null for a nested one
+        private StorageOperation pop() {
+            if (depth == 0 || --depth > 0) {
+                return null;
+            }
+            StorageOperation ended = operation;
+            operation = StorageOperation.OTHER;
+            return ended;
+        }
+
+        private void fail() {
+            if (depth == 1) {
+                failed = true;
+            }
+        }
+
+        private boolean isFailed() {
+            return failed;
+        }
+
+        private StorageOperation current() {
+            return operation;
+        }
+    }
+}
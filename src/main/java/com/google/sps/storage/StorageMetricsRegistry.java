@@ -0,0 +1,38 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.util.Map;
+
+/**
+ * Source of the StorageMetrics each storage records into, installed with StorageMetrics.setRegistry.
+ * Implementations decide where metrics are exported; InProcessMetricsRegistry keeps them for /admin/metrics.
+ */
+public interface StorageMetricsRegistry {
+
+    /**
+     * Gets the metrics of a storage, creating them on first use
+     * Storages call this when they are created, so every instance of a storage shares one StorageMetrics
+     * @param storageName The name of the storage, e.g. "caption" or "bookmark"
+     * @return The metrics the storage records into
+     */
+    StorageMetrics get(String storageName);
+
+    /**
+     * Gets the metrics of every storage created so far
+     * @return The metrics by storage name
+     */
+    Map<String, StorageMetrics> getAll();
+}
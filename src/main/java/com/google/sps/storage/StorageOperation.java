@@ -0,0 +1,53 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+/** The storage operations StorageMetrics records, one per public method of the storage managers */
+public enum StorageOperation {
+    // CaptionStorageManager
+    ADD_VIDEO,
+    ADD_CLAUSE,
+    ADD_CLAUSES,
+    REPLACE_CLAUSES,
+    ADD_METADATA,
+    GET_ALL_KEYWORDS,
+    GET_TIMES_FOR_KEYWORD,
+    GET_FULL_CAPTIONS,
+    GET_CAPTIONS_IN_RANGE,
+    GET_KEYWORDS_IN_RANGE,
+    VIDEO_IN_DB,
+    META_IN_DB,
+    GET_CONTENT_HASH,
+    SET_CONTENT_HASH,
+    DELETE_VIDEO,
+    DELETE_CLAUSE,
+    DELETE_CLAUSES,
+    DELETE_METADATA,
+    VIDEOS_IN_DB,
+    GET_ALL_KEYWORDS_BATCH,
+    ADD_VIDEO_ASYNC,
+    ADD_CLAUSES_ASYNC,
+    REPLACE_CLAUSES_ASYNC,
+    GET_ALL_KEYWORDS_ASYNC,
+    GET_FULL_CAPTIONS_ASYNC,
+    DELETE_VIDEO_ASYNC,
+    MIGRATE_CAPTIONS,
+    // BookmarkStorageManager
+    GET_ALL_BOOKMARKS,
+    ADD_BOOKMARK,
+    REMOVE_BOOKMARK,
+    // Datastore work done outside any of the operations above
+    OTHER
+}
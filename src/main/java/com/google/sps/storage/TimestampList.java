@@ -0,0 +1,98 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of timestamps backed by a primitive array.
+ * Values are only boxed when read through the List interface; getLong reads them without boxing.
+ */
+public final class TimestampList extends AbstractList<Long> implements RandomAccess {
+
+    private static final TimestampList EMPTY = new TimestampList(new long[0]);
+
+    private final long[] timestamps;
+
+    private TimestampList(long[] timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Creates a list holding a copy of the given timestamps
+     * @param timestamps The timestamps in stored order
+     * @return The list of timestamps
+     */
+    public static TimestampList of(long... timestamps) {
+        return timestamps.length == 0 ? EMPTY : new TimestampList(timestamps.clone());
+    }
+
+    /**
+     * Wraps an array that no other code keeps a reference to
+     * @param timestamps The timestamps in stored order
+     * @return The list of timestamps
+     */
+    static TimestampList wrap(long[] timestamps) {
+        return timestamps.length == 0 ? EMPTY : new TimestampList(timestamps);
+    }
+
+    /**
+     * Gets a timestamp without boxing it
+     * @param index The position of the timestamp
+     * @return The timestamp
+     */
+    public long getLong(int index) {
+        return this.timestamps[index];
+    }
+
+    /**
+     * Copies the timestamps into a new array
+     * @return The timestamps in stored order
+     */
+    public long[] toLongArray() {
+        return this.timestamps.clone();
+    }
+
+    @Override
+    public Long get(int index) {
+        return this.timestamps[index];
+    }
+
+    @Override
+    public int size() {
+        return this.timestamps.length;
+    }
+
+    @Override
+    public int hashCode() {
+        // matches List.hashCode, so a TimestampList equals and hashes like any List<Long> of the same values
+        int hash = 1;
+        for (long timestamp : this.timestamps) {
+            hash = 31 * hash + Long.hashCode(timestamp);
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof TimestampList) {
+            return Arrays.equals(this.timestamps, ((TimestampList) other).timestamps);
+        }
+        return super.equals(other);
+    }
+
+}
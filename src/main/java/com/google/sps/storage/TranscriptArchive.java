@@ -0,0 +1,288 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.gson.Gson;
+import com.google.sps.data.TimeRangedText;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Archive of full transcripts already serialized to JSON, kept in one append-only RecordLog on local disk.
+ * Each video's captions are stored as the exact bytes /fullcaption responds with, and an in-memory offset
+ * index maps a video ID to its segment, so a transcript is served by copying file bytes straight to the
+ * response with FileChannel.transferTo instead of decoding and re-serializing every line.
+ * The archive is a per-instance copy of the storage: CachingCaptionStorage rewrites a video's segment when
+ * the video is added and drops it when the video is deleted through it, so it is only kept in front of the
+ * file backend, whose writes all go through this instance.
+ */
+public class TranscriptArchive implements Closeable {
+
+    // Segment types, each followed by the video ID
+    private static final byte SEGMENT_TRANSCRIPT = 1;   // JSON array of the captions, to the end of the segment
+    private static final byte SEGMENT_REMOVED = 2;
+
+    private final RecordLog log;
+    private final Gson gson = new Gson();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<String, Segment> index = new HashMap<>();
+    private long liveBytes;
+
+    /**
+     * Opens the archive at path, creating it if needed, and rebuilds the offset index from its segments
+     * A segment torn by a crash is dropped
+     * @param path The file holding the archive
+     * @throws IOException If the archive cannot be opened or read
+     */
+    public TranscriptArchive(Path path) throws IOException {
+        this.log = new RecordLog(path, false);
+        log.replay(this::apply);
+    }
+
+    /**
+     * Checks whether the transcript of a video is archived
+     * @param videoID The Youtube ID of the video
+     * @return true if transferTo can serve the video
+     */
+    public boolean contains(String videoID) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(videoID);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Archives the transcript of a video, replacing any earlier one
+     * The captions are serialized in start time order, as getFullCaptions returns them
+     * If the write fails the video is no longer archived, rather than left with its earlier transcript
+     * @param videoID The Youtube ID of the video
+     * @param captions The full captions of the video
+     * @throws IOException If the archive cannot be written
+     */
+    public void put(String videoID, List<TimeRangedText> captions) throws IOException {
+        List<TimeRangedText> sorted = new ArrayList<>(captions);
+        sorted.sort(Comparator.comparingLong(TimeRangedText::getStartTime));
+        byte[] json = gson.toJson(sorted).getBytes(StandardCharsets.UTF_8);
+        append(videoID, SEGMENT_TRANSCRIPT, json);
+    }
+
+    /**
+     * Drops the transcript of a video from the archive, if present
+     * @param videoID The Youtube ID of the video
+     * @throws IOException If the removal cannot be recorded; the video is still no longer served
+     */
+    public void remove(String videoID) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (index.containsKey(videoID)) {
+                append(videoID, SEGMENT_REMOVED, new byte[0]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the archived JSON transcript of a video to a channel
+     * The segment is located and its file pinned under the lock, and the copy runs outside it, so a slow
+     * reader does not hold up writes; a compaction meanwhile leaves the pinned file open until the copy ends
+     * @param videoID The Youtube ID of the video
+     * @param target The channel to write to, usually wrapping a response stream
+     * @return true if the transcript was written, false if the video is not archived (nothing is written)
+     * @throws IOException If the archive cannot be read or target cannot be written
+     */
+    public boolean transferTo(String videoID, WritableByteChannel target) throws IOException {
+        Segment segment;
+        RecordLog.Pin pin;
+        lock.readLock().lock();
+        try {
+            segment = index.get(videoID);
+            if (segment == null) {
+                return false;
+            }
+            pin = log.pin();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try (RecordLog.Pin pinned = pin) {
+            pinned.transferTo(segment.jsonPosition, segment.jsonLength, target);
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the live segments into a new file, dropping replaced and removed ones
+     * The new file replaces the old one with an atomic rename, so a crash leaves one of the two intact
+     * @throws IOException If the new file cannot be written or renamed; the old file stays in use
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Map<String, Segment> compactedIndex = new HashMap<>(index.size() * 2);
+            log.compact(out -> {
+                for (Map.Entry<String, Segment> entry : index.entrySet()) {
+                    Segment segment = entry.getValue();
+                    byte[] payload = log.read(segment.segmentPosition + RecordLog.HEADER_BYTES, segment.segmentBytes - RecordLog.HEADER_BYTES);
+                    out.append(payload, (position, framed) -> compactedIndex.put(entry.getKey(), segment.movedTo(position)));
+                }
+            });
+            index = compactedIndex;
+            liveBytes = log.getFileSize();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the size of the archive file
+     * @return The size of the archive in bytes
+     */
+    public long getFileSize() {
+        lock.readLock().lock();
+        try {
+            return log.getFileSize();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the bytes of the segments still in use
+     * @return The size of the live segments in bytes
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the archive file; the archive cannot be used afterwards
+     * @throws IOException If the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //================================================================================
+    // Private Helper Functions
+    //================================================================================
+
+    /**
+     * Appends a segment and applies it to the index, compacting the archive if it is mostly dead segments
+     * The video is dropped from the index before writing, so a failed write never leaves a stale transcript
+     * @param videoID The Youtube ID of the video
+     * @param type The segment type
+     * @param json The JSON transcript, empty for a removal
+     * @throws IOException If the segment cannot be written
+     */
+    private void append(String videoID, byte type, byte[] json) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Segment previous = index.remove(videoID);
+            if (previous != null) {
+                liveBytes -= previous.segmentBytes;
+            }
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(json.length + videoID.length() + 8);
+            payload.write(type);
+            byte[] id = videoID.getBytes(StandardCharsets.UTF_8);
+            VarInts.writeUnsigned(payload, id.length);
+            payload.write(id, 0, id.length);
+            payload.write(json, 0, json.length);
+            log.append(payload.toByteArray(), this::apply);
+
+            if (log.needsCompaction(liveBytes)) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // the archive is intact; compaction is attempted again after the next write
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a framed segment to the index
+     * @param position The position of the segment in the archive file
+     * @param framed The framed segment, positioned at its start
+     */
+    private void apply(long position, ByteBuffer framed) {
+        int segmentBytes = framed.remaining();
+        framed.position(RecordLog.HEADER_BYTES);
+        byte type = framed.get();
+        int idLength = (int) VarInts.readUnsigned(framed);
+        String videoID = new String(framed.array(), framed.position(), idLength, StandardCharsets.UTF_8);
+        framed.position(framed.position() + idLength);
+
+        Segment previous = index.remove(videoID);
+        if (previous != null) {
+            liveBytes -= previous.segmentBytes;
+        }
+        if (type == SEGMENT_TRANSCRIPT) {
+            index.put(videoID, new Segment(position, segmentBytes, position + framed.position(), framed.remaining()));
+            liveBytes += segmentBytes;
+        }
+    }
+
+    /** The position of a live segment and of the JSON transcript within it */
+    private static final class Segment {
+        private final long segmentPosition;
+        private final int segmentBytes;
+        private final long jsonPosition;
+        private final int jsonLength;
+
+        private Segment(long segmentPosition, int segmentBytes, long jsonPosition, int jsonLength) {
+            this.segmentPosition = segmentPosition;
+            this.segmentBytes = segmentBytes;
+            this.jsonPosition = jsonPosition;
+            this.jsonLength = jsonLength;
+        }
+
+        /**
+         * Gets this segment as copied to another position
+         * @param position The new position of the segment
+         * @return The moved segment
+         */
+        private Segment movedTo(long position) {
+            return new Segment(position, segmentBytes, position + (jsonPosition - segmentPosition), jsonLength);
+        }
+    }
+}
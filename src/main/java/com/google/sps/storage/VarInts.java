@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/** Variable-length integer encoding shared by the compact storage formats */
+final class VarInts {
+
+    private static final int SEVEN_BITS = 0x7F;
+    private static final int CONTINUATION_BIT = 0x80;
+    private static final int MAX_VARLONG_SHIFT = 63;
+
+    private VarInts() {}
+
+    /**
+     * Writes an unsigned value using 7 bits per byte, low bits first
+     * @param out The stream to write the encoded bytes to
+     * @param value The value to write, treated as unsigned
+     */
+    static void writeUnsigned(ByteArrayOutputStream out, long value) {
+        while ((value & ~SEVEN_BITS) != 0) {
+            out.write((int) ((value & SEVEN_BITS) | CONTINUATION_BIT));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes a signed value, zigzag encoded so that small negative values stay short
+     * @param out The stream to write the encoded bytes to
+     * @param value The signed value to write
+     */
+    static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeUnsigned(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads an unsigned value written by writeUnsigned
+     * @param in The buffer positioned at the start of the encoded value
+     * @return The decoded value
+     */
+    static long readUnsigned(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift <= MAX_VARLONG_SHIFT; shift += 7) {
+            int b = in.get();
+            value |= (long) (b & SEVEN_BITS) << shift;
+            if ((b & CONTINUATION_BIT) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Reads a signed value written by writeSigned
+     * @param in The buffer positioned at the start of the encoded value
+     * @return The decoded value
+     */
+    static long readSigned(ByteBuffer in) {
+        long value = readUnsigned(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
@@ -0,0 +1,195 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe least-recently-used cache bounded by the total weight of its values.
+ * Entries also expire after a fixed time-to-live.
+ */
+public final class WeightedLruCache<K, V> {
+
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+    private long weight = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Constructor for a WeightedLruCache
+     * @param maxWeight The maximum total weight of the cached values
+     * @param ttlMillis The time in milliseconds after which an entry expires
+     * @param weigher The function computing the weight of a value
+     */
+    public WeightedLruCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.ttlNanos = ttlMillis * NANOS_PER_MILLI;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Gets a cached value and marks it as recently used
+     * @param key The key of the value
+     * @return The cached value, or null if it is absent or expired
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.insertedAt >= ttlNanos) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entries until the weight bound holds
+     * Values heavier than the whole cache are not cached
+     * @param key The key of the value
+     * @param value The value to cache
+     */
+    public synchronized void put(K key, V value) {
+        remove(key);
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        entries.put(key, new CacheEntry<>(value, valueWeight, System.nanoTime()));
+        weight += valueWeight;
+
+        Iterator<Map.Entry<K, CacheEntry<V>>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Caches a value only if a condition still holds, checking it atomically with the insertion
+     * An invalidate cannot run between the check and the insertion, so a caller that makes the condition
+     * false before invalidating never leaves a value cached past that invalidate
+     * @param key The key of the value
+     * @param value The value to cache
+     * @param condition The condition, checked while holding the cache's lock
+     * @return true if the condition held and the value was offered to the cache
+     */
+    public synchronized boolean putIf(K key, V value, BooleanSupplier condition) {
+        if (!condition.getAsBoolean()) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    /**
+     * Removes a value from the cache
+     * @param key The key of the value to remove
+     */
+    public synchronized void invalidate(K key) {
+        remove(key);
+    }
+
+    /**
+     * Removes every value from the cache
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Gets the number of lookups that found a value
+     * @return The hit count
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Gets the number of lookups that found no value
+     * @return The miss count
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Gets the number of entries evicted to respect the weight bound
+     * @return The eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Gets the total weight of the cached values
+     * @return The current weight
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Gets the number of cached values
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes an entry and releases its weight
+     * @param key The key of the entry to remove
+     */
+    private void remove(K key) {
+        CacheEntry<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    /** A cached value with its weight and insertion time */
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long weight;
+        private final long insertedAt;
+
+        private CacheEntry(V value, long weight, long insertedAt) {
+            this.value = value;
+            this.weight = weight;
+            this.insertedAt = insertedAt;
+        }
+    }
+
+}
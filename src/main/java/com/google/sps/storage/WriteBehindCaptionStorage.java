@@ -0,0 +1,805 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.google.sps.data.TimeRangedText;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue in front of another CaptionStorageInterface for caption ingest.
+ * addVideoAsync, addClausesAsync, replaceClausesAsync and setContentHash only queue their write and return as soon
+ * as it is accepted; a single flusher thread persists queued writes in batches, merging the keyphrases queued for
+ * a video into one addClauses or replaceClauses call and retrying failed writes with exponential backoff. Writes that still fail
+ * are appended as JSON lines to a dead-letter file instead of being retried forever.
+ * Until every queued write of a video is persisted, reads of that video are answered from an in-memory
+ * overlay of its queued captions, metadata and keyphrases, so callers read their own writes.
+ * Every other write waits for the queued writes of its video before reaching the storage, so the order
+ * of writes to a video is kept.
+ * The flusher thread outlives the request that queued a write, so this storage may only be used where
+ * such threads are allowed (the file backend, the local server, or basic and manual scaling).
+ */
+public class WriteBehindCaptionStorage implements CaptionStorageInterface, Closeable {
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 250;
+    // Writes taken off the queue and merged per video in one pass of the flusher
+    private static final int BATCH_SIZE = 32;
+    private static final long POLL_MILLIS = 100;
+    private static final String THREAD_NAME = "caption-write-behind";
+    private static final String CLOSED_ERR = "Write-behind queue is closed";
+    private static final String INTERRUPTED_ERR = "Interrupted while queueing a write for ";
+    private static final String NO_VID_ERR = "Requested video does not exist";
+    private static final String NO_PHRASE_ERR = "Requested keyphrase does not exist in ";
+
+    private final CaptionStorageInterface delegate;
+    private final BlockingQueue<PendingWrite> queue;
+    // Room left in the queue; a write reserves its slot before taking the lock, so no caller waits while holding it
+    private final Semaphore room;
+    private final Map<String, Overlay> overlays = new ConcurrentHashMap<>();
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final Path deadLetterFile;
+    private final Gson gson = new Gson();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private final Object deadLetterLock = new Object();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for a WriteBehindCaptionStorage with the default queue bound and retry policy
+     * @param delegate The storage queued writes are persisted to
+     * @param deadLetterFile The file writes that keep failing are appended to
+     */
+    public WriteBehindCaptionStorage(CaptionStorageInterface delegate, Path deadLetterFile) {
+        this(delegate, DEFAULT_CAPACITY, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MILLIS, deadLetterFile);
+    }
+
+    /**
+     * Constructor for a WriteBehindCaptionStorage
+     * @param delegate The storage queued writes are persisted to
+     * @param capacity The number of writes that may be queued; further writes wait for room
+     * @param maxAttempts The number of times a write is tried before it is dead-lettered
+     * @param retryDelayMillis The delay before the first retry, doubled before each further retry
+     * @param deadLetterFile The file writes that keep failing are appended to
+     */
+    public WriteBehindCaptionStorage(CaptionStorageInterface delegate, int capacity, int maxAttempts, long retryDelayMillis, Path deadLetterFile) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.room = new Semaphore(capacity);
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.deadLetterFile = deadLetterFile;
+        this.flusher = new Thread(this::flushQueue, THREAD_NAME);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    //================================================================================
+    // Queued writes
+    //================================================================================
+
+    // queue a video, its metadata, and its full captions; the future completes once the write is queued
+    public CompletableFuture<Void> addVideoAsync(String videoID, String metadata, List<TimeRangedText> fullCaptions) {
+        List<TimeRangedText> sorted = new ArrayList<>(fullCaptions);
+        sorted.sort(Comparator.comparingLong(TimeRangedText::getStartTime));
+        return DatastoreFutures.completed(() -> {
+            enqueue(PendingWrite.video(videoID, metadata, Collections.unmodifiableList(sorted)), Reason.ADD_VIDEO_ERR);
+            return null;
+        });
+    }
+
+    // queue keyphrases of a stored or queued video; the future completes once the write is queued
+    public CompletableFuture<ClauseWriteResult> addClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return DatastoreFutures.completed(() -> {
+            if (!videoInDb(videoID)) {
+                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+            }
+            enqueue(PendingWrite.clauses(videoID, copyClauses(clauses), false), Reason.ADD_KEYPHRASE_ERR);
+            ClauseWriteResult result = new ClauseWriteResult();
+            result.addWritten(clauses.size());
+            return result;
+        });
+    }
+
+    // queue the complete keyphrases of a stored or queued video; stored keyphrases not among them are deleted
+    // when the write is persisted, and reads stop returning them as soon as it is queued
+    public CompletableFuture<ClauseWriteResult> replaceClausesAsync(String videoID, Map<String, List<Long>> clauses) {
+        return DatastoreFutures.completed(() -> {
+            if (!videoInDb(videoID)) {
+                throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+            }
+            enqueue(PendingWrite.clauses(videoID, copyClauses(clauses), true), Reason.ADD_KEYPHRASE_ERR);
+            ClauseWriteResult result = new ClauseWriteResult();
+            result.addWritten(clauses.size());
+            return result;
+        });
+    }
+
+    // queue the content hash of a stored or queued video
+    // it is persisted after the video's queued keyphrases, and dropped if any of them was dead-lettered
+    public void setContentHash(String videoID, String contentHash) throws CaptionStorageException {
+        if (!videoInDb(videoID)) {
+            throw new CaptionStorageException(Reason.NO_VIDEO_EXISTS, NO_VID_ERR);
+        }
+        enqueue(PendingWrite.contentHash(videoID, contentHash), Reason.ADD_VIDEO_ERR);
+    }
+
+    //================================================================================
+    // Reads, answered from the overlay while a video has queued writes
+    //================================================================================
+
+    // retrieve all keywords of videoID, including queued ones
+    public Map<String, List<Long>> getAllKeywords(String videoID) throws CaptionStorageException {
+        Overlay overlay = overlays.get(videoID);
+        if (overlay == null) {
+            return delegate.getAllKeywords(videoID);
+        }
+
+        Map<String, List<Long>> keywords;
+        try {
+            keywords = new HashMap<>(delegate.getAllKeywords(videoID));
+        } catch (CaptionStorageException e) {
+            if (e.getReason() != Reason.NO_VIDEO_EXISTS || !overlay.hasVideo()) {
+                throw e;
+            }
+            keywords = new HashMap<>();
+        }
+        overlay.addClausesTo(keywords);
+        return keywords;
+    }
+
+    // retrieve the timestamps of a keyword of videoID, including queued ones
+    public List<Long> getTimesForKeyword(String videoID, String keyword) throws CaptionStorageException {
+        Overlay overlay = overlays.get(videoID);
+        if (overlay == null) {
+            return delegate.getTimesForKeyword(videoID, keyword);
+        }
+
+        List<Long> times = overlay.getClause(keyword);
+        if (times != null) {
+            return times;
+        }
+        if (overlay.replacesClauses()) {
+            throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
+        }
+        try {
+            return delegate.getTimesForKeyword(videoID, keyword);
+        } catch (CaptionStorageException e) {
+            if (e.getReason() == Reason.NO_VIDEO_EXISTS && overlay.hasVideo()) {
+                throw new CaptionStorageException(Reason.NO_KEYPHRASE_EXISTS, NO_PHRASE_ERR + videoID);
+            }
+            throw e;
+        }
+    }
+
+    // retrieve full captions of videoID, the queued ones if the video is queued
+    public List<TimeRangedText> getFullCaptions(String videoID) {
+        Overlay overlay = overlays.get(videoID);
+        List<TimeRangedText> captions = overlay == null ? null : overlay.getCaptions();
+        return captions == null ? delegate.getFullCaptions(videoID) : captions;
+    }
+
+    // retrieve one page of caption lines, once the queued writes of videoID are persisted
+    public ResultPage<List<TimeRangedText>> getCaptionsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        return delegate.getCaptionsInRange(videoID, from, to, cursor, limit);
+    }
+
+    // retrieve one page of keywords, once the queued writes of videoID are persisted
+    public ResultPage<Map<String, List<Long>>> getKeywordsInRange(String videoID, long from, long to, String cursor, int limit) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        return delegate.getKeywordsInRange(videoID, from, to, cursor, limit);
+    }
+
+    // return true if specified video is queued or in the database
+    public boolean videoInDb(String videoID) throws CaptionStorageException {
+        Overlay overlay = overlays.get(videoID);
+        return (overlay != null && overlay.hasVideo()) || delegate.videoInDb(videoID);
+    }
+
+    // return true if specified meta is the queued or stored metadata for videoID
+    public boolean metaInDb(String videoID, String meta) throws CaptionStorageException {
+        Overlay overlay = overlays.get(videoID);
+        if (overlay != null && overlay.hasVideo()) {
+            return meta.equals(overlay.getMetadata());
+        }
+        return delegate.metaInDb(videoID, meta);
+    }
+
+    // return the queued content hash of videoID, or the stored one if none is queued
+    public String getContentHash(String videoID) throws CaptionStorageException {
+        Overlay overlay = overlays.get(videoID);
+        if (overlay != null && overlay.knowsContentHash()) {
+            return overlay.getContentHash();
+        }
+        return delegate.getContentHash(videoID);
+    }
+
+    // return the videos among videoIDs that are queued or in the database
+    public Set<String> videosInDb(Collection<String> videoIDs) throws CaptionStorageException {
+        List<String> unqueued = new ArrayList<>();
+        for (String videoID : videoIDs) {
+            Overlay overlay = overlays.get(videoID);
+            if (overlay == null || !overlay.hasVideo()) {
+                unqueued.add(videoID);
+            }
+        }
+
+        Set<String> found = unqueued.isEmpty() ? Collections.<String>emptySet() : delegate.videosInDb(unqueued);
+        Set<String> stored = new LinkedHashSet<>();
+        for (String videoID : videoIDs) {
+            if (found.contains(videoID) || !unqueued.contains(videoID)) {
+                stored.add(videoID);
+            }
+        }
+        return stored;
+    }
+
+    // retrieve all keywords of several videos, reading videos without queued writes in one batch
+    public Map<String, Map<String, List<Long>>> getAllKeywords(Collection<String> videoIDs) throws CaptionStorageException {
+        List<String> unqueued = new ArrayList<>();
+        for (String videoID : videoIDs) {
+            if (!overlays.containsKey(videoID)) {
+                unqueued.add(videoID);
+            }
+        }
+
+        Map<String, Map<String, List<Long>>> fetched = unqueued.isEmpty()
+            ? Collections.<String, Map<String, List<Long>>>emptyMap()
+            : delegate.getAllKeywords(unqueued);
+        Map<String, Map<String, List<Long>>> keywords = new LinkedHashMap<>();
+        for (String videoID : videoIDs) {
+            if (fetched.containsKey(videoID)) {
+                keywords.put(videoID, fetched.get(videoID));
+            } else if (!unqueued.contains(videoID)) {
+                try {
+                    keywords.put(videoID, getAllKeywords(videoID));
+                } catch (CaptionStorageException e) {
+                    if (e.getReason() != Reason.NO_VIDEO_EXISTS) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        return keywords;
+    }
+
+    // asynchronously retrieve all keywords of a video, from the overlay when the video has queued writes
+    public CompletableFuture<Map<String, List<Long>>> getAllKeywordsAsync(String videoID) {
+        if (overlays.containsKey(videoID)) {
+            return DatastoreFutures.completed(() -> getAllKeywords(videoID));
+        }
+        return delegate.getAllKeywordsAsync(videoID);
+    }
+
+    // asynchronously retrieve the full captions of a video, from the overlay when the video is queued
+    public CompletableFuture<List<TimeRangedText>> getFullCaptionsAsync(String videoID) {
+        if (overlays.containsKey(videoID)) {
+            return CompletableFuture.completedFuture(getFullCaptions(videoID));
+        }
+        return delegate.getFullCaptionsAsync(videoID);
+    }
+
+    //================================================================================
+    // Other writes, applied after the queued writes of their video
+    //================================================================================
+
+    // add a video, its metadata, and its full captions to the database
+    public void addVideo(String videoID, String metadata, List<TimeRangedText> fullCaptions) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        delegate.addVideo(videoID, metadata, fullCaptions);
+    }
+
+    // add a keyphrase + timestamp pair to a particular video in the db
+    public void addClause(String videoID, String keyword, List<Long> timestamps) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        delegate.addClause(videoID, keyword, timestamps);
+    }
+
+    // add multiple keyphrase + timestamp pairs to a particular video's entry
+    public ClauseWriteResult addClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        return delegate.addClauses(videoID, clauses);
+    }
+
+    // replace the keyphrases of a video
+    public ClauseWriteResult replaceClauses(String videoID, Map<String, List<Long>> clauses) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        return delegate.replaceClauses(videoID, clauses);
+    }
+
+    // add metadata information to a particular video in the db
+    public void addMetadata(String videoID, String metadata, boolean overwrite) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        delegate.addMetadata(videoID, metadata, overwrite);
+    }
+
+    // delete a video & all its children from the database
+    public int deleteVideo(String videoID) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        return delegate.deleteVideo(videoID);
+    }
+
+    // asynchronously delete a video, once its queued writes are persisted
+    public CompletableFuture<Integer> deleteVideoAsync(String videoID) {
+        awaitFlushed(videoID);
+        return delegate.deleteVideoAsync(videoID);
+    }
+
+    // delete a specific keyword from a video in the database
+    public void deleteClause(String videoID, String keyword) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        delegate.deleteClause(videoID, keyword);
+    }
+
+    // delete multiple keywords from a video in the database
+    public void deleteClauses(String videoID, Collection<String> keywords) throws CaptionStorageException {
+        awaitFlushed(videoID);
+        delegate.deleteClauses(videoID, keywords);
+    }
+
+    // delete the metadata belonging to a specific video; the video is unknown, so every queued write is awaited
+    public void deleteMetadata(String metadata) throws CaptionStorageException {
+        flush();
+        delegate.deleteMetadata(metadata);
+    }
+
+    //================================================================================
+    // Queue Functions (not part of CaptionStorageInterface)
+    //================================================================================
+
+    /** Waits until every write queued so far is persisted or dead-lettered */
+    public void flush() {
+        for (String videoID : new ArrayList<>(overlays.keySet())) {
+            awaitFlushed(videoID);
+        }
+    }
+
+    /**
+     * Gets the number of writes appended to the dead-letter file
+     * @return The number of dead-lettered writes since this object was created
+     */
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    /**
+     * Persists the queued writes and stops the flusher thread; no writes can be queued afterwards
+     */
+    @Override
+    public void close() {
+        // taken under the queue's lock, so a write being queued is in the queue before the flusher can stop
+        synchronized (this) {
+            closed = true;
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //================================================================================
+    // Private Helper Functions
+    //================================================================================
+
+    /**
+     * Adds a write to its video's overlay and to the queue, waiting for room if the queue is full
+     * Room is reserved before the lock is taken, so the queue always accepts the write under the lock;
+     * the lock keeps the overlay and the queue seeing the writes of a video in the same order
+     * @param write The write to queue
+     * @param reason The reason reported if the write cannot be queued
+     * @throws CaptionStorageException With reason if the queue is closed or the caller is interrupted
+     */
+    private void enqueue(PendingWrite write, Reason reason) throws CaptionStorageException {
+        try {
+            room.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CaptionStorageException(reason, INTERRUPTED_ERR + write.videoID, e);
+        }
+        synchronized (this) {
+            if (closed) {
+                room.release();
+                throw new CaptionStorageException(reason, CLOSED_ERR);
+            }
+            overlays.compute(write.videoID, (videoID, overlay) -> {
+                Overlay updated = overlay == null ? new Overlay() : overlay;
+                updated.add(write);
+                return updated;
+            });
+            queue.add(write);
+        }
+    }
+
+    /** Body of the flusher thread: persists batches of queued writes until closed and drained */
+    private void flushQueue() {
+        List<PendingWrite> batch = new ArrayList<>(BATCH_SIZE);
+        while (!closed || !queue.isEmpty()) {
+            PendingWrite first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            room.release(batch.size());
+            for (PendingWrite write : merge(batch)) {
+                persist(write);
+            }
+            for (PendingWrite write : batch) {
+                release(write.videoID);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Merges a batch into at most one video write, one keyphrase write and one content hash write per video
+     * The last video write of a video replaces earlier ones, and later keyphrases replace earlier ones;
+     * a keyphrase replacement drops the keyphrases queued before it and makes the merged write a replacement;
+     * the video write goes first, since storing a video leaves its keyphrases unchanged, and the hash goes last.
+     * A video write drops a hash queued before it, since storing the video clears the hash
+     * @param batch The writes in the order they were queued
+     * @return The merged writes
+     */
+    private static List<PendingWrite> merge(List<PendingWrite> batch) {
+        Map<String, PendingWrite> videos = new LinkedHashMap<>();
+        Map<String, Map<String, List<Long>>> clauses = new LinkedHashMap<>();
+        Set<String> replaced = new HashSet<>();
+        Map<String, PendingWrite> hashes = new LinkedHashMap<>();
+        for (PendingWrite write : batch) {
+            if (write.captions != null) {
+                videos.put(write.videoID, write);
+                hashes.remove(write.videoID);
+            } else if (write.clauses != null) {
+                if (write.replace) {
+                    clauses.remove(write.videoID);
+                    replaced.add(write.videoID);
+                }
+                clauses.computeIfAbsent(write.videoID, videoID -> new HashMap<>()).putAll(write.clauses);
+            } else {
+                hashes.put(write.videoID, write);
+            }
+        }
+
+        List<PendingWrite> merged = new ArrayList<>(videos.values());
+        for (Map.Entry<String, Map<String, List<Long>>> entry : clauses.entrySet()) {
+            merged.add(PendingWrite.clauses(entry.getKey(), entry.getValue(), replaced.contains(entry.getKey())));
+        }
+        merged.addAll(hashes.values());
+        return merged;
+    }
+
+    /**
+     * Persists a write, retrying failures with exponential backoff and dead-lettering it once attempts run out
+     * A keyphrase write only retries the keyphrases that failed, adding them once a replacement has deleted the
+     * stale keyphrases; a missing video is not retried.
+     * A content hash is dropped instead if an earlier write of its video was dead-lettered,
+     * since the stored keyphrases would then not match the hashed captions
+     * @param write The write to persist
+     */
+    private void persist(PendingWrite write) {
+        Overlay overlay = overlays.get(write.videoID);
+        boolean isHash = write.captions == null && write.clauses == null;
+        if (isHash && overlay != null && overlay.hasFailed()) {
+            return;
+        }
+
+        Map<String, List<Long>> remaining = write.clauses;
+        boolean replace = write.replace;
+        CaptionStorageException failure = null;
+        int attempt = 0;
+        while (attempt < maxAttempts) {
+            if (attempt > 0) {
+                sleep(retryDelayMillis << (attempt - 1));
+            }
+            attempt++;
+            try {
+                if (write.captions != null) {
+                    delegate.addVideo(write.videoID, write.metadata, write.captions);
+                    return;
+                }
+                if (isHash) {
+                    delegate.setContentHash(write.videoID, write.contentHash);
+                    return;
+                }
+                ClauseWriteResult result = replace
+                    ? delegate.replaceClauses(write.videoID, remaining)
+                    : delegate.addClauses(write.videoID, remaining);
+                if (result.isSuccessful()) {
+                    return;
+                }
+                replace = false;
+                remaining = new HashMap<>(remaining);
+                remaining.keySet().retainAll(result.getFailedKeywords());
+                failure = new CaptionStorageException(Reason.ADD_KEYPHRASE_ERR, result.getFailedKeywords().toString());
+            } catch (CaptionStorageException e) {
+                failure = e;
+                if (e.getReason() == Reason.NO_VIDEO_EXISTS) {
+                    break;
+                }
+            }
+        }
+        if (overlay != null) {
+            overlay.markFailed();
+        }
+        deadLetter(new PendingWrite(write.videoID, write.metadata, write.captions, remaining, replace, write.contentHash), failure, attempt);
+    }
+
+    /**
+     * Appends a write that could not be persisted to the dead-letter file as one JSON line
+     * @param write The write, with only the keyphrases that failed
+     * @param failure The last failure of the write
+     * @param attempts The number of times the write was tried
+     */
+    private void deadLetter(PendingWrite write, CaptionStorageException failure, int attempts) {
+        deadLetterCount.incrementAndGet();
+        String line = gson.toJson(new DeadLetter(write, failure, attempts)) + System.lineSeparator();
+        // a lock of its own, so the flusher never waits on callers queueing writes
+        synchronized (deadLetterLock) {
+            try {
+                Files.write(deadLetterFile, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                // nothing else can keep the write; it is still counted in getDeadLetterCount
+            }
+        }
+    }
+
+    /**
+     * Marks one queued write of a video as done, dropping the video's overlay once none are left
+     * @param videoID The Youtube ID of the video
+     */
+    private void release(String videoID) {
+        List<Overlay> drained = new ArrayList<>(1);
+        overlays.computeIfPresent(videoID, (id, overlay) -> {
+            if (!overlay.release()) {
+                return overlay;
+            }
+            drained.add(overlay);
+            return null;
+        });
+        // completed once the overlay is out of the map, so a caller that waited on it reads the storage
+        for (Overlay overlay : drained) {
+            overlay.flushed.complete(null);
+        }
+    }
+
+    /**
+     * Waits until the writes queued for a video so far are persisted or dead-lettered
+     * @param videoID The Youtube ID of the video
+     */
+    private void awaitFlushed(String videoID) {
+        Overlay overlay = overlays.get(videoID);
+        if (overlay != null) {
+            overlay.flushed.join();
+        }
+    }
+
+    /**
+     * Sleeps before a retry; an interrupt cuts the delay short, since the flusher only stops once drained
+     * @param millis The delay in milliseconds
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // retry right away
+        }
+    }
+
+    /**
+     * Copies a keyword map so later changes by the caller do not reach the queued write
+     * @param clauses The keyword map
+     * @return An unmodifiable copy
+     */
+    private static Map<String, List<Long>> copyClauses(Map<String, List<Long>> clauses) {
+        Map<String, List<Long>> copy = new HashMap<>(clauses.size() * 2);
+        for (Map.Entry<String, List<Long>> entry : clauses.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * A queued write: a video with its metadata and sorted captions, keyphrases of a video, or its content hash
+     * Keyphrases that replace every stored keyphrase of the video are marked with replace
+     */
+    private static final class PendingWrite {
+        private final String videoID;
+        private final String metadata;
+        private final List<TimeRangedText> captions;
+        private final Map<String, List<Long>> clauses;
+        private final boolean replace;
+        private final String contentHash;
+
+        private PendingWrite(String videoID, String metadata, List<TimeRangedText> captions, Map<String, List<Long>> clauses, boolean replace, String contentHash) {
+            this.videoID = videoID;
+            this.metadata = metadata;
+            this.captions = captions;
+            this.clauses = clauses;
+            this.replace = replace;
+            this.contentHash = contentHash;
+        }
+
+        private static PendingWrite video(String videoID, String metadata, List<TimeRangedText> captions) {
+            return new PendingWrite(videoID, metadata, captions, null, false, null);
+        }
+
+        private static PendingWrite clauses(String videoID, Map<String, List<Long>> clauses, boolean replace) {
+            return new PendingWrite(videoID, null, null, clauses, replace, null);
+        }
+
+        private static PendingWrite contentHash(String videoID, String contentHash) {
+            return new PendingWrite(videoID, null, null, null, false, contentHash);
+        }
+    }
+
+    /** The queued writes of one video not yet persisted, as seen by reads */
+    private static final class Overlay {
+        private final CompletableFuture<Void> flushed = new CompletableFuture<>();
+        private final Map<String, List<Long>> clauses = new HashMap<>();
+        private List<TimeRangedText> captions;
+        private String metadata;
+        private String contentHash;
+        private boolean knowsContentHash = false;
+        private boolean replacesClauses = false;
+        private boolean failed = false;
+        private int pending = 0;
+
+        private synchronized void add(PendingWrite write) {
+            pending++;
+            if (write.captions != null) {
+                captions = write.captions;
+                metadata = write.metadata;
+                contentHash = null;   // storing the video clears its hash
+                knowsContentHash = true;
+            } else if (write.clauses != null) {
+                if (write.replace) {
+                    clauses.clear();
+                    replacesClauses = true;
+                }
+                clauses.putAll(write.clauses);
+            } else {
+                contentHash = write.contentHash;
+                knowsContentHash = true;
+            }
+        }
+
+        /**
+         * Marks one write as done
+         * @return true if this was the last queued write of the video
+         */
+        private synchronized boolean release() {
+            pending--;
+            return pending == 0;
+        }
+
+        private synchronized boolean hasVideo() {
+            return captions != null;
+        }
+
+        private synchronized List<TimeRangedText> getCaptions() {
+            return captions;
+        }
+
+        private synchronized String getMetadata() {
+            return metadata;
+        }
+
+        private synchronized boolean knowsContentHash() {
+            return knowsContentHash;
+        }
+
+        private synchronized String getContentHash() {
+            return contentHash;
+        }
+
+        private synchronized void markFailed() {
+            failed = true;
+        }
+
+        private synchronized boolean hasFailed() {
+            return failed;
+        }
+
+        private synchronized List<Long> getClause(String keyword) {
+            return clauses.get(keyword);
+        }
+
+        private synchronized boolean replacesClauses() {
+            return replacesClauses;
+        }
+
+        private synchronized void addClausesTo(Map<String, List<Long>> keywords) {
+            if (replacesClauses) {
+                keywords.clear();
+            }
+            keywords.putAll(clauses);
+        }
+    }
+
+    /** A line of the dead-letter file */
+    private static final class DeadLetter {
+        @SerializedName("videoID")
+        private final String videoID;
+        @SerializedName("reason")
+        private final String reason;
+        @SerializedName("message")
+        private final String message;
+        @SerializedName("attempts")
+        private final int attempts;
+        @SerializedName("metadata")
+        private final String metadata;
+        @SerializedName("captions")
+        private final List<TimeRangedText> captions;
+        @SerializedName("clauses")
+        private final Map<String, List<Long>> clauses;
+        @SerializedName("replace")
+        private final boolean replace;
+        @SerializedName("contentHash")
+        private final String contentHash;
+
+        private DeadLetter(PendingWrite write, CaptionStorageException failure, int attempts) {
+            this.videoID = write.videoID;
+            this.reason = failure == null || failure.getReason() == null ? null : failure.getReason().name();
+            this.message = failure == null ? null : failure.getMessage();
+            this.attempts = attempts;
+            this.metadata = write.metadata;
+            this.captions = write.captions;
+            this.clauses = write.clauses;
+            this.replace = write.replace;
+            this.contentHash = write.contentHash;
+        }
+    }
+}
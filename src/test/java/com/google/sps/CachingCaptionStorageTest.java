@@ -0,0 +1,154 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.data.TimeRangedText;
+import com.google.sps.storage.CachingCaptionStorage;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageInterface;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.Mockito.*;
+
+/** Tests for the CachingCaptionStorage decorator */
+@RunWith(JUnit4.class)
+public final class CachingCaptionStorageTest {
+
+    private static final String VIDEO_A = "videoA";
+    private static final String VIDEO_B = "videoB";
+    private static final String KEYWORD = "hello";
+    private static final long TTL_MILLIS = 60 * 1000;
+
+    private CaptionStorageInterface delegate;
+    private Map<String, List<Long>> keywords;
+    private List<TimeRangedText> captions;
+
+    @Before
+    public void Setup() throws CaptionStorageException {
+        delegate = mock(CaptionStorageInterface.class);
+        keywords = new HashMap<>();
+        keywords.put(KEYWORD, Arrays.asList(1L, 2L));
+        captions = Arrays.asList(new TimeRangedText(0, 1, KEYWORD));
+
+        when(delegate.videoInDb(VIDEO_A)).thenReturn(true);
+        when(delegate.getAllKeywords(anyString())).thenReturn(keywords);
+        when(delegate.getFullCaptions(anyString())).thenReturn(captions);
+    }
+
+    @Test
+    public void RepeatedReadsAreCachedTest() throws CaptionStorageException {
+        // Reading the same video twice only reads through once
+        CachingCaptionStorage cache = new CachingCaptionStorage(delegate);
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(cache.videoInDb(VIDEO_A));
+            Assert.assertEquals(keywords, cache.getAllKeywords(VIDEO_A));
+            Assert.assertEquals(captions, cache.getFullCaptions(VIDEO_A));
+            Assert.assertEquals(keywords.get(KEYWORD), cache.getTimesForKeyword(VIDEO_A, KEYWORD));
+        }
+
+        verify(delegate, times(1)).videoInDb(VIDEO_A);
+        verify(delegate, times(1)).getAllKeywords(VIDEO_A);
+        verify(delegate, times(1)).getFullCaptions(VIDEO_A);
+        verify(delegate, never()).getTimesForKeyword(VIDEO_A, KEYWORD);
+        Assert.assertEquals(5, cache.getHitCount());
+        Assert.assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void MissingVideoIsNotCachedTest() throws CaptionStorageException {
+        // A video that is not in the database is looked up again on every call
+        CachingCaptionStorage cache = new CachingCaptionStorage(delegate);
+
+        Assert.assertFalse(cache.videoInDb(VIDEO_B));
+        Assert.assertFalse(cache.videoInDb(VIDEO_B));
+
+        verify(delegate, times(2)).videoInDb(VIDEO_B);
+    }
+
+    @Test
+    public void WritesInvalidateTest() throws CaptionStorageException {
+        // Writes to a video cause the next read of that video to read through again
+        CachingCaptionStorage cache = new CachingCaptionStorage(delegate);
+
+        cache.getAllKeywords(VIDEO_A);
+        cache.addClauses(VIDEO_A, Collections.emptyMap());
+        cache.getAllKeywords(VIDEO_A);
+        cache.deleteClause(VIDEO_A, KEYWORD);
+        cache.getAllKeywords(VIDEO_A);
+        cache.getFullCaptions(VIDEO_A);
+        cache.addVideo(VIDEO_A, "", captions);
+        cache.getFullCaptions(VIDEO_A);
+
+        verify(delegate, times(3)).getAllKeywords(VIDEO_A);
+        verify(delegate, times(2)).getFullCaptions(VIDEO_A);
+    }
+
+    @Test
+    public void ReadsRacingWritesAreNotCachedTest() throws CaptionStorageException {
+        // A read that returns what it saw before an overlapping write does not cache it
+        CachingCaptionStorage cache = new CachingCaptionStorage(delegate);
+        Map<String, List<Long>> updated = new HashMap<>();
+        updated.put(KEYWORD, Arrays.asList(5L));
+        when(delegate.getAllKeywords(VIDEO_A)).thenAnswer(invocation -> {
+            cache.addClause(VIDEO_A, KEYWORD, Arrays.asList(5L));
+            return keywords;
+        }).thenReturn(updated);
+        when(delegate.getFullCaptions(VIDEO_A)).thenAnswer(invocation -> {
+            cache.addVideo(VIDEO_A, "", captions);
+            return Arrays.asList(new TimeRangedText(0, 1, "stale"));
+        }).thenReturn(captions);
+
+        Assert.assertEquals(keywords, cache.getAllKeywords(VIDEO_A));
+        Assert.assertEquals(updated, cache.getAllKeywords(VIDEO_A));
+        Assert.assertEquals(updated, cache.getAllKeywords(VIDEO_A));
+        verify(delegate, times(2)).getAllKeywords(VIDEO_A);
+
+        cache.getFullCaptions(VIDEO_A);
+        Assert.assertEquals(captions, cache.getFullCaptions(VIDEO_A));
+        Assert.assertEquals(captions, cache.getFullCaptions(VIDEO_A));
+        verify(delegate, times(2)).getFullCaptions(VIDEO_A);
+    }
+
+    @Test
+    public void WeightBoundEvictsTest() throws CaptionStorageException {
+        // A cache that fits a single keyword map evicts the least recently used one
+        CachingCaptionStorage cache = new CachingCaptionStorage(delegate, 200, TTL_MILLIS);
+
+        cache.getAllKeywords(VIDEO_A);
+        cache.getAllKeywords(VIDEO_B);
+        cache.getAllKeywords(VIDEO_B);
+        cache.getAllKeywords(VIDEO_A);
+
+        verify(delegate, times(2)).getAllKeywords(VIDEO_A);
+        verify(delegate, times(1)).getAllKeywords(VIDEO_B);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void CachedValuesAreUnmodifiableTest() throws CaptionStorageException {
+        // Callers cannot change cached keyword maps
+        CachingCaptionStorage cache = new CachingCaptionStorage(delegate);
+
+        cache.getAllKeywords(VIDEO_A).put(KEYWORD, Arrays.asList(3L));
+    }
+}
@@ -0,0 +1,91 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.data.TimeRangedText;
+import com.google.sps.storage.CaptionBlobCodec;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the CaptionBlobCodec encoding */
+@RunWith(JUnit4.class)
+public final class CaptionBlobCodecTest {
+
+    @Test
+    public void RoundTripTest() {
+        // Captions with unsorted, overlapping and non-ASCII lines decode to the same list
+        List<TimeRangedText> captions = Arrays.asList(
+            new TimeRangedText(5, 9, "Hello World"),
+            new TimeRangedText(3, 12, "café 漢字 😀"),
+            new TimeRangedText(3600, 3600, ""),
+            new TimeRangedText(-1, Long.MAX_VALUE, "edges"));
+
+        Assert.assertEquals(captions, CaptionBlobCodec.decode(CaptionBlobCodec.encode(captions)));
+    }
+
+    @Test
+    public void EmptyListTest() {
+        // An empty transcript still produces a decodable blob
+        List<TimeRangedText> captions = Collections.emptyList();
+
+        Assert.assertEquals(captions, CaptionBlobCodec.decode(CaptionBlobCodec.encode(captions)));
+    }
+
+    @Test
+    public void SplitAndJoinTest() {
+        // A blob split into small chunks joins back into a decodable blob
+        List<TimeRangedText> captions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            captions.add(new TimeRangedText(i * 3, i * 3 + 3, "line number " + i));
+        }
+        byte[] blob = CaptionBlobCodec.encode(captions);
+        List<byte[]> chunks = CaptionBlobCodec.split(blob, 100);
+
+        Assert.assertEquals((blob.length + 99) / 100, chunks.size());
+        Assert.assertEquals(captions, CaptionBlobCodec.decode(CaptionBlobCodec.join(chunks)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void MalformedBlobTest() {
+        // Bytes that were not produced by the codec are rejected
+        CaptionBlobCodec.decode(new byte[] {1, 2, 3});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ImpossibleLineCountTest() {
+        // A line count larger than the rest of the blob could hold is rejected before anything is allocated
+        byte[] raw = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        blob.write(1);
+        byte[] buffer = new byte[64];
+        while (!deflater.finished()) {
+            blob.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        CaptionBlobCodec.decode(blob.toByteArray());
+    }
+}
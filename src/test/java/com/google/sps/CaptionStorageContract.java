@@ -0,0 +1,242 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.data.TimeRangedText;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageInterface;
+import com.google.sps.storage.Reason;
+import com.google.sps.storage.ResultPage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/**
+ * Behaviour every CaptionStorageInterface implementation must share
+ * Subclasses provide the storage under test and the setup of its backing service
+ */
+public abstract class CaptionStorageContract {
+
+    protected static final String VIDEO_A = "videoA";
+    protected static final String VIDEO_B = "videoB";
+    protected static final String METADATA = "no_metadata";
+    protected static final String KEYWORD_A = "hello";
+    protected static final String KEYWORD_B = "world";
+
+    /**
+     * Gets the storage under test, backed by an empty store
+     * @return The storage under test
+     */
+    protected abstract CaptionStorageInterface storage();
+
+    @Test
+    public void VideoInDbContractTest() throws CaptionStorageException {
+        // Only the added video should be found
+        storage().addVideo(VIDEO_A, METADATA, captions(3));
+
+        Assert.assertTrue(storage().videoInDb(VIDEO_A));
+        Assert.assertFalse(storage().videoInDb(VIDEO_B));
+    }
+
+    @Test
+    public void FullCaptionsContractTest() throws CaptionStorageException {
+        // Captions are scoped to their video and returned in start time order
+        List<TimeRangedText> unsorted = Arrays.asList(
+            new TimeRangedText(20, 30, "third"),
+            new TimeRangedText(0, 10, "first"),
+            new TimeRangedText(10, 20, "second"));
+        storage().addVideo(VIDEO_A, METADATA, unsorted);
+        storage().addVideo(VIDEO_B, METADATA, captions(5));
+
+        Assert.assertEquals(Arrays.asList(unsorted.get(1), unsorted.get(2), unsorted.get(0)), storage().getFullCaptions(VIDEO_A));
+        Assert.assertTrue(storage().getFullCaptions("missing").isEmpty());
+    }
+
+    @Test
+    public void KeywordsContractTest() throws CaptionStorageException {
+        // Keywords are read, replaced and deleted per video
+        storage().addVideo(VIDEO_A, METADATA, captions(1));
+        storage().addVideo(VIDEO_B, METADATA, captions(1));
+        Map<String, List<Long>> clauses = new HashMap<>();
+        clauses.put(KEYWORD_A, Arrays.asList(1L, 2L));
+        clauses.put(KEYWORD_B, Arrays.asList(3L));
+        clauses.put("other", Arrays.asList(4L));
+        Assert.assertEquals(3, storage().addClauses(VIDEO_A, clauses).getWrittenCount());
+        storage().addClause(VIDEO_B, KEYWORD_A, Arrays.asList(5L));
+        storage().addClause(VIDEO_B, KEYWORD_A, Arrays.asList(6L, 7L));
+
+        Assert.assertEquals(clauses, storage().getAllKeywords(VIDEO_A));
+        Assert.assertEquals(Arrays.asList(6L, 7L), storage().getTimesForKeyword(VIDEO_B, KEYWORD_A));
+
+        storage().deleteClause(VIDEO_B, KEYWORD_A);
+        storage().deleteClauses(VIDEO_A, Arrays.asList(KEYWORD_B, "other", "never stored"));
+        Assert.assertEquals(Collections.singletonMap(KEYWORD_A, Arrays.asList(1L, 2L)), storage().getAllKeywords(VIDEO_A));
+        assertReason(Reason.NO_KEYPHRASE_EXISTS, () -> storage().getTimesForKeyword(VIDEO_B, KEYWORD_A));
+    }
+
+    @Test
+    public void ReplaceClausesContractTest() throws CaptionStorageException {
+        // Replacing the keywords of a video deletes the stored ones that are not among the new ones
+        storage().addVideo(VIDEO_A, METADATA, captions(1));
+        Map<String, List<Long>> stored = new HashMap<>();
+        stored.put(KEYWORD_A, Arrays.asList(1L));
+        stored.put(KEYWORD_B, Arrays.asList(2L));
+        storage().addClauses(VIDEO_A, stored);
+
+        Map<String, List<Long>> replacement = new HashMap<>();
+        replacement.put(KEYWORD_A, Arrays.asList(3L));
+        replacement.put("other", Arrays.asList(4L));
+        Assert.assertEquals(2, storage().replaceClausesAsync(VIDEO_A, replacement).join().getWrittenCount());
+
+        Assert.assertEquals(replacement, storage().getAllKeywords(VIDEO_A));
+        assertReason(Reason.NO_KEYPHRASE_EXISTS, () -> storage().getTimesForKeyword(VIDEO_A, KEYWORD_B));
+    }
+
+    @Test
+    public void MissingVideoContractTest() {
+        // Writes and reads that need a stored video fail with NO_VIDEO_EXISTS
+        assertReason(Reason.NO_VIDEO_EXISTS, () -> storage().addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L)));
+        assertReason(Reason.NO_VIDEO_EXISTS, () -> storage().addClauses(VIDEO_A, new HashMap<>()));
+        assertReason(Reason.NO_VIDEO_EXISTS, () -> storage().getAllKeywords(VIDEO_A));
+        assertReason(Reason.NO_VIDEO_EXISTS, () -> storage().addMetadata(VIDEO_A, METADATA, true));
+        assertReason(Reason.NO_VIDEO_EXISTS, () -> storage().deleteVideo(VIDEO_A));
+    }
+
+    @Test
+    public void MetadataContractTest() throws CaptionStorageException {
+        // Metadata is appended to or overwritten for the given video only
+        storage().addVideo(VIDEO_A, METADATA, captions(1));
+        storage().addVideo(VIDEO_B, METADATA, captions(1));
+
+        storage().addMetadata(VIDEO_A, "_more", false);
+        Assert.assertTrue(storage().metaInDb(VIDEO_A, METADATA + "_more"));
+        Assert.assertTrue(storage().metaInDb(VIDEO_B, METADATA));
+
+        storage().addMetadata(VIDEO_A, "replaced", true);
+        Assert.assertTrue(storage().metaInDb(VIDEO_A, "replaced"));
+
+        storage().deleteMetadata("replaced");
+        Assert.assertFalse(storage().metaInDb(VIDEO_A, "replaced"));
+        assertReason(Reason.NO_META_EXISTS, () -> storage().addMetadata(VIDEO_A, METADATA, false));
+    }
+
+    @Test
+    public void ContentHashContractTest() throws CaptionStorageException {
+        // The content hash is kept per video until the video is stored again
+        storage().addVideo(VIDEO_A, METADATA, captions(2));
+        storage().addVideo(VIDEO_B, METADATA, captions(2));
+        Assert.assertNull(storage().getContentHash(VIDEO_A));
+
+        storage().setContentHash(VIDEO_A, "hash");
+        Assert.assertEquals("hash", storage().getContentHash(VIDEO_A));
+        Assert.assertNull(storage().getContentHash(VIDEO_B));
+        Assert.assertEquals(captions(2), storage().getFullCaptions(VIDEO_A));
+
+        storage().addVideo(VIDEO_A, METADATA, captions(3));
+        Assert.assertNull(storage().getContentHash(VIDEO_A));
+        Assert.assertNull(storage().getContentHash("missing"));
+        assertReason(Reason.NO_VIDEO_EXISTS, () -> storage().setContentHash("missing", "hash"));
+    }
+
+    @Test
+    public void DeleteVideoContractTest() throws CaptionStorageException {
+        // Deleting a video removes its metadata, captions and keywords and nothing of other videos
+        storage().addVideo(VIDEO_A, METADATA, captions(3));
+        storage().addVideo(VIDEO_B, METADATA, captions(2));
+        storage().addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+        storage().addClause(VIDEO_B, KEYWORD_B, Arrays.asList(1L));
+
+        Assert.assertEquals(6, storage().deleteVideo(VIDEO_A));
+
+        Assert.assertFalse(storage().videoInDb(VIDEO_A));
+        Assert.assertFalse(storage().metaInDb(VIDEO_A, METADATA));
+        Assert.assertTrue(storage().getFullCaptions(VIDEO_A).isEmpty());
+        Assert.assertEquals(captions(2), storage().getFullCaptions(VIDEO_B));
+        Assert.assertEquals(Arrays.asList(1L), storage().getTimesForKeyword(VIDEO_B, KEYWORD_B));
+    }
+
+    @Test
+    public void RangeReadsContractTest() throws CaptionStorageException {
+        // Captions and keywords within a window are paged through completely and in order
+        List<TimeRangedText> all = captions(50);
+        storage().addVideo(VIDEO_A, METADATA, all);
+        Map<String, List<Long>> clauses = new HashMap<>();
+        clauses.put(KEYWORD_A, Arrays.asList(1L, 15L, 40L));
+        clauses.put(KEYWORD_B, Arrays.asList(50L));
+        clauses.put("late", Arrays.asList(12L, 19L));
+        storage().addClauses(VIDEO_A, clauses);
+
+        List<TimeRangedText> lines = new ArrayList<>();
+        String cursor = null;
+        do {
+            ResultPage<List<TimeRangedText>> page = storage().getCaptionsInRange(VIDEO_A, 10, 35, cursor, 10);
+            Assert.assertTrue(page.getResults().size() <= 10);
+            lines.addAll(page.getResults());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        Assert.assertEquals(all.subList(10, 35), lines);
+
+        Map<String, List<Long>> expected = new HashMap<>();
+        expected.put(KEYWORD_A, Arrays.asList(15L));
+        expected.put("late", Arrays.asList(12L, 19L));
+        Map<String, List<Long>> keywords = new HashMap<>();
+        do {
+            ResultPage<Map<String, List<Long>>> page = storage().getKeywordsInRange(VIDEO_A, 10, 20, cursor, 1);
+            keywords.putAll(page.getResults());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        Assert.assertEquals(expected, keywords);
+    }
+
+    @Test
+    public void BatchReadsContractTest() throws CaptionStorageException {
+        // Batch reads return stored videos in the order asked for and leave out missing ones
+        storage().addVideo(VIDEO_A, METADATA, captions(1));
+        storage().addVideo(VIDEO_B, METADATA, captions(1));
+        storage().addClause(VIDEO_B, KEYWORD_B, Arrays.asList(2L, 3L));
+        List<String> course = Arrays.asList(VIDEO_B, "missing", VIDEO_A);
+
+        Assert.assertEquals(Arrays.asList(VIDEO_B, VIDEO_A), new ArrayList<>(storage().videosInDb(course)));
+        Map<String, Map<String, List<Long>>> keywords = storage().getAllKeywords(course);
+        Assert.assertEquals(Arrays.asList(VIDEO_B, VIDEO_A), new ArrayList<>(keywords.keySet()));
+        Assert.assertEquals(Collections.singletonMap(KEYWORD_B, Arrays.asList(2L, 3L)), keywords.get(VIDEO_B));
+        Assert.assertTrue(keywords.get(VIDEO_A).isEmpty());
+    }
+
+    /** A storage call expected to fail */
+    protected interface StorageCall {
+        void run() throws CaptionStorageException;
+    }
+
+    /**
+     * Asserts that a storage call fails with the given reason
+     * @param reason The expected reason
+     * @param call The call expected to fail
+     */
+    protected static void assertReason(Reason reason, StorageCall call) {
+        try {
+            call.run();
+            Assert.fail("Expected " + reason);
+        } catch (CaptionStorageException e) {
+            Assert.assertEquals(reason, e.getReason());
+        }
+    }
+}
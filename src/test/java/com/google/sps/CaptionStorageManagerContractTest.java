@@ -0,0 +1,51 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.storage.CaptionStorageInterface;
+import com.google.sps.storage.CaptionStorageManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Runs the storage contract against CaptionStorageManager and the local Datastore service */
+@RunWith(JUnit4.class)
+public final class CaptionStorageManagerContractTest extends CaptionStorageContract {
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy())
+            .setEnvAttributes(StorageTestHelpers.requestThreadAttributes());
+
+    private CaptionStorageManager db;
+
+    @Before
+    public void Setup() {
+        helper.setUp();
+        db = new CaptionStorageManager();
+    }
+
+    @After
+    public void TearDown() {
+        helper.tearDown();
+    }
+
+    @Override
+    protected CaptionStorageInterface storage() {
+        return db;
+    }
+}
@@ -0,0 +1,506 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.data.TimeRangedText;
+import com.google.sps.storage.CaptionFormat;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.ClauseWriteResult;
+import com.google.sps.storage.KeywordFormat;
+import com.google.sps.storage.CaptionStorageManager;
+import com.google.sps.storage.Reason;
+import com.google.sps.storage.ResultPage;
+import com.google.sps.storage.SharedCaptionCache;
+import com.google.sps.storage.TimestampList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/** Tests for CaptionStorageManager against the local Datastore service */
+@RunWith(JUnit4.class)
+public final class CaptionStorageManagerTest {
+
+    private static final String VIDEO_A = "videoA";
+    private static final String VIDEO_B = "videoB";
+    private static final String METADATA = "no_metadata";
+    private static final String KEYWORD_A = "hello";
+    private static final String KEYWORD_B = "world";
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig())
+        .setEnvAttributes(StorageTestHelpers.requestThreadAttributes());
+
+    private CaptionStorageManager db;
+
+    @Before
+    public void Setup() {
+        helper.setUp();
+        db = new CaptionStorageManager();
+    }
+
+    @After
+    public void TearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void VideoInDbTest() throws CaptionStorageException {
+        // Only the added video should be found
+        db.addVideo(VIDEO_A, METADATA, captions(3));
+
+        Assert.assertTrue(db.videoInDb(VIDEO_A));
+        Assert.assertFalse(db.videoInDb(VIDEO_B));
+    }
+
+    @Test
+    public void VideoInDbIsStronglyConsistentTest() throws CaptionStorageException {
+        // An added video is found even before any write is visible to queries
+        helper.tearDown();
+        LocalServiceTestHelper eventual = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+            new LocalMemcacheServiceTestConfig());
+        eventual.setUp();
+        try {
+            CaptionStorageManager eventualDb = new CaptionStorageManager();
+            eventualDb.addVideo(VIDEO_A, METADATA, captions(3));
+
+            Assert.assertTrue(eventualDb.videoInDb(VIDEO_A));
+            Assert.assertFalse(eventualDb.videoInDb(VIDEO_B));
+        } finally {
+            eventual.tearDown();
+            helper.setUp();
+        }
+    }
+
+    @Test
+    public void KeywordsAreScopedToVideoTest() throws CaptionStorageException {
+        // Keywords added to one video should not be returned for another video
+        db.addVideo(VIDEO_A, METADATA, captions(1));
+        db.addVideo(VIDEO_B, METADATA, captions(1));
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L, 2L));
+        db.addClause(VIDEO_B, KEYWORD_B, Arrays.asList(3L));
+
+        Map<String, List<Long>> expected = new HashMap<>();
+        expected.put(KEYWORD_A, Arrays.asList(1L, 2L));
+
+        Assert.assertEquals(expected, db.getAllKeywords(VIDEO_A));
+    }
+
+    @Test
+    public void FullCaptionsAreScopedAndSortedTest() throws CaptionStorageException {
+        // Only the captions of the requested video are returned, in start time order
+        List<TimeRangedText> unsorted = Arrays.asList(
+            new TimeRangedText(20, 30, "third"),
+            new TimeRangedText(0, 10, "first"),
+            new TimeRangedText(10, 20, "second"));
+        db.addVideo(VIDEO_A, METADATA, unsorted);
+        db.addVideo(VIDEO_B, METADATA, captions(5));
+
+        List<TimeRangedText> expected = Arrays.asList(unsorted.get(1), unsorted.get(2), unsorted.get(0));
+
+        Assert.assertEquals(expected, db.getFullCaptions(VIDEO_A));
+    }
+
+    @Test
+    public void LargeVideoIsWrittenInBatchesTest() throws CaptionStorageException {
+        // A video with more captions than fit in one put is stored completely
+        List<TimeRangedText> expected = captions(1201);
+        db.addVideo(VIDEO_A, METADATA, expected);
+
+        Assert.assertEquals(expected, db.getFullCaptions(VIDEO_A));
+    }
+
+    @Test
+    public void TransactionalWritesTest() throws CaptionStorageException {
+        // Batches written inside transactions are stored completely
+        CaptionStorageManager transactionalDb = new CaptionStorageManager(true);
+        List<TimeRangedText> expected = captions(1201);
+        transactionalDb.addVideo(VIDEO_A, METADATA, expected);
+
+        Assert.assertTrue(transactionalDb.videoInDb(VIDEO_A));
+        Assert.assertEquals(expected, transactionalDb.getFullCaptions(VIDEO_A));
+    }
+
+    @Test
+    public void CompressedBlobFormatTest() throws CaptionStorageException {
+        // Captions stored as compressed blobs read back identically in both formats
+        CaptionStorageManager blobDb = new CaptionStorageManager(false, CaptionFormat.COMPRESSED_BLOB);
+        List<TimeRangedText> expected = captions(1201);
+        blobDb.addVideo(VIDEO_A, METADATA, expected);
+
+        Assert.assertEquals(expected, blobDb.getFullCaptions(VIDEO_A));
+        Assert.assertEquals(expected, db.getFullCaptions(VIDEO_A));
+    }
+
+    @Test
+    public void MigrateToCompressedBlobsTest() throws CaptionStorageException {
+        // Per-line captions are converted to blobs and stay readable
+        List<TimeRangedText> expected = captions(700);
+        db.addVideo(VIDEO_A, METADATA, expected);
+        db.addVideo(VIDEO_B, METADATA, captions(3));
+        CaptionStorageManager blobDb = new CaptionStorageManager(false, CaptionFormat.COMPRESSED_BLOB);
+
+        Assert.assertEquals(703, blobDb.migrateAllToCompressedBlobs());
+        Assert.assertEquals(0, blobDb.migrateToCompressedBlobs(VIDEO_A));
+        Assert.assertEquals(expected, blobDb.getFullCaptions(VIDEO_A));
+        Assert.assertEquals(expected, db.getFullCaptions(VIDEO_A));
+    }
+
+    @Test
+    public void AddClausesReportsFailedKeywordsTest() throws CaptionStorageException {
+        // All valid keywords are stored in batches while the invalid empty keyword is reported
+        db.addVideo(VIDEO_A, METADATA, captions(1));
+        Map<String, List<Long>> clauses = new HashMap<>();
+        for (long i = 0; i < 600; i++) {
+            clauses.put(KEYWORD_A + i, Arrays.asList(i));
+        }
+        clauses.put("", Arrays.asList(0L));
+
+        ClauseWriteResult result = db.addClauses(VIDEO_A, clauses);
+        clauses.remove("");
+
+        Assert.assertEquals(600, result.getWrittenCount());
+        Assert.assertEquals(Collections.singleton(""), result.getFailedKeywords());
+        Assert.assertEquals(clauses, db.getAllKeywords(VIDEO_A));
+    }
+
+    @Test
+    public void SharedCacheTest() throws CaptionStorageException {
+        // Reads are served from memcache until a write through a cached manager bumps the video version
+        CaptionStorageManager cachedDb = new CaptionStorageManager(false, CaptionFormat.LINE_ENTITIES, new SharedCaptionCache());
+        List<TimeRangedText> expected = captions(3);
+        cachedDb.addVideo(VIDEO_A, METADATA, expected);
+        cachedDb.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+        Map<String, List<Long>> keywords = cachedDb.getAllKeywords(VIDEO_A);
+        Assert.assertEquals(expected, cachedDb.getFullCaptions(VIDEO_A));
+
+        // a write that bypasses the shared cache is not seen
+        db.addClause(VIDEO_A, KEYWORD_B, Arrays.asList(2L));
+        Assert.assertEquals(keywords, cachedDb.getAllKeywords(VIDEO_A));
+
+        // a re-ingest through a cached manager is seen by every cached manager
+        List<TimeRangedText> reingested = captions(2);
+        new CaptionStorageManager(false, CaptionFormat.COMPRESSED_BLOB, new SharedCaptionCache()).addVideo(VIDEO_A, METADATA, reingested);
+        Assert.assertEquals(db.getAllKeywords(VIDEO_A), cachedDb.getAllKeywords(VIDEO_A));
+        Assert.assertEquals(db.getFullCaptions(VIDEO_A), cachedDb.getFullCaptions(VIDEO_A));
+
+        // losing the version counters never serves stale payloads
+        MemcacheServiceFactory.getMemcacheService("captions").clearAll();
+        Assert.assertEquals(db.getAllKeywords(VIDEO_A), cachedDb.getAllKeywords(VIDEO_A));
+    }
+
+    @Test
+    public void SharedCacheBatchReadTest() throws CaptionStorageException {
+        // A batch read serves cached videos from memcache and reads the rest from Datastore
+        CaptionStorageManager cachedDb = new CaptionStorageManager(false, CaptionFormat.LINE_ENTITIES, new SharedCaptionCache());
+        cachedDb.addVideo(VIDEO_A, METADATA, captions(1));
+        cachedDb.addVideo(VIDEO_B, METADATA, captions(1));
+        cachedDb.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+        cachedDb.addClause(VIDEO_B, KEYWORD_A, Arrays.asList(2L));
+        Map<String, List<Long>> cachedA = cachedDb.getAllKeywords(VIDEO_A);
+
+        // a write that bypasses the shared cache is only seen for the video that was not cached
+        db.addClause(VIDEO_A, KEYWORD_B, Arrays.asList(3L));
+        db.addClause(VIDEO_B, KEYWORD_B, Arrays.asList(4L));
+        Map<String, Map<String, List<Long>>> keywords = cachedDb.getAllKeywords(Arrays.asList(VIDEO_A, "missing", VIDEO_B));
+
+        Assert.assertEquals(Arrays.asList(VIDEO_A, VIDEO_B), new ArrayList<>(keywords.keySet()));
+        Assert.assertEquals(cachedA, keywords.get(VIDEO_A));
+        Assert.assertEquals(db.getAllKeywords(VIDEO_B), keywords.get(VIDEO_B));
+        Assert.assertEquals(keywords.get(VIDEO_B), cachedDb.getAllKeywords(VIDEO_B));
+    }
+
+    @Test
+    public void SharedCacheDropsReadsRacingWritesTest() {
+        // A payload read before a write invalidated the video is cached under the replaced version and never served
+        SharedCaptionCache cache = new SharedCaptionCache();
+        Long version = cache.getVersion(VIDEO_A);
+        cache.invalidate(VIDEO_A);
+        cache.putKeywords(VIDEO_A, version, Collections.singletonMap(KEYWORD_A, Arrays.asList(1L)));
+        cache.putCaptions(VIDEO_A, version, captions(2));
+
+        Long current = cache.getVersion(VIDEO_A);
+        Assert.assertNotEquals(version, current);
+        Assert.assertNull(cache.getKeywords(VIDEO_A, current));
+        Assert.assertNull(cache.getCaptions(VIDEO_A, current));
+    }
+
+    @Test
+    public void AsyncOperationsTest() throws Exception {
+        // Asynchronous writes and reads see the same data as the synchronous methods
+        List<TimeRangedText> expected = captions(1201);
+        Map<String, List<Long>> clauses = new HashMap<>();
+        clauses.put(KEYWORD_A, Arrays.asList(1L, 2L));
+
+        db.addVideoAsync(VIDEO_A, METADATA, expected).get();
+        Assert.assertEquals(1, db.addClausesAsync(VIDEO_A, clauses).get().getWrittenCount());
+
+        Assert.assertEquals(clauses, db.getAllKeywordsAsync(VIDEO_A).get());
+        Assert.assertEquals(expected, db.getFullCaptionsAsync(VIDEO_A).get());
+
+        // the video, its metadata, 1201 caption lines and one keyword
+        Assert.assertEquals(1204, (int) db.deleteVideoAsync(VIDEO_A).get());
+        Assert.assertFalse(db.videoInDb(VIDEO_A));
+    }
+
+    @Test
+    public void AsyncCompressedBlobTest() throws Exception {
+        // Asynchronous reads decode caption blobs
+        CaptionStorageManager blobDb = new CaptionStorageManager(false, CaptionFormat.COMPRESSED_BLOB);
+        List<TimeRangedText> expected = captions(50);
+        blobDb.addVideoAsync(VIDEO_A, METADATA, expected).get();
+
+        Assert.assertEquals(expected, blobDb.getFullCaptionsAsync(VIDEO_A).get());
+        Assert.assertEquals(expected, db.getFullCaptionsAsync(VIDEO_A).get());
+    }
+
+    @Test
+    public void AsyncMissingVideoTest() throws InterruptedException {
+        // Asynchronous calls on a missing video fail with NO_VIDEO_EXISTS
+        try {
+            db.getAllKeywordsAsync(VIDEO_A).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(Reason.NO_VIDEO_EXISTS, ((CaptionStorageException) e.getCause()).getReason());
+        }
+    }
+
+    @Test
+    public void PackedKeywordFormatTest() throws CaptionStorageException {
+        // Packed timestamps read back as primitive-backed lists, and both formats stay readable
+        CaptionStorageManager packedDb = new CaptionStorageManager(false, CaptionFormat.LINE_ENTITIES, KeywordFormat.PACKED_BLOB, null);
+        packedDb.addVideo(VIDEO_A, METADATA, captions(1));
+        Map<String, List<Long>> clauses = new HashMap<>();
+        clauses.put(KEYWORD_A, Arrays.asList(3L, 1L, 40L, 12L));
+        clauses.put(KEYWORD_B, Arrays.asList(15L));
+        packedDb.addClauses(VIDEO_A, clauses);
+        db.addClause(VIDEO_A, "indexed", Arrays.asList(11L));
+        clauses.put("indexed", Arrays.asList(11L));
+
+        Assert.assertEquals(clauses, packedDb.getAllKeywords(VIDEO_A));
+        Assert.assertEquals(clauses, db.getAllKeywords(VIDEO_A));
+        List<Long> times = packedDb.getTimesForKeyword(VIDEO_A, KEYWORD_A);
+        Assert.assertTrue(times instanceof TimestampList);
+        Assert.assertArrayEquals(new long[] {3L, 1L, 40L, 12L}, ((TimestampList) times).toLongArray());
+
+        Map<String, List<Long>> expected = new HashMap<>();
+        expected.put(KEYWORD_A, Arrays.asList(12L));
+        expected.put(KEYWORD_B, Arrays.asList(15L));
+        expected.put("indexed", Arrays.asList(11L));
+        Map<String, List<Long>> actual = new HashMap<>();
+        String cursor = null;
+        do {
+            ResultPage<Map<String, List<Long>>> page = packedDb.getKeywordsInRange(VIDEO_A, 10, 20, cursor, 2);
+            actual.putAll(page.getResults());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void KeywordLookupAndDeleteTest() throws CaptionStorageException {
+        // Keywords are read and deleted per video, leaving the same keyword of other videos in place
+        db.addVideo(VIDEO_A, METADATA, captions(1));
+        db.addVideo(VIDEO_B, METADATA, captions(1));
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L, 2L));
+        db.addClause(VIDEO_A, KEYWORD_B, Arrays.asList(3L));
+        db.addClause(VIDEO_A, "other", Arrays.asList(4L));
+        db.addClause(VIDEO_B, KEYWORD_A, Arrays.asList(5L));
+
+        Assert.assertEquals(Arrays.asList(1L, 2L), db.getTimesForKeyword(VIDEO_A, KEYWORD_A));
+        Assert.assertEquals(Arrays.asList(5L), db.getTimesForKeyword(VIDEO_B, KEYWORD_A));
+
+        db.deleteClause(VIDEO_B, KEYWORD_A);
+        db.deleteClauses(VIDEO_A, Arrays.asList(KEYWORD_B, "other"));
+
+        Assert.assertEquals(Collections.singletonMap(KEYWORD_A, Arrays.asList(1L, 2L)), db.getAllKeywords(VIDEO_A));
+        try {
+            db.getTimesForKeyword(VIDEO_B, KEYWORD_A);
+            Assert.fail();
+        } catch (CaptionStorageException e) {
+            Assert.assertEquals(Reason.NO_KEYPHRASE_EXISTS, e.getReason());
+        }
+    }
+
+    @Test
+    public void DeleteVideoRemovesChildrenTest() throws CaptionStorageException {
+        // Deleting a video removes its metadata, captions and keywords but nothing of other videos
+        db.addVideo(VIDEO_A, METADATA, captions(3));
+        db.addVideo(VIDEO_B, METADATA, captions(2));
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+        db.addClause(VIDEO_B, KEYWORD_B, Arrays.asList(1L));
+
+        Assert.assertEquals(6, db.deleteVideo(VIDEO_A));
+
+        Assert.assertFalse(db.videoInDb(VIDEO_A));
+        Assert.assertFalse(db.metaInDb(VIDEO_A, METADATA));
+        Assert.assertTrue(db.getFullCaptions(VIDEO_A).isEmpty());
+        Assert.assertEquals(captions(2), db.getFullCaptions(VIDEO_B));
+        Assert.assertEquals(Arrays.asList(1L), db.getTimesForKeyword(VIDEO_B, KEYWORD_B));
+    }
+
+    @Test
+    public void MissingVideoTest() {
+        // Adding a keyword to a video that is not stored should fail
+        try {
+            db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+            Assert.fail();
+        } catch (CaptionStorageException e) {
+            Assert.assertEquals(Reason.NO_VIDEO_EXISTS, e.getReason());
+        }
+    }
+
+    @Test
+    public void MetadataTest() throws CaptionStorageException {
+        // Metadata should be appended to or overwritten for the given video only
+        db.addVideo(VIDEO_A, METADATA, captions(1));
+        db.addVideo(VIDEO_B, METADATA, captions(1));
+
+        db.addMetadata(VIDEO_A, "_more", false);
+        Assert.assertTrue(db.metaInDb(VIDEO_A, METADATA + "_more"));
+        Assert.assertTrue(db.metaInDb(VIDEO_B, METADATA));
+
+        db.addMetadata(VIDEO_A, "replaced", true);
+        Assert.assertTrue(db.metaInDb(VIDEO_A, "replaced"));
+    }
+
+    @Test
+    public void BatchReadsTest() throws CaptionStorageException {
+        // Batch reads return the stored videos in the order asked for and leave out missing ones
+        db.addVideo(VIDEO_A, METADATA, captions(1));
+        db.addVideo(VIDEO_B, METADATA, captions(1));
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+        db.addClause(VIDEO_B, KEYWORD_B, Arrays.asList(2L, 3L));
+        List<String> course = Arrays.asList(VIDEO_B, "missing", VIDEO_A);
+
+        Assert.assertEquals(Arrays.asList(VIDEO_B, VIDEO_A), new ArrayList<>(db.videosInDb(course)));
+
+        Map<String, Map<String, List<Long>>> keywords = db.getAllKeywords(course);
+        Assert.assertEquals(Arrays.asList(VIDEO_B, VIDEO_A), new ArrayList<>(keywords.keySet()));
+        Assert.assertEquals(db.getAllKeywords(VIDEO_A), keywords.get(VIDEO_A));
+        Assert.assertEquals(Collections.singletonMap(KEYWORD_B, Arrays.asList(2L, 3L)), keywords.get(VIDEO_B));
+    }
+
+    @Test
+    public void LegacyMetadataTest() throws CaptionStorageException {
+        // Metadata stored as a key name is still read, and is converted to the property on its next update
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity video = new Entity("video", VIDEO_A);
+        datastore.put(Arrays.asList(video, new Entity("metadata", METADATA, video.getKey())));
+
+        Assert.assertTrue(db.metaInDb(VIDEO_A, METADATA));
+
+        db.addMetadata(VIDEO_A, "_more", false);
+        Assert.assertTrue(db.metaInDb(VIDEO_A, METADATA + "_more"));
+        Assert.assertEquals(1, datastore.prepare(new Query("metadata", video.getKey())).countEntities(FetchOptions.Builder.withDefaults()));
+    }
+
+    @Test
+    public void CaptionsInRangeTest() throws CaptionStorageException {
+        // Lines starting within the window are paged through in order, in both formats
+        List<TimeRangedText> all = captions(100);
+        db.addVideo(VIDEO_A, METADATA, all);
+        new CaptionStorageManager(false, CaptionFormat.COMPRESSED_BLOB).addVideo(VIDEO_B, METADATA, all);
+
+        for (String videoID : Arrays.asList(VIDEO_A, VIDEO_B)) {
+            Assert.assertEquals(all.subList(10, 35), readCaptionPages(videoID, 10, 35, 10));
+            Assert.assertEquals(all.subList(90, 100), readCaptionPages(videoID, 90, 200, 10));
+            Assert.assertTrue(readCaptionPages(videoID, 200, 300, 10).isEmpty());
+        }
+    }
+
+    @Test
+    public void KeywordsInRangeTest() throws CaptionStorageException {
+        // Only keywords occurring in the window are returned, with their timestamps in the window, each on one page
+        db.addVideo(VIDEO_A, METADATA, captions(1));
+        Map<String, List<Long>> clauses = new HashMap<>();
+        clauses.put(KEYWORD_A, Arrays.asList(1L, 15L, 40L));
+        clauses.put(KEYWORD_B, Arrays.asList(50L));
+        clauses.put("early", Arrays.asList(2L, 5L));
+        clauses.put("late", Arrays.asList(12L, 19L));
+        db.addClauses(VIDEO_A, clauses);
+
+        Map<String, List<Long>> expected = new HashMap<>();
+        expected.put(KEYWORD_A, Arrays.asList(15L));
+        expected.put("late", Arrays.asList(12L, 19L));
+
+        Map<String, List<Long>> actual = new HashMap<>();
+        String cursor = null;
+        do {
+            ResultPage<Map<String, List<Long>>> page = db.getKeywordsInRange(VIDEO_A, 10, 20, cursor, 1);
+            Assert.assertTrue(page.getResults().size() <= 1);
+            for (Map.Entry<String, List<Long>> entry : page.getResults().entrySet()) {
+                Assert.assertNull(actual.put(entry.getKey(), entry.getValue()));
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void InvalidCursorTest() throws CaptionStorageException {
+        // A cursor that was not returned by a previous page is rejected
+        db.addVideo(VIDEO_A, METADATA, captions(3));
+        try {
+            db.getCaptionsInRange(VIDEO_A, 0, 10, "blob:x", 10);
+            Assert.fail();
+        } catch (CaptionStorageException e) {
+            Assert.assertEquals(Reason.INVALID_CURSOR, e.getReason());
+        }
+    }
+
+    /*
+     * reads every page of the caption lines of a video within a window
+     * @param videoID       Youtube ID of the video
+     * @param from          inclusive start of the window
+     * @param to            exclusive end of the window
+     * @param limit         lines per page
+     * @return              lines of all pages, in order
+     */
+    private List<TimeRangedText> readCaptionPages(String videoID, long from, long to, int limit) throws CaptionStorageException {
+        List<TimeRangedText> lines = new ArrayList<>();
+        String cursor = null;
+        do {
+            ResultPage<List<TimeRangedText>> page = db.getCaptionsInRange(videoID, from, to, cursor, limit);
+            Assert.assertTrue(page.getResults().size() <= limit);
+            lines.addAll(page.getResults());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return lines;
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.storage.DatastoreEntityCacheStore;
+import com.google.sps.storage.EntityCacheStats;
+import com.google.sps.storage.EntityCacheStore;
+import com.google.sps.storage.EntityExtractionCache;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for EntityExtractionCache and its Datastore tier */
+@RunWith(JUnit4.class)
+public final class EntityExtractionCacheTest {
+
+    private static final String CONFIG = "salience:0.01";
+    private static final String TEXT = "the mitochondria is the powerhouse of the cell";
+    private static final List<String> ENTITIES = Collections.unmodifiableList(Arrays.asList("mitochondria", "cell"));
+    private static final int ENTRIES = 100;
+    private static final long TTL_MILLIS = 60000;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private AtomicInteger calls;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        calls = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private Supplier<List<String>> extract(List<String> entities) {
+        return () -> {
+            calls.incrementAndGet();
+            return entities;
+        };
+    }
+
+    @Test
+    public void RepeatedChunkIsServedFromMemory() {
+        EntityExtractionCache cache = new EntityExtractionCache(ENTRIES, TTL_MILLIS, null);
+
+        Assert.assertEquals(ENTITIES, cache.get(CONFIG, TEXT, extract(ENTITIES)));
+        Assert.assertEquals(ENTITIES, cache.get(CONFIG, TEXT, extract(ENTITIES)));
+
+        Assert.assertEquals(1, calls.get());
+        EntityCacheStats stats = cache.getStats();
+        Assert.assertEquals(2, stats.getLookups());
+        Assert.assertEquals(1, stats.getMemoryHits());
+        Assert.assertEquals(1, stats.getMisses());
+        Assert.assertEquals(0.5, stats.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void ChunkIsServedFromDatastoreByAnotherCache() {
+        new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore()).get(CONFIG, TEXT, extract(ENTITIES));
+
+        EntityExtractionCache restarted = new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore());
+        Assert.assertEquals(ENTITIES, restarted.get(CONFIG, TEXT, extract(ENTITIES)));
+        Assert.assertEquals(ENTITIES, restarted.get(CONFIG, TEXT, extract(ENTITIES)));
+
+        Assert.assertEquals(1, calls.get());
+        EntityCacheStats stats = restarted.getStats();
+        Assert.assertEquals(1, stats.getPersistentHits());
+        Assert.assertEquals(1, stats.getMemoryHits());
+        Assert.assertEquals(0, stats.getMisses());
+    }
+
+    @Test
+    public void EmptyResultIsCachedInDatastore() {
+        List<String> none = Collections.emptyList();
+        new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore()).get(CONFIG, TEXT, extract(none));
+
+        EntityExtractionCache restarted = new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore());
+        Assert.assertEquals(none, restarted.get(CONFIG, TEXT, extract(ENTITIES)));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void ChunksDifferingOnlyInSpacingShareAKey() {
+        Assert.assertEquals(EntityExtractionCache.key(CONFIG, TEXT),
+            EntityExtractionCache.key(CONFIG, "  the mitochondria is\nthe  powerhouse of the cell "));
+        Assert.assertNotEquals(EntityExtractionCache.key(CONFIG, TEXT),
+            EntityExtractionCache.key(CONFIG, TEXT.toUpperCase()));
+    }
+
+    @Test
+    public void DifferentConfigurationsDoNotShareEntries() {
+        EntityExtractionCache cache = new EntityExtractionCache(ENTRIES, TTL_MILLIS, null);
+
+        cache.get(CONFIG, TEXT, extract(ENTITIES));
+        List<String> academic = Collections.singletonList("mitochondria");
+        Assert.assertEquals(academic, cache.get("salience:0.02", TEXT, extract(academic)));
+
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void ExpiredOrOutdatedEntryIsExtractedAgain() throws InterruptedException {
+        // An expired Datastore entry, or one written without the current extraction version, is not served
+        new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore(1)).get(CONFIG, TEXT, extract(ENTITIES));
+        Thread.sleep(10);
+        new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore()).get(CONFIG, TEXT, extract(ENTITIES));
+        Assert.assertEquals(2, calls.get());
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity outdated = new Entity(KeyFactory.createKey("entity_cache", EntityExtractionCache.key(CONFIG, TEXT)));
+        outdated.setUnindexedProperty("entities", new Text("[\"stale\"]"));
+        datastore.put(outdated);
+        EntityExtractionCache restarted = new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore());
+        Assert.assertEquals(ENTITIES, restarted.get(CONFIG, TEXT, extract(ENTITIES)));
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void FailedExtractionIsNotCached() {
+        EntityExtractionCache cache = new EntityExtractionCache(ENTRIES, TTL_MILLIS, new DatastoreEntityCacheStore());
+
+        Assert.assertNull(cache.get(CONFIG, TEXT, extract(null)));
+        Assert.assertEquals(ENTITIES, cache.get(CONFIG, TEXT, extract(ENTITIES)));
+
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(2, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void FailingPersistentTierFallsBackToExtraction() {
+        EntityCacheStore failing = new EntityCacheStore() {
+            @Override
+            public List<String> get(String key) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void put(String key, List<String> entities) {
+                throw new IllegalStateException();
+            }
+        };
+        EntityExtractionCache cache = new EntityExtractionCache(ENTRIES, TTL_MILLIS, failing);
+
+        Assert.assertEquals(ENTITIES, cache.get(CONFIG, TEXT, extract(ENTITIES)));
+        Assert.assertEquals(ENTITIES, cache.get(CONFIG, TEXT, extract(ENTITIES)));
+
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(2, cache.getStats().getPersistentErrors());
+    }
+}
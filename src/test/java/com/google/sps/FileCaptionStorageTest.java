@@ -0,0 +1,149 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageInterface;
+import com.google.sps.storage.FileCaptionStorage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/** Runs the storage contract against FileCaptionStorage, plus its recovery and compaction behaviour */
+@RunWith(JUnit4.class)
+public final class FileCaptionStorageTest extends CaptionStorageContract {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path log;
+    private FileCaptionStorage db;
+
+    @Before
+    public void Setup() throws IOException {
+        log = folder.getRoot().toPath().resolve("captions.log");
+        db = new FileCaptionStorage(log);
+    }
+
+    @After
+    public void TearDown() throws IOException {
+        db.close();
+    }
+
+    @Override
+    protected CaptionStorageInterface storage() {
+        return db;
+    }
+
+    @Test
+    public void ReopenRestoresStateTest() throws IOException, CaptionStorageException {
+        // Everything written before closing the log is read back after reopening it
+        db.addVideo(VIDEO_A, METADATA, captions(20));
+        db.addVideo(VIDEO_B, METADATA, captions(2));
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L, 2L));
+        db.addClause(VIDEO_A, KEYWORD_B, Arrays.asList(3L));
+        db.addMetadata(VIDEO_A, "_more", false);
+        db.setContentHash(VIDEO_A, "hash");
+        db.deleteClause(VIDEO_A, KEYWORD_B);
+        db.deleteVideo(VIDEO_B);
+        db.close();
+
+        db = new FileCaptionStorage(log);
+        Assert.assertEquals(captions(20), db.getFullCaptions(VIDEO_A));
+        Assert.assertEquals(Collections.singletonMap(KEYWORD_A, Arrays.asList(1L, 2L)), db.getAllKeywords(VIDEO_A));
+        Assert.assertTrue(db.metaInDb(VIDEO_A, METADATA + "_more"));
+        Assert.assertEquals("hash", db.getContentHash(VIDEO_A));
+        Assert.assertFalse(db.videoInDb(VIDEO_B));
+    }
+
+    @Test
+    public void TornRecordIsDroppedTest() throws IOException, CaptionStorageException {
+        // A record cut short by a crash is discarded on reopen and later writes still succeed
+        db.addVideo(VIDEO_A, METADATA, captions(5));
+        long intact = db.getFileSize();
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L, 2L));
+        db.close();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(db.getFileSize() - 3);
+        }
+
+        db = new FileCaptionStorage(log);
+        Assert.assertEquals(intact, db.getFileSize());
+        Assert.assertTrue(db.getAllKeywords(VIDEO_A).isEmpty());
+        db.addClause(VIDEO_A, KEYWORD_B, Arrays.asList(3L));
+        db.close();
+
+        db = new FileCaptionStorage(log);
+        Assert.assertEquals(captions(5), db.getFullCaptions(VIDEO_A));
+        Assert.assertEquals(Collections.singletonMap(KEYWORD_B, Arrays.asList(3L)), db.getAllKeywords(VIDEO_A));
+    }
+
+    @Test
+    public void CompactionKeepsLiveRecordsTest() throws IOException, CaptionStorageException {
+        // Compaction shrinks a log of overwritten records to the live ones, which survive a reopen
+        db.addVideo(VIDEO_B, METADATA, captions(3));
+        for (int i = 0; i < 20; i++) {
+            db.addVideo(VIDEO_A, METADATA, captions(100));
+            db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList((long) i));
+            db.setContentHash(VIDEO_A, "hash " + i);
+        }
+        db.deleteVideo(VIDEO_B);
+        long before = db.getFileSize();
+
+        db.compact();
+        Assert.assertTrue(db.getFileSize() < before / 10);
+        Assert.assertEquals(db.getFileSize(), db.getLiveBytes());
+        db.close();
+
+        db = new FileCaptionStorage(log);
+        Assert.assertEquals(captions(100), db.getFullCaptions(VIDEO_A));
+        Assert.assertEquals(Arrays.asList(19L), db.getTimesForKeyword(VIDEO_A, KEYWORD_A));
+        Assert.assertEquals("hash 19", db.getContentHash(VIDEO_A));
+        Assert.assertFalse(db.videoInDb(VIDEO_B));
+    }
+
+    @Test
+    public void FailedCompactionKeepsLogUsableTest() throws IOException, CaptionStorageException {
+        // When the compacted log cannot be renamed over the old one, the old log keeps serving reads and writes
+        db.addVideo(VIDEO_A, METADATA, captions(5));
+        db.addVideo(VIDEO_A, METADATA, captions(10));
+        // a non-empty directory in place of the log makes the rename fail, while the open log stays readable
+        Files.delete(log);
+        Files.createDirectories(log.resolve("blocker"));
+
+        try {
+            db.compact();
+            Assert.fail("Expected the rename to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(captions(10), db.getFullCaptions(VIDEO_A));
+        db.addClause(VIDEO_A, KEYWORD_A, Arrays.asList(1L));
+        Assert.assertEquals(Arrays.asList(1L), db.getTimesForKeyword(VIDEO_A, KEYWORD_A));
+    }
+}
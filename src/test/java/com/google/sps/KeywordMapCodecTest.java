@@ -0,0 +1,60 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.storage.KeywordMapCodec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the KeywordMapCodec encoding */
+@RunWith(JUnit4.class)
+public final class KeywordMapCodecTest {
+
+    @Test
+    public void RoundTripTest() {
+        // Keywords with non-ASCII text, unsorted timestamps and no timestamps decode to the same map
+        Map<String, List<Long>> keywords = new HashMap<>();
+        keywords.put("mitochondria", Arrays.asList(40L, 5L, 1200L));
+        keywords.put("café", Collections.singletonList(7L));
+        keywords.put("unused", Collections.emptyList());
+
+        Assert.assertEquals(keywords, KeywordMapCodec.decode(KeywordMapCodec.encode(keywords)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ImpossibleKeywordCountTest() {
+        // A keyword count larger than the rest of the bytes could hold is rejected before anything is allocated
+        KeywordMapCodec.decode(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F, 0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void NegativeKeywordCountTest() {
+        // A count that overflows an int is rejected rather than sizing the map
+        KeywordMapCodec.decode(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void NegativeKeywordLengthTest() {
+        // A keyword length that overflows an int is rejected rather than escaping as a StringIndexOutOfBoundsException
+        KeywordMapCodec.decode(new byte[] {1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0});
+    }
+}
@@ -0,0 +1,174 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps;
+
+import com.google.api.gax.rpc.InvalidArgumentException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.language.v1.AnalyzeEntitiesRequest;
+import com.google.cloud.language.v1.AnalyzeEntitiesResponse;
+import com.google.cloud.language.v1.AnnotateTextRequest;
+import com.google.cloud.language.v1.AnnotateTextResponse;
+import com.google.cloud.language.v1.ClassificationCategory;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.ClassifyTextResponse;
+import com.google.cloud.language.v1.Document;
+import com.google.cloud.language.v1.Document.Type;
+import com.google.cloud.language.v1.EncodingType;
+import com.google.cloud.language.v1.Entity;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.language.v1.stub.LanguageServiceStub;
+import com.google.sps.data.NaturalLanguageProcessor;
+import com.google.sps.data.SharedLanguageClient;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/** Tests for the NLP calls of NaturalLanguageProcessor, made through a LanguageServiceClient over a mock stub */
+@RunWith(JUnit4.class)
+public final class NaturalLanguageProcessorTest {
+
+    private static final double DEFAULT_THRESHOLD = 0.01;
+    private static final double ACADEMIC_THRESHOLD = 0.02;
+    private static final double CATEGORY_THRESHOLD = 0.7;
+    // long enough to be classified, which takes 20 words
+    private static final String LONG_TEXT = String.join(" ", Collections.nCopies(25, "word"));
+    private static final String SHORT_TEXT = "a few words";
+    private static final ClassificationCategory ACADEMIC_CATEGORY =
+        ClassificationCategory.newBuilder().setName("/Science/Physics").setConfidence(0.9f).build();
+    private static final ClassificationCategory OTHER_CATEGORY =
+        ClassificationCategory.newBuilder().setName("/Games/Board Games").setConfidence(0.9f).build();
+    private static final List<Entity> ENTITIES = Arrays.asList(
+        entity("Salient", 0.5f),
+        entity("Minor", 0.015f),
+        entity("Noise", 0.001f));
+
+    private UnaryCallable<AnnotateTextRequest, AnnotateTextResponse> annotate;
+    private UnaryCallable<ClassifyTextRequest, ClassifyTextResponse> classify;
+    private UnaryCallable<AnalyzeEntitiesRequest, AnalyzeEntitiesResponse> analyze;
+    private SharedLanguageClient client;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void Setup() {
+        annotate = mock(UnaryCallable.class);
+        classify = mock(UnaryCallable.class);
+        analyze = mock(UnaryCallable.class);
+        LanguageServiceStub stub = mock(LanguageServiceStub.class);
+        when(stub.annotateTextCallable()).thenReturn(annotate);
+        when(stub.classifyTextCallable()).thenReturn(classify);
+        when(stub.analyzeEntitiesCallable()).thenReturn(analyze);
+        client = new SharedLanguageClient(() -> LanguageServiceClient.create(stub));
+
+        when(analyze.call(any())).thenReturn(AnalyzeEntitiesResponse.newBuilder().addAllEntities(ENTITIES).build());
+    }
+
+    @Test
+    public void AnnotateTextMatchesSeparateCallsTest() {
+        // One annotateText call picks the same entities as classifyText and analyzeEntities, in either category
+        for (ClassificationCategory category : Arrays.asList(ACADEMIC_CATEGORY, OTHER_CATEGORY)) {
+            when(annotate.call(any())).thenReturn(
+                AnnotateTextResponse.newBuilder().addCategories(category).addAllEntities(ENTITIES).build());
+            when(classify.call(any())).thenReturn(ClassifyTextResponse.newBuilder().addCategories(category).build());
+
+            Set<String> combined = new HashSet<>(processor(true).getEntities(LONG_TEXT));
+            Set<String> separate = new HashSet<>(processor(false).getEntities(LONG_TEXT));
+
+            Set<String> expected = new HashSet<>(category == ACADEMIC_CATEGORY
+                ? Arrays.asList("salient")
+                : Arrays.asList("salient", "minor"));
+            Assert.assertEquals(expected, combined);
+            Assert.assertEquals(expected, separate);
+        }
+
+        verify(annotate, times(2)).call(any());
+        verify(classify, times(2)).call(any());
+        verify(analyze, times(2)).call(any());
+    }
+
+    @Test
+    public void ShortTextIsNotClassifiedTest() {
+        // Text too short to classify is analyzed alone with the default threshold, in both modes
+        Set<String> expected = new HashSet<>(Arrays.asList("salient", "minor"));
+        Assert.assertEquals(expected, new HashSet<>(processor(true).getEntities(SHORT_TEXT)));
+        Assert.assertEquals(expected, new HashSet<>(processor(false).getEntities(SHORT_TEXT)));
+
+        verify(annotate, never()).call(any());
+        verify(classify, never()).call(any());
+        verify(analyze, times(2)).call(any());
+    }
+
+    @Test
+    public void SpacingDoesNotChangeClassificationTest() {
+        // Words are counted in the normalized text the cache key is computed from, so extra spaces
+        // do not push a chunk over the classification limit
+        String spaced = String.join("   ", Collections.nCopies(15, "word"));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("salient", "minor")), new HashSet<>(processor(true).getEntities(spaced)));
+        verify(annotate, never()).call(any());
+        verify(analyze).call(AnalyzeEntitiesRequest.newBuilder()
+            .setDocument(Document.newBuilder().setContent(String.join(" ", Collections.nCopies(15, "word"))).setType(Type.PLAIN_TEXT))
+            .setEncodingType(EncodingType.UTF16)
+            .build());
+    }
+
+    @Test
+    public void UnclassifiableTextFallsBackToEntitiesTest() {
+        // Text the API rejects for classification is still analyzed, with the default threshold
+        InvalidArgumentException rejected = new InvalidArgumentException(null, mock(StatusCode.class), false);
+        when(annotate.call(any())).thenThrow(rejected);
+        when(classify.call(any())).thenThrow(rejected);
+
+        Set<String> expected = new HashSet<>(Arrays.asList("salient", "minor"));
+        Assert.assertEquals(expected, new HashSet<>(processor(true).getEntities(LONG_TEXT)));
+        Assert.assertEquals(expected, new HashSet<>(processor(false).getEntities(LONG_TEXT)));
+
+        verify(annotate, times(1)).call(any());
+        verify(classify, times(1)).call(any());
+        verify(analyze, times(2)).call(any());
+    }
+
+    @Test
+    public void FailedCallYieldsNullTest() {
+        // Any other failure of the annotateText call yields null rather than entities at the wrong threshold
+        when(annotate.call(any())).thenThrow(new IllegalStateException());
+
+        Assert.assertNull(processor(true).getEntities(LONG_TEXT));
+        verify(analyze, never()).call(any());
+    }
+
+    /**
+     * Builds a processor calling the NLP API through the mock stub
+     * @param annotateText Whether long text is classified and analyzed with one annotateText call
+     * @return The processor
+     */
+    private NaturalLanguageProcessor processor(boolean annotateText) {
+        return new NaturalLanguageProcessor(client, DEFAULT_THRESHOLD, ACADEMIC_THRESHOLD, CATEGORY_THRESHOLD, annotateText, false, null);
+    }
+
+    private static Entity entity(String name, float salience) {
+        return Entity.newBuilder().setName(name).setSalience(salience).build();
+    }
+}
@@ -17,6 +17,10 @@ package com.google.sps;
 import com.google.sps.servlets.NaturalLanguageServlet;
 import com.google.sps.data.NaturalLanguageProcessor;
 import com.google.sps.storage.CaptionStorageManager;
+import com.google.sps.storage.ClauseWriteResult;
+import com.google.sps.storage.CaptionContentHash;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.data.TimeRangedText;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Assert;
@@ -27,6 +31,10 @@ import org.junit.runners.JUnit4;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.io.IOException;
 import java.io.PrintWriter;
 import static org.mockito.AdditionalMatchers.not;
@@ -88,7 +96,7 @@ public final class NaturalLanguageServletTest {
         // Defines stubbing of inserting mock captions 
         when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
         // Defines stubbing of NLP API calls
-        when(nlp.getEntities(contains(mockText))).thenReturn(mockEntities);
+        when(nlp.getEntities(contains(mockText), eq(false))).thenReturn(mockEntities);
 
         // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
         doThrow(new RuntimeException()).when(writer).println(not(or(eq(expectedResults1), eq(expectedResults2))));
@@ -155,8 +163,8 @@ public final class NaturalLanguageServletTest {
         // Defines stubbing of inserting mock captions
         when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
         // Defines stubbing of NLP API calls
-        when(nlp.getEntities(contains(mockText1))).thenReturn(mockEntities1);
-        when(nlp.getEntities(contains(mockText2))).thenReturn(mockEntities2);
+        when(nlp.getEntities(contains(mockText1), eq(false))).thenReturn(mockEntities1);
+        when(nlp.getEntities(contains(mockText2), eq(false))).thenReturn(mockEntities2);
 
         // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
         doThrow(new RuntimeException()).when(writer).println(not(or(eq(expectedResults1), eq(expectedResults2))));
@@ -194,9 +202,9 @@ public final class NaturalLanguageServletTest {
         // Defines stubbing of inserting mock captions
         when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
         // Defines stubbing of NLP API calls
-        when(nlp.getEntities(contains(mockText1))).thenReturn(mockEntities);
-        when(nlp.getEntities(contains(mockText2))).thenReturn(mockEntities);
-        when(nlp.getEntities(contains(mockText3))).thenReturn(mockEntities);
+        when(nlp.getEntities(contains(mockText1), eq(false))).thenReturn(mockEntities);
+        when(nlp.getEntities(contains(mockText2), eq(false))).thenReturn(mockEntities);
+        when(nlp.getEntities(contains(mockText3), eq(false))).thenReturn(mockEntities);
 
         // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
         doThrow(new RuntimeException()).when(writer).println(not(eq(expectedResults)));
@@ -243,10 +251,10 @@ public final class NaturalLanguageServletTest {
         // Defines stubbing of inserting mock captions
         when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
         // Defines stubbing of NLP API calls
-        when(nlp.getEntities(contains(mockText1))).thenReturn(mockEntities1);
-        when(nlp.getEntities(contains(mockText2))).thenReturn(mockEntities2);
-        when(nlp.getEntities(contains(mockText3))).thenReturn(mockEntities3);
-        when(nlp.getEntities(contains(mockText4))).thenReturn(mockEntities4);
+        when(nlp.getEntities(contains(mockText1), eq(false))).thenReturn(mockEntities1);
+        when(nlp.getEntities(contains(mockText2), eq(false))).thenReturn(mockEntities2);
+        when(nlp.getEntities(contains(mockText3), eq(false))).thenReturn(mockEntities3);
+        when(nlp.getEntities(contains(mockText4), eq(false))).thenReturn(mockEntities4);
         
         // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
         doThrow(new RuntimeException()).when(writer).println(not(or(eq(expectedResults1), eq(expectedResults2))));
@@ -262,4 +270,253 @@ public final class NaturalLanguageServletTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void StoresVideoAndClausesTest() {
+        // Integration test where the url has a video id, so the captions and clauses are stored
+        // Captions Input : [{startTime: 0, endTime: 20, text: "Hello"}]
+        // Expected Output: {"Hello":[0]} with the video and {"Hello":[0]} stored under "abc"
+
+        // Defines mock input and expected output
+        String mockCaptions = "{\"url\": \"https://www.youtube.com/watch?v=abc&t=1\"," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"}]}";
+        List<String> mockEntities = new ArrayList<>(Arrays.asList("Hello"));
+        String expectedResults = "{\"Hello\":[0]}";
+        Map<String, List<Long>> expectedClauses = new HashMap<>();
+        expectedClauses.put("Hello", Arrays.asList(0L));
+
+        // Defines stubbing of inserting mock captions, NLP API calls and asynchronous database writes
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.getEntities(contains("Hello"), eq(false))).thenReturn(mockEntities);
+        when(db.addVideoAsync(eq("abc"), anyString(), anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        when(db.replaceClausesAsync(eq("abc"), anyMap())).thenReturn(CompletableFuture.completedFuture(new ClauseWriteResult()));
+
+        // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
+        doThrow(new RuntimeException()).when(writer).println(not(eq(expectedResults)));
+
+        // Runs doPost and fails if exceptions are thrown
+        try { 
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(db).addVideoAsync(eq("abc"), anyString(), anyList());
+        verify(db).replaceClausesAsync("abc", expectedClauses);
+    }
+
+    @Test
+    public void ResubmittedCaptionsSkipProcessingTest() throws CaptionStorageException {
+        // Integration test where the stored content hash matches the submitted captions
+        // Captions Input : [{startTime: 0, endTime: 20, text: "Hello"}] for the stored video "abc"
+        // Expected Output: the stored {"Hello":[0]}, without calling the NLP API or writing to the database
+
+        // Defines mock input and expected output
+        String mockCaptions = "{\"url\": \"https://www.youtube.com/watch?v=abc\"," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"}]}";
+        String contentHash = CaptionContentHash.of(Arrays.asList(new TimeRangedText(0, 20, "Hello")));
+        String expectedResults = "{\"Hello\":[0]}";
+
+        // Defines stubbing of the stored hash and keywords of the video
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(db.getContentHash("abc")).thenReturn(contentHash);
+        when(db.getAllKeywords("abc")).thenReturn(Collections.singletonMap("Hello", Arrays.asList(0L)));
+
+        // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
+        doThrow(new RuntimeException()).when(writer).println(not(eq(expectedResults)));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(nlp, never()).getEntities(anyString());
+        verify(nlp, never()).getEntities(anyString(), anyBoolean());
+        verify(db, never()).addVideoAsync(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void StoredClausesRecordContentHashTest() throws CaptionStorageException {
+        // Integration test where new captions are processed and the content hash is stored after the clauses
+
+        // Defines mock input
+        String mockCaptions = "{\"url\": \"https://www.youtube.com/watch?v=abc\"," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"}]}";
+        String contentHash = CaptionContentHash.of(Arrays.asList(new TimeRangedText(0, 20, "Hello")));
+
+        // Defines stubbing of a video stored with other captions and of asynchronous database writes
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.getEntities(contains("Hello"), eq(false))).thenReturn(new ArrayList<>(Arrays.asList("Hello")));
+        when(db.getContentHash("abc")).thenReturn("stale");
+        when(db.addVideoAsync(eq("abc"), anyString(), anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        when(db.replaceClausesAsync(eq("abc"), anyMap())).thenReturn(CompletableFuture.completedFuture(new ClauseWriteResult()));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(nlp).getEntities(contains("Hello"), eq(false));
+        verify(db).setContentHash("abc", contentHash);
+    }
+
+    @Test
+    public void FailedChunkDoesNotRecordContentHashTest() throws CaptionStorageException {
+        // Integration test where the NLP call of a chunk fails, so the stored keywords are not marked as complete
+
+        // Defines mock input
+        String mockCaptions = "{\"url\": \"https://www.youtube.com/watch?v=abc\"," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"},";
+        mockCaptions += "{" + START_TIME + "20," + END_TIME + "40," + TEXT + "\"World\"}]}";
+
+        // Defines stubbing of one failed chunk and of asynchronous database writes
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.getEntities(contains("Hello"), eq(false))).thenReturn(new ArrayList<>(Arrays.asList("Hello")));
+        when(nlp.getEntities(contains("World"), eq(false))).thenReturn(null);
+        when(db.addVideoAsync(eq("abc"), anyString(), anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        when(db.replaceClausesAsync(eq("abc"), anyMap())).thenReturn(CompletableFuture.completedFuture(new ClauseWriteResult()));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(db).replaceClausesAsync("abc", Collections.singletonMap("Hello", Arrays.asList(0L)));
+        verify(db, never()).setContentHash(anyString(), anyString());
+    }
+
+    @Test
+    public void FailedClassificationDoesNotRecordContentHashTest() throws CaptionStorageException {
+        // Integration test where classifying the video fails, so its chunks fall back to the default threshold
+        // and the stored keywords are not marked as complete
+
+        // Defines mock input
+        String mockCaptions = "{\"url\": \"https://www.youtube.com/watch?v=abc\"," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"}]}";
+
+        // Defines stubbing of the failed classification and of asynchronous database writes
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.isAcademicVideo(anyList())).thenReturn(null);
+        when(nlp.getEntities(contains("Hello"), eq(false))).thenReturn(new ArrayList<>(Arrays.asList("Hello")));
+        when(db.addVideoAsync(eq("abc"), anyString(), anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        when(db.replaceClausesAsync(eq("abc"), anyMap())).thenReturn(CompletableFuture.completedFuture(new ClauseWriteResult()));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(nlp).getEntities(contains("Hello"), eq(false));
+        verify(db, never()).setContentHash(anyString(), anyString());
+    }
+
+    @Test
+    public void ChangedCaptionsReplaceStoredClausesTest() throws CaptionStorageException {
+        // Integration test where a video is stored again with other captions,
+        // so its keyphrases are replaced by the write instead of being cleaned up while the request waits
+
+        // Defines mock input
+        String mockCaptions = "{\"url\": \"https://www.youtube.com/watch?v=abc\"," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"}]}";
+
+        // Defines stubbing of the hash of the earlier captions and of asynchronous database writes
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.getEntities(contains("Hello"), eq(false))).thenReturn(new ArrayList<>(Arrays.asList("Hello")));
+        when(db.getContentHash("abc")).thenReturn("stale");
+        when(db.addVideoAsync(eq("abc"), anyString(), anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        when(db.replaceClausesAsync(eq("abc"), anyMap())).thenReturn(CompletableFuture.completedFuture(new ClauseWriteResult()));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(db).replaceClausesAsync("abc", Collections.singletonMap("Hello", Arrays.asList(0L)));
+        verify(db, never()).getAllKeywords("abc");
+        verify(db, never()).deleteClauses(anyString(), anyCollection());
+        verify(db).setContentHash(eq("abc"), anyString());
+    }
+
+    @Test
+    public void VideoIsClassifiedOnceTest() {
+        // Integration test where the category of the whole video sets the threshold of every chunk
+        // Captions Input : [{startTime:  0, endTime: 20, text: "Hello"}, {startTime: 20, endTime: 40, text: "World"}]
+        // Expected Output: {"Hello":[0], "World":[20]}
+
+        // Defines mock input and expected output
+        String mockCaptions = "{" + URL_MOCK + "," + CAPTIONS + "[";
+        mockCaptions += "{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"},";
+        mockCaptions += "{" + START_TIME + "20," + END_TIME + "40," + TEXT + "\"World\"}]}";
+        String expectedResults1 = "{\"Hello\":[0],\"World\":[20]}";
+        String expectedResults2 = "{\"World\":[20],\"Hello\":[0]}";
+
+        // Defines stubbing of an academic video and of the NLP API calls with its threshold
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.isAcademicVideo(anyList())).thenReturn(true);
+        when(nlp.getEntities(contains("Hello"), eq(true))).thenReturn(new ArrayList<>(Arrays.asList("Hello")));
+        when(nlp.getEntities(contains("World"), eq(true))).thenReturn(new ArrayList<>(Arrays.asList("World")));
+
+        // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
+        doThrow(new RuntimeException()).when(writer).println(not(or(eq(expectedResults1), eq(expectedResults2))));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(nlp, times(1)).isAcademicVideo(anyList());
+        verify(nlp, never()).getEntities(anyString());
+    }
+
+    @Test
+    public void ChunkClassificationFallbackTest() {
+        // Integration test where each chunk is configured to be classified on its own
+        String mockCaptions = "{" + URL_MOCK + "," + CAPTIONS + "[{" + START_TIME + "0," + END_TIME + "20," + TEXT + "\"Hello\"}]}";
+        String expectedResults = "{\"Hello\":[0]}";
+
+        // Defines stubbing of per-chunk classification
+        when(request.getParameter(REQUEST_JSON_PARAM)).thenReturn(mockCaptions);
+        when(nlp.classifiesChunks()).thenReturn(true);
+        when(nlp.getEntities(contains("Hello"))).thenReturn(new ArrayList<>(Arrays.asList("Hello")));
+
+        // Sets stubbing to throw exception when string written to PrintWriter is not the expected results
+        doThrow(new RuntimeException()).when(writer).println(not(eq(expectedResults)));
+
+        // Runs doPost and fails if exceptions are thrown
+        try {
+            servlet.setNaturalLanguageProcessor(nlp);
+            servlet.setDatabase(db);
+            servlet.doPost(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(FAILED_TEST_MESSAGE);
+        }
+        verify(nlp, never()).isAcademicVideo(anyList());
+    }
+
+}
@@ -0,0 +1,137 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageManager;
+import com.google.sps.storage.CompactionReport;
+import com.google.sps.storage.DatastoreEntityCacheStore;
+import com.google.sps.storage.OrphanCompactor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/** Tests for OrphanCompactor against the local Datastore service */
+@RunWith(JUnit4.class)
+public final class OrphanCompactorTest {
+
+    private static final String LIVE_VIDEO = "live";
+    private static final String DELETED_VIDEO = "deleted";
+    private static final String METADATA = "no_metadata";
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private DatastoreService datastore;
+    private CaptionStorageManager db;
+
+    @Before
+    public void Setup() throws CaptionStorageException {
+        helper.setUp();
+        datastore = DatastoreServiceFactory.getDatastoreService();
+        db = new CaptionStorageManager();
+
+        // the deleted video's children are left behind, as the old deleteVideo did
+        db.addVideo(LIVE_VIDEO, METADATA, captions(7));
+        db.addVideo(DELETED_VIDEO, METADATA, captions(5));
+        db.addClause(LIVE_VIDEO, "hello", Arrays.asList(1L));
+        db.addClause(DELETED_VIDEO, "world", Arrays.asList(2L));
+        datastore.delete(KeyFactory.createKey("video", DELETED_VIDEO));
+    }
+
+    @After
+    public void TearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void DeletesOnlyOrphansTest() throws CaptionStorageException {
+        // A full run removes the children of the deleted video and keeps the live one intact
+        CompactionReport report = new OrphanCompactor(datastore, 500).run(100);
+
+        Assert.assertTrue(report.isComplete());
+        Assert.assertEquals(16, report.getScanned());
+        Assert.assertEquals(7, report.getDeleted());
+        Assert.assertEquals(captions(7), db.getFullCaptions(LIVE_VIDEO));
+        Assert.assertTrue(db.metaInDb(LIVE_VIDEO, METADATA));
+        Assert.assertEquals(Arrays.asList(1L), db.getTimesForKeyword(LIVE_VIDEO, "hello"));
+        Assert.assertEquals(10, countEntities());
+    }
+
+    @Test
+    public void ResumesFromCheckpointTest() throws CaptionStorageException {
+        // Runs of one small page each continue where the previous run stopped
+        OrphanCompactor compactor = new OrphanCompactor(datastore, 3);
+        CompactionReport report;
+        int runs = 0;
+        do {
+            report = compactor.run(1);
+            Assert.assertEquals(1, report.getPages());
+            runs++;
+        } while (!report.isComplete());
+
+        Assert.assertTrue(runs > 4);
+        Assert.assertEquals(16, report.getTotalScanned());
+        Assert.assertEquals(7, report.getTotalDeleted());
+        Assert.assertEquals(10, countEntities());
+
+        // the checkpoint is gone once the job completes, so the next run starts over
+        Assert.assertEquals(9, compactor.run(100).getTotalScanned());
+    }
+
+    @Test
+    public void DeletesExpiredEntityCacheEntriesTest() throws CaptionStorageException, InterruptedException {
+        // After the orphans, expired cache entries are deleted and live ones are kept
+        new DatastoreEntityCacheStore(datastore, 1).put("expired", Collections.singletonList("old"));
+        Thread.sleep(5);
+        DatastoreEntityCacheStore store = new DatastoreEntityCacheStore(datastore, 60000);
+        store.put("live", Collections.singletonList("new"));
+
+        CompactionReport report = new OrphanCompactor(datastore, 500).run(100);
+
+        Assert.assertTrue(report.isComplete());
+        Assert.assertEquals(8, report.getDeleted());
+        Assert.assertEquals(Collections.singletonList("new"), store.get("live"));
+        Assert.assertEquals(1, datastore.prepare(new Query("entity_cache").setKeysOnly())
+            .countEntities(FetchOptions.Builder.withDefaults()));
+    }
+
+    /*
+     * counts the entities left in the caption kinds, including videos
+     * @return              number of entities
+     */
+    private int countEntities() {
+        int count = 0;
+        for (String kind : Arrays.asList("video", "metadata", "full_captions", "caption")) {
+            count += datastore.prepare(new Query(kind).setKeysOnly()).countEntities(FetchOptions.Builder.withDefaults());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,202 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.sps.data.NaturalLanguageProcessor;
+import com.google.sps.data.ParallelEntityExtractor;
+import com.google.sps.data.TimeRangedText;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/** Tests for ParallelEntityExtractor with a mock NaturalLanguageProcessor, called during a local request */
+@RunWith(JUnit4.class)
+public final class ParallelEntityExtractorTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper().setEnvAttributes(StorageTestHelpers.requestThreadAttributes());
+
+    private NaturalLanguageProcessor nlp;
+
+    @Before
+    public void Setup() {
+        helper.setUp();
+        nlp = mock(NaturalLanguageProcessor.class);
+    }
+
+    @After
+    public void TearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void ChunksRunConcurrentlyTest() {
+        // Every call waits for all the others, which only returns if they are in flight together
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            barrier.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return Collections.singletonList((String) invocation.getArgument(0));
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(4, TIMEOUT_MILLIS).getEntities(nlp, chunks("a", "b", "c", "d"));
+
+        Assert.assertEquals(Arrays.asList(list("a"), list("b"), list("c"), list("d")), results);
+    }
+
+    @Test
+    public void ResultsKeepChunkOrderTest() {
+        // The first chunk finishes last, but its entities still come first
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            String text = invocation.getArgument(0);
+            if (text.equals("slow")) {
+                Thread.sleep(200);
+            }
+            return Collections.singletonList(text);
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(3, TIMEOUT_MILLIS).getEntities(nlp, chunks("slow", "fast", "faster"));
+
+        Assert.assertEquals(Arrays.asList(list("slow"), list("fast"), list("faster")), results);
+    }
+
+    @Test
+    public void ConcurrencyIsBoundedTest() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            inFlight.decrementAndGet();
+            return Collections.emptyList();
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(2, TIMEOUT_MILLIS).getEntities(nlp, chunks("a", "b", "c", "d", "e", "f"));
+
+        Assert.assertEquals(6, results.size());
+        Assert.assertTrue(maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void TimedOutChunkIsSkippedTest() {
+        // A hung call yields null like a failed one, and is interrupted
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            String text = invocation.getArgument(0);
+            if (text.equals("hung")) {
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+            return Collections.singletonList(text);
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(2, 100).getEntities(nlp, chunks("a", "hung", "b"));
+
+        Assert.assertEquals(Arrays.asList(list("a"), null, list("b")), results);
+        try {
+            Assert.assertTrue(interrupted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public void QueuedChunkMissesRequestDeadlineTest() {
+        // A chunk queued behind hung calls is skipped once the request deadline passes, without ever running
+        // (the hung calls give up on their own eventually, since a JUnit timeout would run the test outside the request)
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            if (invocation.getArgument(0).equals("hung")) {
+                try {
+                    new CountDownLatch(1).await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return Collections.singletonList((String) invocation.getArgument(0));
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(2, TIMEOUT_MILLIS, 200).getEntities(nlp, chunks("hung", "hung", "queued"));
+
+        Assert.assertEquals(Arrays.asList(null, null, null), results);
+        verify(nlp, never()).getEntities("queued");
+    }
+
+    @Test
+    public void CallsRunWithTheRequestEnvironmentTest() {
+        // Calls run on request threads, which carry the request's API environment
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            threads.add(Thread.currentThread());
+            return ApiProxy.getCurrentEnvironment() == environment ? list("ok") : null;
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(2, TIMEOUT_MILLIS).getEntities(nlp, chunks("a", "b", "c"));
+
+        Assert.assertEquals(Arrays.asList(list("ok"), list("ok"), list("ok")), results);
+        Assert.assertFalse(threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void OutsideRequestChunksRunOnCallingThreadTest() {
+        // Without a request there are no request threads, so the chunks are analyzed one at a time in order
+        helper.tearDown();
+        List<String> order = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        when(nlp.getEntities(anyString())).thenAnswer(invocation -> {
+            String text = invocation.getArgument(0);
+            order.add(text);
+            return Thread.currentThread() == caller ? list(text) : null;
+        });
+
+        List<List<String>> results = new ParallelEntityExtractor(4, TIMEOUT_MILLIS).getEntities(nlp, chunks("a", "b"));
+
+        Assert.assertEquals(Arrays.asList(list("a"), list("b")), results);
+        Assert.assertEquals(Arrays.asList("a", "b"), order);
+        helper.setUp();
+    }
+
+    private static List<TimeRangedText> chunks(String... texts) {
+        List<TimeRangedText> chunks = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            chunks.add(new TimeRangedText(i * 20, (i + 1) * 20, texts[i]));
+        }
+        return chunks;
+    }
+
+    private static List<String> list(String entity) {
+        return Collections.singletonList(entity);
+    }
+}
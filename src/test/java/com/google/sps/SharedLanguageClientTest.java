@@ -0,0 +1,100 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.api.gax.rpc.StatusCode;
+import com.google.api.gax.rpc.UnavailableException;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.sps.data.SharedLanguageClient;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.Mockito.*;
+
+/** Tests for SharedLanguageClient with mock LanguageServiceClients */
+@RunWith(JUnit4.class)
+public final class SharedLanguageClientTest {
+
+    private List<LanguageServiceClient> created;
+    private SharedLanguageClient shared;
+
+    @Before
+    public void Setup() {
+        created = new ArrayList<>();
+        shared = new SharedLanguageClient(() -> {
+            LanguageServiceClient client = mock(LanguageServiceClient.class);
+            created.add(client);
+            return client;
+        });
+    }
+
+    @Test
+    public void ClientIsReusedAcrossCallsTest() throws IOException {
+        LanguageServiceClient first = shared.call(language -> language);
+        LanguageServiceClient second = shared.call(language -> language);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, created.size());
+    }
+
+    @Test
+    public void UnavailableClientIsReplacedAndRetriedTest() throws IOException {
+        // The first call fails on an unavailable channel and is retried once with a new client
+        List<LanguageServiceClient> used = new ArrayList<>();
+        String result = shared.call(language -> {
+            used.add(language);
+            if (used.size() == 1) {
+                throw new UnavailableException(null, mock(StatusCode.class), true);
+            }
+            return "ok";
+        });
+
+        Assert.assertEquals("ok", result);
+        Assert.assertEquals(2, created.size());
+        Assert.assertNotSame(used.get(0), used.get(1));
+        verify(created.get(0)).shutdown();
+        Assert.assertSame(created.get(1), shared.get());
+    }
+
+    @Test
+    public void ShutDownClientIsRecreatedTest() throws IOException {
+        LanguageServiceClient first = shared.get();
+        when(first.isShutdown()).thenReturn(true);
+
+        Assert.assertNotSame(first, shared.get());
+    }
+
+    @Test
+    public void CloseShutsTheClientDownTest() throws IOException, InterruptedException {
+        LanguageServiceClient client = shared.get();
+        when(client.awaitTermination(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        shared.close();
+
+        verify(client).shutdown();
+        verify(client, never()).shutdownNow();
+        try {
+            shared.get();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
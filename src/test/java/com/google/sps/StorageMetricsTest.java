@@ -0,0 +1,217 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.servlets.StorageMetricsServlet;
+import com.google.sps.storage.BookmarkStorageException;
+import com.google.sps.storage.BookmarkStorageManager;
+import com.google.sps.storage.CaptionFormat;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageInterface;
+import com.google.sps.storage.CaptionStorageManager;
+import com.google.sps.storage.InProcessMetricsRegistry;
+import com.google.sps.storage.KeywordFormat;
+import com.google.sps.storage.MeteredCaptionStorage;
+import com.google.sps.storage.OperationStats;
+import com.google.sps.storage.StorageMetrics;
+import com.google.sps.storage.StorageMetricsRegistry;
+import com.google.sps.storage.StorageOperation;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.Mockito.*;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/** Tests for StorageMetrics as recorded by the Datastore storage managers and MeteredCaptionStorage */
+@RunWith(JUnit4.class)
+public final class StorageMetricsTest {
+
+    private static final String VIDEO = "video";
+    private static final String METADATA = "metadata";
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy())
+            .setEnvAttributes(StorageTestHelpers.requestThreadAttributes());
+
+    private StorageMetricsRegistry previous;
+    private StorageMetricsRegistry registry;
+
+    @Before
+    public void Setup() {
+        helper.setUp();
+        // managers look up their metrics when created, so each test gets fresh counters
+        previous = StorageMetrics.getRegistry();
+        registry = new InProcessMetricsRegistry();
+        StorageMetrics.setRegistry(registry);
+    }
+
+    @After
+    public void TearDown() {
+        StorageMetrics.setRegistry(previous);
+        helper.tearDown();
+    }
+
+    @Test
+    public void CountsRpcsAndEntitiesWrittenTest() throws CaptionStorageException {
+        // One batched put writes the video, its metadata and one entity per caption line
+        metered(new CaptionStorageManager()).addVideo(VIDEO, METADATA, captions(3));
+
+        OperationStats stats = caption(StorageOperation.ADD_VIDEO);
+        Assert.assertEquals(1, stats.getCalls());
+        Assert.assertEquals(0, stats.getErrors());
+        Assert.assertEquals(1, stats.getRpcs());
+        Assert.assertEquals(5, stats.getEntitiesWritten());
+        Assert.assertEquals(1, sum(stats.getLatencyHistogram()));
+    }
+
+    @Test
+    public void NestedOperationsCountTowardsTheCallerTest() throws CaptionStorageException {
+        // getAllKeywords checks the video with videoInDb, which is not recorded as a call of its own
+        CaptionStorageInterface db = metered(new CaptionStorageManager());
+        db.addVideo(VIDEO, METADATA, captions(1));
+        db.addClauses(VIDEO, keywords("alpha", 1L, "beta", 2L));
+        db.getAllKeywords(VIDEO);
+
+        OperationStats stats = caption(StorageOperation.GET_ALL_KEYWORDS);
+        Assert.assertEquals(1, stats.getCalls());
+        Assert.assertEquals(2, stats.getRpcs());
+        Assert.assertEquals(2, stats.getEntitiesScanned());
+        Assert.assertEquals(2, stats.getEntitiesReturned());
+        Assert.assertFalse(registry.get("caption").snapshot().containsKey(StorageOperation.VIDEO_IN_DB));
+    }
+
+    @Test
+    public void PackedKeywordRangeScanIsVisibleTest() throws CaptionStorageException {
+        // Packed timestamps are not indexed, so a range read scans every keyphrase of the video
+        CaptionStorageInterface db = metered(new CaptionStorageManager(false, CaptionFormat.LINE_ENTITIES, KeywordFormat.PACKED_BLOB, null));
+        db.addVideo(VIDEO, METADATA, captions(1));
+        db.addClauses(VIDEO, keywords("alpha", 1L, "beta", 20L, "gamma", 30L));
+        db.getKeywordsInRange(VIDEO, 0, 10, null, 10);
+
+        OperationStats stats = caption(StorageOperation.GET_KEYWORDS_IN_RANGE);
+        Assert.assertEquals(3, stats.getEntitiesScanned());
+        Assert.assertEquals(1, stats.getEntitiesReturned());
+    }
+
+    @Test
+    public void FailuresAreCountedTest() {
+        // A missing keyphrase fails the call but it is still timed
+        try {
+            metered(new CaptionStorageManager()).getTimesForKeyword(VIDEO, "missing");
+            Assert.fail();
+        } catch (CaptionStorageException e) {
+            // expected
+        }
+
+        OperationStats stats = caption(StorageOperation.GET_TIMES_FOR_KEYWORD);
+        Assert.assertEquals(1, stats.getCalls());
+        Assert.assertEquals(1, stats.getErrors());
+        Assert.assertEquals(1, stats.getRpcs());
+    }
+
+    @Test
+    public void AsyncOperationsAreRecordedOnCompletionTest() throws CaptionStorageException {
+        // The RPCs issued on the calling thread and on the pool both count towards the async operation
+        CaptionStorageInterface db = metered(new CaptionStorageManager());
+        db.addVideo(VIDEO, METADATA, captions(1));
+        db.addClauses(VIDEO, keywords("alpha", 1L, "beta", 2L));
+        db.getAllKeywordsAsync(VIDEO).join();
+
+        OperationStats stats = caption(StorageOperation.GET_ALL_KEYWORDS_ASYNC);
+        Assert.assertEquals(1, stats.getCalls());
+        Assert.assertEquals(2, stats.getRpcs());
+        Assert.assertEquals(2, stats.getEntitiesReturned());
+        Assert.assertFalse(registry.get("caption").snapshot().containsKey(StorageOperation.OTHER));
+    }
+
+    @Test
+    public void AsyncLineQueryRunsOnceTest() throws CaptionStorageException {
+        // A video with both caption lines and a blob is read with one blob lookup and one line query
+        metered(new CaptionStorageManager()).addVideo(VIDEO, METADATA, captions(3));
+        new CaptionStorageManager(false, CaptionFormat.COMPRESSED_BLOB).addVideo(VIDEO, METADATA, captions(3));
+        CaptionStorageInterface db = metered(new CaptionStorageManager());
+
+        Assert.assertEquals(captions(3), db.getFullCaptionsAsync(VIDEO).join());
+        Assert.assertEquals(2, caption(StorageOperation.GET_FULL_CAPTIONS_ASYNC).getRpcs());
+    }
+
+    @Test
+    public void BookmarkOperationsAreRecordedTest() throws BookmarkStorageException {
+        BookmarkStorageManager bookmarks = new BookmarkStorageManager();
+        bookmarks.addBookmark("user@example.com", VIDEO, 5, "title", "content");
+        bookmarks.getAllBookmarks("user@example.com", VIDEO);
+
+        Map<StorageOperation, OperationStats> stats = registry.get("bookmark").snapshot();
+        Assert.assertEquals(1, stats.get(StorageOperation.ADD_BOOKMARK).getEntitiesWritten());
+        Assert.assertEquals(1, stats.get(StorageOperation.GET_ALL_BOOKMARKS).getEntitiesReturned());
+    }
+
+    @Test
+    public void ServletServesSnapshotsTest() throws CaptionStorageException, IOException {
+        metered(new CaptionStorageManager()).addVideo(VIDEO, METADATA, captions(1));
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter output = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(output));
+        when(request.getParameter("storage")).thenReturn("caption");
+
+        StorageMetricsServlet servlet = new StorageMetricsServlet();
+        servlet.setRegistry(registry);
+        servlet.doGet(request, response);
+
+        String json = output.toString();
+        Assert.assertTrue(json, json.contains("\"caption\":{\"ADD_VIDEO\":{\"calls\":1"));
+        Assert.assertTrue(json, json.contains("\"entitiesWritten\":3"));
+    }
+
+    private static CaptionStorageInterface metered(CaptionStorageManager manager) {
+        return new MeteredCaptionStorage(manager);
+    }
+
+    private OperationStats caption(StorageOperation operation) {
+        return registry.get("caption").snapshot(operation);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private static Map<String, List<Long>> keywords(Object... pairs) {
+        Map<String, List<Long>> keywords = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            keywords.put((String) pairs[i], Arrays.asList((Long) pairs[i + 1]));
+        }
+        return keywords;
+    }
+}
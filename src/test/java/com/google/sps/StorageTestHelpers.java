@@ -0,0 +1,72 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.sps.data.TimeRangedText;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/** Setup and fixtures shared by the storage tests */
+final class StorageTestHelpers {
+
+    private static final String REQUEST_THREAD_FACTORY = "com.google.appengine.api.ThreadManager.REQUEST_THREAD_FACTORY";
+
+    private StorageTestHelpers() {}
+
+    /**
+     * Builds consecutive one-second caption lines
+     * @param count The number of lines
+     * @return Lines "line 0" to "line count-1"
+     */
+    static List<TimeRangedText> captions(int count) {
+        return captions(count, "line");
+    }
+
+    /**
+     * Builds consecutive one-second caption lines with a given text
+     * @param count The number of lines
+     * @param text The text each line starts with, followed by its index
+     * @return The lines in display order
+     */
+    static List<TimeRangedText> captions(int count, String text) {
+        List<TimeRangedText> captions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            captions.add(new TimeRangedText(i, i + 1, text + " " + i));
+        }
+        return captions;
+    }
+
+    /**
+     * Gets environment attributes that give a LocalServiceTestHelper a working request thread factory.
+     * The local runtime's own factory needs socket internals that newer JDKs no longer have.
+     * Like request threads, the threads carry the environment of the thread that created them.
+     * @return The attributes to pass to LocalServiceTestHelper.setEnvAttributes
+     */
+    static Map<String, Object> requestThreadAttributes() {
+        ThreadFactory factory = runnable -> {
+            ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+            return new Thread(() -> {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                runnable.run();
+            });
+        };
+        return Collections.singletonMap(REQUEST_THREAD_FACTORY, factory);
+    }
+}
@@ -0,0 +1,294 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.gson.Gson;
+import com.google.sps.data.TimeRangedText;
+import com.google.sps.servlets.CaptionRetrievalServlet;
+import com.google.sps.storage.CachingCaptionStorage;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageInterface;
+import com.google.sps.storage.FileCaptionStorage;
+import com.google.sps.storage.TranscriptArchive;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.Mockito.*;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/** Tests for TranscriptArchive and the /fullcaption responses served from it */
+@RunWith(JUnit4.class)
+public final class TranscriptArchiveTest {
+
+    private static final String VIDEO_ID = "videoA";
+    private static final String OTHER_VIDEO_ID = "videoB";
+    private static final String METADATA = "no_metadata";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+    private Path file;
+    private TranscriptArchive archive;
+
+    @Before
+    public void Setup() throws IOException {
+        file = folder.getRoot().toPath().resolve("transcripts.archive");
+        archive = new TranscriptArchive(file);
+    }
+
+    @After
+    public void TearDown() throws IOException {
+        archive.close();
+    }
+
+    @Test
+    public void TransferWritesSortedJsonTest() throws IOException {
+        // The archived bytes are the JSON of the captions in start time order
+        List<TimeRangedText> captions = Arrays.asList(
+            new TimeRangedText(5, 6, "later"),
+            new TimeRangedText(0, 5, "café first"));
+        archive.put(VIDEO_ID, captions);
+
+        Assert.assertTrue(archive.contains(VIDEO_ID));
+        Assert.assertEquals(gson.toJson(Arrays.asList(captions.get(1), captions.get(0))), transfer(VIDEO_ID));
+        Assert.assertNull(transfer(OTHER_VIDEO_ID));
+    }
+
+    @Test
+    public void ReopenRestoresIndexTest() throws IOException {
+        // Replaced and removed transcripts stay that way after reopening, and a torn segment is dropped
+        archive.put(VIDEO_ID, captions(3, "old"));
+        archive.put(VIDEO_ID, captions(3, "new"));
+        archive.put(OTHER_VIDEO_ID, captions(2, "gone"));
+        archive.remove(OTHER_VIDEO_ID);
+        long intact = archive.getFileSize();
+        archive.put("torn", captions(10, "torn"));
+        archive.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(archive.getFileSize() - 5);
+        }
+
+        archive = new TranscriptArchive(file);
+        Assert.assertEquals(intact, archive.getFileSize());
+        Assert.assertEquals(gson.toJson(captions(3, "new")), transfer(VIDEO_ID));
+        Assert.assertFalse(archive.contains(OTHER_VIDEO_ID));
+        Assert.assertFalse(archive.contains("torn"));
+    }
+
+    @Test
+    public void CompactionKeepsLiveTranscriptsTest() throws IOException {
+        // Compaction keeps only the current transcripts, which are still served after reopening
+        for (int i = 0; i < 10; i++) {
+            archive.put(VIDEO_ID, captions(200, "version " + i));
+        }
+        archive.put(OTHER_VIDEO_ID, captions(5, "other"));
+        long before = archive.getFileSize();
+
+        archive.compact();
+        Assert.assertTrue(archive.getFileSize() < before / 5);
+        Assert.assertEquals(archive.getFileSize(), archive.getLiveBytes());
+        archive.close();
+
+        archive = new TranscriptArchive(file);
+        Assert.assertEquals(gson.toJson(captions(200, "version 9")), transfer(VIDEO_ID));
+        Assert.assertEquals(gson.toJson(captions(5, "other")), transfer(OTHER_VIDEO_ID));
+    }
+
+    @Test
+    public void StorageKeepsArchiveCurrentTest() throws IOException, CaptionStorageException {
+        // Videos added through the caching storage are archived and deleted ones are dropped
+        try (FileCaptionStorage files = new FileCaptionStorage(folder.getRoot().toPath().resolve("captions.log"))) {
+            CaptionStorageInterface db = new CachingCaptionStorage(files, archive);
+            db.addVideo(VIDEO_ID, METADATA, captions(4, "first"));
+            Assert.assertEquals(gson.toJson(captions(4, "first")), transfer(VIDEO_ID));
+            db.addVideo(VIDEO_ID, METADATA, captions(2, "second"));
+            Assert.assertEquals(gson.toJson(captions(2, "second")), transfer(VIDEO_ID));
+
+            db.deleteVideo(VIDEO_ID);
+            Assert.assertFalse(archive.contains(VIDEO_ID));
+        }
+    }
+
+    @Test
+    public void ServletServesArchivedBytesTest() throws IOException, CaptionStorageException {
+        // /fullcaption serves an archived video without reading its captions
+        CaptionStorageInterface db = mock(CaptionStorageInterface.class);
+        when(db.videoInDb(VIDEO_ID)).thenReturn(true);
+        archive.put(VIDEO_ID, captions(3, "line"));
+        CaptionRetrievalServlet servlet = new CaptionRetrievalServlet();
+        servlet.setDatabase(db);
+        servlet.setArchive(archive);
+
+        String expected = gson.toJson(captions(3, "line")) + System.lineSeparator();
+        Assert.assertEquals(expected, get(servlet));
+        Assert.assertEquals(expected, get(servlet));
+        verify(db, never()).getFullCaptions(VIDEO_ID);
+    }
+
+    @Test
+    public void ServletDoesNotArchiveOnReadTest() throws IOException, CaptionStorageException {
+        // A video that is not archived is served from the database and left out of the archive
+        CaptionStorageInterface db = mock(CaptionStorageInterface.class);
+        when(db.videoInDb(VIDEO_ID)).thenReturn(true);
+        when(db.getFullCaptions(VIDEO_ID)).thenReturn(captions(3, "line"));
+        CaptionRetrievalServlet servlet = new CaptionRetrievalServlet();
+        servlet.setDatabase(db);
+        servlet.setArchive(archive);
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(request.getParameter("id")).thenReturn(VIDEO_ID);
+        when(response.getWriter()).thenReturn(new PrintWriter(body));
+        servlet.doGet(request, response);
+
+        Assert.assertEquals(gson.toJson(captions(3, "line")) + System.lineSeparator(), body.toString());
+        Assert.assertFalse(archive.contains(VIDEO_ID));
+    }
+
+    @Test
+    public void OutOfOrderWritesAreNotArchivedTest() throws IOException {
+        // An add that completes after a later add of the same video does not archive its older captions
+        CaptionStorageInterface files = mock(CaptionStorageInterface.class);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        when(files.addVideoAsync(eq(VIDEO_ID), anyString(), anyList())).thenReturn(first, second);
+        CaptionStorageInterface db = new CachingCaptionStorage(files, archive);
+
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2, "first"));
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2, "second"));
+        second.complete(null);
+        Assert.assertEquals(gson.toJson(captions(2, "second")), transfer(VIDEO_ID));
+        first.complete(null);
+        Assert.assertFalse(archive.contains(VIDEO_ID));
+    }
+
+    @Test(timeout = 10000)
+    public void SlowTransferDoesNotBlockWritesTest() throws Exception {
+        // A transfer stalled on its reader holds no lock, and a compaction meanwhile does not cut it short
+        archive.put(VIDEO_ID, captions(1000, "line"));
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel slow = new WritableByteChannel() {
+            private final WritableByteChannel sink = Channels.newChannel(out);
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writing.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return sink.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+        Thread reader = new Thread(() -> {
+            try {
+                archive.transferTo(VIDEO_ID, slow);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        reader.start();
+        writing.await();
+
+        archive.put(VIDEO_ID, captions(2, "replaced"));
+        archive.compact();
+        resume.countDown();
+        reader.join();
+
+        Assert.assertEquals(gson.toJson(captions(1000, "line")), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals(gson.toJson(captions(2, "replaced")), transfer(VIDEO_ID));
+    }
+
+    /**
+     * Copies the archived transcript of a video into a string
+     * @param videoID The Youtube ID of the video
+     * @return The transcript, or null if the video is not archived
+     */
+    private String transfer(String videoID) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!archive.transferTo(videoID, Channels.newChannel(out))) {
+            return null;
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends a /fullcaption request for VIDEO_ID to a servlet
+     * @param servlet The servlet to call
+     * @return The body of the response
+     */
+    private String get(CaptionRetrievalServlet servlet) throws IOException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(request.getParameter("id")).thenReturn(VIDEO_ID);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {}
+        });
+
+        servlet.doGet(request, response);
+        verify(response, never()).getWriter();
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
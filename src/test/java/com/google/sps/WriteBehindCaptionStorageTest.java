@@ -0,0 +1,243 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.data.TimeRangedText;
+import com.google.sps.storage.CaptionStorageException;
+import com.google.sps.storage.CaptionStorageInterface;
+import com.google.sps.storage.ClauseWriteResult;
+import com.google.sps.storage.Reason;
+import com.google.sps.storage.WriteBehindCaptionStorage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+import static com.google.sps.StorageTestHelpers.captions;
+
+/** Tests for WriteBehindCaptionStorage, with a mocked storage behind the queue */
+@RunWith(JUnit4.class)
+public final class WriteBehindCaptionStorageTest {
+
+    private static final String VIDEO_ID = "videoA";
+    private static final String METADATA = "no_metadata";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CaptionStorageInterface delegate;
+    private Path deadLetters;
+    private WriteBehindCaptionStorage db;
+
+    @Before
+    public void Setup() throws CaptionStorageException {
+        delegate = mock(CaptionStorageInterface.class);
+        when(delegate.addClauses(anyString(), anyMap())).thenReturn(new ClauseWriteResult());
+        deadLetters = folder.getRoot().toPath().resolve("dead-letters.jsonl");
+        db = new WriteBehindCaptionStorage(delegate, 8, 3, 1, deadLetters);
+    }
+
+    @After
+    public void TearDown() {
+        db.close();
+    }
+
+    @Test
+    public void QueuedWritesAreReadBeforeFlushTest() throws Exception {
+        // While the storage is still writing, reads are answered from the queued captions and keyphrases
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writing.countDown();
+            proceed.await();
+            return null;
+        }).when(delegate).addVideo(eq(VIDEO_ID), anyString(), anyList());
+        when(delegate.getAllKeywords(VIDEO_ID)).thenThrow(new CaptionStorageException(Reason.NO_VIDEO_EXISTS, ""));
+
+        db.addVideoAsync(VIDEO_ID, METADATA, Arrays.asList(new TimeRangedText(5, 6, "b"), new TimeRangedText(0, 5, "a"))).join();
+        db.addClausesAsync(VIDEO_ID, Collections.singletonMap("hello", Arrays.asList(1L))).join();
+        writing.await();
+
+        Assert.assertTrue(db.videoInDb(VIDEO_ID));
+        Assert.assertTrue(db.metaInDb(VIDEO_ID, METADATA));
+        Assert.assertEquals("a", db.getFullCaptions(VIDEO_ID).get(0).getText());
+        Assert.assertEquals(Collections.singletonMap("hello", Arrays.asList(1L)), db.getAllKeywords(VIDEO_ID));
+        Assert.assertEquals(Arrays.asList(1L), db.getTimesForKeyword(VIDEO_ID, "hello"));
+
+        proceed.countDown();
+        db.flush();
+        verify(delegate).addClauses(VIDEO_ID, Collections.singletonMap("hello", Arrays.asList(1L)));
+        Assert.assertFalse(db.videoInDb(VIDEO_ID));  // read through to the mocked storage again
+    }
+
+    @Test
+    public void KeyphrasesAreMergedPerVideoTest() throws Exception {
+        // Keyphrases queued while a write is in progress are persisted in one call
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writing.countDown();
+            proceed.await();
+            return null;
+        }).when(delegate).addVideo(eq(VIDEO_ID), anyString(), anyList());
+
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2)).join();
+        writing.await();
+        db.addClausesAsync(VIDEO_ID, Collections.singletonMap("first", Arrays.asList(1L))).join();
+        db.addClausesAsync(VIDEO_ID, Collections.singletonMap("second", Arrays.asList(2L))).join();
+        proceed.countDown();
+        db.flush();
+
+        Map<String, List<Long>> merged = new HashMap<>();
+        merged.put("first", Arrays.asList(1L));
+        merged.put("second", Arrays.asList(2L));
+        verify(delegate).addClauses(VIDEO_ID, merged);
+    }
+
+    @Test
+    public void ReplacedKeyphrasesAreAppliedByTheFlusherTest() throws Exception {
+        // A replacement hides the stored keyphrases from reads at once and is persisted as one replaceClauses call
+        // together with the keyphrases queued after it
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writing.countDown();
+            proceed.await();
+            return null;
+        }).when(delegate).addVideo(eq(VIDEO_ID), anyString(), anyList());
+        when(delegate.replaceClauses(anyString(), anyMap())).thenReturn(new ClauseWriteResult());
+        when(delegate.getAllKeywords(VIDEO_ID)).thenReturn(Collections.singletonMap("stale", Arrays.asList(9L)));
+
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2)).join();
+        writing.await();
+        db.addClausesAsync(VIDEO_ID, Collections.singletonMap("dropped", Arrays.asList(0L))).join();
+        db.replaceClausesAsync(VIDEO_ID, Collections.singletonMap("first", Arrays.asList(1L))).join();
+        db.addClausesAsync(VIDEO_ID, Collections.singletonMap("second", Arrays.asList(2L))).join();
+
+        Map<String, List<Long>> expected = new HashMap<>();
+        expected.put("first", Arrays.asList(1L));
+        expected.put("second", Arrays.asList(2L));
+        Assert.assertEquals(expected, db.getAllKeywords(VIDEO_ID));
+        try {
+            db.getTimesForKeyword(VIDEO_ID, "stale");
+            Assert.fail();
+        } catch (CaptionStorageException e) {
+            Assert.assertEquals(Reason.NO_KEYPHRASE_EXISTS, e.getReason());
+        }
+
+        proceed.countDown();
+        db.flush();
+        verify(delegate).replaceClauses(VIDEO_ID, expected);
+        verify(delegate, never()).addClauses(anyString(), anyMap());
+        verify(delegate, never()).deleteClauses(anyString(), anyCollection());
+    }
+
+    @Test
+    public void FailedWritesAreRetriedTest() throws Exception {
+        // A write that fails twice is persisted on its third attempt
+        doThrow(new CaptionStorageException(Reason.ADD_VIDEO_ERR, "unavailable"))
+            .doThrow(new CaptionStorageException(Reason.ADD_VIDEO_ERR, "unavailable"))
+            .doNothing()
+            .when(delegate).addVideo(eq(VIDEO_ID), anyString(), anyList());
+
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2)).join();
+        db.flush();
+
+        verify(delegate, times(3)).addVideo(eq(VIDEO_ID), eq(METADATA), anyList());
+        Assert.assertEquals(0, db.getDeadLetterCount());
+    }
+
+    @Test
+    public void ExhaustedWritesAreDeadLetteredTest() throws Exception {
+        // A write that keeps failing is written to the dead-letter file and no longer read from the queue
+        doThrow(new CaptionStorageException(Reason.ADD_VIDEO_ERR, "unavailable"))
+            .when(delegate).addVideo(eq(VIDEO_ID), anyString(), anyList());
+
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2)).join();
+        db.flush();
+
+        verify(delegate, times(3)).addVideo(eq(VIDEO_ID), eq(METADATA), anyList());
+        Assert.assertEquals(1, db.getDeadLetterCount());
+        List<String> lines = Files.readAllLines(deadLetters, StandardCharsets.UTF_8);
+        Assert.assertEquals(1, lines.size());
+        Assert.assertTrue(lines.get(0).contains("\"videoID\":\"videoA\""));
+        Assert.assertTrue(lines.get(0).contains("\"reason\":\"ADD_VIDEO_ERR\""));
+        Assert.assertFalse(db.videoInDb(VIDEO_ID));
+    }
+
+    @Test(timeout = 10000)
+    public void FullQueueDoesNotBlockDeadLettersTest() throws Exception {
+        // Callers waiting for room in a full queue do not keep the flusher from dead-lettering failed writes
+        doThrow(new CaptionStorageException(Reason.ADD_VIDEO_ERR, "unavailable"))
+            .when(delegate).addVideo(anyString(), anyString(), anyList());
+        WriteBehindCaptionStorage full = new WriteBehindCaptionStorage(delegate, 1, 1, 1, deadLetters);
+
+        for (int i = 0; i < 8; i++) {
+            full.addVideoAsync(VIDEO_ID + i, METADATA, captions(2)).join();
+        }
+        full.close();
+
+        Assert.assertEquals(8, full.getDeadLetterCount());
+        Assert.assertEquals(8, Files.readAllLines(deadLetters, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void ContentHashFollowsKeyphrasesTest() throws Exception {
+        // A queued content hash is read back at once, but not stored if the keyphrases before it failed
+        when(delegate.addClauses(anyString(), anyMap())).thenThrow(new CaptionStorageException(Reason.ADD_KEYPHRASE_ERR, "unavailable"));
+        CountDownLatch proceed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            proceed.await();
+            return null;
+        }).when(delegate).addVideo(eq(VIDEO_ID), anyString(), anyList());
+
+        db.addVideoAsync(VIDEO_ID, METADATA, captions(2)).join();
+        db.addClausesAsync(VIDEO_ID, Collections.singletonMap("hello", Arrays.asList(1L))).join();
+        db.setContentHash(VIDEO_ID, "hash");
+        Assert.assertEquals("hash", db.getContentHash(VIDEO_ID));
+        proceed.countDown();
+        db.flush();
+
+        verify(delegate, never()).setContentHash(anyString(), anyString());
+        Assert.assertEquals(1, db.getDeadLetterCount());
+    }
+
+    @Test
+    public void KeyphrasesOfMissingVideoAreRejectedTest() throws CaptionStorageException {
+        // Keyphrases of a video that is neither stored nor queued fail without being queued
+        try {
+            db.addClausesAsync(VIDEO_ID, Collections.singletonMap("hello", Arrays.asList(1L))).join();
+            Assert.fail("Expected NO_VIDEO_EXISTS");
+        } catch (RuntimeException e) {
+            Assert.assertEquals(Reason.NO_VIDEO_EXISTS, ((CaptionStorageException) e.getCause()).getReason());
+        }
+        db.flush();
+        verify(delegate, never()).addClauses(anyString(), anyMap());
+    }
+}